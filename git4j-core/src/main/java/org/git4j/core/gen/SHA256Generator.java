@@ -7,18 +7,33 @@ import org.git4j.core.util.StringUtils;
 
 public class SHA256Generator implements ObjectIdGenerator {
 
-	private MessageDigest md;
+	// MessageDigest is not thread safe, DEFAULT generator is shared
+	private ThreadLocal<MessageDigest> md;
 
 	public SHA256Generator() {
+		newDigest();
+
+		md = new ThreadLocal<MessageDigest>() {
+
+			@Override
+			protected MessageDigest initialValue() {
+				return newDigest();
+			}
+		};
+	}
+
+	private static MessageDigest newDigest() {
 		try {
-			md = MessageDigest.getInstance("SHA-256");
+			return MessageDigest.getInstance("SHA-256");
 		} catch (NoSuchAlgorithmException e) {
 			throw new IllegalArgumentException("SHA-256 not supported");
 		}
 	}
 
 	public String generate(byte[] content) {
-		md.reset();
-		return StringUtils.toString64(md.digest((byte[]) content));
+		MessageDigest digest = md.get();
+
+		digest.reset();
+		return StringUtils.toString64(digest.digest((byte[]) content));
 	}
 }
@@ -20,9 +20,11 @@ import org.git4j.core.logging.LoggerFactory;
 import org.git4j.core.objs.Blob;
 import org.git4j.core.objs.BranchAndHead;
 import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.RefUpdate;
 import org.git4j.core.objs.Status;
 import org.git4j.core.objs.UploadPack;
 import org.git4j.core.repo.Repository;
+import org.git4j.core.repo.UnitOfWork;
 import org.git4j.core.transport.Transport;
 import org.git4j.core.util.ObjectUtils;
 import org.git4j.core.util.StringUtils;
@@ -70,6 +72,9 @@ public class DefaultGit implements Git {
 
 		Map<String, String> index = commit.index();
 
+		// new BLOBs and the COMMIT are stored at once
+		Map<String, Blob> blobs = new HashMap<String, Blob>();
+
 		Commit head = repo.getLocalHead(branch);
 
 		if (head != null) {
@@ -87,26 +92,43 @@ public class DefaultGit implements Git {
 			Blob blob = new Blob();
 			blob.setContent(e.getValue());
 
-			index.put(e.getKey(), repo.store(blob));
+			index.put(e.getKey(), blob.getId());
+			blobs.put(blob.getId(), blob);
 		}
 
 		for (Map.Entry<String, Object> e : workspace.modified().entrySet()) {
 			Blob blob = new Blob();
 			blob.setContent(e.getValue());
 
-			index.put(e.getKey(), repo.store(blob));
+			index.put(e.getKey(), blob.getId());
+			blobs.put(blob.getId(), blob);
 		}
 
 		for (String name : workspace.removed()) {
 			index.remove(name);
 		}
 
-		// store COMMIT
-		String commitId = repo.store(commit);
+		String commitId = commit.getId();
+
+		UploadPack pack = new UploadPack();
+		pack.setBranch(branch);
+		pack.setHeadRef(commitId);
+		pack.setBlobs(blobs);
+		pack.setCommits(Collections.singletonMap(commitId, commit));
+
+		// store BLOBs and COMMIT and set branch HEAD at once
+		UnitOfWork uow = repo.begin();
 
-		// set branch HEAD
-		repo.setLocalHeadRef(branch, head == null ? null : head.getId(),
-				commitId);
+		try {
+			repo.store(pack);
+
+			repo.setLocalHeadRef(branch, head == null ? null : head.getId(),
+					commitId);
+
+			uow.commit();
+		} finally {
+			uow.close();
+		}
 
 		workspace.update(commit);
 		return commitId;
@@ -125,16 +147,13 @@ public class DefaultGit implements Git {
 
 		if ((remoteBranches == null) || (remoteBranches.length == 0)) {
 			bnhs.addAll(repo.getRemoteBranches());
-		}
-
-		Map<String, String> remoteHeadRefs = new HashMap<String, String>();
-
-		for (int i = 0, len = remoteBranches.length; i < len; ++i) {
-			String remoteBranch = remoteBranches[i];
-			String headRef = repo.getRemoteHeadRef(remoteBranch);
+		} else {
+			for (int i = 0, len = remoteBranches.length; i < len; ++i) {
+				String remoteBranch = remoteBranches[i];
+				String headRef = repo.getRemoteHeadRef(remoteBranch);
 
-			bnhs.add(new BranchAndHead(remoteBranch, headRef));
-			remoteHeadRefs.put(remoteBranch, headRef);
+				bnhs.add(new BranchAndHead(remoteBranch, headRef));
+			}
 		}
 
 		// case: no remote branches
@@ -142,6 +161,12 @@ public class DefaultGit implements Git {
 			return;
 		}
 
+		Map<String, String> remoteHeadRefs = new HashMap<String, String>();
+
+		for (BranchAndHead bnh : bnhs) {
+			remoteHeadRefs.put(bnh.getBranch(), bnh.getHeadRef());
+		}
+
 		// fetch!
 		UploadPack[] packs = transport
 				.fetch(bnhs.toArray(new BranchAndHead[0]));
@@ -151,25 +176,32 @@ public class DefaultGit implements Git {
 					+ " will be fetched");
 		}
 
-		for (int i = 0, len = packs.length; i < len; ++i) {
-			UploadPack pack = packs[i];
+		List<RefUpdate> updates = new ArrayList<RefUpdate>(packs.length);
 
-			String branch = pack.getBranch();
-			String newHeadRef = pack.getHeadRef();
+		// stored objects and new HEADs in one unit of work
+		UnitOfWork uow = repo.begin();
 
-			// store COMMITs and BLOBs
-			repo.store(pack);
+		try {
+			for (int i = 0, len = packs.length; i < len; ++i) {
+				UploadPack pack = packs[i];
 
-			// set new HEAD
-			repo.setRemoteHeadRef(pack.getBranch(), remoteHeadRefs.get(branch),
-					newHeadRef);
+				// store COMMITs and BLOBs
+				repo.store(pack);
 
-			if (log.isTraceEnabled()) {
-				if (log.isTraceEnabled()) {
-					log.trace("fetch remote branch " + branch + " "
-							+ newHeadRef + ": OK");
-				}
+				updates.add(RefUpdate.remote(pack.getBranch(), remoteHeadRefs
+						.get(pack.getBranch()), pack.getHeadRef()));
 			}
+
+			// set new HEADs, all or nothing
+			repo.updateRefs(updates);
+
+			uow.commit();
+		} finally {
+			uow.close();
+		}
+
+		if (log.isTraceEnabled()) {
+			log.trace("fetch remote branches " + updates + ": OK");
 		}
 	}
 
@@ -193,64 +225,77 @@ public class DefaultGit implements Git {
 					"resolution must be LEAVE or USE_BRANCH or USE_COMMIT");
 		}
 
-		Commit commit = repo.find(Commit.class, commitId);
-		if (commit == null) {
-			throw new GitException("commit " + commitId + " cannot be found");
-		}
+		UnitOfWork uow = repo.begin();
 
-		String branchHeadRef = repo.getLocalHeadRef(branch);
+		try {
+			Commit commit = repo.find(Commit.class, commitId);
+			if (commit == null) {
+				throw new GitException("commit " + commitId
+						+ " cannot be found");
+			}
 
-		// case: empty branch
-		if (branchHeadRef == null) {
-			// set new HEAD
-			repo.setLocalHeadRef(branch, null, commitId);
+			String branchHeadRef = repo.getLocalHeadRef(branch);
 
-			// no conflicts
-			return Collections.emptySet();
-		}
+			// case: empty branch
+			if (branchHeadRef == null) {
+				// set new HEAD
+				repo.setLocalHeadRef(branch, null, commitId);
 
-		// case: fast-forward
-		if (ObjectUtils.canFastForward(repo, commitId, branchHeadRef)) {
-			// set new HEAD
-			repo.setLocalHeadRef(branch, branchHeadRef, commitId);
+				uow.commit();
 
-			// no conflicts
-			return Collections.emptySet();
-		}
+				// no conflicts
+				return Collections.emptySet();
+			}
 
-		// auto-merge
-		ObjectUtils.AutoMergeResult result = ObjectUtils.autoMerge(commit,
-				repo.find(Commit.class, branchHeadRef), resolution);
+			// case: fast-forward
+			if (ObjectUtils.canFastForward(repo, commitId, branchHeadRef)) {
+				// set new HEAD
+				repo.setLocalHeadRef(branch, branchHeadRef, commitId);
 
-		if (result.conflicts().isEmpty()
-				|| !ConflictResolution.LEAVE.equals(resolution)) {
+				uow.commit();
 
-			// find pre intersection A between commitId and branchHeadRef in
-			// path branch
-			String idA = ObjectUtils.findPreIntersection(repo, branchHeadRef,
-					commitId);
+				// no conflicts
+				return Collections.emptySet();
+			}
 
-			// construct new commit path, commit Id -> A -> branch HEAD
-			Commit reparentA = repo.find(Commit.class, idA);
-			reparentA.setParent(commitId);
+			// auto-merge
+			ObjectUtils.AutoMergeResult result = ObjectUtils.autoMerge(commit,
+					repo.find(Commit.class, branchHeadRef), resolution);
 
-			Commit merged = new Commit();
-			merged.setAuthor(author);
-			merged.setParent2(commitId);
-			merged.setMessage(msg);
+			if (result.conflicts().isEmpty()
+					|| !ConflictResolution.LEAVE.equals(resolution)) {
 
-			merged.index().putAll(result.index());
-			merged.setParent(branchHeadRef);
+				// find pre intersection A between commitId and branchHeadRef in
+				// path branch
+				String idA = ObjectUtils.findPreIntersection(repo,
+						branchHeadRef, commitId);
 
-			// store COMMITs
-			repo.store(merged);
-			repo.store(reparentA);
+				// construct new commit path, commit Id -> A -> branch HEAD
+				Commit reparentA = repo.find(Commit.class, idA);
+				reparentA.setParent(commitId);
 
-			// set new HEAD
-			repo.setLocalHeadRef(branch, branchHeadRef, merged.getId());
-		}
+				Commit merged = new Commit();
+				merged.setAuthor(author);
+				merged.setParent2(commitId);
+				merged.setMessage(msg);
+
+				merged.index().putAll(result.index());
+				merged.setParent(branchHeadRef);
 
-		return result.conflicts();
+				// store COMMITs
+				repo.store(merged);
+				repo.store(reparentA);
+
+				// set new HEAD
+				repo.setLocalHeadRef(branch, branchHeadRef, merged.getId());
+			}
+
+			uow.commit();
+
+			return result.conflicts();
+		} finally {
+			uow.close();
+		}
 	}
 
 	/*
@@ -298,11 +343,25 @@ public class DefaultGit implements Git {
 		Map<String, Blob> blobs = new HashMap<String, Blob>();
 		Map<String, Commit> commits = new HashMap<String, Commit>();
 
-		String remoteHeadRef = repo.getRemoteHeadRef(remoteBranch);
+		String remoteHeadRef;
+		boolean fastForward;
+
+		// reads share one unit of work, which is not held while pushing
+		UnitOfWork uow = repo.begin();
+
+		try {
+			remoteHeadRef = repo.getRemoteHeadRef(remoteBranch);
+
+			// collect objects from commitId to remote branch HEAD
+			fastForward = ObjectUtils.collectObjects(repo, commitId,
+					remoteHeadRef, commits, blobs);
+
+			uow.commit();
+		} finally {
+			uow.close();
+		}
 
-		// collect objects from commitId to remote branch HEAD
-		if (!ObjectUtils.collectObjects(repo, commitId, remoteHeadRef, commits,
-				blobs)) {
+		if (!fastForward) {
 			if (log.isTraceEnabled()) {
 				log.trace("push " + commitId + " into remote branch "
 						+ remoteBranch + " " + remoteHeadRef
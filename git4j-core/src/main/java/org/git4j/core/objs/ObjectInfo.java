@@ -0,0 +1,44 @@
+package org.git4j.core.objs;
+
+import java.io.Serializable;
+
+public class ObjectInfo implements Serializable {
+
+	private static final long serialVersionUID = -4135920416573208722L;
+
+	private String id;
+
+	private Types type;
+
+	private long size;
+
+	public ObjectInfo(String id, Types type, long size) {
+		this.id = id;
+		this.type = type;
+		this.size = size;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return object type, <code>null</code> if the repository can not tell it
+	 *         without loading the object
+	 */
+	public Types getType() {
+		return type;
+	}
+
+	/**
+	 * @return size hint in bytes, <code>-1</code> if unknown
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + id + " " + size;
+	}
+}
@@ -0,0 +1,67 @@
+package org.git4j.core.objs;
+
+/**
+ * A compare-and-swap update of a local or remote branch head, used by
+ * {@link org.git4j.core.repo.Repository#updateRefs(java.util.Collection)}.
+ */
+public class RefUpdate {
+
+	private boolean remote;
+
+	private String branch;
+
+	private String headRef;
+
+	private String newHeadRef;
+
+	/**
+	 * @param remote
+	 *            <code>true</code> for a remote branch
+	 * @param branch
+	 *            the branch
+	 * @param headRef
+	 *            expected current HEAD, <code>null</code> if the branch MUST
+	 *            NOT exist
+	 * @param newHeadRef
+	 *            new HEAD, <code>null</code> to remove the branch
+	 */
+	public RefUpdate(boolean remote, String branch, String headRef,
+			String newHeadRef) {
+		this.remote = remote;
+		this.branch = branch;
+		this.headRef = headRef;
+		this.newHeadRef = newHeadRef;
+	}
+
+	public static RefUpdate local(String branch, String headRef,
+			String newHeadRef) {
+		return new RefUpdate(false, branch, headRef, newHeadRef);
+	}
+
+	public static RefUpdate remote(String branch, String headRef,
+			String newHeadRef) {
+		return new RefUpdate(true, branch, headRef, newHeadRef);
+	}
+
+	public boolean isRemote() {
+		return remote;
+	}
+
+	public String getBranch() {
+		return branch;
+	}
+
+	public String getHeadRef() {
+		return headRef;
+	}
+
+	public String getNewHeadRef() {
+		return newHeadRef;
+	}
+
+	@Override
+	public String toString() {
+		return (remote ? "remote " : "local ") + branch + " " + headRef
+				+ " -> " + newHeadRef;
+	}
+}
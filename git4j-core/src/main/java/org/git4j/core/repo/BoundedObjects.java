@@ -0,0 +1,465 @@
+package org.git4j.core.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.ObjectInfo;
+import org.git4j.core.objs.Types;
+import org.git4j.core.util.ByteBufferInputStream;
+
+/**
+ * Encoded objects held in heap arrays up to a budget of encoded bytes. Once
+ * the budget is exceeded the least recently used objects are spilled to a
+ * segment file and read back into memory by the next
+ * {@link #get(String)}. An object is written to the segment file once, it
+ * keeps its place there when it is evicted again. Once removed objects take
+ * half of the segment file, the spilled objects are copied to a new one.
+ * The segment file is deleted by {@link #close()}.
+ * <p>
+ * The budget only counts encoded bytes. Every object, spilled or not, also
+ * keeps its id, an entry and a map entry on the heap, roughly 150 to 200
+ * bytes per object depending on the JVM.
+ * <p>
+ * Changes are made under the monitor of this object,
+ * {@link #contains(String)} and cursors read the entries without it.
+ */
+class BoundedObjects implements EncodedObjects {
+
+	private static final byte COMMIT = 1;
+
+	private static final byte BLOB = 2;
+
+	// dead bytes never worth a compaction, whatever the budget
+	private static final long MAX_COMPACTION_THRESHOLD = 1L << 20;
+
+	private final long budget;
+
+	private final File directory;
+
+	// <id, entry>, resident or spilled
+	private ConcurrentMap<String, Entry> entries;
+
+	// <id, entry>, least recently used first
+	private LinkedHashMap<String, Entry> resident;
+
+	private long residentBytes;
+
+	private long spilledBytes;
+
+	// created by the first spill
+	private RandomAccessFile segment;
+
+	private File segmentFile;
+
+	private long segmentEnd;
+
+	// bytes of removed objects still in the segment file
+	private long deadBytes;
+
+	/**
+	 * @param directory
+	 *            where the segment file is created, <code>null</code> for
+	 *            the default temporary directory
+	 */
+	BoundedObjects(long budget, File directory) {
+		if (budget <= 0) {
+			throw new IllegalArgumentException(
+					"memory budget MUST be positive");
+		}
+
+		this.budget = budget;
+		this.directory = directory;
+
+		entries = new ConcurrentHashMap<String, Entry>();
+		resident = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.EncodedObjects#put(java.lang.String,
+	 * java.lang.Object)
+	 */
+	public void put(String id, Object obj) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		byte type;
+
+		if (obj instanceof Commit) {
+			((Commit) obj).writeObject(out);
+			type = COMMIT;
+		} else {
+			((Blob) obj).writeObject(out);
+			type = BLOB;
+		}
+
+		synchronized (this) {
+			Entry existing = entries.get(id);
+
+			if (existing != null) {
+				// stored again
+				existing.stored = System.currentTimeMillis();
+				return;
+			}
+
+			Entry entry = new Entry(type, out.toByteArray());
+
+			entries.put(id, entry);
+			resident.put(id, entry);
+
+			residentBytes += entry.length;
+
+			evict();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.EncodedObjects#contains(java.lang.String)
+	 */
+	public boolean contains(String id) {
+		return entries.containsKey(id);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.EncodedObjects#get(java.lang.String)
+	 */
+	public Object get(String id) throws IOException {
+		byte type;
+		byte[] encoded;
+
+		synchronized (this) {
+			Entry entry = entries.get(id);
+			if (entry == null) {
+				return null;
+			}
+
+			type = entry.type;
+
+			if (entry.encoded != null) {
+				// touched as most recently used
+				resident.get(id);
+			} else {
+				entry.encoded = read(entry);
+
+				resident.put(id, entry);
+
+				residentBytes += entry.length;
+				spilledBytes -= entry.length;
+			}
+
+			// still valid if evicted right away
+			encoded = entry.encoded;
+
+			evict();
+		}
+
+		ByteBufferInputStream in = new ByteBufferInputStream(ByteBuffer
+				.wrap(encoded));
+
+		try {
+			if (type == COMMIT) {
+				return new Commit().readObject(in);
+			} else {
+				return new Blob().readObject(in);
+			}
+		} catch (ClassNotFoundException e) {
+			throw (IOException) new IOException("unable to read object "
+					+ id).initCause(e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.EncodedObjects#remove(java.lang.String, long)
+	 */
+	public synchronized long remove(String id, long storedBefore)
+			throws IOException {
+		Entry entry = entries.get(id);
+		if ((entry == null) || (entry.stored >= storedBefore)) {
+			return -1;
+		}
+
+		entries.remove(id);
+
+		if (resident.remove(id) != null) {
+			residentBytes -= entry.length;
+		} else {
+			spilledBytes -= entry.length;
+		}
+
+		if (entry.offset >= 0) {
+			deadBytes += entry.length;
+
+			compactIfWasteful();
+		}
+
+		return entry.length;
+	}
+
+	/**
+	 * @return cursor over the entries as they are iterated, nothing is copied
+	 *         up front
+	 */
+	public ObjectCursor cursor(final Types type) throws IOException {
+		return new ObjectCursor() {
+
+			private Iterator<Map.Entry<String, Entry>> it = entries.entrySet()
+					.iterator();
+
+			public ObjectInfo next() throws IOException {
+				while (it.hasNext()) {
+					Map.Entry<String, Entry> e = it.next();
+
+					Types otype = e.getValue().type == COMMIT ? Types.COMMIT
+							: Types.BLOB;
+
+					if ((type == null) || type.equals(otype)) {
+						return new ObjectInfo(e.getKey(), otype,
+								e.getValue().length);
+					}
+				}
+
+				return null;
+			}
+
+			public void close() throws IOException {
+				// do nothing
+			}
+		};
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.EncodedObjects#clear()
+	 */
+	public synchronized void clear() throws IOException {
+		entries.clear();
+		resident.clear();
+
+		residentBytes = 0;
+		spilledBytes = 0;
+
+		if (segment != null) {
+			segment.getChannel().truncate(0);
+			segmentEnd = 0;
+		}
+
+		deadBytes = 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.EncodedObjects#close()
+	 */
+	public synchronized void close() throws IOException {
+		entries.clear();
+		resident.clear();
+
+		residentBytes = 0;
+		spilledBytes = 0;
+
+		RandomAccessFile closing = segment;
+		File file = segmentFile;
+
+		segment = null;
+		segmentFile = null;
+		segmentEnd = 0;
+		deadBytes = 0;
+
+		if (closing != null) {
+			try {
+				closing.close();
+			} finally {
+				if (!file.delete() && file.exists()) {
+					throw new IOException("unable to delete " + file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return length of the segment file, <code>0</code> if not created
+	 */
+	synchronized long getSegmentLength() {
+		return segmentEnd;
+	}
+
+	synchronized long getResidentBytes() {
+		return residentBytes;
+	}
+
+	synchronized long getSpilledBytes() {
+		return spilledBytes;
+	}
+
+	/**
+	 * spill least recently used objects until the budget is met.
+	 */
+	private void evict() throws IOException {
+		Iterator<Entry> it = resident.values().iterator();
+
+		while ((residentBytes > budget) && it.hasNext()) {
+			Entry entry = it.next();
+
+			if (entry.offset < 0) {
+				write(entry);
+			}
+
+			entry.encoded = null;
+			it.remove();
+
+			residentBytes -= entry.length;
+			spilledBytes += entry.length;
+		}
+	}
+
+	/**
+	 * copy the spilled objects to a new segment file once removed objects
+	 * take half of it, and at least the budget up to a megabyte. Resident
+	 * objects are written again when they are evicted.
+	 */
+	private void compactIfWasteful() throws IOException {
+		if ((deadBytes < Math.min(budget, MAX_COMPACTION_THRESHOLD))
+				|| ((deadBytes << 1) < segmentEnd)) {
+			return;
+		}
+
+		File file = File.createTempFile("git4j-", ".segment", directory);
+		RandomAccessFile compacted = new RandomAccessFile(file, "rw");
+
+		// entries point to the old file until every copy succeeded
+		List<Entry> copied = new ArrayList<Entry>();
+		long end = 0;
+
+		try {
+			for (Entry entry : entries.values()) {
+				if ((entry.offset >= 0) && (entry.encoded == null)) {
+					write(compacted, read(entry), end);
+
+					copied.add(entry);
+					end += entry.length;
+				}
+			}
+		} catch (IOException e) {
+			try {
+				compacted.close();
+			} catch (Throwable t) {
+				// do nothing
+			}
+
+			file.delete();
+
+			throw e;
+		}
+
+		for (Entry entry : entries.values()) {
+			entry.offset = -1;
+		}
+
+		long offset = 0;
+
+		for (Entry entry : copied) {
+			entry.offset = offset;
+			offset += entry.length;
+		}
+
+		RandomAccessFile old = segment;
+		File oldFile = segmentFile;
+
+		segment = compacted;
+		segmentFile = file;
+		segmentEnd = end;
+		deadBytes = 0;
+
+		try {
+			old.close();
+		} catch (Throwable t) {
+			// do nothing
+		}
+
+		if (!oldFile.delete()) {
+			oldFile.deleteOnExit();
+		}
+	}
+
+	private void write(Entry entry) throws IOException {
+		if (segment == null) {
+			segmentFile = File.createTempFile("git4j-", ".segment", directory);
+			segment = new RandomAccessFile(segmentFile, "rw");
+		}
+
+		write(segment, entry.encoded, segmentEnd);
+
+		entry.offset = segmentEnd;
+		segmentEnd += entry.length;
+	}
+
+	private static void write(RandomAccessFile file, byte[] encoded,
+			long offset) throws IOException {
+		FileChannel channel = file.getChannel();
+		ByteBuffer bb = ByteBuffer.wrap(encoded);
+
+		while (bb.hasRemaining()) {
+			channel.write(bb, offset + bb.position());
+		}
+	}
+
+	private byte[] read(Entry entry) throws IOException {
+		FileChannel channel = segment.getChannel();
+		ByteBuffer bb = ByteBuffer.allocate(entry.length);
+
+		while (bb.hasRemaining()) {
+			if (channel.read(bb, entry.offset + bb.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+
+		return bb.array();
+	}
+
+	private static class Entry {
+		private final byte type;
+
+		private final int length;
+
+		// null while spilled
+		private byte[] encoded;
+
+		// place in the segment file, -1 if never spilled
+		private long offset;
+
+		// when last stored
+		private long stored;
+
+		private Entry(byte type, byte[] encoded) {
+			this.type = type;
+			this.encoded = encoded;
+
+			length = encoded.length;
+			offset = -1;
+
+			stored = System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package org.git4j.core.repo;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+import org.git4j.core.objs.Commit;
+
+/**
+ * Optional capability of a repository able to answer history queries in
+ * bulk, e.g. with a single SQL statement. The walks of
+ * {@link org.git4j.core.util.ObjectUtils} use it instead of loading commits
+ * one at a time when the repository implements it.
+ */
+public interface CommitGraph {
+
+	/**
+	 * walk first parents starting at a commit. The walk ends after
+	 * <code>stopId</code>, at a root commit, at a commit not found, or earlier
+	 * if the implementation limits the number of commits returned at once.
+	 * 
+	 * @param id
+	 *            commit id to start from
+	 * @param stopId
+	 *            commit id to stop at, <code>null</code> to walk to the root
+	 * @return commit id to its first parent id (<code>null</code> for a root
+	 *         commit) in walk order, <code>null</code> if the repository
+	 *         cannot walk history itself
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	Map<String, String> firstParents(String id, String stopId)
+			throws IOException;
+
+	/**
+	 * load several commits at once.
+	 * 
+	 * @param ids
+	 *            commit ids
+	 * @return commits found, by id
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	Map<String, Commit> findCommits(Collection<String> ids) throws IOException;
+}
@@ -0,0 +1,25 @@
+package org.git4j.core.repo;
+
+/**
+ * How written files are forced to disk before an operation returns.
+ */
+public enum Durability {
+
+	/**
+	 * files are left to the operating system, a crash may lose recent
+	 * objects and refs.
+	 */
+	NONE,
+
+	/**
+	 * every operation syncs its own files before returning.
+	 */
+	SYNC,
+
+	/**
+	 * objects stored concurrently within a short window are written as one
+	 * pack, synced once before the operations return. Refs are synced as
+	 * with {@link #SYNC}.
+	 */
+	GROUP_COMMIT
+}
@@ -0,0 +1,52 @@
+package org.git4j.core.repo;
+
+import java.io.IOException;
+
+import org.git4j.core.objs.Types;
+
+/**
+ * Objects of an {@link InMemoryRepository} kept in their encoded form, and
+ * decoded again by every {@link #get(String)}.
+ */
+interface EncodedObjects {
+
+	/**
+	 * store an object unless its id is stored already, in which case only
+	 * its store time is updated.
+	 * 
+	 * @param obj
+	 *            the BLOB or COMMIT
+	 */
+	void put(String id, Object obj) throws IOException;
+
+	/**
+	 * @return the decoded BLOB or COMMIT, <code>null</code> if not found
+	 */
+	Object get(String id) throws IOException;
+
+	boolean contains(String id) throws IOException;
+
+	/**
+	 * remove an object unless it has been stored, or stored again, since
+	 * <code>storedBefore</code>.
+	 * 
+	 * @return size of the encoded object, <code>-1</code> if not found or
+	 *         stored since
+	 */
+	long remove(String id, long storedBefore) throws IOException;
+
+	/**
+	 * @param type
+	 *            only return objects of this type, <code>null</code> for all
+	 * @return weakly consistent cursor over stored objects
+	 */
+	ObjectCursor cursor(Types type) throws IOException;
+
+	void clear() throws IOException;
+
+	/**
+	 * remove all objects and release the memory and files they took. The
+	 * store MUST NOT be used afterwards.
+	 */
+	void close() throws IOException;
+}
@@ -1,35 +1,144 @@
 package org.git4j.core.repo;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.SyncFailedException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.git4j.core.GitException;
 import org.git4j.core.objs.Blob;
 import org.git4j.core.objs.BranchAndHead;
 import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.ObjectInfo;
+import org.git4j.core.objs.RefUpdate;
+import org.git4j.core.objs.Types;
 import org.git4j.core.objs.UploadPack;
+import org.git4j.core.util.ByteBufferInputStream;
+import org.git4j.core.util.IOUtils;
+import org.git4j.core.util.ObjectUtils;
 
 public class FileRepository implements Repository {
 
+	private static final String LOCK_SUFFIX = ".lock";
+
+	private static final String PACKED_HEADS = "heads/";
+
+	private static final String PACKED_REMOTES = "remotes/";
+
 	private File refsHeads;
 
 	private File refsRemotes;
 
 	private File objects;
 
+	private File packedRefsFile;
+
+	private volatile PackedRefs packedRefs;
+
+	private long lockTimeout;
+
+	private String name;
+
+	private int ioThreads;
+
+	// shared by all writers, created by the first parallel write
+	private ThreadPoolExecutor ioExecutor;
+
+	private String tempPrefix;
+
+	private AtomicLong tempCounter;
+
+	private int mapThreshold;
+
+	private volatile Durability durability;
+
+	private VerificationPolicy verificationPolicy;
+
+	private GroupCommit groupCommit;
+
+	private RefEventDispatcher events;
+
+	private File packDir;
+
+	private Object packLock;
+
+	// by id hash, a store refreshing an object and its removal exclude each
+	// other
+	private Object[] objectLocks;
+
+	// newest first, null until scanned
+	private volatile PackFile[] packs;
+
+	private long packsModified;
+
+	private long packsScanned;
+
+	private int packThreshold;
+
+	private int maxPacks;
+
+	private File layoutFile;
+
+	private Object layoutLock;
+
+	// directory levels above loose objects, 0 is the original flat layout
+	private volatile int fanOut;
+
+	// layout being migrated from, -1 if none
+	private volatile int previousFanOut;
+
+	private long layoutModified;
+
 	public FileRepository(File base) {
+		this(base, 1);
+	}
+
+	/**
+	 * open or create a repository.
+	 * 
+	 * @param base
+	 *            repository directory
+	 * @param fanOut
+	 *            number of directory levels (two id characters each) above
+	 *            loose objects, used when creating a repository. An existing
+	 *            repository keeps its layout, see {@link #migrate(int)}.
+	 */
+	public FileRepository(File base, int fanOut) {
+		validateFanOut(fanOut);
+
 		refsHeads = new File(base, "refs" + File.separator + "heads");
 		if (!refsHeads.exists()) {
 			if (!refsHeads.mkdirs()) {
@@ -46,50 +155,92 @@ public class FileRepository implements Repository {
 			}
 		}
 
+		packedRefsFile = new File(base, "refs" + File.separator
+				+ "packed-refs");
+
 		objects = new File(base, "objects");
-		if (!objects.exists()) {
+
+		boolean created = !objects.exists();
+		if (created) {
 			if (!objects.mkdirs()) {
 				throw new SecurityException("unable to create directory "
 						+ objects.getAbsolutePath());
 			}
 		}
-	}
 
-	private void write(Object o, File target) throws IOException {
-		OutputStream out = new BufferedOutputStream(
-				new FileOutputStream(target));
+		layoutFile = new File(objects, "layout");
+		layoutLock = new Object();
 
 		try {
-			if (o instanceof Commit) {
-				((Commit) o).writeObject(out);
-			} else if (o instanceof Blob) {
-				((Blob) o).writeObject(out);
+			if (layoutFile.exists()) {
+				loadLayout();
+			} else if (created) {
+				this.fanOut = fanOut;
+				previousFanOut = -1;
+
+				saveLayout();
+			} else {
+				// repository created before fan-out was supported
+				this.fanOut = 0;
+				previousFanOut = -1;
 			}
-		} finally {
-			try {
-				out.close();
-			} catch (Throwable t) {
-				// do nothing
+		} catch (IOException e) {
+			throw new GitException("unable to open object layout of "
+					+ objects.getAbsolutePath(), e);
+		}
+
+		packDir = new File(objects, "pack");
+		packLock = new Object();
+
+		objectLocks = new Object[64];
+		for (int i = 0; i < objectLocks.length; ++i) {
+			objectLocks[i] = new Object();
+		}
+
+		// single commits stay loose
+		packThreshold = 100;
+		maxPacks = 32;
+
+		lockTimeout = 1000;
+
+		name = base.getName();
+
+		ioThreads = 4;
+
+		tempPrefix = "obj" + Long.toHexString(UUID.randomUUID()
+				.getMostSignificantBits()) + "-";
+		tempCounter = new AtomicLong();
+
+		mapThreshold = 128 * 1024;
+
+		durability = Durability.NONE;
+		groupCommit = new GroupCommit(2, new GroupCommit.Flusher() {
+
+			public void flush(List<Object> objs) throws IOException {
+				writePack(objs);
 			}
+		});
+
+		verificationPolicy = VerificationPolicy.never();
+
+		events = new RefEventDispatcher(name);
+		events.setPoller(new RefPoller(), 500);
+	}
+
+	private static void validateFanOut(int fanOut) {
+		if ((fanOut < 0) || (fanOut > 4)) {
+			throw new IllegalArgumentException(
+					"fanOut MUST be between 0 and 4");
 		}
 	}
 
-	private <T> T read(File source, Class<T> type) throws IOException {
-		InputStream in = new BufferedInputStream(new FileInputStream(source));
+	private void loadLayout() throws IOException {
+		Properties props = new Properties();
 
-		Object o;
+		InputStream in = new FileInputStream(layoutFile);
 
 		try {
-			if (Commit.class.isAssignableFrom(type)) {
-				o = new Commit().readObject(in);
-			} else if (Blob.class.isAssignableFrom(type)) {
-				o = new Blob().readObject(in);
-			} else {
-				o = null;
-			}
-		} catch (ClassNotFoundException e) {
-			throw (IOException) new IOException(
-					"unable to read object from file " + source).initCause(e);
+			props.load(in);
 		} finally {
 			try {
 				in.close();
@@ -98,242 +249,1958 @@ public class FileRepository implements Repository {
 			}
 		}
 
-		return type.cast(o);
+		try {
+			fanOut = Integer.parseInt(props.getProperty("fanout", "0"));
+			previousFanOut = Integer.parseInt(props.getProperty(
+					"migrating.from", "-1"));
+		} catch (NumberFormatException e) {
+			throw (IOException) new IOException("invalid layout file "
+					+ layoutFile).initCause(e);
+		}
+
+		layoutModified = layoutFile.lastModified();
 	}
 
-	private void rm(File dir) {
-		File[] files = dir.listFiles();
+	private void saveLayout() throws IOException {
+		Properties props = new Properties();
+		props.setProperty("fanout", String.valueOf(fanOut));
 
-		for (int i = 0, len = files.length; i < len; ++i) {
-			File f = files[i];
+		if (previousFanOut >= 0) {
+			props.setProperty("migrating.from", String.valueOf(previousFanOut));
+		}
 
-			if (f.isDirectory()) {
-				rm(f);
+		File temp = new File(objects, "layout.tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+
+		try {
+			props.store(out, "git4j object layout");
+
+			if (durability != Durability.NONE) {
+				out.getFD().sync();
+			}
+		} finally {
+			try {
+				out.close();
+			} catch (Throwable t) {
+				// do nothing
 			}
+		}
 
-			if (!f.delete()) {
-				f.deleteOnExit();
+		if (!temp.renameTo(layoutFile)) {
+			// some platforms do not replace an existing file
+			if (!layoutFile.delete() || !temp.renameTo(layoutFile)) {
+				throw new IOException("unable to rename " + temp + " to "
+						+ layoutFile);
 			}
 		}
+
+		layoutModified = layoutFile.lastModified();
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * pick up a layout changed by another process.
 	 * 
-	 * @see org.git4j.core.GitRepository#store(org.git4j.core.impl.Blob)
+	 * @return <code>true</code> if the layout has been reloaded
 	 */
-	public String store(Blob blob) throws IOException {
-		String id = blob.getId();
-		File target = new File(objects, id);
+	private boolean refreshLayout() throws IOException {
+		if (layoutFile.lastModified() == layoutModified) {
+			return false;
+		}
 
-		if (!target.canRead()) {
-			write(blob, target);
+		synchronized (layoutLock) {
+			if (layoutFile.exists()) {
+				loadLayout();
+			}
 		}
 
-		return id;
+		return true;
 	}
 
-	/*
-	 * (non-Javadoc)
+	public int getFanOut() {
+		return fanOut;
+	}
+
+	/**
+	 * move loose objects to another fan-out layout. The repository remains
+	 * usable while objects are moved: new objects are written using the new
+	 * layout and objects are looked up in both layouts until the migration
+	 * has completed. An interrupted migration is resumed by calling this
+	 * method again.
 	 * 
-	 * @see org.git4j.core.GitRepository#store(org.git4j.core.impl.Commit)
+	 * @param fanOut
+	 *            number of directory levels above loose objects
+	 * @throws IOException
+	 *             if an IO error occurred
 	 */
-	public String store(Commit commit) throws IOException {
-		String id = commit.getId();
-		File target = new File(objects, id);
+	public void migrate(int fanOut) throws IOException {
+		validateFanOut(fanOut);
 
-		if (!target.canRead()) {
-			write(commit, target);
-		}
+		synchronized (layoutLock) {
+			refreshLayout();
 
-		return id;
-	}
+			if ((this.fanOut == fanOut) && (previousFanOut < 0)) {
+				return;
+			}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.git4j.core.GitRepository#store(org.git4j.core.GitUploadPack)
-	 */
-	public void store(UploadPack pack) throws IOException {
-		// store BLOBs
-		for (Blob blob : pack.getBlobs().values()) {
-			store(blob);
-		}
+			if (this.fanOut != fanOut) {
+				previousFanOut = this.fanOut;
+				this.fanOut = fanOut;
+			}
 
-		// store COMMITs
-		for (Commit commit : pack.getCommits().values()) {
-			store(commit);
+			saveLayout();
+
+			LooseWalker walker = new LooseWalker();
+			File f;
+
+			while ((f = walker.next()) != null) {
+				File target = objectFile(idOf(f.getName()), fanOut);
+
+				if (target.equals(f)) {
+					continue;
+				}
+
+				mkdirs(target.getParentFile());
+
+				// rename is atomic, readers find the object in one of both
+				// locations
+				if (!f.renameTo(target)) {
+					if (!target.exists()) {
+						throw new IOException("unable to rename " + f + " to "
+								+ target);
+					}
+
+					if (!f.delete()) {
+						f.deleteOnExit();
+					}
+				}
+			}
+
+			removeEmptyDirs(objects);
+
+			previousFanOut = -1;
+			saveLayout();
 		}
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.git4j.core.GitRepository#find(java.lang.Class, java.lang.String)
-	 */
-	public <T> T find(Class<T> type, String id) throws IOException {
-		if (id == null) {
-			return null;
+	private void removeEmptyDirs(File dir) {
+		String[] names = dir.list();
+		if (names == null) {
+			return;
 		}
 
-		File source = new File(objects, id);
-		if (!source.canRead()) {
-			return null;
+		for (int i = 0, len = names.length; i < len; ++i) {
+			if (names[i].length() <= 2) {
+				File sub = new File(dir, names[i]);
+
+				removeEmptyDirs(sub);
+
+				// fails if not empty
+				sub.delete();
+			}
 		}
+	}
 
-		return read(source, type);
+	private static void mkdirs(File dir) throws IOException {
+		if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+			throw new IOException("unable to create directory "
+					+ dir.getAbsolutePath());
+		}
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.git4j.core.GitRepository#getLocalHead(java.lang.String)
+	/**
+	 * file name of a loose object, '+' is not safe for all tools.
 	 */
-	public Commit getLocalHead(String branch) throws IOException {
-		return find(Commit.class, getLocalHeadRef(branch));
+	private static String fileName(String id) {
+		return id.replace('+', '-');
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.git4j.core.GitRepository#getLocalHeadRef(java.lang.String)
-	 */
-	public String getLocalHeadRef(String branch) throws IOException {
-		File source = new File(refsHeads, branch);
-		if (!source.canRead()) {
-			return null;
+	private static String idOf(String fileName) {
+		return fileName.replace('-', '+');
+	}
+
+	private File objectFile(String id, int depth) {
+		// original layout, ids as is
+		if (depth == 0) {
+			return new File(objects, id);
 		}
 
-		BufferedReader br = new BufferedReader(new FileReader(source));
-		String id;
+		String name = fileName(id);
+		StringBuilder path = new StringBuilder();
 
-		try {
-			id = br.readLine();
-		} finally {
-			try {
-				br.close();
-			} catch (Throwable t) {
-				// do nothing
-			}
+		// a directory named ".." would escape its parent
+		String dirs = name.replace('.', '_');
+
+		for (int i = 0; (i < depth) && (name.length() > (i * 2) + 2); ++i) {
+			path.append(dirs, i * 2, (i * 2) + 2).append(File.separatorChar);
 		}
 
-		return id;
+		path.append(name);
+
+		return new File(objects, path.toString());
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.git4j.core.GitRepository#getRemoteHeadRef(java.lang.String)
+	/**
+	 * @return loose object file, <code>null</code> if not found
 	 */
-	public String getRemoteHeadRef(String branch) throws IOException {
-		File source = new File(refsRemotes, branch);
-		if (!source.canRead()) {
-			return null;
+	private File locate(String id) {
+		int current = fanOut;
+		int previous = previousFanOut;
+
+		File f = objectFile(id, current);
+		if (f.canRead()) {
+			return f;
 		}
 
-		BufferedReader br = new BufferedReader(new FileReader(source));
-		String id;
+		if ((previous >= 0) && (previous != current)) {
+			File old = objectFile(id, previous);
+			if (old.canRead()) {
+				return old;
+			}
 
-		try {
-			id = br.readLine();
-		} finally {
-			try {
-				br.close();
-			} catch (Throwable t) {
-				// do nothing
+			// moved meanwhile
+			if (f.canRead()) {
+				return f;
 			}
 		}
 
-		return id;
+		return null;
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.git4j.core.repo.Repository#setLocalHeadRef(java.lang.String,
-	 * java.lang.String, java.lang.String)
+	private static String objectId(Object o) {
+		return o instanceof Blob ? ((Blob) o).getId() : ((Commit) o).getId();
+	}
+
+	/**
+	 * store loose objects. Each object is written into a temporary file
+	 * which is renamed once complete, so a crash never leaves a partial
+	 * object behind. Under {@link Durability#GROUP_COMMIT} the objects are
+	 * packed with those of concurrent writers instead.
 	 */
-	public void setLocalHeadRef(String branch, String headRef, String newHeadRef)
-			throws GitException, IOException {
-		PrintStream ps = new PrintStream(new BufferedOutputStream(
-				new FileOutputStream(new File(refsHeads, branch))));
+	private void storeLoose(List<?> objs) throws IOException {
+		if (objs.isEmpty()) {
+			return;
+		}
 
-		try {
-			ps.println(newHeadRef);
-		} finally {
-			try {
-				ps.close();
-			} catch (Throwable t) {
-				// do nothing
-			}
+		if (durability == Durability.GROUP_COMMIT) {
+			// one pack per round, synced once
+			groupCommit.write(objs);
+			return;
 		}
-	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.git4j.core.repo.Repository#setRemoteHeadRef(java.lang.String,
-	 * java.lang.String, java.lang.String)
-	 */
-	public void setRemoteHeadRef(String branch, String headRef,
-			String newHeadRef) throws IOException {
-		PrintStream ps = new PrintStream(new BufferedOutputStream(
-				new FileOutputStream(new File(refsRemotes, branch))));
+		int depth = fanOut;
+
+		File[] temps = new File[objs.size()];
 
 		try {
-			ps.println(newHeadRef);
+			writeTemps(objs, temps, depth);
+
+			sync(Arrays.asList(temps));
+
+			for (int i = 0, len = temps.length; i < len; ++i) {
+				File target = objectFile(objectId(objs.get(i)), depth);
+
+				if (temps[i].renameTo(target)) {
+					temps[i] = null;
+				} else if (!target.exists()) {
+					throw new IOException("unable to rename " + temps[i]
+							+ " to " + target);
+				}
+			}
 		} finally {
-			try {
-				ps.close();
-			} catch (Throwable t) {
-				// do nothing
+			for (int i = 0, len = temps.length; i < len; ++i) {
+				if ((temps[i] != null) && temps[i].exists()
+						&& !temps[i].delete()) {
+					temps[i].deleteOnExit();
+				}
 			}
 		}
-	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.git4j.core.GitRepository#getLocalBranches()
-	 */
-	public Collection<BranchAndHead> getLocalBranches() throws IOException {
-		List<BranchAndHead> bnhs = new ArrayList<BranchAndHead>();
+		// a migration started meanwhile may have missed these objects
+		if (depth != fanOut) {
+			synchronized (layoutLock) {
+				for (Object o : objs) {
+					File f = objectFile(objectId(o), depth);
+					File target = objectFile(objectId(o), fanOut);
 
-		File[] files = refsHeads.listFiles();
-		if (files != null) {
-			for (int i = 0, len = files.length; i < len; ++i) {
-				File f = files[i];
+					if (!target.equals(f) && f.exists()) {
+						mkdirs(target.getParentFile());
 
-				if (f.canRead()) {
-					String branch = f.getName();
-					bnhs.add(new BranchAndHead(branch, getLocalHeadRef(branch)));
+						if (!f.renameTo(target) && !f.delete()) {
+							f.deleteOnExit();
+						}
+					}
 				}
 			}
 		}
+	}
 
-		return bnhs;
+	private File writeTemp(Object o, int depth) throws IOException {
+		File dir = objectFile(objectId(o), depth).getParentFile();
+		mkdirs(dir);
+
+		// unique per instance, cheaper than File.createTempFile
+		File temp = new File(dir, tempPrefix + tempCounter.incrementAndGet()
+				+ ".tmp");
+		write(o, temp);
+
+		return temp;
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.git4j.core.GitRepository#getRemoteBranches()
+	private void writeTemps(final List<?> objs, final File[] temps,
+			final int depth) throws IOException {
+
+		if ((ioThreads <= 1) || (objs.size() <= 1)) {
+			for (int i = 0, len = temps.length; i < len; ++i) {
+				temps[i] = writeTemp(objs.get(i), depth);
+			}
+
+			return;
+		}
+
+		ThreadPoolExecutor executor = ioExecutor();
+
+		List<Future<?>> futures = new ArrayList<Future<?>>(temps.length);
+
+		for (int i = 0, len = temps.length; i < len; ++i) {
+			final int index = i;
+
+			futures.add(executor.submit(new Callable<Object>() {
+
+				public Object call() throws Exception {
+					temps[index] = writeTemp(objs.get(index), depth);
+					return null;
+				}
+			}));
+		}
+
+		IOException failure = null;
+		boolean interrupted = false;
+
+		// temps are cleaned up by the caller, so every write is waited for
+		for (Future<?> future : futures) {
+			while (true) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = (IOException) new IOException(
+								"unable to write object").initCause(e
+								.getCause());
+					}
+
+					break;
+				}
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+
+			if (failure == null) {
+				failure = new InterruptedIOException("interrupted");
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private synchronized ThreadPoolExecutor ioExecutor() {
+		if (ioExecutor == null) {
+			ioExecutor = new ThreadPoolExecutor(ioThreads, ioThreads, 0L,
+					TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+
+						private AtomicLong count = new AtomicLong();
+
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, name + "-io-"
+									+ count.incrementAndGet());
+							t.setDaemon(true);
+
+							return t;
+						}
+					});
+		}
+
+		return ioExecutor;
+	}
+
+	/**
+	 * Lists loose object files of any layout. Fan-out directories have two
+	 * character names, object ids are longer.
+	 */
+	private class LooseWalker {
+
+		private List<File> dirs;
+
+		private File dir;
+
+		private String[] names;
+
+		private int i;
+
+		private LooseWalker() {
+			dirs = new ArrayList<File>();
+			dirs.add(objects);
+		}
+
+		private File next() throws IOException {
+			while (true) {
+				if ((names != null) && (i < names.length)) {
+					String name = names[i++];
+					File f = new File(dir, name);
+
+					if (name.length() <= 2) {
+						dirs.add(f);
+					} else if (!f.equals(packDir) && !f.equals(layoutFile)
+							&& !name.endsWith(".tmp")) {
+						return f;
+					}
+
+					continue;
+				}
+
+				if (dirs.isEmpty()) {
+					return null;
+				}
+
+				dir = dirs.remove(dirs.size() - 1);
+				names = dir.list();
+				i = 0;
+
+				if (names == null) {
+					if (dir.equals(objects)) {
+						throw new IOException("unable to list directory "
+								+ objects.getAbsolutePath());
+					}
+
+					// removed meanwhile
+					names = new String[0];
+				}
+			}
+		}
+	}
+
+	public int getPackThreshold() {
+		return packThreshold;
+	}
+
+	/**
+	 * set minimum number of new objects in an {@link UploadPack} for them to
+	 * be written as a pack instead of loose files. The default is 100.
+	 * 
+	 * @param packThreshold
+	 *            number of objects, {@link Integer#MAX_VALUE} to always write
+	 *            loose files
+	 */
+	public void setPackThreshold(int packThreshold) {
+		if (packThreshold <= 0) {
+			throw new IllegalArgumentException("packThreshold MUST be positive");
+		}
+
+		this.packThreshold = packThreshold;
+	}
+
+	public int getMaxPacks() {
+		return maxPacks;
+	}
+
+	/**
+	 * set maximum number of packs, above which the smallest packs are merged.
+	 * 
+	 * @param maxPacks
+	 *            maximum number of packs
+	 */
+	public void setMaxPacks(int maxPacks) {
+		if (maxPacks <= 0) {
+			throw new IllegalArgumentException("maxPacks MUST be positive");
+		}
+
+		this.maxPacks = maxPacks;
+	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * set how written objects and refs are forced to disk. Objects are
+	 * durable when they have been stored, before any ref pointing at them is
+	 * updated. The default is {@link Durability#NONE}.
+	 * 
+	 * @param durability
+	 *            the durability policy
+	 */
+	public void setDurability(Durability durability) {
+		if (durability == null) {
+			throw new NullPointerException("durability");
+		}
+
+		this.durability = durability;
+	}
+
+	public VerificationPolicy getVerificationPolicy() {
+		return verificationPolicy;
+	}
+
+	/**
+	 * set which loaded objects are checked against their id. The default is
+	 * {@link VerificationPolicy#never()}.
+	 * 
+	 * @param verificationPolicy
+	 *            the verification policy
+	 */
+	public void setVerificationPolicy(VerificationPolicy verificationPolicy) {
+		if (verificationPolicy == null) {
+			throw new NullPointerException("verificationPolicy");
+		}
+
+		this.verificationPolicy = verificationPolicy;
+	}
+
+	public long getGroupCommitWindow() {
+		return groupCommit.getWindow();
+	}
+
+	/**
+	 * set how long the first writer of a {@link Durability#GROUP_COMMIT}
+	 * round waits for other writers to join before writing the round.
+	 * 
+	 * @param groupCommitWindow
+	 *            window in milliseconds, 0 to sync immediately
+	 */
+	public void setGroupCommitWindow(long groupCommitWindow) {
+		if (groupCommitWindow < 0) {
+			throw new IllegalArgumentException(
+					"groupCommitWindow MUST NOT be negative");
+		}
+
+		groupCommit.setWindow(groupCommitWindow);
+	}
+
+	/**
+	 * make written files durable according to the durability policy.
+	 */
+	private void sync(List<File> files) throws IOException {
+		if (durability != Durability.NONE) {
+			force(files);
+		}
+	}
+
+	/**
+	 * sync files now. A missing file fails, its content may not be durable.
+	 */
+	private static void force(Collection<File> files) throws IOException {
+		for (File f : files) {
+			FileInputStream in = new FileInputStream(f);
+
+			try {
+				in.getFD().sync();
+			} catch (SyncFailedException e) {
+				// some platforms only sync files opened for writing
+				forceWritable(f);
+			} finally {
+				try {
+					in.close();
+				} catch (Throwable t) {
+					// do nothing
+				}
+			}
+		}
+	}
+
+	private static void forceWritable(File f) throws IOException {
+		// "rw" would create a missing file
+		if (!f.exists()) {
+			throw new FileNotFoundException(f.getAbsolutePath());
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+
+		try {
+			raf.getFD().sync();
+		} finally {
+			try {
+				raf.close();
+			} catch (Throwable t) {
+				// do nothing
+			}
+		}
+	}
+
+	public int getIoThreads() {
+		return ioThreads;
+	}
+
+	/**
+	 * set number of threads writing loose objects of an {@link UploadPack}
+	 * below the pack threshold, see {@link #setPackThreshold(int)}. The
+	 * threads are shared by all concurrent writers of this repository.
+	 * 
+	 * @param ioThreads
+	 *            number of threads, 1 to write on the calling thread
+	 */
+	public synchronized void setIoThreads(int ioThreads) {
+		if (ioThreads <= 0) {
+			throw new IllegalArgumentException("ioThreads MUST be positive");
+		}
+
+		if (ioExecutor != null) {
+			// the maximum MUST NOT fall below the core size
+			if (ioThreads > this.ioThreads) {
+				ioExecutor.setMaximumPoolSize(ioThreads);
+				ioExecutor.setCorePoolSize(ioThreads);
+			} else {
+				ioExecutor.setCorePoolSize(ioThreads);
+				ioExecutor.setMaximumPoolSize(ioThreads);
+			}
+		}
+
+		this.ioThreads = ioThreads;
+	}
+
+	public int getMapThreshold() {
+		return mapThreshold;
+	}
+
+	/**
+	 * set size above which objects are mapped into memory when read. Smaller
+	 * objects are read into a buffer reused by the reading thread.
+	 * 
+	 * @param mapThreshold
+	 *            size in bytes
+	 */
+	public void setMapThreshold(int mapThreshold) {
+		if (mapThreshold <= 0) {
+			throw new IllegalArgumentException("mapThreshold MUST be positive");
+		}
+
+		this.mapThreshold = mapThreshold;
+	}
+
+	public long getLockTimeout() {
+		return lockTimeout;
+	}
+
+	/**
+	 * set how long to wait for a ref locked by another writer before failing
+	 * with a {@link GitException}.
+	 * 
+	 * @param lockTimeout
+	 *            timeout in milliseconds, 0 to fail immediately
+	 */
+	public void setLockTimeout(long lockTimeout) {
+		if (lockTimeout < 0) {
+			throw new IllegalArgumentException(
+					"lockTimeout MUST NOT be negative");
+		}
+
+		this.lockTimeout = lockTimeout;
+	}
+
+	public long getRefPollInterval() {
+		return events.getPollInterval();
+	}
+
+	/**
+	 * set how often ref files are checked for changes made by other
+	 * processes, while there are ref listeners.
+	 * 
+	 * @param refPollInterval
+	 *            poll interval in milliseconds
+	 */
+	public void setRefPollInterval(long refPollInterval) {
+		events.setPoller(new RefPoller(), refPollInterval);
+	}
+
+	private void write(Object o, File target) throws IOException {
+		OutputStream out = new BufferedOutputStream(
+				new FileOutputStream(target));
+
+		try {
+			if (o instanceof Commit) {
+				((Commit) o).writeObject(out);
+			} else if (o instanceof Blob) {
+				((Blob) o).writeObject(out);
+			}
+		} finally {
+			try {
+				out.close();
+			} catch (Throwable t) {
+				// do nothing
+			}
+		}
+	}
+
+	private <T> T read(File source, Class<T> type) throws IOException {
+		boolean commit = Commit.class.isAssignableFrom(type);
+
+		if (!commit && !Blob.class.isAssignableFrom(type)) {
+			return null;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(source, "r");
+
+		Object o;
+
+		try {
+			FileChannel channel = raf.getChannel();
+
+			InputStream in = new ByteBufferInputStream(ObjectBuffers.read(
+					channel, 0, channel.size(), mapThreshold));
+
+			if (commit) {
+				o = new Commit().readObject(in);
+			} else {
+				o = new Blob().readObject(in);
+			}
+		} catch (ClassNotFoundException e) {
+			throw (IOException) new IOException(
+					"unable to read object from file " + source).initCause(e);
+		} finally {
+			try {
+				raf.close();
+			} catch (Throwable t) {
+				// do nothing
+			}
+		}
+
+		return type.cast(o);
+	}
+
+	private void rm(File dir) {
+		File[] files = dir.listFiles();
+
+		for (int i = 0, len = files.length; i < len; ++i) {
+			File f = files[i];
+
+			if (f.isDirectory()) {
+				rm(f);
+			}
+
+			if (!f.delete()) {
+				f.deleteOnExit();
+			}
+		}
+	}
+
+	private PackFile[] packs() throws IOException {
+		PackFile[] current = packs;
+
+		return current == null ? scanPacks() : current;
+	}
+
+	/**
+	 * pick up packs written or removed by other processes.
+	 */
+	private PackFile[] scanPacks() throws IOException {
+		synchronized (packLock) {
+			if (packs != null) {
+				for (int i = 0; i < packs.length; ++i) {
+					packs[i].refreshDeleted();
+				}
+			}
+
+			long modified = packDir.lastModified();
+
+			// directory time resolution may be coarse
+			if ((packs != null) && (modified == packsModified)
+					&& ((packsScanned - modified) > 2000)) {
+				return packs;
+			}
+
+			Map<String, PackFile> current = new HashMap<String, PackFile>();
+
+			if (packs != null) {
+				for (int i = 0; i < packs.length; ++i) {
+					current.put(packs[i].getIdxFile().getName(), packs[i]);
+				}
+			}
+
+			List<PackFile> scanned = new ArrayList<PackFile>();
+
+			File[] files = packDir.listFiles();
+			if (files != null) {
+				for (int i = 0, len = files.length; i < len; ++i) {
+					String name = files[i].getName();
+
+					if (!name.endsWith(PackFile.IDX_SUFFIX)) {
+						continue;
+					}
+
+					PackFile pf = current.remove(name);
+
+					if (pf == null) {
+						try {
+							pf = PackFile.open(files[i]);
+						} catch (FileNotFoundException e) {
+							// removed meanwhile
+							continue;
+						}
+					}
+
+					scanned.add(pf);
+				}
+			}
+
+			for (PackFile pf : current.values()) {
+				pf.close();
+			}
+
+			packs = scanned.toArray(new PackFile[scanned.size()]);
+			packsModified = modified;
+			packsScanned = System.currentTimeMillis();
+
+			return packs;
+		}
+	}
+
+	private <T> T findPacked(Class<T> type, String id, boolean rescan)
+			throws IOException {
+
+		for (int attempt = 0;; ++attempt) {
+			PackFile[] current = rescan ? scanPacks() : packs();
+
+			try {
+				for (int i = 0; i < current.length; ++i) {
+					int index = current[i].indexOf(id);
+
+					if (index >= 0) {
+						return current[i].load(type, index, mapThreshold);
+					}
+				}
+
+				return null;
+			} catch (IOException e) {
+				// pack replaced meanwhile, retry once
+				if ((attempt > 0) || (current == packs)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	private Object objectLock(String id) {
+		return objectLocks[(id.hashCode() & 0x7fffffff) % objectLocks.length];
+	}
+
+	/**
+	 * find a stored object and move its store time, the modification time
+	 * of its loose file or of the index of its pack, to now. A collection
+	 * running meanwhile then keeps it.
+	 * 
+	 * @return <code>true</code> if the object is stored
+	 */
+	private boolean freshen(String id) throws IOException {
+		if (!contains(id)) {
+			return false;
+		}
+
+		// merged or rewritten packs carry the time of their sources over
+		synchronized (objectLock(id)) {
+			synchronized (packLock) {
+				boolean found = false;
+
+				PackFile[] current = packs();
+
+				for (int i = 0; i < current.length; ++i) {
+					if (current[i].contains(id)) {
+						// not stored again if removed by another process
+						current[i].refreshDeleted();
+
+						if (current[i].contains(id)) {
+							touch(current[i].getIdxFile());
+							found = true;
+						}
+					}
+				}
+
+				File f = locate(id);
+
+				if (f != null) {
+					touch(f);
+					found = true;
+				}
+
+				return found;
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the object is stored as a loose file or in
+	 *         a pack
+	 */
+	private boolean contains(String id) throws IOException {
+		if (locate(id) != null) {
+			return true;
+		}
+
+		PackFile[] current = packs();
+
+		for (int i = 0; i < current.length; ++i) {
+			if (current[i].contains(id)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#findExisting(java.util.Collection)
+	 */
+	public Set<String> findExisting(Collection<String> ids)
+			throws IOException {
+		Set<String> found = new HashSet<String>();
+
+		for (String id : ids) {
+			if (contains(id)) {
+				found.add(id);
+			}
+		}
+
+		return found;
+	}
+
+	private static long newest(long modified, File f) {
+		return Math.max(modified, f.lastModified());
+	}
+
+	private static void touch(File f) {
+		long now = System.currentTimeMillis();
+
+		// rounded up, some file systems and JDKs only keep whole seconds
+		if (f.lastModified() < now) {
+			f.setLastModified(((now / 1000) + 1) * 1000);
+		}
+	}
+
+	private void writePack(Collection<?> objs) throws IOException {
+		PackFile pf = PackFile.write(packDir, objs,
+				durability != Durability.NONE);
+
+		synchronized (packLock) {
+			PackFile[] current = packs();
+
+			for (int i = 0; i < current.length; ++i) {
+				if (current[i].getIdxFile().equals(pf.getIdxFile())) {
+					// already picked up by a scan
+					pf.close();
+					return;
+				}
+			}
+
+			PackFile[] grown = new PackFile[current.length + 1];
+			grown[0] = pf;
+			System.arraycopy(current, 0, grown, 1, current.length);
+
+			packs = grown;
+
+			if (grown.length > maxPacks) {
+				mergePacks();
+			}
+		}
+	}
+
+	/**
+	 * merge the smallest packs, so that at most maxPacks packs are left. A
+	 * larger pack is only merged while it is less than twice the size of the
+	 * packs merged so far, or to get below maxPacks. Objects are therefore
+	 * copied a logarithmic number of times as the repository grows, instead
+	 * of every time the packs are merged.
+	 */
+	private void mergePacks() throws IOException {
+		PackFile[] current = packs();
+
+		PackFile[] sorted = current.clone();
+		final Map<PackFile, Long> lengths = new HashMap<PackFile, Long>();
+
+		for (int i = 0; i < sorted.length; ++i) {
+			lengths.put(sorted[i], Long.valueOf(sorted[i].length()));
+		}
+
+		Arrays.sort(sorted, new Comparator<PackFile>() {
+
+			public int compare(PackFile a, PackFile b) {
+				return lengths.get(a).compareTo(lengths.get(b));
+			}
+		});
+
+		long merged = lengths.get(sorted[0]).longValue();
+		int n = 1;
+
+		while (n < sorted.length) {
+			long length = lengths.get(sorted[n]).longValue();
+
+			if ((length >= (merged << 1)) && ((sorted.length - n) < maxPacks)) {
+				break;
+			}
+
+			merged += length;
+			++n;
+		}
+
+		if (n < 2) {
+			return;
+		}
+
+		Set<PackFile> small = new HashSet<PackFile>(Arrays.asList(sorted)
+				.subList(0, n));
+		List<PackFile> updated = new ArrayList<PackFile>();
+
+		PackFile.Writer writer = new PackFile.Writer(packDir,
+				durability != Durability.NONE);
+
+		long modified = 0;
+
+		try {
+			for (int i = 0; i < n; ++i) {
+				sorted[i].copyTo(writer);
+				modified = newest(modified, sorted[i].getIdxFile());
+			}
+
+			if (writer.size() > 0) {
+				PackFile pf = writer.finish();
+				pf.getIdxFile().setLastModified(modified);
+
+				updated.add(pf);
+			}
+		} finally {
+			writer.abort();
+		}
+
+		for (int i = 0; i < current.length; ++i) {
+			if (!small.contains(current[i])) {
+				updated.add(current[i]);
+			}
+		}
+
+		packs = updated.toArray(new PackFile[updated.size()]);
+
+		for (PackFile pf : small) {
+			pf.delete();
+		}
+	}
+
+	/**
+	 * merge all packs and loose objects into a single pack.
+	 */
+	private void repackAll() throws IOException {
+		PackFile[] current = packs();
+
+		// old packs and loose objects are deleted once the new pack is synced
+		PackFile.Writer writer = new PackFile.Writer(packDir,
+				durability != Durability.NONE);
+		List<File> packed = new ArrayList<File>();
+
+		long modified = 0;
+
+		try {
+			for (int i = 0; i < current.length; ++i) {
+				current[i].copyTo(writer);
+				modified = newest(modified, current[i].getIdxFile());
+			}
+
+			LooseWalker walker = new LooseWalker();
+			File f;
+
+			while ((f = walker.next()) != null) {
+				Types type = readType(f);
+				if (type == null) {
+					continue;
+				}
+
+				byte[] bytes = readBytes(f);
+				if (bytes == null) {
+					continue;
+				}
+
+				writer.add(idOf(f.getName()), type, bytes);
+				packed.add(f);
+
+				modified = newest(modified, f);
+			}
+
+			if (writer.size() == 0) {
+				packs = new PackFile[0];
+			} else {
+				PackFile pf = writer.finish();
+				pf.getIdxFile().setLastModified(modified);
+
+				packs = new PackFile[] { pf };
+			}
+		} finally {
+			writer.abort();
+		}
+
+		for (int i = 0; i < current.length; ++i) {
+			current[i].delete();
+		}
+
+		for (File f : packed) {
+			if (!f.delete()) {
+				f.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * merge all packs and loose objects into a single pack.
+	 * 
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	public void repack() throws IOException {
+		synchronized (packLock) {
+			scanPacks();
+			repackAll();
+		}
+	}
+
+	private byte[] readBytes(File source) throws IOException {
+		InputStream in;
+
+		try {
+			in = new FileInputStream(source);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+
+		try {
+			return IOUtils.readFully(in);
+		} finally {
+			try {
+				in.close();
+			} catch (Throwable t) {
+				// do nothing
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.GitRepository#store(org.git4j.core.impl.Blob)
+	 */
+	public String store(Blob blob) throws IOException {
+		String id = blob.getId();
+
+		if (!freshen(id)) {
+			storeLoose(Collections.singletonList(blob));
+		}
+
+		return id;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.GitRepository#store(org.git4j.core.impl.Commit)
+	 */
+	public String store(Commit commit) throws IOException {
+		String id = commit.getId();
+
+		if (!freshen(id)) {
+			storeLoose(Collections.singletonList(commit));
+		}
+
+		return id;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.GitRepository#store(org.git4j.core.GitUploadPack)
+	 */
+	public void store(UploadPack pack) throws IOException {
+		List<Blob> blobs = new ArrayList<Blob>();
+		List<Commit> commits = new ArrayList<Commit>();
+
+		for (Blob blob : pack.getBlobs().values()) {
+			if (!freshen(blob.getId())) {
+				blobs.add(blob);
+			}
+		}
+
+		for (Commit commit : pack.getCommits().values()) {
+			if (!freshen(commit.getId())) {
+				commits.add(commit);
+			}
+		}
+
+		if ((blobs.size() + commits.size()) >= packThreshold) {
+			List<Object> objs = new ArrayList<Object>(blobs);
+			objs.addAll(commits);
+
+			// one sequential write
+			writePack(objs);
+			return;
+		}
+
+		// COMMITs are only written once all BLOBs are in place
+		storeLoose(blobs);
+		storeLoose(commits);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.GitRepository#find(java.lang.Class, java.lang.String)
+	 */
+	public <T> T find(Class<T> type, String id) throws IOException {
+		if (id == null) {
+			return null;
+		}
+
+		T o = load(type, id);
+
+		if ((o != null) && !verificationPolicy.verify(id, o)) {
+			throw new IOException("object " + id + " is corrupt");
+		}
+
+		return o;
+	}
+
+	private <T> T load(Class<T> type, String id) throws IOException {
+		T o = findPacked(type, id, false);
+		if (o != null) {
+			return o;
+		}
+
+		File source = locate(id);
+
+		if ((source == null) && refreshLayout()) {
+			// layout migrated by another process
+			source = locate(id);
+		}
+
+		if (source != null) {
+			try {
+				return read(source, type);
+			} catch (FileNotFoundException e) {
+				// moved by a layout migration
+				source = locate(id);
+
+				if (source != null) {
+					return read(source, type);
+				}
+			}
+		}
+
+		// packed by another process
+		return findPacked(type, id, true);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.GitRepository#getLocalHead(java.lang.String)
+	 */
+	public Commit getLocalHead(String branch) throws IOException {
+		return find(Commit.class, getLocalHeadRef(branch));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.GitRepository#getLocalHeadRef(java.lang.String)
+	 */
+	public String getLocalHeadRef(String branch) throws IOException {
+		return resolveRef(false, branch);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.GitRepository#getRemoteHeadRef(java.lang.String)
+	 */
+	public String getRemoteHeadRef(String branch) throws IOException {
+		return resolveRef(true, branch);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#setLocalHeadRef(java.lang.String,
+	 * java.lang.String, java.lang.String)
+	 */
+	public void setLocalHeadRef(String branch, String headRef, String newHeadRef)
+			throws GitException, IOException {
+		setHeadRef(false, branch, headRef, newHeadRef);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#setRemoteHeadRef(java.lang.String,
+	 * java.lang.String, java.lang.String)
+	 */
+	public void setRemoteHeadRef(String branch, String headRef,
+			String newHeadRef) throws GitException, IOException {
+		setHeadRef(true, branch, headRef, newHeadRef);
+	}
+
+	private void setHeadRef(boolean remote, String branch, String headRef,
+			String newHeadRef) throws GitException, IOException {
+
+		updateRefs(Collections.singletonList(remote ? RefUpdate.remote(branch,
+				headRef, newHeadRef) : RefUpdate.local(branch, headRef,
+				newHeadRef)));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#updateRefs(java.util.Collection)
+	 */
+	public void updateRefs(Collection<RefUpdate> updates)
+			throws GitException, IOException {
+		ObjectUtils.validateRefUpdates(updates);
+
+		// refs are locked in a fixed order, so concurrent updates of
+		// overlapping refs wait for each other but never deadlock
+		Map<String, RefLock> locks = new TreeMap<String, RefLock>();
+
+		for (RefUpdate update : updates) {
+			RefLock lock = new RefLock(new File(update.isRemote() ? refsRemotes
+					: refsHeads, update.getBranch()));
+			lock.update = update;
+			lock.remove = update.getNewHeadRef() == null;
+
+			locks.put((update.isRemote() ? "R" : "L") + update.getBranch(),
+					lock);
+		}
+
+		try {
+			for (RefLock lock : locks.values()) {
+				lock.acquire(lockTimeout);
+			}
+
+			for (RefLock lock : locks.values()) {
+				if (!ObjectUtils.equals(resolveRef(lock.update.isRemote(),
+						lock.update.getBranch()), lock.update.getHeadRef())) {
+
+					throw new GitException("branch "
+							+ lock.update.getBranch() + " has been modified");
+				}
+			}
+
+			commitRefs(locks.values());
+		} finally {
+			for (RefLock lock : locks.values()) {
+				lock.release();
+			}
+		}
+
+		for (RefUpdate update : updates) {
+			events.publish(update.isRemote(), update.getBranch(),
+					update.getHeadRef(), update.getNewHeadRef());
+		}
+	}
+
+	private void removeBranch(boolean remote, String branch)
+			throws IOException {
+
+		RefLock lock = new RefLock(new File(remote ? refsRemotes : refsHeads,
+				branch));
+		lock.remove = true;
+
+		String oldHeadRef;
+
+		lock.acquire(lockTimeout);
+
+		try {
+			oldHeadRef = resolveRef(remote, branch);
+
+			if (oldHeadRef == null) {
+				return;
+			}
+
+			commitRefs(Collections.singletonList(lock));
+		} finally {
+			lock.release();
+		}
+
+		events.publish(remote, branch, oldHeadRef, null);
+	}
+
+	/**
+	 * write locked refs. A single new head is renamed over its loose ref,
+	 * removed refs are dropped from the packed-refs file before their loose
+	 * file is deleted, and several refs are switched at once through the
+	 * packed-refs file, see {@link #commitPacked(Collection)}.
+	 */
+	private void commitRefs(Collection<RefLock> locks) throws IOException {
+		if (locks.size() > 1) {
+			commitPacked(locks);
+			return;
+		}
+
+		RefLock lock = locks.iterator().next();
+
+		if (lock.remove) {
+			Map<String, String> removed = Collections.singletonMap(
+					lock.target.getName(), null);
+
+			if (lock.target.getParentFile().equals(refsRemotes)) {
+				updatePackedRefs(Collections.<String, String> emptyMap(),
+						removed);
+			} else {
+				updatePackedRefs(removed,
+						Collections.<String, String> emptyMap());
+			}
+
+			lock.commit();
+			return;
+		}
+
+		writeRef(lock.file, lock.update.getNewHeadRef());
+
+		// referenced objects have been synced when they were stored
+		sync(Collections.singletonList(lock.file));
+
+		if (!lock.replace()) {
+			// the platform does not replace an existing file
+			commitPacked(locks);
+		}
+	}
+
+	/**
+	 * write locked refs through the packed-refs file, whose rename switches
+	 * all of them at once. Loose refs of the batch are packed with their
+	 * current heads and deleted first, so they neither hide the new heads nor
+	 * get lost if the process dies before the switch.
+	 */
+	private void commitPacked(Collection<RefLock> locks) throws IOException {
+		Map<String, String> looseHeads = new HashMap<String, String>();
+		Map<String, String> looseRemotes = new HashMap<String, String>();
+
+		Map<String, String> heads = new HashMap<String, String>();
+		Map<String, String> remotes = new HashMap<String, String>();
+
+		for (RefLock lock : locks) {
+			boolean remote = lock.target.getParentFile().equals(refsRemotes);
+			String branch = lock.target.getName();
+
+			String headRef = readRef(lock.target);
+
+			if (headRef != null) {
+				(remote ? looseRemotes : looseHeads).put(branch, headRef);
+			}
+
+			(remote ? remotes : heads).put(branch, lock.remove ? null
+					: lock.update.getNewHeadRef());
+		}
+
+		if (!looseHeads.isEmpty() || !looseRemotes.isEmpty()) {
+			updatePackedRefs(looseHeads, looseRemotes);
+
+			for (RefLock lock : locks) {
+				if (lock.target.exists() && !lock.target.delete()) {
+					throw new IOException("unable to delete "
+							+ lock.target.getAbsolutePath());
+				}
+			}
+		}
+
+		updatePackedRefs(heads, remotes);
+	}
+
+	/**
+	 * rewrite the packed-refs file with changed heads, a <code>null</code>
+	 * head removes the ref.
+	 */
+	private void updatePackedRefs(Map<String, String> changedHeads,
+			Map<String, String> changedRemotes) throws IOException {
+		RefLock packedLock = new RefLock(packedRefsFile);
+		packedLock.acquire(lockTimeout);
+
+		try {
+			PackedRefs packed = packedRefs();
+
+			Map<String, String> heads = new TreeMap<String, String>(
+					packed.heads);
+			Map<String, String> remotes = new TreeMap<String, String>(
+					packed.remotes);
+
+			boolean changed = apply(heads, changedHeads);
+			changed |= apply(remotes, changedRemotes);
+
+			if (changed) {
+				writePackedRefs(packedLock.file, heads, remotes);
+				sync(Collections.singletonList(packedLock.file));
+
+				packedLock.commit();
+			}
+		} finally {
+			packedLock.release();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if <code>refs</code> changed
+	 */
+	private static boolean apply(Map<String, String> refs,
+			Map<String, String> changes) {
+		boolean changed = false;
+
+		for (Map.Entry<String, String> e : changes.entrySet()) {
+			String previous = e.getValue() == null ? refs.remove(e.getKey())
+					: refs.put(e.getKey(), e.getValue());
+
+			changed |= !ObjectUtils.equals(previous, e.getValue());
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Exclusive lock of a ref, held by creating <code>&lt;ref&gt;.lock</code>.
+	 * The lock file receives the new head and is renamed over the ref, so
+	 * readers never see a partially written ref.
+	 */
+	private class RefLock {
+
+		private File target;
+
+		private File file;
+
+		private boolean held;
+
+		// delete the ref on commit
+		private boolean remove;
+
+		private RefUpdate update;
+
+		private RefLock(File target) {
+			this.target = target;
+
+			file = new File(target.getPath() + LOCK_SUFFIX);
+		}
+
+		private void acquire(long timeout) throws GitException, IOException {
+			long deadline = System.currentTimeMillis() + timeout;
+
+			while (!file.createNewFile()) {
+				if (System.currentTimeMillis() >= deadline) {
+					throw new GitException("ref " + target.getName()
+							+ " is locked, remove " + file.getAbsolutePath()
+							+ " if no other writer is running");
+				}
+
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+
+					throw new GitException("interrupted while locking ref "
+							+ target.getName(), e);
+				}
+			}
+
+			held = true;
+		}
+
+		private void commit() throws IOException {
+			if (!held) {
+				throw new IllegalStateException("lock of " + target
+						+ " not held");
+			}
+
+			if (remove) {
+				if (target.exists() && !target.delete()) {
+					throw new IOException("unable to delete "
+							+ target.getAbsolutePath());
+				}
+			} else if (!replace()) {
+				// some platforms do not replace an existing file, the old
+				// one is moved aside and restored if the rename fails
+				File old = new File(target.getPath() + ".old");
+
+				if (old.exists() && !old.delete()) {
+					throw new IOException("unable to delete "
+							+ old.getAbsolutePath());
+				}
+
+				if (!target.renameTo(old)) {
+					throw new IOException("unable to rename "
+							+ target.getAbsolutePath());
+				}
+
+				if (!file.renameTo(target)) {
+					old.renameTo(target);
+
+					throw new IOException("unable to rename "
+							+ file.getAbsolutePath() + " to "
+							+ target.getAbsolutePath());
+				}
+
+				held = false;
+
+				old.delete();
+			}
+		}
+
+		/**
+		 * rename the lock file over the ref.
+		 * 
+		 * @return <code>false</code> if the platform did not replace the
+		 *         existing ref
+		 */
+		private boolean replace() {
+			if (!file.renameTo(target)) {
+				return false;
+			}
+
+			// the lock file is gone
+			held = false;
+
+			return true;
+		}
+
+		private void release() {
+			if (held) {
+				held = false;
+
+				if (!file.delete()) {
+					file.deleteOnExit();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Refs read from the packed-refs file, kept until the file changes.
+	 */
+	private static class PackedRefs {
+
+		private long lastModified;
+
+		private long length;
+
+		private long readAt;
+
+		private Map<String, String> heads = new HashMap<String, String>();
+
+		private Map<String, String> remotes = new HashMap<String, String>();
+	}
+
+	private PackedRefs packedRefs() throws IOException {
+		PackedRefs cached = packedRefs;
+
+		long lastModified = packedRefsFile.lastModified();
+		long length = packedRefsFile.length();
+
+		// file time resolution may be coarse
+		if ((cached != null) && (cached.lastModified == lastModified)
+				&& (cached.length == length)
+				&& ((cached.readAt - lastModified) >= 2000)) {
+			return cached;
+		}
+
+		PackedRefs loaded = new PackedRefs();
+		loaded.lastModified = lastModified;
+		loaded.length = length;
+		loaded.readAt = System.currentTimeMillis();
+
+		BufferedReader br;
+
+		try {
+			br = new BufferedReader(new InputStreamReader(new FileInputStream(
+					packedRefsFile), "UTF-8"), 65536);
+		} catch (FileNotFoundException e) {
+			// no packed refs
+			packedRefs = loaded;
+			return loaded;
+		}
+
+		try {
+			String line;
+
+			while ((line = br.readLine()) != null) {
+				int sp = line.indexOf(' ');
+
+				if (line.startsWith("#") || (sp < 0)) {
+					continue;
+				}
+
+				String headRef = line.substring(0, sp);
+				String name = line.substring(sp + 1);
+
+				if (name.startsWith(PACKED_HEADS)) {
+					loaded.heads.put(name.substring(PACKED_HEADS.length()),
+							headRef);
+				} else if (name.startsWith(PACKED_REMOTES)) {
+					loaded.remotes.put(name
+							.substring(PACKED_REMOTES.length()), headRef);
+				}
+			}
+		} finally {
+			try {
+				br.close();
+			} catch (Throwable t) {
+				// do nothing
+			}
+		}
+
+		packedRefs = loaded;
+		return loaded;
+	}
+
+	private void writePackedRefs(File target, Map<String, String> heads,
+			Map<String, String> remotes) throws IOException {
+
+		PrintStream ps = new PrintStream(new BufferedOutputStream(
+				new FileOutputStream(target), 65536), false, "UTF-8");
+
+		try {
+			ps.println("# packed-refs");
+
+			for (Map.Entry<String, String> e : heads.entrySet()) {
+				ps.println(e.getValue() + " " + PACKED_HEADS + e.getKey());
+			}
+
+			for (Map.Entry<String, String> e : remotes.entrySet()) {
+				ps.println(e.getValue() + " " + PACKED_REMOTES + e.getKey());
+			}
+		} finally {
+			try {
+				ps.close();
+			} catch (Throwable t) {
+				// do nothing
+			}
+		}
+
+		if (ps.checkError()) {
+			throw new IOException("unable to write "
+					+ target.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * @return head of a branch, its loose ref overrides the packed one
+	 */
+	private String resolveRef(boolean remote, String branch)
+			throws IOException {
+
+		String headRef = readRef(new File(remote ? refsRemotes : refsHeads,
+				branch));
+
+		if (headRef == null) {
+			PackedRefs packed = packedRefs();
+			headRef = (remote ? packed.remotes : packed.heads).get(branch);
+		}
+
+		return headRef;
+	}
+
+	/**
+	 * @return branches and heads of all loose refs in a directory
+	 */
+	private Map<String, String> readLooseRefs(File dir) throws IOException {
+		return readLooseRefs(dir, false);
+	}
+
+	/**
+	 * @param unlocked
+	 *            <code>true</code> to skip refs being written, whose lock
+	 *            file exists
+	 * @return branches and heads of loose refs in a directory
+	 */
+	private Map<String, String> readLooseRefs(File dir, boolean unlocked)
+			throws IOException {
+		Map<String, String> refs = new HashMap<String, String>();
+
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (int i = 0, len = files.length; i < len; ++i) {
+				File f = files[i];
+
+				if (unlocked
+						&& new File(f.getPath() + LOCK_SUFFIX).exists()) {
+					continue;
+				}
+
+				if (!f.getName().endsWith(LOCK_SUFFIX)) {
+					String headRef = readRef(f);
+
+					if (headRef != null) {
+						refs.put(f.getName(), headRef);
+					}
+				}
+			}
+		}
+
+		return refs;
+	}
+
+	/**
+	 * move loose refs into the packed-refs file, which is read in one pass.
+	 * Loose refs updated meanwhile are kept, they override packed refs. Refs
+	 * locked by a writer are left loose: a removal drops its ref from the
+	 * packed-refs file before deleting the loose one, which packing it would
+	 * bring back.
+	 * 
+	 * @return number of loose refs packed
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	public int packRefs() throws IOException {
+		Map<String, String> looseHeads;
+		Map<String, String> looseRemotes;
+
+		RefLock packedLock = new RefLock(packedRefsFile);
+		packedLock.acquire(lockTimeout);
+
+		try {
+			looseHeads = readLooseRefs(refsHeads, true);
+			looseRemotes = readLooseRefs(refsRemotes, true);
+
+			if (looseHeads.isEmpty() && looseRemotes.isEmpty()) {
+				return 0;
+			}
+
+			PackedRefs packed = packedRefs();
+
+			Map<String, String> heads = new TreeMap<String, String>(
+					packed.heads);
+			heads.putAll(looseHeads);
+
+			Map<String, String> remotes = new TreeMap<String, String>(
+					packed.remotes);
+			remotes.putAll(looseRemotes);
+
+			writePackedRefs(packedLock.file, heads, remotes);
+			sync(Collections.singletonList(packedLock.file));
+
+			packedLock.commit();
+		} finally {
+			packedLock.release();
+		}
+
+		return pruneLooseRefs(refsHeads, looseHeads)
+				+ pruneLooseRefs(refsRemotes, looseRemotes);
+	}
+
+	/**
+	 * delete loose refs still holding their packed head.
 	 */
-	public Collection<BranchAndHead> getRemoteBranches() throws IOException {
-		List<BranchAndHead> bnhs = new ArrayList<BranchAndHead>();
+	private int pruneLooseRefs(File dir, Map<String, String> packed)
+			throws IOException {
 
-		File[] files = refsRemotes.listFiles();
-		if (files != null) {
-			for (int i = 0, len = files.length; i < len; ++i) {
-				File f = files[i];
+		int pruned = 0;
+
+		for (Map.Entry<String, String> e : packed.entrySet()) {
+			RefLock lock = new RefLock(new File(dir, e.getKey()));
+			lock.remove = true;
 
-				if (f.canRead()) {
-					String branch = f.getName();
-					bnhs.add(new BranchAndHead(branch, getRemoteHeadRef(branch)));
+			try {
+				lock.acquire(0);
+			} catch (GitException ex) {
+				// being updated, stays loose
+				continue;
+			}
+
+			try {
+				if (e.getValue().equals(readRef(lock.target))) {
+					lock.commit();
+					++pruned;
 				}
+			} finally {
+				lock.release();
+			}
+		}
+
+		return pruned;
+	}
+
+	private String readRef(File source) throws IOException {
+		if (!source.canRead()) {
+			return null;
+		}
+
+		BufferedReader br;
+
+		try {
+			br = new BufferedReader(new FileReader(source));
+		} catch (FileNotFoundException e) {
+			// removed meanwhile
+			return null;
+		}
+
+		String id;
+
+		try {
+			id = br.readLine();
+		} finally {
+			try {
+				br.close();
+			} catch (Throwable t) {
+				// do nothing
+			}
+		}
+
+		return id;
+	}
+
+	private void writeRef(File target, String headRef) throws IOException {
+		PrintStream ps = new PrintStream(new BufferedOutputStream(
+				new FileOutputStream(target)));
+
+		try {
+			ps.println(headRef);
+		} finally {
+			try {
+				ps.close();
+			} catch (Throwable t) {
+				// do nothing
 			}
 		}
 
+		if (ps.checkError()) {
+			throw new IOException("unable to write "
+					+ target.getAbsolutePath());
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.GitRepository#getLocalBranches()
+	 */
+	public Collection<BranchAndHead> getLocalBranches() throws IOException {
+		return branches(packedRefs().heads, readLooseRefs(refsHeads));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.GitRepository#getRemoteBranches()
+	 */
+	public Collection<BranchAndHead> getRemoteBranches() throws IOException {
+		return branches(packedRefs().remotes, readLooseRefs(refsRemotes));
+	}
+
+	private static Collection<BranchAndHead> branches(
+			Map<String, String> packed, Map<String, String> loose) {
+
+		Map<String, String> refs = new HashMap<String, String>(packed);
+		refs.putAll(loose);
+
+		List<BranchAndHead> bnhs = new ArrayList<BranchAndHead>(refs.size());
+
+		for (Map.Entry<String, String> e : refs.entrySet()) {
+			bnhs.add(new BranchAndHead(e.getKey(), e.getValue()));
+		}
+
 		return bnhs;
 	}
 
@@ -343,11 +2210,122 @@ public class FileRepository implements Repository {
 	 * @see org.git4j.core.GitRepository#removeLocalBranch(java.lang.String)
 	 */
 	public void removeLocalBranch(String branch) throws IOException {
-		File target = new File(refsHeads, branch);
+		removeBranch(false, branch);
+	}
 
-		if (target.canRead()) {
-			if (!target.delete()) {
-				target.deleteOnExit();
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#removeRemoteBranch(java.lang.String)
+	 */
+	public void removeRemoteBranch(String branch) throws IOException {
+		removeBranch(true, branch);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.git4j.core.repo.Repository#objects(org.git4j.core.objs.Types)
+	 */
+	public ObjectCursor objects(final Types type) throws IOException {
+		final LooseWalker walker = new LooseWalker();
+		final PackFile[] current = packs();
+
+		return new ObjectCursor() {
+
+			private int p = 0;
+
+			private int j = 0;
+
+			public ObjectInfo next() throws IOException {
+				while (p < current.length) {
+					PackFile pf = current[p];
+
+					if (j >= pf.size()) {
+						++p;
+						j = 0;
+
+						continue;
+					}
+
+					Types otype = pf.typeAt(j);
+					int index = j++;
+
+					if (pf.isDeleted(index)) {
+						continue;
+					}
+
+					if ((type == null) || type.equals(otype)) {
+						return new ObjectInfo(pf.idAt(index), otype, pf
+								.lengthAt(index));
+					}
+				}
+
+				File f;
+
+				while ((f = walker.next()) != null) {
+					// type is only known by reading the header, so do it only
+					// if it is asked for
+					Types otype = null;
+
+					if (type != null) {
+						otype = readType(f);
+
+						if (!type.equals(otype)) {
+							continue;
+						}
+					}
+
+					long size = f.length();
+
+					// removed while iterating
+					if ((size == 0) && !f.exists()) {
+						continue;
+					}
+
+					return new ObjectInfo(idOf(f.getName()), otype, size);
+				}
+
+				return null;
+			}
+
+			public void close() throws IOException {
+				// do nothing
+			}
+		};
+	}
+
+	private Types readType(File source) throws IOException {
+		InputStream in;
+
+		try {
+			in = new FileInputStream(source);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+
+		try {
+			byte[] bytes = new byte[16];
+			int length = in.read(bytes);
+
+			String header = length <= 0 ? "" : new String(bytes, 0, length,
+					"UTF-8");
+
+			if (header.startsWith(Types.COMMIT.toString() + " ")) {
+				return Types.COMMIT;
+			}
+
+			if (header.startsWith(Types.BLOB.toString() + " ")) {
+				return Types.BLOB;
+			}
+
+			return null;
+		} finally {
+			try {
+				in.close();
+			} catch (Throwable t) {
+				// do nothing
 			}
 		}
 	}
@@ -355,14 +2333,156 @@ public class FileRepository implements Repository {
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see org.git4j.core.repo.Repository#removeRemoteBranch(java.lang.String)
+	 * @see org.git4j.core.repo.Repository#remove(java.lang.String)
 	 */
-	public void removeRemoteBranch(String branch) throws IOException {
-		File target = new File(refsRemotes, branch);
+	public long remove(String id) throws IOException {
+		return remove(id, Long.MAX_VALUE);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#remove(java.lang.String, long)
+	 */
+	public long remove(String id, long storedBefore) throws IOException {
+		synchronized (objectLock(id)) {
+			synchronized (packLock) {
+				return remove(id, storedBefore, packs());
+			}
+		}
+	}
+
+	private long remove(String id, long storedBefore, PackFile[] current)
+			throws IOException {
+		long length = -1;
+
+		File target = locate(id);
+
+		// kept if any copy has been stored since
+		if ((target != null) && (target.lastModified() >= storedBefore)) {
+			return -1;
+		}
+
+		for (int i = 0; i < current.length; ++i) {
+			if ((current[i].indexOf(id) >= 0)
+					&& (current[i].getIdxFile().lastModified() >= storedBefore)) {
+				return -1;
+			}
+		}
+
+		if (target != null) {
+			length = target.length();
 
-		if (target.canRead()) {
 			if (!target.delete()) {
-				target.deleteOnExit();
+				throw new IOException("unable to delete file "
+						+ target.getAbsolutePath());
+			}
+		}
+
+		List<PackFile> dead = new ArrayList<PackFile>();
+
+		// packs written concurrently may hold the same object
+		for (int i = 0; i < current.length; ++i) {
+			PackFile pf = current[i];
+			int index = pf.indexOf(id);
+
+			if (index >= 0) {
+				length = Math.max(length, 0) + pf.lengthAt(index);
+
+				// packs are immutable, the id is recorded as deleted
+				pf.markDeleted(index, durability != Durability.NONE);
+
+				// rewritten once half dead, not once per removal
+				if ((pf.deletedCount() << 1) >= pf.size()) {
+					dead.add(pf);
+				}
+			}
+		}
+
+		for (PackFile pf : dead) {
+			rewritePack(pf);
+		}
+
+		return length;
+	}
+
+	private void rewritePack(PackFile old) throws IOException {
+		List<PackFile> updated = new ArrayList<PackFile>(Arrays.asList(packs()));
+		int i = updated.indexOf(old);
+
+		PackFile.Writer writer = new PackFile.Writer(packDir,
+				durability != Durability.NONE);
+
+		try {
+			old.copyTo(writer);
+
+			if (writer.size() == 0) {
+				updated.remove(i);
+			} else {
+				PackFile pf = writer.finish();
+				pf.getIdxFile().setLastModified(old.getIdxFile().lastModified());
+
+				updated.set(i, pf);
+			}
+		} finally {
+			writer.abort();
+		}
+
+		packs = updated.toArray(new PackFile[updated.size()]);
+		old.delete();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.git4j.core.repo.Repository#addRefListener(org.git4j.core.repo.RefListener
+	 * )
+	 */
+	public void addRefListener(RefListener listener) {
+		events.addListener(listener);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.git4j.core.repo.Repository#removeRefListener(org.git4j.core.repo.
+	 * RefListener)
+	 */
+	public void removeRefListener(RefListener listener) {
+		events.removeListener(listener);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#begin()
+	 */
+	public UnitOfWork begin() throws IOException {
+		// each call is applied on its own
+		return NoUnitOfWork.INSTANCE;
+	}
+
+	/**
+	 * stop the write threads and close the packs of this repository. The
+	 * repository MUST NOT be used afterwards, its files are left as they are.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (ioExecutor != null) {
+				ioExecutor.shutdown();
+				ioExecutor = null;
+			}
+		}
+
+		synchronized (packLock) {
+			if (packs != null) {
+				for (int i = 0; i < packs.length; ++i) {
+					packs[i].close();
+				}
+
+				packs = null;
 			}
 		}
 	}
@@ -373,8 +2493,118 @@ public class FileRepository implements Repository {
 	 * @see org.git4j.core.repo.Repository#wipe()
 	 */
 	public void wipe() throws IOException {
+		synchronized (packLock) {
+			if (packs != null) {
+				for (int i = 0; i < packs.length; ++i) {
+					packs[i].close();
+				}
+
+				packs = null;
+			}
+		}
+
 		rm(refsRemotes);
 		rm(refsHeads);
+
+		if (packedRefsFile.exists() && !packedRefsFile.delete()) {
+			packedRefsFile.deleteOnExit();
+		}
+
+		packedRefs = null;
+
 		rm(objects);
+
+		synchronized (layoutLock) {
+			previousFanOut = -1;
+			saveLayout();
+		}
+	}
+
+	/**
+	 * Detects ref files written by other processes. A ref file is only read
+	 * again when its size or modification time changed, or when it was
+	 * modified shortly before it was last read (coarse file time resolution).
+	 */
+	private class RefPoller implements RefEventDispatcher.Poller {
+
+		private Map<File, RefFile> heads = new HashMap<File, RefFile>();
+
+		private Map<File, RefFile> remotes = new HashMap<File, RefFile>();
+
+		public void poll(RefEventDispatcher dispatcher) throws IOException {
+			long since = dispatcher.sequence();
+
+			heads = scan(refsHeads, heads);
+			remotes = scan(refsRemotes, remotes);
+
+			PackedRefs packed = packedRefs();
+
+			dispatcher.observed(toHeads(packed.heads, heads), toHeads(
+					packed.remotes, remotes), since);
+		}
+
+		private Map<File, RefFile> scan(File dir, Map<File, RefFile> cache)
+				throws IOException {
+
+			Map<File, RefFile> scanned = new HashMap<File, RefFile>();
+
+			File[] files = dir.listFiles();
+			if (files == null) {
+				return scanned;
+			}
+
+			for (int i = 0, len = files.length; i < len; ++i) {
+				File f = files[i];
+
+				if (f.getName().endsWith(LOCK_SUFFIX)) {
+					continue;
+				}
+
+				long lastModified = f.lastModified();
+				long length = f.length();
+
+				RefFile rf = cache.get(f);
+
+				if ((rf == null) || (rf.lastModified != lastModified)
+						|| (rf.length != length)
+						|| ((rf.readAt - lastModified) < 2000)) {
+
+					rf = new RefFile();
+					rf.lastModified = lastModified;
+					rf.length = length;
+					rf.readAt = System.currentTimeMillis();
+					rf.headRef = readRef(f);
+				}
+
+				if (rf.headRef != null) {
+					scanned.put(f, rf);
+				}
+			}
+
+			return scanned;
+		}
+
+		private Map<String, String> toHeads(Map<String, String> packed,
+				Map<File, RefFile> refs) {
+
+			Map<String, String> map = new HashMap<String, String>(packed);
+
+			for (Map.Entry<File, RefFile> e : refs.entrySet()) {
+				map.put(e.getKey().getName(), e.getValue().headRef);
+			}
+
+			return map;
+		}
+	}
+
+	private static class RefFile {
+
+		private long lastModified;
+
+		private long length;
+
+		private long readAt;
+
+		private String headRef;
 	}
 }
@@ -0,0 +1,501 @@
+package org.git4j.core.repo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.git4j.core.logging.Logger;
+import org.git4j.core.logging.LoggerFactory;
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.BranchAndHead;
+import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.ObjectInfo;
+import org.git4j.core.objs.Types;
+import org.git4j.core.util.IdSet;
+
+/**
+ * Repository integrity checker.
+ * <p>
+ * The check runs in two phases. First every stored object is streamed from
+ * the repository, loaded and rehashed on a pool of worker threads, reporting
+ * objects whose content does not hash to their id. Then every commit
+ * reachable from local and remote branch heads is visited, reporting parents
+ * and index blobs which are not stored in the repository.
+ */
+public class Fsck {
+
+	private static final Logger log = LoggerFactory.getLogger(Fsck.class);
+
+	public static enum ProblemType {
+		/**
+		 * object content does not match its id
+		 */
+		CORRUPT,
+
+		/**
+		 * object is referenced but not stored
+		 */
+		MISSING,
+
+		/**
+		 * object is listed but can not be loaded
+		 */
+		UNREADABLE
+	}
+
+	/**
+	 * Receives progress of a running check. Calls are made from the thread
+	 * running {@link Fsck#check()}.
+	 */
+	public static interface ProgressListener {
+
+		/**
+		 * @param phase
+		 *            "objects" or "refs"
+		 * @param checked
+		 *            number of objects checked so far in this phase
+		 * @param problems
+		 *            number of problems found so far
+		 */
+		void progress(String phase, long checked, long problems);
+	}
+
+	private Repository repo;
+
+	private int threads;
+
+	private int progressInterval;
+
+	private int maxReportedProblems;
+
+	private ProgressListener listener;
+
+	private AtomicLong problemCount;
+
+	private List<Problem> problems;
+
+	public Fsck(Repository repo) {
+		this.repo = repo;
+
+		threads = Runtime.getRuntime().availableProcessors();
+		progressInterval = 10000;
+		maxReportedProblems = 1000;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * set number of worker threads used to load and rehash objects.
+	 * 
+	 * @param threads
+	 *            number of threads
+	 */
+	public void setThreads(int threads) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("threads MUST be positive");
+		}
+
+		this.threads = threads;
+	}
+
+	public int getProgressInterval() {
+		return progressInterval;
+	}
+
+	/**
+	 * set how often (in number of checked objects) progress is reported.
+	 * 
+	 * @param progressInterval
+	 *            progress interval
+	 */
+	public void setProgressInterval(int progressInterval) {
+		if (progressInterval <= 0) {
+			throw new IllegalArgumentException(
+					"progressInterval MUST be positive");
+		}
+
+		this.progressInterval = progressInterval;
+	}
+
+	public int getMaxReportedProblems() {
+		return maxReportedProblems;
+	}
+
+	/**
+	 * set maximum number of problems kept in the result. Problems above this
+	 * limit are only counted.
+	 * 
+	 * @param maxReportedProblems
+	 *            maximum number of problems
+	 */
+	public void setMaxReportedProblems(int maxReportedProblems) {
+		this.maxReportedProblems = maxReportedProblems;
+	}
+
+	public void setProgressListener(ProgressListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * check the repository.
+	 * 
+	 * @return check result
+	 * @throws IOException
+	 *             if an IO error occurred while listing objects or refs
+	 */
+	public synchronized Result check() throws IOException {
+		long started = System.currentTimeMillis();
+
+		problemCount = new AtomicLong(0);
+		problems = Collections.synchronizedList(new ArrayList<Problem>());
+
+		IdSet present = new IdSet(1 << 16);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		long objects;
+		long commits;
+
+		try {
+			// phase 1: rehash everything
+			objects = checkObjects(executor, present, Types.COMMIT, 0);
+			objects = checkObjects(executor, present, Types.BLOB, objects);
+
+			// phase 2: connectivity
+			commits = checkRefs(executor, present);
+		} finally {
+			executor.shutdown();
+		}
+
+		Result result = new Result(objects, commits, problemCount.get(),
+				new ArrayList<Problem>(problems), System.currentTimeMillis()
+						- started);
+
+		if (log.isTraceEnabled()) {
+			log.trace("fsck: " + result);
+		}
+
+		return result;
+	}
+
+	private void report(ProblemType type, String id, String msg) {
+		problemCount.incrementAndGet();
+
+		if (problems.size() < maxReportedProblems) {
+			problems.add(new Problem(type, id, msg));
+		}
+
+		if (log.isTraceEnabled()) {
+			log.trace("fsck: " + type + " " + id + ": " + msg);
+		}
+	}
+
+	private void progress(String phase, long checked) {
+		if ((listener != null) && ((checked % progressInterval) == 0)) {
+			listener.progress(phase, checked, problemCount.get());
+		}
+	}
+
+	private long checkObjects(ExecutorService executor, IdSet present,
+			final Types type, long checked) throws IOException {
+
+		// bounds the number of queued objects
+		int permits = threads * 16;
+		final Semaphore inflight = new Semaphore(permits);
+
+		ObjectCursor cursor = repo.objects(type);
+
+		try {
+			ObjectInfo info;
+
+			while ((info = cursor.next()) != null) {
+				final String id = info.getId();
+				present.add(id);
+
+				acquire(inflight, 1);
+
+				executor.execute(new Runnable() {
+
+					public void run() {
+						try {
+							verify(type, id);
+						} finally {
+							inflight.release();
+						}
+					}
+				});
+
+				progress("objects", ++checked);
+			}
+		} finally {
+			cursor.close();
+		}
+
+		// wait for queued objects
+		acquire(inflight, permits);
+		inflight.release(permits);
+
+		return checked;
+	}
+
+	private static void acquire(Semaphore semaphore, int permits)
+			throws IOException {
+		try {
+			semaphore.acquire(permits);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw (IOException) new IOException("interrupted").initCause(e);
+		}
+	}
+
+	private void verify(Types type, String id) {
+		Object o;
+		String actualId;
+
+		try {
+			if (Types.COMMIT.equals(type)) {
+				Commit commit = load(Commit.class, id);
+				o = commit;
+				actualId = commit == null ? null : commit.getId();
+			} else {
+				Blob blob = load(Blob.class, id);
+				o = blob;
+				actualId = blob == null ? null : blob.getId();
+			}
+		} catch (Throwable t) {
+			report(ProblemType.UNREADABLE, id, String.valueOf(t));
+			return;
+		}
+
+		if (o == null) {
+			// removed while checking
+			return;
+		}
+
+		if (!id.equals(actualId)) {
+			report(ProblemType.CORRUPT, id, "content hashes to " + actualId);
+		}
+	}
+
+	/**
+	 * load an object as stored. A JDBC repository would verify it by its
+	 * policy, hashing it twice and failing a mismatch as unreadable.
+	 */
+	private <T> T load(Class<T> type, String id) throws IOException {
+		if (repo instanceof JDBCRepository) {
+			return ((JDBCRepository) repo).findUnverified(type, id);
+		}
+
+		return repo.find(type, id);
+	}
+
+	private long checkRefs(ExecutorService executor, final IdSet present)
+			throws IOException {
+
+		IdSet visited = new IdSet(1 << 16);
+
+		List<String> frontier = new ArrayList<String>();
+		addHeads(frontier, present, repo.getLocalBranches());
+		addHeads(frontier, present, repo.getRemoteBranches());
+
+		long checked = 0;
+
+		// breadth first, one level of history at a time
+		while (!frontier.isEmpty()) {
+			List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+
+			for (final String id : frontier) {
+				if (!visited.add(id)) {
+					continue;
+				}
+
+				futures.add(executor.submit(new Callable<List<String>>() {
+
+					public List<String> call() throws Exception {
+						return visit(id, present);
+					}
+				}));
+
+				progress("refs", ++checked);
+			}
+
+			frontier = new ArrayList<String>();
+
+			for (Future<List<String>> future : futures) {
+				try {
+					frontier.addAll(future.get());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw (IOException) new IOException("interrupted")
+							.initCause(e);
+				} catch (ExecutionException e) {
+					throw (IOException) new IOException().initCause(e
+							.getCause());
+				}
+			}
+		}
+
+		return checked;
+	}
+
+	private List<String> visit(String id, IdSet present) {
+		List<String> parents = new ArrayList<String>(2);
+
+		Commit commit;
+
+		try {
+			commit = load(Commit.class, id);
+		} catch (Throwable t) {
+			// already reported while checking objects
+			return parents;
+		}
+
+		if (commit == null) {
+			return parents;
+		}
+
+		for (String blobId : commit.index().values()) {
+			if (!present.contains(blobId)) {
+				report(ProblemType.MISSING, blobId, "blob referenced by commit "
+						+ id);
+			}
+		}
+
+		String[] ids = { commit.getParent(), commit.getParent2() };
+
+		for (int i = 0; i < ids.length; ++i) {
+			if (ids[i] == null) {
+				continue;
+			}
+
+			if (present.contains(ids[i])) {
+				parents.add(ids[i]);
+			} else {
+				report(ProblemType.MISSING, ids[i], "parent of commit " + id);
+			}
+		}
+
+		return parents;
+	}
+
+	private void addHeads(List<String> frontier, IdSet present,
+			Collection<BranchAndHead> bnhs) {
+		for (BranchAndHead bnh : bnhs) {
+			String headRef = bnh.getHeadRef();
+
+			if (headRef == null) {
+				continue;
+			}
+
+			if (present.contains(headRef)) {
+				frontier.add(headRef);
+			} else {
+				report(ProblemType.MISSING, headRef, "head of branch "
+						+ bnh.getBranch());
+			}
+		}
+	}
+
+	public static class Problem {
+
+		private ProblemType type;
+
+		private String id;
+
+		private String message;
+
+		private Problem(ProblemType type, String id, String message) {
+			this.type = type;
+			this.id = id;
+			this.message = message;
+		}
+
+		public ProblemType getType() {
+			return type;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			return type + " " + id + ": " + message;
+		}
+	}
+
+	public static class Result {
+
+		private long checkedObjects;
+
+		private long reachableCommits;
+
+		private long problemCount;
+
+		private List<Problem> problems;
+
+		private long elapsed;
+
+		private Result(long checkedObjects, long reachableCommits,
+				long problemCount, List<Problem> problems, long elapsed) {
+			this.checkedObjects = checkedObjects;
+			this.reachableCommits = reachableCommits;
+			this.problemCount = problemCount;
+			this.problems = problems;
+			this.elapsed = elapsed;
+		}
+
+		public long getCheckedObjects() {
+			return checkedObjects;
+		}
+
+		public long getReachableCommits() {
+			return reachableCommits;
+		}
+
+		/**
+		 * @return total number of problems found, may be more than
+		 *         {@link #getProblems()} holds
+		 */
+		public long getProblemCount() {
+			return problemCount;
+		}
+
+		public List<Problem> getProblems() {
+			return problems;
+		}
+
+		public boolean isClean() {
+			return problemCount == 0;
+		}
+
+		/**
+		 * @return elapsed time in milliseconds
+		 */
+		public long getElapsed() {
+			return elapsed;
+		}
+
+		@Override
+		public String toString() {
+			return checkedObjects + " objects checked, " + reachableCommits
+					+ " reachable commits, " + problemCount + " problems in "
+					+ elapsed + " ms";
+		}
+	}
+}
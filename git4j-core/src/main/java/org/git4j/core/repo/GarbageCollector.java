@@ -0,0 +1,401 @@
+package org.git4j.core.repo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.git4j.core.logging.Logger;
+import org.git4j.core.logging.LoggerFactory;
+import org.git4j.core.objs.BranchAndHead;
+import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.ObjectInfo;
+
+/**
+ * Reachability based (mark and sweep) garbage collector. Objects reachable
+ * from any local or remote branch head are kept, everything else is removed
+ * from the repository.
+ * <p>
+ * The collector runs concurrently with writers. Objects stored after the
+ * object listing was taken are never swept. Objects stored before that but
+ * referenced by a branch head only later (i.e. a commit in progress) are
+ * protected by the grace period: after waiting for it, branch heads are
+ * marked again and every candidate reachable by then is kept.
+ * <p>
+ * A writer may also reuse a candidate while the sweep runs, storing it again
+ * and moving a head onto a commit referring to it. Storing an existing object
+ * refreshes its store time, and a candidate is only removed if it was last
+ * stored before the listing and longer than the grace period ago, checked
+ * atomically by {@link Repository#remove(String, long)}. Heads reported by ref listeners
+ * and, before each batch, all heads are marked again as well, so fewer
+ * removals are attempted.
+ * <p>
+ * Candidates are removed in batches of <code>batchSize</code> objects,
+ * optionally pausing <code>batchDelay</code> milliseconds between batches to
+ * limit the load put on the repository.
+ */
+public class GarbageCollector {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(GarbageCollector.class);
+
+	private Repository repo;
+
+	private long gracePeriod;
+
+	private int batchSize;
+
+	private long batchDelay;
+
+	private volatile boolean cancelled;
+
+	public GarbageCollector(Repository repo) {
+		this.repo = repo;
+
+		gracePeriod = 60000L;
+		batchSize = 1000;
+		batchDelay = 0L;
+
+		cancelled = false;
+	}
+
+	public long getGracePeriod() {
+		return gracePeriod;
+	}
+
+	/**
+	 * set how long (in milliseconds) an unreachable object must stay
+	 * unreachable before it is removed.
+	 * 
+	 * @param gracePeriod
+	 *            grace period in milliseconds
+	 */
+	public void setGracePeriod(long gracePeriod) {
+		if (gracePeriod < 0) {
+			throw new IllegalArgumentException("gracePeriod MUST NOT be negative");
+		}
+
+		this.gracePeriod = gracePeriod;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * set maximum number of objects removed in one batch.
+	 * 
+	 * @param batchSize
+	 *            batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("batchSize MUST be positive");
+		}
+
+		this.batchSize = batchSize;
+	}
+
+	public long getBatchDelay() {
+		return batchDelay;
+	}
+
+	/**
+	 * set pause (in milliseconds) between two batches.
+	 * 
+	 * @param batchDelay
+	 *            pause in milliseconds
+	 */
+	public void setBatchDelay(long batchDelay) {
+		if (batchDelay < 0) {
+			throw new IllegalArgumentException("batchDelay MUST NOT be negative");
+		}
+
+		this.batchDelay = batchDelay;
+	}
+
+	/**
+	 * stop a running collection at the next batch boundary.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * run a full collection.
+	 * 
+	 * @return collection result
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	public Result collect() throws IOException {
+		cancelled = false;
+
+		long started = System.currentTimeMillis();
+
+		// the listing starts after this millisecond, objects stored at or
+		// after started + 1 are never removed
+		while (System.currentTimeMillis() == started) {
+			Thread.yield();
+		}
+
+		// exact, the traversal stops at ids already marked
+		Set<String> marked = new HashSet<String>();
+
+		final Queue<String> moved = new ConcurrentLinkedQueue<String>();
+
+		RefListener listener = new RefListener() {
+
+			public void refChanged(RefEvent event) {
+				if (event.getNewHeadRef() != null) {
+					moved.add(event.getNewHeadRef());
+				}
+			}
+		};
+
+		repo.addRefListener(listener);
+
+		try {
+			return collect(started, marked, moved);
+		} finally {
+			repo.removeRefListener(listener);
+		}
+	}
+
+	private Result collect(long started, Set<String> marked,
+			Queue<String> moved) throws IOException {
+
+		// phase 1: mark
+		mark(marked, heads());
+
+		// phase 2: find candidates
+		List<String> candidates = new ArrayList<String>();
+		long scanned = 0;
+
+		ObjectCursor cursor = repo.objects(null);
+
+		try {
+			ObjectInfo info;
+
+			while ((info = cursor.next()) != null) {
+				++scanned;
+
+				if (!marked.contains(info.getId())) {
+					candidates.add(info.getId());
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+
+		if (log.isTraceEnabled()) {
+			log.trace("gc: " + scanned + " objects scanned, " + marked.size()
+					+ " reachable, " + candidates.size() + " candidates");
+		}
+
+		// phase 3: wait for grace period, then mark again
+		if (!candidates.isEmpty()) {
+			if (!sleep(gracePeriod)) {
+				return new Result(scanned, marked.size(), 0, 0,
+						System.currentTimeMillis() - started, true);
+			}
+
+			mark(marked, heads());
+		}
+
+		// phase 4: sweep
+		long reclaimedObjects = 0;
+		long reclaimedBytes = 0;
+
+		int inBatch = 0;
+
+		for (String id : candidates) {
+			if (marked.contains(id)) {
+				continue;
+			}
+
+			if (inBatch == batchSize) {
+				inBatch = 0;
+
+				if (!sleep(batchDelay)) {
+					break;
+				}
+
+				// catch up with events not delivered yet
+				mark(marked, heads());
+			}
+
+			if (!moved.isEmpty()) {
+				List<String> roots = new ArrayList<String>();
+
+				String headRef;
+				while ((headRef = moved.poll()) != null) {
+					roots.add(headRef);
+				}
+
+				mark(marked, roots);
+			}
+
+			if (marked.contains(id)) {
+				continue;
+			}
+
+			// kept if stored again since the listing or within the grace
+			// period, e.g. reused by a writer not done moving its head
+			long length = repo.remove(id, Math.min(started + 1,
+					System.currentTimeMillis() - gracePeriod));
+			if (length >= 0) {
+				++reclaimedObjects;
+				reclaimedBytes += length;
+			}
+
+			++inBatch;
+		}
+
+		Result result = new Result(scanned, marked.size(), reclaimedObjects,
+				reclaimedBytes, System.currentTimeMillis() - started,
+				cancelled);
+
+		if (log.isTraceEnabled()) {
+			log.trace("gc: " + result);
+		}
+
+		return result;
+	}
+
+	private boolean sleep(long millis) {
+		if (cancelled) {
+			return false;
+		}
+
+		if (millis > 0) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				cancelled = true;
+			}
+		}
+
+		return !cancelled;
+	}
+
+	private List<String> heads() throws IOException {
+		List<String> roots = new ArrayList<String>();
+
+		addHeads(roots, repo.getLocalBranches());
+		addHeads(roots, repo.getRemoteBranches());
+
+		return roots;
+	}
+
+	private void mark(Set<String> marked, List<String> roots)
+			throws IOException {
+		LinkedList<String> pending = new LinkedList<String>(roots);
+
+		while (!pending.isEmpty()) {
+			String id = pending.removeFirst();
+
+			// already marked, so are its ancestors
+			if (!marked.add(id)) {
+				continue;
+			}
+
+			Commit commit = repo.find(Commit.class, id);
+			if (commit == null) {
+				if (log.isTraceEnabled()) {
+					log.trace("gc: unable to find commit " + id);
+				}
+
+				continue;
+			}
+
+			for (String blobId : commit.index().values()) {
+				marked.add(blobId);
+			}
+
+			if (commit.getParent() != null) {
+				pending.addLast(commit.getParent());
+			}
+
+			if (commit.getParent2() != null) {
+				pending.addLast(commit.getParent2());
+			}
+		}
+	}
+
+	private static void addHeads(List<String> roots,
+			Collection<BranchAndHead> bnhs) {
+		for (BranchAndHead bnh : bnhs) {
+			if (bnh.getHeadRef() != null) {
+				roots.add(bnh.getHeadRef());
+			}
+		}
+	}
+
+	public static class Result {
+
+		private long scannedObjects;
+
+		private long reachableObjects;
+
+		private long reclaimedObjects;
+
+		private long reclaimedBytes;
+
+		private long elapsed;
+
+		private boolean cancelled;
+
+		private Result(long scannedObjects, long reachableObjects,
+				long reclaimedObjects, long reclaimedBytes, long elapsed,
+				boolean cancelled) {
+			this.scannedObjects = scannedObjects;
+			this.reachableObjects = reachableObjects;
+			this.reclaimedObjects = reclaimedObjects;
+			this.reclaimedBytes = reclaimedBytes;
+			this.elapsed = elapsed;
+			this.cancelled = cancelled;
+		}
+
+		public long getScannedObjects() {
+			return scannedObjects;
+		}
+
+		public long getReachableObjects() {
+			return reachableObjects;
+		}
+
+		public long getReclaimedObjects() {
+			return reclaimedObjects;
+		}
+
+		public long getReclaimedBytes() {
+			return reclaimedBytes;
+		}
+
+		/**
+		 * @return elapsed time in milliseconds
+		 */
+		public long getElapsed() {
+			return elapsed;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public String toString() {
+			return scannedObjects + " objects scanned, " + reachableObjects
+					+ " reachable, " + reclaimedObjects + " reclaimed ("
+					+ reclaimedBytes + " bytes) in " + elapsed + " ms"
+					+ (cancelled ? ", cancelled" : "");
+		}
+	}
+}
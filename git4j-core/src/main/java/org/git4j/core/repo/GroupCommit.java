@@ -0,0 +1,147 @@
+package org.git4j.core.repo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Shares one durable write between concurrent writers. The first writer of a
+ * round waits for the commit window, so that writers arriving meanwhile join
+ * the round, then flushes the objects of every writer of the round at once,
+ * i.e. as a single pack synced once. Each writer returns once the round
+ * holding its objects has been flushed.
+ */
+class GroupCommit {
+
+	/**
+	 * Makes the objects of a round durable.
+	 */
+	static interface Flusher {
+
+		void flush(List<Object> objs) throws IOException;
+	}
+
+	private static class Round {
+
+		private List<Object> objs = new ArrayList<Object>();
+
+		private boolean done;
+
+		private IOException failure;
+	}
+
+	private Flusher flusher;
+
+	private Object lock;
+
+	// round accepting objects, null if none
+	private Round current;
+
+	private volatile long window;
+
+	GroupCommit(long window, Flusher flusher) {
+		this.flusher = flusher;
+
+		lock = new Object();
+
+		setWindow(window);
+	}
+
+	long getWindow() {
+		return window;
+	}
+
+	void setWindow(long window) {
+		if (window < 0) {
+			throw new IllegalArgumentException("window MUST NOT be negative");
+		}
+
+		this.window = window;
+	}
+
+	/**
+	 * write objects as part of the next round.
+	 * 
+	 * @param objs
+	 *            COMMITs and/or BLOBs stored by the caller
+	 * @throws IOException
+	 *             if the round failed to flush its objects
+	 */
+	void write(Collection<?> objs) throws IOException {
+		if (objs.isEmpty()) {
+			return;
+		}
+
+		Round round;
+		boolean leader;
+
+		synchronized (lock) {
+			leader = current == null;
+
+			if (leader) {
+				current = new Round();
+			}
+
+			round = current;
+			round.objs.addAll(objs);
+		}
+
+		if (leader) {
+			lead(round);
+		} else {
+			synchronized (lock) {
+				while (!round.done) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+
+						throw new InterruptedIOException(
+								"interrupted while waiting for group commit");
+					}
+				}
+			}
+		}
+
+		if (round.failure != null) {
+			throw (IOException) new IOException("unable to write objects")
+					.initCause(round.failure);
+		}
+	}
+
+	private void lead(Round round) {
+		try {
+			if (window > 0) {
+				Thread.sleep(window);
+			}
+		} catch (InterruptedException e) {
+			// other writers still wait for this round
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (lock) {
+			// later writers start the next round
+			current = null;
+		}
+
+		IOException failure = null;
+
+		try {
+			flusher.flush(round.objs);
+		} catch (IOException e) {
+			failure = e;
+		} catch (RuntimeException e) {
+			failure = (IOException) new IOException("unable to write objects")
+					.initCause(e);
+		} finally {
+			synchronized (lock) {
+				round.failure = failure;
+				round.done = true;
+
+				lock.notifyAll();
+			}
+		}
+	}
+}
@@ -1,36 +1,152 @@
 package org.git4j.core.repo;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.git4j.core.GitException;
 import org.git4j.core.objs.Blob;
 import org.git4j.core.objs.BranchAndHead;
 import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.ObjectInfo;
+import org.git4j.core.objs.RefUpdate;
+import org.git4j.core.objs.Types;
 import org.git4j.core.objs.UploadPack;
 import org.git4j.core.util.ObjectUtils;
 
 public class InMemoryRepository implements Repository {
 
-	// <id, content>
-	private Map<String, Object> objects;
+	// <id, content>, replaced by every store
+	private ConcurrentMap<String, Stored> objects;
 
-	// <name, head-id>
-	private Map<String, String> heads;
+	// encoded objects, null if objects are kept on the heap as they are
+	private EncodedObjects encoded;
 
-	// <name, head-id>
-	private Map<String, String> remotes;
+	// <name, head-id or Claim>
+	private ConcurrentMap<String, Object> heads;
+
+	// <name, head-id or Claim>
+	private ConcurrentMap<String, Object> remotes;
+
+	// incremented by updateRefs before switching its branches
+	private AtomicLong refVersion;
+
+	private RefEventDispatcher events;
+
+	private VerificationPolicy verificationPolicy;
 
 	public InMemoryRepository() {
-		objects = Collections.synchronizedMap(new HashMap<String, Object>());
+		objects = new ConcurrentHashMap<String, Stored>();
+
+		heads = new ConcurrentHashMap<String, Object>();
+		remotes = new ConcurrentHashMap<String, Object>();
+
+		refVersion = new AtomicLong();
+
+		events = new RefEventDispatcher("memory");
+
+		verificationPolicy = VerificationPolicy.never();
+	}
+
+	/**
+	 * create a repository keeping objects encoded in direct buffers instead
+	 * of on the heap, decoded by every {@link #find(Class, String)} unless
+	 * cached. The heap then only holds a table of two <code>long</code>s per
+	 * object and the buffers, however many objects there are.
+	 * 
+	 * @param slabSize
+	 *            size of each direct buffer, objects larger than this get a
+	 *            buffer of their own
+	 * @param cacheSize
+	 *            number of most recently found objects kept decoded,
+	 *            <code>0</code> for none
+	 */
+	public InMemoryRepository(int slabSize, int cacheSize) {
+		this();
+
+		encoded = new OffHeapObjects(slabSize, cacheSize);
+	}
+
+	/**
+	 * create a repository keeping encoded objects on the heap up to a memory
+	 * budget. Beyond it the least recently found objects are spilled to a
+	 * segment file, deleted by {@link #close()}, and read back by
+	 * {@link #find(Class, String)}. Refs always stay in memory, so do the id
+	 * and a small entry of every object, spilled or not.
+	 * 
+	 * @param memoryBudget
+	 *            encoded bytes kept in memory
+	 * @param spillDirectory
+	 *            where the segment file is created, <code>null</code> for
+	 *            the default temporary directory
+	 */
+	public InMemoryRepository(long memoryBudget, File spillDirectory) {
+		this();
+
+		encoded = new BoundedObjects(memoryBudget, spillDirectory);
+	}
+
+	/**
+	 * remove all objects and refs, and release the buffers and the segment
+	 * file holding encoded objects. The repository MUST NOT be used
+	 * afterwards.
+	 * 
+	 * @throws IOException
+	 *             if the segment file could not be deleted
+	 */
+	public void close() throws IOException {
+		wipe();
+
+		if (encoded != null) {
+			encoded.close();
+		}
+	}
+
+	/**
+	 * @return encoded bytes of objects held in memory, <code>0</code> unless
+	 *         a memory budget is set
+	 */
+	public long getResidentBytes() {
+		return encoded instanceof BoundedObjects ? ((BoundedObjects) encoded)
+				.getResidentBytes() : 0;
+	}
 
-		heads = Collections.synchronizedMap(new HashMap<String, String>());
-		remotes = Collections.synchronizedMap(new HashMap<String, String>());
+	/**
+	 * @return encoded bytes of objects spilled to disk
+	 */
+	public long getSpilledBytes() {
+		return encoded instanceof BoundedObjects ? ((BoundedObjects) encoded)
+				.getSpilledBytes() : 0;
+	}
+
+	public VerificationPolicy getVerificationPolicy() {
+		return verificationPolicy;
+	}
+
+	/**
+	 * set which loaded objects are checked against their id. The default is
+	 * {@link VerificationPolicy#never()}.
+	 * 
+	 * @param verificationPolicy
+	 *            the verification policy
+	 */
+	public void setVerificationPolicy(VerificationPolicy verificationPolicy) {
+		if (verificationPolicy == null) {
+			throw new NullPointerException("verificationPolicy");
+		}
+
+		this.verificationPolicy = verificationPolicy;
 	}
 
 	/*
@@ -41,7 +157,12 @@ public class InMemoryRepository implements Repository {
 	public String store(Blob blob) throws IOException {
 		String id = blob.getId();
 
-		objects.put(id, blob);
+		if (encoded != null) {
+			encoded.put(id, blob);
+		} else {
+			objects.put(id, new Stored(blob));
+		}
+
 		return id;
 	}
 
@@ -53,7 +174,12 @@ public class InMemoryRepository implements Repository {
 	public String store(Commit commit) throws IOException {
 		String id = commit.getId();
 
-		objects.put(id, commit);
+		if (encoded != null) {
+			encoded.put(id, commit);
+		} else {
+			objects.put(id, new Stored(commit));
+		}
+
 		return id;
 	}
 
@@ -81,21 +207,56 @@ public class InMemoryRepository implements Repository {
 	 * java.lang.String)
 	 */
 	public <T> T find(Class<T> type, String id) throws IOException {
-		Object obj = objects.get(id);
+		if (id == null) {
+			return null;
+		}
+
+		Object obj;
+
+		if (encoded != null) {
+			obj = encoded.get(id);
+		} else {
+			Stored stored = objects.get(id);
+			obj = stored != null ? stored.obj : null;
+		}
+
 		if (obj == null) {
 			return null;
 		}
 
+		if (!verificationPolicy.verify(id, obj)) {
+			throw new IOException("object " + id + " is corrupt");
+		}
+
 		return type.cast(obj);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#findExisting(java.util.Collection)
+	 */
+	public Set<String> findExisting(Collection<String> ids)
+			throws IOException {
+		Set<String> found = new HashSet<String>();
+
+		for (String id : ids) {
+			if (encoded != null ? encoded.contains(id) : objects
+					.containsKey(id)) {
+				found.add(id);
+			}
+		}
+
+		return found;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
 	 * @see org.git4j.core.repo.Repository#getLocalHead(java.lang.String)
 	 */
 	public Commit getLocalHead(String branch) throws IOException {
-		String headRef = heads.get(branch);
+		String headRef = getLocalHeadRef(branch);
 		if (headRef == null) {
 			return null;
 		}
@@ -109,7 +270,7 @@ public class InMemoryRepository implements Repository {
 	 * @see org.git4j.core.repo.Repository#getLocalHeadRef(java.lang.String)
 	 */
 	public String getLocalHeadRef(String branch) throws IOException {
-		return heads.get(branch);
+		return getHeadRef(heads.get(branch));
 	}
 
 	/*
@@ -120,13 +281,7 @@ public class InMemoryRepository implements Repository {
 	 */
 	public void setLocalHeadRef(String branch, String headRef, String newHeadRef)
 			throws GitException, IOException {
-		synchronized (heads) {
-			if (!ObjectUtils.equals(heads.get(branch), headRef)) {
-				throw new GitException();
-			}
-
-			heads.put(branch, newHeadRef);
-		}
+		setHeadRef(false, branch, headRef, newHeadRef);
 	}
 
 	/*
@@ -135,7 +290,12 @@ public class InMemoryRepository implements Repository {
 	 * @see org.git4j.core.repo.Repository#getRemoteHeadRef(java.lang.String)
 	 */
 	public String getRemoteHeadRef(String branch) throws IOException {
-		return remotes.get(branch);
+		return getHeadRef(remotes.get(branch));
+	}
+
+	private static String getHeadRef(Object ref) {
+		return ref instanceof Claim ? ((Claim) ref).getHeadRef()
+				: (String) ref;
 	}
 
 	/*
@@ -146,30 +306,124 @@ public class InMemoryRepository implements Repository {
 	 */
 	public void setRemoteHeadRef(String branch, String headRef,
 			String newHeadRef) throws GitException, IOException {
-		synchronized (remotes) {
-			if (!ObjectUtils.equals(remotes.get(branch), headRef)) {
+		setHeadRef(true, branch, headRef, newHeadRef);
+	}
+
+	private void setHeadRef(boolean remote, String branch, String headRef,
+			String newHeadRef) throws GitException {
+		ConcurrentMap<String, Object> refs = refs(remote);
+
+		while (!compareAndSet(refs, branch, headRef, newHeadRef)) {
+			Object ref = refs.get(branch);
+
+			if (!(ref instanceof Claim)) {
 				throw new GitException();
 			}
 
-			remotes.put(branch, newHeadRef);
+			finish(refs, branch, (Claim) ref);
+		}
+
+		events.publish(remote, branch, headRef, newHeadRef);
+	}
+
+	/**
+	 * replace the head of a branch, <code>null</code> for an absent branch.
+	 */
+	private static boolean compareAndSet(ConcurrentMap<String, Object> refs,
+			String branch, Object ref, Object newRef) {
+		if (ref == null) {
+			return newRef == null ? !refs.containsKey(branch) : refs
+					.putIfAbsent(branch, newRef) == null;
+		}
+
+		return newRef == null ? refs.remove(branch, ref) : refs.replace(
+				branch, ref, newRef);
+	}
+
+	/**
+	 * replace a claim of another writer by its head once committed.
+	 * 
+	 * @throws GitException
+	 *             if the claim is not committed yet
+	 */
+	private static void finish(ConcurrentMap<String, Object> refs,
+			String branch, Claim claim) throws GitException {
+		if (!claim.batch.committed) {
+			throw new GitException("branch " + branch + " is being updated");
 		}
+
+		compareAndSet(refs, branch, claim, claim.getHeadRef());
 	}
 
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see org.git4j.core.repo.Repository#getLocalBranches()
+	 * @see org.git4j.core.repo.Repository#updateRefs(java.util.Collection)
 	 */
-	public Collection<BranchAndHead> getLocalBranches() throws IOException {
-		List<BranchAndHead> list = new ArrayList<BranchAndHead>();
+	public void updateRefs(Collection<RefUpdate> updates)
+			throws GitException, IOException {
+		ObjectUtils.validateRefUpdates(updates);
+
+		Batch batch = new Batch();
+
+		// branches are claimed in a fixed order, of concurrent updates of
+		// overlapping branches the first one to claim the lowest one wins
+		Map<String, Claim> claims = new TreeMap<String, Claim>();
+
+		for (RefUpdate update : updates) {
+			claims.put((update.isRemote() ? "R" : "L") + update.getBranch(),
+					new Claim(batch, update));
+		}
+
+		List<Claim> claimed = new ArrayList<Claim>(claims.size());
+
+		try {
+			for (Claim claim : claims.values()) {
+				ConcurrentMap<String, Object> refs = refs(claim.update
+						.isRemote());
+				String branch = claim.update.getBranch();
+
+				while (!compareAndSet(refs, branch, claim.update.getHeadRef(),
+						claim)) {
+					Object ref = refs.get(branch);
+
+					if (!(ref instanceof Claim)) {
+						throw new GitException("branch " + branch
+								+ " has been modified");
+					}
 
-		synchronized (heads) {
-			for (Map.Entry<String, String> e : heads.entrySet()) {
-				list.add(new BranchAndHead(e.getKey(), e.getValue()));
+					finish(refs, branch, (Claim) ref);
+				}
+
+				claimed.add(claim);
+			}
+
+			// listings taken meanwhile are retried
+			refVersion.incrementAndGet();
+
+			batch.committed = true;
+		} finally {
+			// switched or given back, a committed claim may have been
+			// replaced by another writer already
+			for (Claim claim : claimed) {
+				compareAndSet(refs(claim.update.isRemote()), claim.update
+						.getBranch(), claim, claim.getHeadRef());
 			}
 		}
 
-		return list;
+		for (RefUpdate update : updates) {
+			events.publish(update.isRemote(), update.getBranch(),
+					update.getHeadRef(), update.getNewHeadRef());
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#getLocalBranches()
+	 */
+	public Collection<BranchAndHead> getLocalBranches() throws IOException {
+		return toBranches(heads);
 	}
 
 	/*
@@ -178,15 +432,61 @@ public class InMemoryRepository implements Repository {
 	 * @see org.git4j.core.repo.Repository#getRemoteBranches()
 	 */
 	public Collection<BranchAndHead> getRemoteBranches() throws IOException {
-		List<BranchAndHead> list = new ArrayList<BranchAndHead>();
+		return toBranches(remotes);
+	}
+
+	private ConcurrentMap<String, Object> refs(boolean remote) {
+		return remote ? remotes : heads;
+	}
+
+	/**
+	 * list branches, never part of the updates of an
+	 * {@link #updateRefs(Collection)} call. Claims are resolved after the
+	 * whole map has been read, once per batch: its branches were all claimed
+	 * before the listing started, unless its version is incremented
+	 * meanwhile and the listing is taken again.
+	 */
+	private Collection<BranchAndHead> toBranches(Map<String, Object> refs) {
+		for (;;) {
+			long version = refVersion.get();
+
+			List<Map.Entry<String, Object>> entries = new ArrayList<Map.Entry<String, Object>>(
+					refs.size());
+
+			entries.addAll(refs.entrySet());
+
+			Map<Batch, Boolean> committed = new HashMap<Batch, Boolean>();
+
+			List<BranchAndHead> list = new ArrayList<BranchAndHead>(entries
+					.size());
+
+			for (Map.Entry<String, Object> e : entries) {
+				String headRef;
+
+				if (e.getValue() instanceof Claim) {
+					Claim claim = (Claim) e.getValue();
+
+					Boolean switched = committed.get(claim.batch);
+					if (switched == null) {
+						switched = Boolean.valueOf(claim.batch.committed);
+						committed.put(claim.batch, switched);
+					}
+
+					headRef = switched.booleanValue() ? claim.update
+							.getNewHeadRef() : claim.update.getHeadRef();
+				} else {
+					headRef = (String) e.getValue();
+				}
 
-		synchronized (remotes) {
-			for (Map.Entry<String, String> e : remotes.entrySet()) {
-				list.add(new BranchAndHead(e.getKey(), e.getValue()));
+				if (headRef != null) {
+					list.add(new BranchAndHead(e.getKey(), headRef));
+				}
 			}
-		}
 
-		return list;
+			if (refVersion.get() == version) {
+				return list;
+			}
+		}
 	}
 
 	/*
@@ -195,7 +495,7 @@ public class InMemoryRepository implements Repository {
 	 * @see org.git4j.core.repo.Repository#removeLocalBranch(java.lang.String)
 	 */
 	public void removeLocalBranch(String branch) throws IOException {
-		heads.remove(branch);
+		removeBranch(false, branch);
 	}
 
 	/*
@@ -204,7 +504,129 @@ public class InMemoryRepository implements Repository {
 	 * @see org.git4j.core.repo.Repository#removeRemoteBranch(java.lang.String)
 	 */
 	public void removeRemoteBranch(String branch) throws IOException {
-		remotes.remove(branch);
+		removeBranch(true, branch);
+	}
+
+	private void removeBranch(boolean remote, String branch)
+			throws GitException {
+		ConcurrentMap<String, Object> refs = refs(remote);
+
+		Object oldHeadRef;
+
+		for (;;) {
+			oldHeadRef = refs.get(branch);
+
+			if (oldHeadRef == null) {
+				return;
+			}
+
+			if (oldHeadRef instanceof Claim) {
+				finish(refs, branch, (Claim) oldHeadRef);
+			} else if (refs.remove(branch, oldHeadRef)) {
+				break;
+			}
+		}
+
+		events.publish(remote, branch, (String) oldHeadRef, null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.git4j.core.repo.Repository#objects(org.git4j.core.objs.Types)
+	 */
+	public ObjectCursor objects(final Types type) throws IOException {
+		if (encoded != null) {
+			return encoded.cursor(type);
+		}
+
+		final Iterator<Map.Entry<String, Stored>> it = objects.entrySet()
+				.iterator();
+
+		return new ObjectCursor() {
+
+			public ObjectInfo next() throws IOException {
+				while (it.hasNext()) {
+					Map.Entry<String, Stored> e = it.next();
+
+					Types otype = (e.getValue().obj instanceof Commit) ? Types.COMMIT
+							: Types.BLOB;
+
+					if ((type == null) || type.equals(otype)) {
+						return new ObjectInfo(e.getKey(), otype, -1);
+					}
+				}
+
+				return null;
+			}
+
+			public void close() throws IOException {
+				// do nothing
+			}
+		};
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#remove(java.lang.String)
+	 */
+	public long remove(String id) throws IOException {
+		return remove(id, Long.MAX_VALUE);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#remove(java.lang.String, long)
+	 */
+	public long remove(String id, long storedBefore) throws IOException {
+		if (encoded != null) {
+			return encoded.remove(id, storedBefore);
+		}
+
+		Stored stored = objects.get(id);
+
+		// fails if stored again meanwhile
+		if ((stored == null) || (stored.time >= storedBefore)
+				|| !objects.remove(id, stored)) {
+			return -1;
+		}
+
+		return ObjectUtils.sizeOf(stored.obj);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.git4j.core.repo.Repository#addRefListener(org.git4j.core.repo.RefListener
+	 * )
+	 */
+	public void addRefListener(RefListener listener) {
+		events.addListener(listener);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.git4j.core.repo.Repository#removeRefListener(org.git4j.core.repo.
+	 * RefListener)
+	 */
+	public void removeRefListener(RefListener listener) {
+		events.removeListener(listener);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#begin()
+	 */
+	public UnitOfWork begin() throws IOException {
+		// each call is applied on its own
+		return NoUnitOfWork.INSTANCE;
 	}
 
 	/*
@@ -213,8 +635,59 @@ public class InMemoryRepository implements Repository {
 	 * @see org.git4j.core.repo.Repository#wipe()
 	 */
 	public void wipe() throws IOException {
-		remotes.clear();
 		heads.clear();
+		remotes.clear();
+
 		objects.clear();
+
+		if (encoded != null) {
+			encoded.clear();
+		}
+	}
+
+	/**
+	 * Branches claimed by one {@link #updateRefs(Collection)} call, switched
+	 * at once by committing it. Compared by identity.
+	 */
+	private static class Batch {
+
+		private volatile boolean committed;
+	}
+
+	/**
+	 * Stands for the head of a branch claimed by a batch: the old head until
+	 * the batch is committed, the new one from then on.
+	 */
+	private static class Claim {
+
+		private Batch batch;
+
+		private RefUpdate update;
+
+		private Claim(Batch batch, RefUpdate update) {
+			this.batch = batch;
+			this.update = update;
+		}
+
+		private String getHeadRef() {
+			return batch.committed ? update.getNewHeadRef() : update
+					.getHeadRef();
+		}
+	}
+
+	/**
+	 * An object and when it was last stored, compared by identity.
+	 */
+	private static class Stored {
+
+		private final Object obj;
+
+		private final long time;
+
+		private Stored(Object obj) {
+			this.obj = obj;
+
+			time = System.currentTimeMillis();
+		}
 	}
 }
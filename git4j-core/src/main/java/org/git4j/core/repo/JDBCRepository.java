@@ -1,6 +1,8 @@
 package org.git4j.core.repo;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -8,8 +10,15 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
@@ -17,72 +26,471 @@ import org.git4j.core.GitException;
 import org.git4j.core.objs.Blob;
 import org.git4j.core.objs.BranchAndHead;
 import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.ObjectInfo;
+import org.git4j.core.objs.RefUpdate;
+import org.git4j.core.objs.Types;
 import org.git4j.core.objs.UploadPack;
+import org.git4j.core.repo.jdbc.Dialect;
+import org.git4j.core.repo.jdbc.IndexCodec;
+import org.git4j.core.repo.jdbc.IndexLayout;
+import org.git4j.core.repo.jdbc.Schema;
+import org.git4j.core.util.ObjectUtils;
 import org.git4j.core.util.StringUtils;
 
-public class JDBCRepository implements Repository {
+public class JDBCRepository implements Repository, CommitGraph {
+
+	/**
+	 * commits returned by one ancestry query, below the default recursion
+	 * limit of MySQL
+	 */
+	private static final int WALK_DEPTH = 500;
+
+	/**
+	 * ref log entries kept, a poller falling further behind reads all refs
+	 */
+	private static final int REF_LOG_SIZE = 10000;
+
+	private static final int REF_LOG_PRUNE_INTERVAL = 1000;
+
+	/**
+	 * how long a missing ref log entry is waited for, in milliseconds. An
+	 * entry is missing while its transaction runs and for good once it rolled
+	 * back.
+	 */
+	private static final long REF_LOG_GAP_TIMEOUT = 60000L;
 
 	private DataSource ds;
 
+	private int fetchSize;
+
+	private int objectBatchSize;
+
+	private int indexBatchSize;
+
+	private int blobChunkSize;
+
+	private IndexLayout indexLayout;
+
+	private boolean indexCompression;
+
+	// whether git_commits.cindex exists, checked once for the ROWS layout
+	private volatile Boolean indexColumn;
+
+	private VerificationPolicy verificationPolicy;
+
+	private volatile Dialect dialect;
+
+	private DataSource[] replicas;
+
+	private AtomicInteger nextReplica;
+
+	// ref log entries written, the log is pruned every REF_LOG_PRUNE_INTERVAL
+	private AtomicInteger refLogWrites;
+
+	private RefEventDispatcher events;
+
+	private ThreadLocal<Session> current;
+
 	public JDBCRepository(DataSource ds) {
 		this.ds = ds;
+
+		fetchSize = 1000;
+		objectBatchSize = 100;
+		indexBatchSize = 1000;
+
+		indexLayout = IndexLayout.ROWS;
+
+		verificationPolicy = VerificationPolicy.always();
+
+		nextReplica = new AtomicInteger();
+		refLogWrites = new AtomicInteger();
+
+		current = new ThreadLocal<Session>();
+
+		events = new RefEventDispatcher("jdbc");
+		events.setPoller(new RefPoller(), 1000);
 	}
 
-	private Commit loadCommit(String id) throws IOException {
-		Connection conn = null;
+	public JDBCRepository(DataSource ds, Dialect dialect) {
+		this(ds);
+
+		this.dialect = dialect;
+	}
+
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * set JDBC fetch size used by {@link #objects(Types)}. MySQL Connector/J
+	 * only streams results when fetch size is {@link Integer#MIN_VALUE}.
+	 * 
+	 * @param fetchSize
+	 *            fetch size hint
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	public int getObjectBatchSize() {
+		return objectBatchSize;
+	}
+
+	/**
+	 * set how many BLOB or COMMIT rows are sent to the database in one
+	 * statement batch, and how many ids are looked up at once to skip
+	 * objects already stored. Pending BLOB contents are held by the driver
+	 * until the batch is executed.
+	 * 
+	 * @param objectBatchSize
+	 *            rows per batch
+	 */
+	public void setObjectBatchSize(int objectBatchSize) {
+		if (objectBatchSize <= 0) {
+			throw new IllegalArgumentException(
+					"object batch size MUST be positive");
+		}
+
+		this.objectBatchSize = objectBatchSize;
+	}
+
+	public int getIndexBatchSize() {
+		return indexBatchSize;
+	}
+
+	/**
+	 * set how many index rows of stored COMMITs are sent to the database in
+	 * one statement batch. Batches are plain <code>INSERT</code>s, so drivers
+	 * able to rewrite them into multi-row statements (e.g. MySQL Connector/J
+	 * with <code>rewriteBatchedStatements=true</code>) do so.
+	 * 
+	 * @param indexBatchSize
+	 *            rows per batch
+	 */
+	public void setIndexBatchSize(int indexBatchSize) {
+		if (indexBatchSize <= 0) {
+			throw new IllegalArgumentException(
+					"index batch size MUST be positive");
+		}
+
+		this.indexBatchSize = indexBatchSize;
+	}
+
+	public int getBlobChunkSize() {
+		return blobChunkSize;
+	}
+
+	/**
+	 * set the size above which BLOB contents are split into rows of
+	 * <code>git_blob_chunks (blob_id, seq, data)</code>, keeping each row
+	 * below driver packet limits (e.g. MySQL <code>max_allowed_packet</code>).
+	 * The <code>git_blobs</code> row of a chunked BLOB has a <code>NULL</code>
+	 * content. Chunked BLOBs are read back whatever this setting is, the chunk
+	 * table is otherwise only used while it is positive.
+	 * 
+	 * @param blobChunkSize
+	 *            chunk size in bytes, <code>0</code> (the default) to store
+	 *            every content in one row
+	 */
+	public void setBlobChunkSize(int blobChunkSize) {
+		if (blobChunkSize < 0) {
+			throw new IllegalArgumentException(
+					"blob chunk size MUST NOT be negative");
+		}
+
+		this.blobChunkSize = blobChunkSize;
+	}
+
+	public IndexLayout getIndexLayout() {
+		return indexLayout;
+	}
+
+	/**
+	 * set where the index of stored commits is kept. {@link IndexLayout#COLUMN}
+	 * and {@link IndexLayout#BOTH} need a binary <code>cindex</code> column on
+	 * <code>git_commits</code>. Commits stored under another layout are still
+	 * read, {@link #migrateIndex()} converts them.
+	 * 
+	 * @param indexLayout
+	 *            the index layout, {@link IndexLayout#ROWS} by default
+	 */
+	public void setIndexLayout(IndexLayout indexLayout) {
+		if (indexLayout == null) {
+			throw new NullPointerException("indexLayout");
+		}
+
+		this.indexLayout = indexLayout;
+	}
+
+	public boolean isIndexCompression() {
+		return indexCompression;
+	}
+
+	/**
+	 * set whether the <code>cindex</code> column is deflated, both forms are
+	 * read whatever this setting is.
+	 * 
+	 * @param indexCompression
+	 *            <code>true</code> to compress
+	 */
+	public void setIndexCompression(boolean indexCompression) {
+		this.indexCompression = indexCompression;
+	}
+
+	public VerificationPolicy getVerificationPolicy() {
+		return verificationPolicy;
+	}
+
+	/**
+	 * set which loaded objects are checked against their id. The default is
+	 * {@link VerificationPolicy#always()}.
+	 * 
+	 * @param verificationPolicy
+	 *            the verification policy
+	 */
+	public void setVerificationPolicy(VerificationPolicy verificationPolicy) {
+		if (verificationPolicy == null) {
+			throw new NullPointerException("verificationPolicy");
+		}
+
+		this.verificationPolicy = verificationPolicy;
+	}
+
+	public Dialect getDialect() {
+		return dialect;
+	}
+
+	/**
+	 * set SQL dialect of the database. If not set, the dialect is picked by
+	 * {@link Dialect#forDatabase(java.sql.DatabaseMetaData)} on the first
+	 * connection.
+	 * 
+	 * @param dialect
+	 *            the dialect
+	 */
+	public void setDialect(Dialect dialect) {
+		this.dialect = dialect;
+	}
+
+	public DataSource[] getReplicas() {
+		return replicas == null ? new DataSource[0] : replicas.clone();
+	}
+
+	/**
+	 * set read replicas of the database. COMMITs and BLOBs are then found
+	 * through the replicas in turn, and through the primary data source if
+	 * a replica does not have them yet. Refs, writes and every call within
+	 * a unit of work still go to the primary data source.
+	 * 
+	 * @param replicas
+	 *            replica data sources, none to read from the primary only
+	 */
+	public void setReplicas(DataSource... replicas) {
+		this.replicas = (replicas == null) || (replicas.length == 0) ? null
+				: replicas.clone();
+	}
+
+	public long getRefPollInterval() {
+		return events.getPollInterval();
+	}
+
+	/**
+	 * set how often the ref log is queried for changes made by other
+	 * processes, while there are ref listeners.
+	 * 
+	 * @param refPollInterval
+	 *            poll interval in milliseconds
+	 */
+	public void setRefPollInterval(long refPollInterval) {
+		events.setPoller(new RefPoller(), refPollInterval);
+	}
+
+
+	/**
+	 * get a connection with auto-commit disabled and the given read-only
+	 * flag. Both are only changed if the pool hands the connection over in
+	 * another state, each call may cost a round trip with some drivers. The
+	 * dialect is detected on the first connection unless it has been set.
+	 */
+	private Connection connect(boolean readOnly) throws SQLException {
+		return connect(ds, readOnly);
+	}
+
+	private Connection connect(DataSource source, boolean readOnly)
+			throws SQLException {
+		Connection conn = source.getConnection();
+
+		try {
+			if (dialect == null) {
+				dialect = Dialect.forDatabase(conn.getMetaData());
+			}
+
+			if (conn.getAutoCommit()) {
+				conn.setAutoCommit(false);
+			}
+
+			if (conn.isReadOnly() != readOnly) {
+				conn.setReadOnly(readOnly);
+			}
+		} catch (SQLException e) {
+			try {
+				conn.close();
+			} catch (Throwable t) {
+				// do nothing
+			}
+
+			throw e;
+		}
+
+		return conn;
+	}
+
+	/**
+	 * get the session bound to the current thread, or open a session for a
+	 * single call.
+	 * 
+	 * @param readOnly
+	 *            <code>true</code> if the call does not modify anything, only
+	 *            used for a single call session
+	 */
+	private Session session(boolean readOnly) throws SQLException {
+		Session session = current.get();
+		if (session != null) {
+			return session;
+		}
+
+		return new Session(connect(readOnly), false);
+	}
+
+	/**
+	 * @return <code>true</code> if object reads of the current thread may go
+	 *         to a replica, not within a unit of work which may hold objects
+	 *         the replicas cannot see
+	 */
+	private boolean readsFromReplica() {
+		return (replicas != null) && (current.get() == null);
+	}
 
-		PreparedStatement pstmt = null;
+	/**
+	 * open a read-only session on the next replica in turn, or get a session
+	 * like {@link #session(boolean)} does.
+	 * 
+	 * @param replica
+	 *            <code>true</code> to read from a replica
+	 */
+	private Session readSession(boolean replica) throws SQLException {
+		if (!replica) {
+			return session(true);
+		}
+
+		DataSource[] replicas = this.replicas;
+
+		int next = nextReplica.getAndIncrement() & Integer.MAX_VALUE;
+
+		return new Session(connect(replicas[next % replicas.length], true),
+				false);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#begin()
+	 */
+	public UnitOfWork begin() throws IOException {
+		Session session = current.get();
+		if (session != null) {
+			return new Work(session, false);
+		}
+
+		try {
+			session = new Session(connect(false), true);
+		} catch (SQLException e) {
+			throw (IOException) new IOException().initCause(e);
+		}
+
+		current.set(session);
+
+		return new Work(session, true);
+	}
+
+	/**
+	 * @param replica
+	 *            <code>true</code> to read from a replica
+	 * @param verify
+	 *            <code>false</code> to skip the verification policy
+	 */
+	private Commit loadCommit(String id, boolean replica, boolean verify)
+			throws IOException {
+		Session session = null;
 		ResultSet rs = null;
 
-		Commit commit = new Commit();
+		Commit commit = null;
 
 		try {
-			conn = ds.getConnection();
-			conn.setAutoCommit(false);
-			conn.setReadOnly(true);
+			session = readSession(replica);
+
+			boolean column = indexLayout != IndexLayout.ROWS;
 
-			pstmt = conn
-					.prepareStatement("SELECT cauthor, cdate, cparent2, cmessage, cparent FROM git_commits WHERE id = ?");
+			PreparedStatement pstmt = session
+					.prepare(column ? "SELECT cauthor, cdate, cparent2, cmessage, cparent, cindex FROM git_commits WHERE id = ?"
+							: "SELECT cauthor, cdate, cparent2, cmessage, cparent FROM git_commits WHERE id = ?");
 
 			pstmt.setString(1, id);
 
 			rs = pstmt.executeQuery();
 			if (rs.next()) {
+				commit = new Commit();
 				commit.setAuthor(rs.getString(1));
 				commit.setDate(rs.getString(2));
 				commit.setParent2(rs.getString(3));
 				commit.setMessage(rs.getString(4));
 				commit.setParent(rs.getString(5));
 
+				byte[] encodedIndex = column ? rs.getBytes(6) : null;
+
 				rs.close();
 				rs = null;
-				
-				pstmt.close();
-				pstmt = null;
-				
+
 				Map<String, String> index = commit.index();
-				
-				pstmt = conn.prepareStatement("SELECT obj_name, blob_id FROM git_index WHERE commit_id = ?");
-				pstmt.setString(1, id);
-				
-				rs = pstmt.executeQuery();
-				while (rs.next()) {
-					index.put(rs.getString(1), rs.getString(2));
+
+				if (encodedIndex != null) {
+					IndexCodec.decode(encodedIndex, index);
+				} else {
+					// stored as rows, or before the column was filled
+					pstmt = session
+							.prepare("SELECT obj_name, blob_id FROM git_index WHERE commit_id = ?");
+					pstmt.setString(1, id);
+
+					rs = pstmt.executeQuery();
+					while (rs.next()) {
+						index.put(rs.getString(1), rs.getString(2));
+					}
+
+					rs.close();
+					rs = null;
+
+					if (index.isEmpty() && !column && hasIndexColumn(session)) {
+						// stored with another layout
+						loadIndexColumns(session, Collections
+								.singletonMap(id, commit));
+					}
 				}
 
-				if (!commit.getId().equals(id)) {
+				if (verify && !verificationPolicy.verify(id, commit)) {
 					throw new SQLException("confusing because of inconsistent object");
 				}
 			}
 
-			conn.commit();
+			session.done();
+		} catch (IOException e) {
+			if (session != null) {
+				session.fail();
+			}
+
+			throw e;
 		} catch (SQLException e) {
-			if (conn != null) {
-				try {
-					conn.rollback();
-				} catch (Throwable t) {
-					// do nothing
-				}
+			if (session != null) {
+				session.fail();
 			}
 
 			throw (IOException) new IOException().initCause(e);
@@ -95,60 +503,1188 @@ public class JDBCRepository implements Repository {
 				}
 			}
 
-			if (pstmt != null) {
-				try {
-					pstmt.close();
-				} catch (Throwable t) {
-					// do nothing
+			if (session != null) {
+				session.release();
+			}
+		}
+
+		return commit;
+	}
+
+	/**
+	 * @param replica
+	 *            <code>true</code> to read from a replica
+	 * @param verify
+	 *            <code>false</code> to skip the verification policy
+	 */
+	private Blob loadBlob(String id, boolean replica, boolean verify)
+			throws IOException {
+		Session session = null;
+		ResultSet rs = null;
+
+		Blob blob = null;
+
+		try {
+			session = readSession(replica);
+
+			PreparedStatement pstmt = session
+					.prepare("SELECT content_type, "
+							+ dialect.length("content")
+							+ ", content FROM git_blobs WHERE id = ?");
+			pstmt.setString(1, id);
+
+			rs = pstmt.executeQuery();
+			if (rs.next()) {
+				String contentType = rs.getString(1);
+				long length = rs.getLong(2);
+
+				byte[] content;
+
+				if (rs.wasNull()) {
+					rs.close();
+					rs = null;
+
+					content = loadChunks(session, id);
+				} else {
+					// read straight into an array of the right size, drivers
+					// may otherwise copy the content more than once
+					ContentBuffer buf = new ContentBuffer(length, id);
+					buf.readFrom(rs.getBinaryStream(3));
+
+					content = buf.toByteArray();
+				}
+
+				blob = new Blob();
+				blob.setContent(content, contentType);
+
+				if (verify && !verificationPolicy.verify(id, blob)) {
+					throw new SQLException("confusing because of inconsistent object");
 				}
 			}
 
-			if (conn != null) {
+			session.done();
+		} catch (IOException e) {
+			if (session != null) {
+				session.fail();
+			}
+
+			throw e;
+		} catch (SQLException e) {
+			if (session != null) {
+				session.fail();
+			}
+
+			throw (IOException) new IOException().initCause(e);
+		} finally {
+			if (rs != null) {
 				try {
-					conn.close();
+					rs.close();
 				} catch (Throwable t) {
 					// do nothing
 				}
 			}
+
+			if (session != null) {
+				session.release();
+			}
 		}
 
-		return commit;
+		return blob;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#store(org.git4j.core.objs.Blob)
+	 */
+	public String store(Blob blob) throws IOException {
+		storeBlobs(Collections.singletonMap(blob.getId(), blob));
+
+		return blob.getId();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#store(org.git4j.core.objs.Commit)
+	 */
+	public String store(Commit commit) throws IOException {
+		storeCommits(Collections.singletonMap(commit.getId(), commit));
+
+		return commit.getId();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#store(org.git4j.core.objs.UploadPack)
+	 */
+	public void store(UploadPack pack) throws IOException {
+		// one transaction for the whole pack, unless the caller has begun a
+		// wider one
+		UnitOfWork uow = begin();
+
+		try {
+			// store BLOBs
+			storeBlobs(pack.getBlobs());
+
+			// store COMMITs
+			storeCommits(pack.getCommits());
+
+			uow.commit();
+		} finally {
+			uow.close();
+		}
+	}
+
+	/**
+	 * read the chunks of a BLOB content in order.
+	 */
+	private byte[] loadChunks(Session session, String id) throws IOException,
+			SQLException {
+		PreparedStatement pstmt = session.prepare("SELECT SUM("
+				+ dialect.length("data")
+				+ ") FROM git_blob_chunks WHERE blob_id = ?");
+		pstmt.setString(1, id);
+
+		long length;
+
+		ResultSet rs = pstmt.executeQuery();
+
+		try {
+			length = rs.next() ? rs.getLong(1) : 0;
+		} finally {
+			rs.close();
+		}
+
+		ContentBuffer buf = new ContentBuffer(length, id);
+
+		pstmt = session
+				.prepare("SELECT data FROM git_blob_chunks WHERE blob_id = ? ORDER BY seq");
+		pstmt.setString(1, id);
+
+		rs = pstmt.executeQuery();
+
+		try {
+			while (rs.next()) {
+				buf.readFrom(rs.getBinaryStream(1));
+			}
+		} finally {
+			rs.close();
+		}
+
+		return buf.toByteArray();
+	}
+
+	private void storeBlobs(Map<String, Blob> blobs) throws IOException {
+		Session session = null;
+
+		try {
+			session = session(false);
+
+			long now = System.currentTimeMillis();
+
+			Map<String, Blob> pending = blobs;
+
+			while (!pending.isEmpty()) {
+				List<String> stored = insertBlobs(session, pending, now);
+
+				// BLOBs removed by a collection since they were found are
+				// stored again
+				pending = select(blobs, refresh(session, "git_blobs", stored,
+						now));
+			}
+
+			session.done();
+		} catch (IllegalArgumentException e) {
+			if (session != null) {
+				session.fail();
+			}
+
+			throw e;
+		} catch (SQLException e) {
+			if (session != null) {
+				session.fail();
+			}
+
+			throw (IOException) new IOException().initCause(e);
+		} finally {
+			if (session != null) {
+				session.release();
+			}
+		}
+	}
+
+	/**
+	 * insert BLOBs not stored yet.
+	 * 
+	 * @return ids of BLOBs which were stored already
+	 */
+	private List<String> insertBlobs(Session session, Map<String, Blob> blobs,
+			long now) throws SQLException {
+		// one round trip per batch when the database has an idempotent
+		// insert, otherwise look up stored BLOBs first
+		String sql = dialect.insertIfAbsent("git_blobs", "id", "content_type",
+				"content", "stored_at");
+
+		boolean ifAbsent = sql != null;
+
+		Set<String> found;
+		int keys;
+
+		if (!ifAbsent) {
+			found = findExisting(session, "git_blobs", blobs.keySet());
+			keys = 0;
+
+			sql = "INSERT INTO git_blobs (id, content_type, content, stored_at) VALUES (?, ?, ?, ?)";
+		} else {
+			found = Collections.emptySet();
+			keys = dialect.getInsertIfAbsentKeyParameters();
+		}
+
+		List<String> stored = new ArrayList<String>(found);
+
+		PreparedStatement pstmt = session.prepare(sql);
+
+		List<Blob> chunked = new ArrayList<Blob>();
+		List<String> batch = new ArrayList<String>();
+
+		for (Blob blob : blobs.values()) {
+			if (found.contains(blob.getId())) {
+				continue;
+			}
+
+			byte[] contentAsBytes = blob.getContentAsBytes();
+			if (contentAsBytes == null) {
+				throw new IllegalArgumentException(
+						"blob content MUST NOT be NULL");
+			}
+
+			if ((blobChunkSize > 0) && (contentAsBytes.length > blobChunkSize)) {
+				chunked.add(blob);
+				continue;
+			}
+
+			int index = bindKey(pstmt, keys, blob.getId());
+
+			// streamed from the content array, not copied by the driver
+			pstmt.setString(index, blob.getId());
+			pstmt.setString(index + 1, blob.getContentType());
+			pstmt.setBinaryStream(index + 2, new ByteArrayInputStream(
+					contentAsBytes), contentAsBytes.length);
+			pstmt.setLong(index + 3, now);
+			pstmt.addBatch();
+
+			batch.add(blob.getId());
+
+			if (batch.size() == objectBatchSize) {
+				addStored(stored, batch, executeBatch(pstmt, ifAbsent));
+				batch.clear();
+			}
+		}
+
+		if (!batch.isEmpty()) {
+			addStored(stored, batch, executeBatch(pstmt, ifAbsent));
+		}
+
+		if (!chunked.isEmpty()) {
+			storeChunkedBlobs(session, chunked, now, stored);
+		}
+
+		return stored;
+	}
+
+	/**
+	 * store large BLOBs one at a time, the <code>git_blobs</code> row without
+	 * content first, then one chunk per statement so the driver never holds
+	 * more than a chunk. Ids of BLOBs stored already are added to
+	 * <code>stored</code>.
+	 */
+	private void storeChunkedBlobs(Session session, List<Blob> blobs,
+			long now, List<String> stored) throws SQLException {
+		String sql = dialect.insertIfAbsent("git_blobs", "id", "content_type",
+				"stored_at");
+
+		int keys = 0;
+
+		if (sql == null) {
+			// BLOBs found already have been skipped
+			sql = "INSERT INTO git_blobs (id, content_type, stored_at) VALUES (?, ?, ?)";
+		} else {
+			keys = dialect.getInsertIfAbsentKeyParameters();
+		}
+
+		for (Blob blob : blobs) {
+			PreparedStatement pstmt = session.prepare(sql);
+
+			int index = bindKey(pstmt, keys, blob.getId());
+
+			pstmt.setString(index, blob.getId());
+			pstmt.setString(index + 1, blob.getContentType());
+			pstmt.setLong(index + 2, now);
+
+			if (pstmt.executeUpdate() == 0) {
+				// stored concurrently
+				stored.add(blob.getId());
+				continue;
+			}
+
+			pstmt = session
+					.prepare("INSERT INTO git_blob_chunks (blob_id, seq, data) VALUES (?, ?, ?)");
+
+			byte[] contentAsBytes = blob.getContentAsBytes();
+
+			int seq = 0;
+
+			for (int off = 0; off < contentAsBytes.length; off += blobChunkSize) {
+				int len = Math.min(blobChunkSize, contentAsBytes.length - off);
+
+				pstmt.setString(1, blob.getId());
+				pstmt.setInt(2, seq++);
+				pstmt.setBinaryStream(3, new ByteArrayInputStream(
+						contentAsBytes, off, len), len);
+				pstmt.executeUpdate();
+			}
+		}
+	}
+
+	private void storeCommits(Map<String, Commit> commits)
+			throws IOException {
+		Session session = null;
+
+		try {
+			session = session(false);
+
+			long now = System.currentTimeMillis();
+
+			Map<String, Commit> pending = commits;
+
+			while (!pending.isEmpty()) {
+				List<Commit> inserted = new ArrayList<Commit>(pending.size());
+
+				List<String> stored = insertCommits(session, pending, now,
+						inserted);
+
+				if (indexLayout != IndexLayout.COLUMN) {
+					// index rows go after every COMMIT row they refer to
+					storeIndexRows(session, inserted);
+				}
+
+				// COMMITs removed by a collection since they were found are
+				// stored again
+				pending = select(commits, refresh(session, "git_commits",
+						stored, now));
+			}
+
+			session.done();
+		} catch (IOException e) {
+			if (session != null) {
+				session.fail();
+			}
+
+			throw e;
+		} catch (SQLException e) {
+			if (session != null) {
+				session.fail();
+			}
+
+			throw (IOException) new IOException().initCause(e);
+		} finally {
+			if (session != null) {
+				session.release();
+			}
+		}
+	}
+
+	/**
+	 * insert COMMITs not stored yet, adding them to <code>inserted</code>.
+	 * 
+	 * @return ids of COMMITs which were stored already
+	 */
+	private List<String> insertCommits(Session session,
+			Map<String, Commit> commits, long now, List<Commit> inserted)
+			throws IOException, SQLException {
+		boolean column = indexLayout != IndexLayout.ROWS;
+
+		String sql = column ? dialect.insertIfAbsent("git_commits", "id",
+				"cauthor", "cdate", "cparent2", "cmessage", "cparent",
+				"cindex", "stored_at") : dialect.insertIfAbsent("git_commits",
+				"id", "cauthor", "cdate", "cparent2", "cmessage", "cparent",
+				"stored_at");
+
+		List<String> stored = new ArrayList<String>();
+
+		if (sql == null) {
+			Set<String> found = findExisting(session, "git_commits",
+					commits.keySet());
+
+			stored.addAll(found);
+
+			PreparedStatement pstmt = session
+					.prepare(column ? "INSERT INTO git_commits (id, cauthor, cdate, cparent2, cmessage, cparent, cindex, stored_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?)"
+							: "INSERT INTO git_commits (id, cauthor, cdate, cparent2, cmessage, cparent, stored_at) VALUES (?, ?, ?, ?, ?, ?, ?)");
+
+			int batched = 0;
+
+			for (Commit commit : commits.values()) {
+				if (found.contains(commit.getId())) {
+					continue;
+				}
+
+				pstmt.setLong(bindCommit(pstmt, 1, commit), now);
+				pstmt.addBatch();
+
+				inserted.add(commit);
+
+				if (++batched == objectBatchSize) {
+					executeBatch(pstmt, false);
+					batched = 0;
+				}
+			}
+
+			if (batched > 0) {
+				executeBatch(pstmt, false);
+			}
+		} else {
+			// index rows are only inserted for COMMITs not stored before
+			// the batch, the column layout needs no lookup
+			Set<String> found = indexLayout == IndexLayout.COLUMN ? Collections
+					.<String> emptySet() : findExisting(session, "git_commits",
+					commits.keySet());
+
+			stored.addAll(found);
+
+			int keys = dialect.getInsertIfAbsentKeyParameters();
+
+			PreparedStatement pstmt = session.prepare(sql);
+
+			List<Commit> batch = new ArrayList<Commit>(Math.min(
+					objectBatchSize, commits.size()));
+
+			for (Commit commit : commits.values()) {
+				if (found.contains(commit.getId())) {
+					continue;
+				}
+
+				pstmt.setLong(
+						bindCommit(pstmt, bindKey(pstmt, keys, commit.getId()),
+								commit), now);
+				pstmt.addBatch();
+
+				batch.add(commit);
+
+				if (batch.size() == objectBatchSize) {
+					addInserted(inserted, stored, batch,
+							executeBatch(pstmt, true));
+					batch.clear();
+				}
+			}
+
+			if (!batch.isEmpty()) {
+				addInserted(inserted, stored, batch, executeBatch(pstmt, true));
+			}
+		}
+
+		return stored;
+	}
+
+	/**
+	 * move the store time of objects stored already to <code>now</code>, so
+	 * a running garbage collection keeps them, see
+	 * {@link #remove(String, long)}.
+	 * 
+	 * @return ids of objects not found any more, removed since they were found
+	 */
+	private List<String> refresh(Session session, String table,
+			List<String> ids, long now) throws SQLException {
+		List<String> removed = new ArrayList<String>();
+
+		if (ids.isEmpty()) {
+			return removed;
+		}
+
+		PreparedStatement pstmt = session.prepare("UPDATE " + table
+				+ " SET stored_at = ? WHERE id = ?");
+
+		int off = 0;
+
+		for (int i = 0, len = ids.size(); i < len; ++i) {
+			pstmt.setLong(1, now);
+			pstmt.setString(2, ids.get(i));
+			pstmt.addBatch();
+
+			if ((i + 1 - off < objectBatchSize) && (i + 1 < len)) {
+				continue;
+			}
+
+			int[] counts = pstmt.executeBatch();
+
+			for (int j = 0; j < counts.length; ++j) {
+				if (counts[j] == 0) {
+					removed.add(ids.get(off + j));
+				}
+			}
+
+			off = i + 1;
+		}
+
+		return removed;
+	}
+
+	/**
+	 * @return the objects of <code>ids</code>
+	 */
+	private static <T> Map<String, T> select(Map<String, T> objects,
+			List<String> ids) {
+		Map<String, T> selected = new LinkedHashMap<String, T>();
+
+		for (String id : ids) {
+			selected.put(id, objects.get(id));
+		}
+
+		return selected;
+	}
+
+	private void storeIndexRows(Session session, Collection<Commit> commits)
+			throws SQLException {
+		PreparedStatement pstmt = session
+				.prepare("INSERT INTO git_index (commit_id, obj_name, blob_id) VALUES (?, ?, ?)");
+
+		int batched = 0;
+
+		for (Commit commit : commits) {
+			for (Map.Entry<String, String> entry : commit.index().entrySet()) {
+				pstmt.setString(1, commit.getId());
+				pstmt.setString(2, entry.getKey());
+				pstmt.setString(3, entry.getValue());
+				pstmt.addBatch();
+
+				if (++batched == indexBatchSize) {
+					executeBatch(pstmt, false);
+					batched = 0;
+				}
+			}
+		}
+
+		if (batched > 0) {
+			executeBatch(pstmt, false);
+		}
+	}
+
+	/**
+	 * add the COMMITs of an insert-if-absent batch to <code>inserted</code>,
+	 * except those the update counts report as stored concurrently since the
+	 * lookup, whose ids are added to <code>stored</code>.
+	 */
+	private static void addInserted(List<Commit> inserted,
+			List<String> stored, List<Commit> batch, int[] counts) {
+		for (int i = 0, len = batch.size(); i < len; ++i) {
+			if ((i < counts.length) && (counts[i] == 0)) {
+				stored.add(batch.get(i).getId());
+				continue;
+			}
+
+			inserted.add(batch.get(i));
+		}
+	}
+
+	/**
+	 * add the ids of an insert-if-absent batch the update counts report as
+	 * stored already to <code>stored</code>.
+	 */
+	private static void addStored(List<String> stored, List<String> batch,
+			int[] counts) {
+		for (int i = 0, len = Math.min(batch.size(), counts.length); i < len; ++i) {
+			if (counts[i] == 0) {
+				stored.add(batch.get(i));
+			}
+		}
+	}
+
+	/**
+	 * set the key parameters of an insert-if-absent statement.
+	 * 
+	 * @return index of the first column parameter
+	 */
+	private static int bindKey(PreparedStatement pstmt, int keys, String key)
+			throws SQLException {
+		for (int i = 1; i <= keys; ++i) {
+			pstmt.setString(i, key);
+		}
+
+		return keys + 1;
+	}
+
+	/**
+	 * set the column parameters of a COMMIT.
+	 * 
+	 * @return index of the parameter after the last one set
+	 */
+	private int bindCommit(PreparedStatement pstmt, int index, Commit commit)
+			throws IOException, SQLException {
+		pstmt.setString(index, commit.getId());
+		StringUtils.setStringOrNull(pstmt, index + 1, commit.getAuthor());
+		pstmt.setString(index + 2, commit.getDateAsString());
+		StringUtils.setStringOrNull(pstmt, index + 3, commit.getParent2());
+		StringUtils.setStringOrNull(pstmt, index + 4, commit.getMessage());
+		StringUtils.setStringOrNull(pstmt, index + 5, commit.getParent());
+
+		if (indexLayout == IndexLayout.ROWS) {
+			return index + 6;
+		}
+
+		pstmt.setBytes(index + 6,
+				IndexCodec.encode(commit.index(), indexCompression));
+
+		return index + 7;
+	}
+
+	/**
+	 * look up which objects are stored already, {@link #objectBatchSize} ids
+	 * per query.
+	 * 
+	 * @return ids found in table
+	 */
+	private Set<String> findExisting(Session session, String table,
+			Collection<String> candidates) throws SQLException {
+
+		Set<String> found = new HashSet<String>();
+		List<String> ids = new ArrayList<String>(objectBatchSize);
+
+		Iterator<String> it = candidates.iterator();
+
+		while (it.hasNext()) {
+			ids.add(it.next());
+
+			if ((ids.size() < objectBatchSize) && it.hasNext()) {
+				continue;
+			}
+
+			PreparedStatement pstmt = prepareIn(session, "SELECT id FROM "
+					+ table + " WHERE id", ids);
+
+			ResultSet rs = pstmt.executeQuery();
+
+			try {
+				while (rs.next()) {
+					found.add(rs.getString(1));
+				}
+			} finally {
+				try {
+					rs.close();
+				} catch (Throwable t) {
+					// do nothing
+				}
+			}
+
+			ids.clear();
+		}
+
+		return found;
+	}
+
+	/**
+	 * prepare <code>prefix IN (?, ...)</code> and bind one parameter per id.
+	 */
+	private static PreparedStatement prepareIn(Session session, String prefix,
+			List<String> ids) throws SQLException {
+		StringBuilder sql = new StringBuilder(prefix).append(" IN (?");
+
+		for (int i = 1, len = ids.size(); i < len; ++i) {
+			sql.append(", ?");
+		}
+
+		PreparedStatement pstmt = session.prepare(sql.append(')').toString());
+
+		for (int i = 0, len = ids.size(); i < len; ++i) {
+			pstmt.setString(i + 1, ids.get(i));
+		}
+
+		return pstmt;
+	}
+
+	/**
+	 * execute a statement batch, every statement MUST have inserted one row,
+	 * or none if it is an insert-if-absent. Drivers rewriting batches may only
+	 * report {@link Statement#SUCCESS_NO_INFO}.
+	 * 
+	 * @return update counts
+	 */
+	private static int[] executeBatch(PreparedStatement pstmt, boolean ifAbsent)
+			throws SQLException {
+		int[] counts = pstmt.executeBatch();
+
+		for (int i = 0; i < counts.length; ++i) {
+			if ((counts[i] == 1) || (counts[i] == Statement.SUCCESS_NO_INFO)
+					|| ((counts[i] == 0) && ifAbsent)) {
+				continue;
+			}
+
+			throw new SQLException("batch statement return unexpected result "
+					+ counts[i]);
+		}
+
+		return counts;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#find(java.lang.Class,
+	 * java.lang.String)
+	 */
+	public <T> T find(Class<T> type, String id) throws IOException {
+		return find(type, id, true);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#findExisting(java.util.Collection)
+	 */
+	public Set<String> findExisting(Collection<String> ids)
+			throws IOException {
+		Session session = null;
+
+		try {
+			session = session(true);
+
+			Set<String> found = findExisting(session, "git_blobs", ids);
+
+			if (found.size() < ids.size()) {
+				found.addAll(findExisting(session, "git_commits", ids));
+			}
+
+			session.done();
+
+			return found;
+		} catch (SQLException e) {
+			if (session != null) {
+				session.fail();
+			}
+
+			throw (IOException) new IOException().initCause(e);
+		} finally {
+			if (session != null) {
+				session.release();
+			}
+		}
+	}
+
+	/**
+	 * find an object without applying the verification policy, for callers
+	 * checking the object themselves like {@link Fsck}.
+	 */
+	<T> T findUnverified(Class<T> type, String id) throws IOException {
+		return find(type, id, false);
+	}
+
+	private <T> T find(Class<T> type, String id, boolean verify)
+			throws IOException {
+		// objects never change once stored, a replica either has the object
+		// or has not caught up yet
+		boolean replica = readsFromReplica();
+
+		if (Commit.class.isAssignableFrom(type)) {
+			Commit commit = replica ? loadCommit(id, true, verify) : null;
+
+			if (commit == null) {
+				commit = loadCommit(id, false, verify);
+			}
+
+			return type.cast(commit);
+		}
+
+		if (Blob.class.isAssignableFrom(type)) {
+			Blob blob = replica ? loadBlob(id, true, verify) : null;
+
+			if (blob == null) {
+				blob = loadBlob(id, false, verify);
+			}
+
+			return type.cast(blob);
+		}
+
+		return null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.CommitGraph#firstParents(java.lang.String,
+	 * java.lang.String)
+	 */
+	public Map<String, String> firstParents(String id, String stopId)
+			throws IOException {
+		if (readsFromReplica()) {
+			Map<String, String> parents = walk(id, stopId, true);
+
+			// an empty walk means the replica lacks the first commit
+			if ((parents == null) || !parents.isEmpty()) {
+				return parents;
+			}
+		}
+
+		return walk(id, stopId, false);
+	}
+
+	/**
+	 * @param replica
+	 *            <code>true</code> to read from a replica
+	 */
+	private Map<String, String> walk(String id, String stopId,
+			boolean replica) throws IOException {
+		Session session = null;
+		ResultSet rs = null;
+
+		Map<String, String> parents = null;
+
+		try {
+			session = readSession(replica);
+
+			// the dialect is known once connected
+			if (dialect.supportsRecursiveQueries()) {
+				parents = new LinkedHashMap<String, String>();
+
+				PreparedStatement pstmt = session.prepare(walkQuery(stopId));
+
+				pstmt.setString(1, id);
+				if (stopId != null) {
+					pstmt.setString(2, stopId);
+				}
+
+				rs = pstmt.executeQuery();
+				while (rs.next()) {
+					parents.put(rs.getString(1), rs.getString(2));
+				}
+			}
+
+			session.done();
+		} catch (SQLException e) {
+			if (session != null) {
+				session.fail();
+			}
+
+			throw (IOException) new IOException().initCause(e);
+		} finally {
+			if (rs != null) {
+				try {
+					rs.close();
+				} catch (Throwable t) {
+					// do nothing
+				}
+			}
+
+			if (session != null) {
+				session.release();
+			}
+		}
+
+		return parents;
+	}
+
+	/**
+	 * build a recursive query following <code>cparent</code>, at most
+	 * {@link #WALK_DEPTH} commits, not going past the stop commit if any.
+	 */
+	private static String walkQuery(String stopId) {
+		StringBuilder sql = new StringBuilder(
+				"WITH RECURSIVE walk (id, cparent, depth) AS (")
+				.append("SELECT id, cparent, 1 FROM git_commits WHERE id = ?")
+				.append(" UNION ALL ")
+				.append("SELECT c.id, c.cparent, w.depth + 1 FROM git_commits c JOIN walk w ON c.id = w.cparent WHERE ");
+
+		if (stopId != null) {
+			sql.append("w.id <> ? AND ");
+		}
+
+		return sql.append("w.depth < ").append(WALK_DEPTH)
+				.append(") SELECT id, cparent FROM walk ORDER BY depth")
+				.toString();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.CommitGraph#findCommits(java.util.Collection)
+	 */
+	public Map<String, Commit> findCommits(Collection<String> ids)
+			throws IOException {
+		if (!readsFromReplica()) {
+			return loadCommits(ids, false);
+		}
+
+		Map<String, Commit> commits = loadCommits(ids, true);
+
+		if (commits.size() < ids.size()) {
+			List<String> missing = new ArrayList<String>();
+
+			for (String id : ids) {
+				if (!commits.containsKey(id)) {
+					missing.add(id);
+				}
+			}
+
+			commits.putAll(loadCommits(missing, false));
+		}
+
+		return commits;
+	}
+
+	/**
+	 * @param replica
+	 *            <code>true</code> to read from a replica
+	 */
+	private Map<String, Commit> loadCommits(Collection<String> ids,
+			boolean replica) throws IOException {
+		Session session = null;
+		ResultSet rs = null;
+
+		Map<String, Commit> commits = new HashMap<String, Commit>();
+
+		try {
+			session = readSession(replica);
+
+			boolean column = indexLayout != IndexLayout.ROWS;
+
+			List<String> chunk = new ArrayList<String>(objectBatchSize);
+
+			Iterator<String> it = ids.iterator();
+
+			while (it.hasNext()) {
+				chunk.add(it.next());
+
+				if ((chunk.size() < objectBatchSize) && it.hasNext()) {
+					continue;
+				}
+
+				PreparedStatement pstmt = prepareIn(session,
+						column ? "SELECT id, cauthor, cdate, cparent2, cmessage, cparent, cindex FROM git_commits WHERE id"
+								: "SELECT id, cauthor, cdate, cparent2, cmessage, cparent FROM git_commits WHERE id",
+						chunk);
+
+				// commits whose index is kept in rows
+				List<String> rows = new ArrayList<String>();
+
+				rs = pstmt.executeQuery();
+				while (rs.next()) {
+					Commit commit = new Commit();
+					commit.setAuthor(rs.getString(2));
+					commit.setDate(rs.getString(3));
+					commit.setParent2(rs.getString(4));
+					commit.setMessage(rs.getString(5));
+					commit.setParent(rs.getString(6));
+
+					byte[] encodedIndex = column ? rs.getBytes(7) : null;
+
+					if (encodedIndex != null) {
+						IndexCodec.decode(encodedIndex, commit.index());
+					} else {
+						rows.add(rs.getString(1));
+					}
+
+					commits.put(rs.getString(1), commit);
+				}
+
+				rs.close();
+				rs = null;
+
+				if (!rows.isEmpty()) {
+					pstmt = prepareIn(session,
+							"SELECT commit_id, obj_name, blob_id FROM git_index WHERE commit_id",
+							rows);
+
+					rs = pstmt.executeQuery();
+					while (rs.next()) {
+						Commit commit = commits.get(rs.getString(1));
+
+						if (commit != null) {
+							commit.index().put(rs.getString(2),
+									rs.getString(3));
+						}
+					}
+
+					rs.close();
+					rs = null;
+
+					if (!column && hasIndexColumn(session)) {
+						// stored with another layout
+						Map<String, Commit> unindexed = new HashMap<String, Commit>();
+
+						for (String id : rows) {
+							Commit commit = commits.get(id);
+
+							if (commit.index().isEmpty()) {
+								unindexed.put(id, commit);
+							}
+						}
+
+						if (!unindexed.isEmpty()) {
+							loadIndexColumns(session, unindexed);
+						}
+					}
+				}
+
+				chunk.clear();
+			}
+
+			for (Map.Entry<String, Commit> entry : commits.entrySet()) {
+				if (!verificationPolicy.verify(entry.getKey(),
+						entry.getValue())) {
+					throw new SQLException("confusing because of inconsistent object");
+				}
+			}
+
+			session.done();
+		} catch (IOException e) {
+			if (session != null) {
+				session.fail();
+			}
+
+			throw e;
+		} catch (SQLException e) {
+			if (session != null) {
+				session.fail();
+			}
+
+			throw (IOException) new IOException().initCause(e);
+		} finally {
+			if (rs != null) {
+				try {
+					rs.close();
+				} catch (Throwable t) {
+					// do nothing
+				}
+			}
+
+			if (session != null) {
+				session.release();
+			}
+		}
+
+		return commits;
+	}
+
+	/**
+	 * @return <code>true</code> if <code>git_commits</code> has a
+	 *         <code>cindex</code> column, which commits stored with an
+	 *         {@link IndexLayout} other than {@link IndexLayout#ROWS} may have
+	 *         their index in
+	 */
+	private boolean hasIndexColumn(Session session) throws SQLException {
+		Boolean exists = indexColumn;
+
+		if (exists == null) {
+			exists = Boolean.valueOf(Schema.hasColumn(session.conn,
+					"git_commits", "cindex"));
+			indexColumn = exists;
+		}
+
+		return exists.booleanValue();
+	}
+
+	/**
+	 * decode the <code>cindex</code> column into the index of commits.
+	 */
+	private void loadIndexColumns(Session session, Map<String, Commit> commits)
+			throws IOException, SQLException {
+		PreparedStatement pstmt = prepareIn(session,
+				"SELECT id, cindex FROM git_commits WHERE id",
+				new ArrayList<String>(commits.keySet()));
+
+		ResultSet rs = pstmt.executeQuery();
+
+		try {
+			while (rs.next()) {
+				byte[] encodedIndex = rs.getBytes(2);
+
+				if (encodedIndex != null) {
+					IndexCodec.decode(encodedIndex, commits.get(rs.getString(1))
+							.index());
+				}
+			}
+		} finally {
+			rs.close();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#getLocalHead(java.lang.String)
+	 */
+	public Commit getLocalHead(String branch) throws IOException {
+		String headRef = getLocalHeadRef(branch);
+		if (headRef == null) {
+			return null;
+		}
+
+		return find(Commit.class, headRef);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#getLocalHeadRef(java.lang.String)
+	 */
+	public String getLocalHeadRef(String branch) throws IOException {
+		return getHeadRef("git_refs_heads", branch);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#setLocalHeadRef(java.lang.String,
+	 * java.lang.String, java.lang.String)
+	 */
+	public void setLocalHeadRef(String branch, String headRef, String newHeadRef)
+			throws GitException, IOException {
+		setHeadRef(false, branch, headRef, newHeadRef);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#getRemoteHeadRef(java.lang.String)
+	 */
+	public String getRemoteHeadRef(String branch) throws IOException {
+		return getHeadRef("git_refs_remotes", branch);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#setRemoteHeadRef(java.lang.String,
+	 * java.lang.String, java.lang.String)
+	 */
+	public void setRemoteHeadRef(String branch, String headRef,
+			String newHeadRef) throws GitException, IOException {
+		setHeadRef(true, branch, headRef, newHeadRef);
 	}
 
-	private Blob loadBlob(String id) throws IOException {
-		Connection conn = null;
+	private String getHeadRef(String table, String branch) throws IOException {
+		String head = null;
 
-		PreparedStatement pstmt = null;
+		Session session = null;
 		ResultSet rs = null;
 
-		Blob blob = new Blob();
-
 		try {
-			conn = ds.getConnection();
-			conn.setAutoCommit(false);
-			conn.setReadOnly(true);
+			session = session(true);
 
-			pstmt = conn
-					.prepareStatement("SELECT content_type, content FROM git_blobs WHERE id = ?");
-			pstmt.setString(1, id);
+			PreparedStatement pstmt = session.prepare("SELECT head FROM "
+					+ table + " WHERE branch = ?");
+
+			pstmt.setString(1, branch);
 
 			rs = pstmt.executeQuery();
 			if (rs.next()) {
-				blob.setContent(rs.getBytes(2), rs.getString(1));
-			}
-			
-			if (!blob.getId().equals(id)) {
-				throw new SQLException("confusing because of inconsistent object");
+				head = rs.getString(1);
 			}
 
-			conn.commit();
+			session.done();
 		} catch (SQLException e) {
-			if (conn != null) {
-				try {
-					conn.rollback();
-				} catch (Throwable t) {
-					// do nothing
-				}
+			if (session != null) {
+				session.fail();
 			}
 
 			throw (IOException) new IOException().initCause(e);
@@ -161,85 +1697,151 @@ public class JDBCRepository implements Repository {
 				}
 			}
 
-			if (pstmt != null) {
-				try {
-					pstmt.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
-			}
-
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
+			if (session != null) {
+				session.release();
 			}
 		}
 
-		return blob;
+		return head;
+	}
+
+	private void setHeadRef(boolean remote, String branch, String headRef,
+			String newHeadRef) throws GitException, IOException {
+		// a single compare and swap statement, see updateRef
+		updateRefs(Collections.singletonList(new RefUpdate(remote, branch,
+				headRef, newHeadRef)));
 	}
 
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see org.git4j.core.repo.Repository#store(org.git4j.core.objs.Blob)
+	 * @see org.git4j.core.repo.Repository#updateRefs(java.util.Collection)
 	 */
-	public String store(Blob blob) throws IOException {
-		byte[] contentAsBytes = blob.getContentAsBytes();
-		if (contentAsBytes == null) {
-			throw new IllegalArgumentException("blob content MUST NOT be NULL");
+	public void updateRefs(Collection<RefUpdate> updates)
+			throws GitException, IOException {
+		ObjectUtils.validateRefUpdates(updates);
+
+		Session session = null;
+
+		try {
+			session = session(false);
+
+			for (RefUpdate update : updates) {
+				if (!updateRef(session, update)) {
+					throw new GitException("branch " + update.getBranch()
+							+ " has been modified");
+				}
+			}
+
+			logRefs(session, updates);
+
+			for (RefUpdate update : updates) {
+				session.publish(update.isRemote(), update.getBranch(),
+						update.getHeadRef(), update.getNewHeadRef());
+			}
+
+			session.done();
+		} catch (GitException e) {
+			if (session != null) {
+				session.fail();
+			}
+
+			throw e;
+		} catch (SQLException e) {
+			if (session != null) {
+				session.fail();
+			}
+
+			throw (IOException) new IOException().initCause(e);
+		} finally {
+			if (session != null) {
+				session.release();
+			}
 		}
+	}
 
-		String id = blob.getId();
+	/**
+	 * compare and swap one ref within the current transaction.
+	 * 
+	 * @return <code>false</code> if current head is not the expected one
+	 */
+	private boolean updateRef(Session session, RefUpdate update)
+			throws SQLException {
 
-		Connection conn = null;
+		String table = update.isRemote() ? "git_refs_remotes"
+				: "git_refs_heads";
 
-		PreparedStatement pstmt = null;
+		PreparedStatement pstmt;
 		ResultSet rs = null;
 
 		try {
-			conn = ds.getConnection();
-			conn.setAutoCommit(false);
+			if (update.getHeadRef() != null) {
+				// the WHERE clause does the comparison, a concurrent update
+				// waits for our row lock
+				if (update.getNewHeadRef() == null) {
+					pstmt = session.prepare("DELETE FROM " + table
+							+ " WHERE branch = ? AND head = ?");
+
+					pstmt.setString(1, update.getBranch());
+					pstmt.setString(2, update.getHeadRef());
+				} else {
+					pstmt = session.prepare("UPDATE " + table
+							+ " SET head = ? WHERE branch = ? AND head = ?");
+
+					pstmt.setString(1, update.getNewHeadRef());
+					pstmt.setString(2, update.getBranch());
+					pstmt.setString(3, update.getHeadRef());
+				}
 
-			pstmt = conn
-					.prepareStatement("SELECT id FROM git_blobs WHERE id = ?");
+				return pstmt.executeUpdate() == 1;
+			}
 
-			pstmt.setString(1, id);
+			String sql = dialect.insertIfAbsent(table, "branch", "head");
+
+			if ((sql != null) && (update.getNewHeadRef() != null)) {
+				// created unless the branch exists already
+				pstmt = session.prepare(sql);
+
+				int index = bindKey(pstmt,
+						dialect.getInsertIfAbsentKeyParameters(),
+						update.getBranch());
+
+				pstmt.setString(index, update.getBranch());
+				pstmt.setString(index + 1, update.getNewHeadRef());
+
+				return pstmt.executeUpdate() == 1;
+			}
+
+			pstmt = session.prepare("SELECT head FROM " + table
+					+ " WHERE branch = ?");
+
+			pstmt.setString(1, update.getBranch());
 
 			rs = pstmt.executeQuery();
-			boolean found = rs.next();
+			if (rs.next()) {
+				return false;
+			}
 
 			rs.close();
-			pstmt.close();
+			rs = null;
 
-			if (!found) {
-				pstmt = conn
-						.prepareStatement("INSERT INTO git_blobs (id, content_type, content) VALUES (?, ?, ?)");
+			if (update.getNewHeadRef() == null) {
+				return true;
+			}
 
-				pstmt.setString(1, id);
-				pstmt.setString(2, blob.getContentType());
-				pstmt.setBytes(3, contentAsBytes);
+			pstmt = session.prepare("INSERT INTO " + table
+					+ " (branch, head) VALUES (?, ?)");
 
-				int eu;
-				if ((eu = pstmt.executeUpdate()) != 1) {
-					throw new SQLException(
-							"insert statement return unexpected result " + eu);
-				}
-			}
+			pstmt.setString(1, update.getBranch());
+			pstmt.setString(2, update.getNewHeadRef());
 
-			conn.commit();
-		} catch (SQLException e) {
-			if (conn != null) {
-				try {
-					conn.rollback();
-				} catch (Throwable t) {
-					// do nothing
-				}
+			int eu;
+			if ((eu = pstmt.executeUpdate()) != 1) {
+				throw new SQLException(
+						"insert statement return unexpected result " + eu);
 			}
 
-			throw (IOException) new IOException().initCause(e);
+			return true;
 		} finally {
 			if (rs != null) {
 				try {
@@ -248,97 +1850,99 @@ public class JDBCRepository implements Repository {
 					// do nothing
 				}
 			}
+		}
+	}
 
-			if (pstmt != null) {
-				try {
-					pstmt.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
-			}
+	/**
+	 * append ref changes to <code>git_ref_log</code> within the transaction
+	 * which made them, committed changes of a branch are logged in order
+	 * since its row stays locked until then. Entries older than the last
+	 * {@link #REF_LOG_SIZE} are pruned now and then.
+	 */
+	private void logRefs(Session session, Collection<RefUpdate> updates)
+			throws SQLException {
+		PreparedStatement pstmt = session
+				.prepare("INSERT INTO git_ref_log (remote, branch, head) VALUES (?, ?, ?)");
+
+		for (RefUpdate update : updates) {
+			pstmt.setInt(1, update.isRemote() ? 1 : 0);
+			pstmt.setString(2, update.getBranch());
+			StringUtils.setStringOrNull(pstmt, 3, update.getNewHeadRef());
+			pstmt.addBatch();
+		}
 
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
-			}
+		executeBatch(pstmt, false);
+
+		int writes = refLogWrites.addAndGet(updates.size());
+
+		if ((writes - updates.size()) / REF_LOG_PRUNE_INTERVAL == writes
+				/ REF_LOG_PRUNE_INTERVAL) {
+			return;
 		}
 
-		return id;
+		long newest = newestRefLogEntry(session);
+
+		pstmt = session.prepare("DELETE FROM git_ref_log WHERE seq <= ?");
+		pstmt.setLong(1, newest - REF_LOG_SIZE);
+		pstmt.executeUpdate();
+	}
+
+	/**
+	 * @return sequence number of the newest ref log entry, <code>0</code> if
+	 *         there is none
+	 */
+	private static long newestRefLogEntry(Session session) throws SQLException {
+		PreparedStatement pstmt = session
+				.prepare("SELECT MAX(seq) FROM git_ref_log");
+
+		ResultSet rs = pstmt.executeQuery();
+
+		try {
+			return rs.next() ? rs.getLong(1) : 0;
+		} finally {
+			rs.close();
+		}
 	}
 
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see org.git4j.core.repo.Repository#store(org.git4j.core.objs.Commit)
+	 * @see org.git4j.core.repo.Repository#getLocalBranches()
 	 */
-	public String store(Commit commit) throws IOException {
-		String id = commit.getId();
+	public Collection<BranchAndHead> getLocalBranches() throws IOException {
+		return getBranches("git_refs_heads");
+	}
 
-		Connection conn = null;
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#getRemoteBranches()
+	 */
+	public Collection<BranchAndHead> getRemoteBranches() throws IOException {
+		return getBranches("git_refs_remotes");
+	}
+
+	private Collection<BranchAndHead> getBranches(String table)
+			throws IOException {
+		List<BranchAndHead> list = new ArrayList<BranchAndHead>();
 
-		PreparedStatement pstmt = null;
+		Session session = null;
 		ResultSet rs = null;
 
 		try {
-			conn = ds.getConnection();
-			conn.setAutoCommit(false);
-
-			pstmt = conn
-					.prepareStatement("SELECT id FROM git_commits WHERE id = ?");
-
-			pstmt.setString(1, id);
-
-			rs = pstmt.executeQuery();
-			boolean found = rs.next();
-
-			rs.close();
-			pstmt.close();
+			session = session(true);
 
-			if (!found) {
-				pstmt = conn
-						.prepareStatement("INSERT INTO git_commits (id, cauthor, cdate, cparent2, cmessage, cparent) VALUES (?, ?, ?, ?, ?, ?)");
+			rs = session.prepare("SELECT branch, head FROM " + table)
+					.executeQuery();
 
-				pstmt.setString(1, commit.getId());
-				StringUtils.setStringOrNull(pstmt, 2, commit.getAuthor());
-				pstmt.setString(3, commit.getDateAsString());
-				StringUtils.setStringOrNull(pstmt, 4, commit.getParent2());
-				StringUtils.setStringOrNull(pstmt, 5, commit.getMessage());
-				StringUtils.setStringOrNull(pstmt, 6, commit.getParent());
-
-				int eu;
-				if ((eu = pstmt.executeUpdate()) != 1) {
-					throw new SQLException(
-							"insert statement return unexpected result " + eu);
-				}
-				
-				pstmt.close();
-				pstmt = null;
-				
-				pstmt = conn.prepareStatement("INSERT INTO git_index (commit_id, obj_name, blob_id) VALUES (?, ?, ?)");
-				pstmt.setString(1, id);
-				
-				for (Map.Entry<String, String> entry : commit.index().entrySet()) {
-					pstmt.setString(2, entry.getKey());
-					pstmt.setString(3, entry.getValue());
-
-					if ((eu = pstmt.executeUpdate()) != 1) {
-						throw new SQLException(
-								"insert statement return unexpected result " + eu);
-					}
-				}
+			while (rs.next()) {
+				list.add(new BranchAndHead(rs.getString(1), rs.getString(2)));
 			}
 
-			conn.commit();
+			session.done();
 		} catch (SQLException e) {
-			if (conn != null) {
-				try {
-					conn.rollback();
-				} catch (Throwable t) {
-					// do nothing
-				}
+			if (session != null) {
+				session.fail();
 			}
 
 			throw (IOException) new IOException().initCause(e);
@@ -351,212 +1955,197 @@ public class JDBCRepository implements Repository {
 				}
 			}
 
-			if (pstmt != null) {
-				try {
-					pstmt.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
-			}
-
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
+			if (session != null) {
+				session.release();
 			}
 		}
 
-		return id;
-	}
-
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.git4j.core.repo.Repository#store(org.git4j.core.objs.UploadPack)
-	 */
-	public void store(UploadPack pack) throws IOException {
-		// store BLOBs
-		for (Blob blob : pack.getBlobs().values()) {
-			store(blob);
-		}
-
-		// store COMMITs
-		for (Commit commit : pack.getCommits().values()) {
-			store(commit);
-		}
+		return list;
 	}
 
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see org.git4j.core.repo.Repository#find(java.lang.Class,
-	 * java.lang.String)
+	 * @see org.git4j.core.repo.Repository#removeLocalBranch(java.lang.String)
 	 */
-	public <T> T find(Class<T> type, String id) throws IOException {
-		if (Commit.class.isAssignableFrom(type)) {
-			return type.cast(loadCommit(id));
-		}
-
-		if (Blob.class.isAssignableFrom(type)) {
-			return type.cast(loadBlob(id));
-		}
+	public void removeLocalBranch(String branch) throws IOException {
+		String oldHeadRef = events.isActive() ? getLocalHeadRef(branch) : null;
 
-		return null;
+		removeBranch(false, branch, oldHeadRef);
 	}
 
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see org.git4j.core.repo.Repository#getLocalHead(java.lang.String)
+	 * @see org.git4j.core.repo.Repository#removeRemoteBranch(java.lang.String)
 	 */
-	public Commit getLocalHead(String branch) throws IOException {
-		String headRef = getLocalHeadRef(branch);
-		if (headRef == null) {
-			return null;
-		}
+	public void removeRemoteBranch(String branch) throws IOException {
+		String oldHeadRef = events.isActive() ? getRemoteHeadRef(branch) : null;
 
-		return find(Commit.class, headRef);
+		removeBranch(true, branch, oldHeadRef);
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.git4j.core.repo.Repository#getLocalHeadRef(java.lang.String)
-	 */
-	public String getLocalHeadRef(String branch) throws IOException {
-		String head = null;
-
-		Connection conn = null;
+	private void removeBranch(boolean remote, String branch, String oldHeadRef)
+			throws IOException {
 
-		PreparedStatement stmt = null;
-		ResultSet rs = null;
+		Session session = null;
 
 		try {
-			conn = ds.getConnection();
-			conn.setAutoCommit(false);
+			session = session(false);
+
+			PreparedStatement pstmt = session.prepare("DELETE FROM "
+					+ (remote ? "git_refs_remotes" : "git_refs_heads")
+					+ " WHERE branch = ?");
 
-			stmt = conn
-					.prepareStatement("SELECT head FROM git_refs_heads WHERE branch = ?");
+			pstmt.setString(1, branch);
 
-			stmt.setString(1, branch);
+			if (pstmt.executeUpdate() > 0) {
+				logRefs(session, Collections.singletonList(new RefUpdate(
+						remote, branch, oldHeadRef, null)));
 
-			rs = stmt.executeQuery();
-			if (rs.next()) {
-				head = rs.getString(1);
+				session.publish(remote, branch, oldHeadRef, null);
 			}
 
-			conn.commit();
+			session.done();
 		} catch (SQLException e) {
-			if (conn != null) {
-				try {
-					conn.rollback();
-				} catch (Throwable t) {
-					// do nothing
-				}
+			if (session != null) {
+				session.fail();
 			}
 
 			throw (IOException) new IOException().initCause(e);
 		} finally {
-			if (rs != null) {
-				try {
-					rs.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
+			if (session != null) {
+				session.release();
 			}
+		}
+	}
 
-			if (stmt != null) {
-				try {
-					stmt.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.git4j.core.repo.Repository#objects(org.git4j.core.objs.Types)
+	 */
+	public ObjectCursor objects(Types type) throws IOException {
+		// the cursor outlives the call, it never joins a unit of work
+		Connection conn;
+
+		try {
+			conn = connect(true);
+		} catch (SQLException e) {
+			throw (IOException) new IOException().initCause(e);
+		}
+
+		List<String> queries = new ArrayList<String>();
+		List<Types> types = new ArrayList<Types>();
+
+		if ((type == null) || Types.BLOB.equals(type)) {
+			if (blobChunkSize > 0) {
+				queries.add("SELECT b.id, COALESCE("
+						+ dialect.length("b.content") + ", (SELECT SUM("
+						+ dialect.length("c.data")
+						+ ") FROM git_blob_chunks c WHERE c.blob_id = b.id)) FROM git_blobs b");
+			} else {
+				queries.add("SELECT id, " + dialect.length("content")
+						+ " FROM git_blobs");
 			}
 
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
-			}
+			types.add(Types.BLOB);
 		}
 
-		return head;
+		if ((type == null) || Types.COMMIT.equals(type)) {
+			queries.add("SELECT id, -1 FROM git_commits");
+			types.add(Types.COMMIT);
+		}
+
+		return new JDBCObjectCursor(conn, queries, types);
 	}
 
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see org.git4j.core.repo.Repository#setLocalHeadRef(java.lang.String,
-	 * java.lang.String, java.lang.String)
+	 * @see org.git4j.core.repo.Repository#remove(java.lang.String)
 	 */
-	public void setLocalHeadRef(String branch, String headRef, String newHeadRef)
-			throws GitException, IOException {
-		Connection conn = null;
+	public long remove(String id) throws IOException {
+		return remove(id, Long.MAX_VALUE);
+	}
 
-		PreparedStatement pstmt = null;
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.Repository#remove(java.lang.String, long)
+	 */
+	public long remove(String id, long storedBefore) throws IOException {
+		long length = -1;
+
+		// commit size can not be computed in SQL, load it before deleting
+		Commit commit = loadCommit(id, false, false);
+
+		Session session = null;
 		ResultSet rs = null;
 
 		try {
-			conn = ds.getConnection();
-			conn.setAutoCommit(false);
+			session = session(false);
 
-			pstmt = conn
-					.prepareStatement("SELECT head FROM git_refs_heads WHERE branch = ?");
+			PreparedStatement pstmt;
 
-			pstmt.setString(1, branch);
+			if (commit == null) {
+				pstmt = session.prepare("SELECT " + dialect.length("content")
+						+ " FROM git_blobs WHERE id = ?");
 
-			rs = pstmt.executeQuery();
+				pstmt.setString(1, id);
 
-			boolean found = rs.next();
-			if (found && !rs.getString(1).equals(headRef)) {
-				throw new GitException();
-			}
+				boolean chunked = false;
 
-			rs.close();
-			pstmt.close();
+				rs = pstmt.executeQuery();
+				if (rs.next()) {
+					length = rs.getLong(1);
+					chunked = rs.wasNull();
+				}
+
+				rs.close();
+				rs = null;
 
-			if (found) {
-				pstmt = conn
-						.prepareStatement("UPDATE git_refs_heads SET head = ? WHERE branch = ?");
+				// the row goes first, a concurrent store either refreshed it
+				// or finds it removed and stores the BLOB again
+				if (!deleteStoredBefore(session, "git_blobs", id, storedBefore)) {
+					length = -1;
+				} else if (chunked) {
+					pstmt = session.prepare("SELECT SUM("
+							+ dialect.length("data")
+							+ ") FROM git_blob_chunks WHERE blob_id = ?");
 
-				pstmt.setString(1, newHeadRef);
-				pstmt.setString(2, branch);
-			} else {
-				pstmt = conn
-						.prepareStatement("INSERT INTO git_refs_heads (branch, head) VALUES (?, ?)");
+					pstmt.setString(1, id);
 
-				pstmt.setString(1, branch);
-				pstmt.setString(2, newHeadRef);
-			}
+					rs = pstmt.executeQuery();
+					if (rs.next()) {
+						length = rs.getLong(1);
+					}
 
-			int eu;
-			if ((eu = pstmt.executeUpdate()) != 1) {
-				throw new SQLException(
-						"insert statement return unexpected result " + eu);
-			}
+					rs.close();
+					rs = null;
 
-			conn.commit();
-		} catch (GitException e) {
-			if (conn != null) {
-				try {
-					conn.rollback();
-				} catch (Throwable t) {
-					// do nothing
+					pstmt = session
+							.prepare("DELETE FROM git_blob_chunks WHERE blob_id = ?");
+
+					pstmt.setString(1, id);
+					pstmt.executeUpdate();
 				}
+			} else if (deleteStoredBefore(session, "git_commits", id,
+					storedBefore)) {
+				length = ObjectUtils.sizeOf(commit);
+
+				pstmt = session
+						.prepare("DELETE FROM git_index WHERE commit_id = ?");
+
+				pstmt.setString(1, id);
+				pstmt.executeUpdate();
 			}
 
-			throw e;
+			session.done();
 		} catch (SQLException e) {
-			if (conn != null) {
-				try {
-					conn.rollback();
-				} catch (Throwable t) {
-					// do nothing
-				}
+			if (session != null) {
+				session.fail();
 			}
 
 			throw (IOException) new IOException().initCause(e);
@@ -569,216 +2158,288 @@ public class JDBCRepository implements Repository {
 				}
 			}
 
-			if (pstmt != null) {
-				try {
-					pstmt.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
+			if (session != null) {
+				session.release();
 			}
+		}
 
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
-			}
+		return length;
+	}
+
+	/**
+	 * delete the row of an object unless it has been stored since
+	 * <code>storedBefore</code>.
+	 * 
+	 * @return <code>true</code> if the row was deleted
+	 */
+	private static boolean deleteStoredBefore(Session session, String table,
+			String id, long storedBefore) throws SQLException {
+		PreparedStatement pstmt;
+
+		if (storedBefore == Long.MAX_VALUE) {
+			pstmt = session.prepare("DELETE FROM " + table + " WHERE id = ?");
+		} else {
+			pstmt = session.prepare("DELETE FROM " + table
+					+ " WHERE id = ? AND (stored_at IS NULL OR stored_at < ?)");
+			pstmt.setLong(2, storedBefore);
 		}
+
+		pstmt.setString(1, id);
+
+		return pstmt.executeUpdate() > 0;
 	}
 
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see org.git4j.core.repo.Repository#getRemoteHeadRef(java.lang.String)
+	 * @see
+	 * org.git4j.core.repo.Repository#addRefListener(org.git4j.core.repo.RefListener
+	 * )
 	 */
-	public String getRemoteHeadRef(String branch) throws IOException {
-		String head = null;
+	public void addRefListener(RefListener listener) {
+		events.addListener(listener);
+	}
 
-		Connection conn = null;
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.git4j.core.repo.Repository#removeRefListener(org.git4j.core.repo.
+	 * RefListener)
+	 */
+	public void removeRefListener(RefListener listener) {
+		events.removeListener(listener);
+	}
 
-		PreparedStatement stmt = null;
-		ResultSet rs = null;
+	/**
+	 * convert stored commits to the current {@link #getIndexLayout() index
+	 * layout}, filling or clearing the <code>cindex</code> column and
+	 * inserting or deleting <code>git_index</code> rows as needed. The
+	 * <code>cindex</code> column MUST exist. Commits are converted
+	 * {@link #getObjectBatchSize()} at a time, each batch in a transaction of
+	 * its own unless a unit of work is in progress, so the migration may run
+	 * while the repository is in use and be run again after a failure.
+	 * 
+	 * @return number of commits converted
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	public int migrateIndex() throws IOException {
+		int converted = 0;
 
-		try {
-			conn = ds.getConnection();
-			conn.setAutoCommit(false);
+		// walk commits in id order, ids are never empty
+		String afterId = "";
 
-			stmt = conn
-					.prepareStatement("SELECT head FROM git_refs_remotes WHERE branch = ?");
+		while (afterId != null) {
+			Session session = null;
+			ResultSet rs = null;
 
-			stmt.setString(1, branch);
+			try {
+				session = session(false);
 
-			rs = stmt.executeQuery();
-			if (rs.next()) {
-				head = rs.getString(1);
-			}
+				PreparedStatement pstmt = session
+						.prepare("SELECT id, cauthor, cdate, cparent2, cmessage, cparent, cindex FROM git_commits WHERE id > ? ORDER BY id");
 
-			conn.commit();
-		} catch (SQLException e) {
-			if (conn != null) {
-				try {
-					conn.rollback();
-				} catch (Throwable t) {
-					// do nothing
+				pstmt.setMaxRows(objectBatchSize);
+				pstmt.setString(1, afterId);
+
+				Map<String, Commit> commits = new LinkedHashMap<String, Commit>();
+				Set<String> withColumn = new HashSet<String>();
+
+				rs = pstmt.executeQuery();
+				while (rs.next()) {
+					Commit commit = new Commit();
+					commit.setAuthor(rs.getString(2));
+					commit.setDate(rs.getString(3));
+					commit.setParent2(rs.getString(4));
+					commit.setMessage(rs.getString(5));
+					commit.setParent(rs.getString(6));
+
+					byte[] encodedIndex = rs.getBytes(7);
+
+					if (encodedIndex != null) {
+						IndexCodec.decode(encodedIndex, commit.index());
+						withColumn.add(rs.getString(1));
+					}
+
+					commits.put(rs.getString(1), commit);
 				}
-			}
 
-			throw (IOException) new IOException().initCause(e);
-		} finally {
-			if (rs != null) {
-				try {
-					rs.close();
-				} catch (Throwable t) {
-					// do nothing
+				rs.close();
+				rs = null;
+
+				afterId = null;
+
+				if (!commits.isEmpty()) {
+					List<String> ids = new ArrayList<String>(commits.keySet());
+
+					afterId = ids.get(ids.size() - 1);
+					converted += migrateIndex(session, commits, withColumn);
 				}
-			}
 
-			if (stmt != null) {
-				try {
-					stmt.close();
-				} catch (Throwable t) {
-					// do nothing
+				session.done();
+			} catch (IOException e) {
+				if (session != null) {
+					session.fail();
 				}
-			}
 
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (Throwable t) {
-					// do nothing
+				throw e;
+			} catch (SQLException e) {
+				if (session != null) {
+					session.fail();
+				}
+
+				throw (IOException) new IOException().initCause(e);
+			} finally {
+				if (rs != null) {
+					try {
+						rs.close();
+					} catch (Throwable t) {
+						// do nothing
+					}
+				}
+
+				if (session != null) {
+					session.release();
 				}
 			}
 		}
 
-		return head;
+		return converted;
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * convert one batch of commits.
 	 * 
-	 * @see org.git4j.core.repo.Repository#setRemoteHeadRef(java.lang.String,
-	 * java.lang.String, java.lang.String)
+	 * @param withColumn
+	 *            ids of commits having their index in the column already
+	 * @return number of commits converted
 	 */
-	public void setRemoteHeadRef(String branch, String headRef,
-			String newHeadRef) throws GitException, IOException {
-		Connection conn = null;
+	private int migrateIndex(Session session, Map<String, Commit> commits,
+			Set<String> withColumn) throws IOException, SQLException {
+		List<String> ids = new ArrayList<String>(commits.keySet());
 
-		PreparedStatement pstmt = null;
-		ResultSet rs = null;
+		Set<String> withRows = new HashSet<String>();
 
-		try {
-			conn = ds.getConnection();
-			conn.setAutoCommit(false);
+		PreparedStatement pstmt = prepareIn(session,
+				"SELECT commit_id, obj_name, blob_id FROM git_index WHERE commit_id",
+				ids);
 
-			pstmt = conn
-					.prepareStatement("SELECT head FROM git_refs_remotes WHERE branch = ?");
+		ResultSet rs = pstmt.executeQuery();
 
-			pstmt.setString(1, branch);
+		try {
+			while (rs.next()) {
+				String id = rs.getString(1);
 
-			rs = pstmt.executeQuery();
+				withRows.add(id);
 
-			boolean found = rs.next();
-			if (found && !rs.getString(1).equals(headRef)) {
-				throw new GitException();
+				if (!withColumn.contains(id)) {
+					commits.get(id).index()
+							.put(rs.getString(2), rs.getString(3));
+				}
 			}
-
+		} finally {
 			rs.close();
-			pstmt.close();
-
-			if (found) {
-				pstmt = conn
-						.prepareStatement("UPDATE git_refs_remotes SET head = ? WHERE branch = ?");
+		}
 
-				pstmt.setString(1, newHeadRef);
-				pstmt.setString(2, branch);
-			} else {
-				pstmt = conn
-						.prepareStatement("INSERT INTO git_refs_remotes (branch, head) VALUES (?, ?)");
+		List<Commit> fill = new ArrayList<Commit>();
+		List<String> clear = new ArrayList<String>();
+		List<Commit> insertRows = new ArrayList<Commit>();
+		List<String> deleteRows = new ArrayList<String>();
 
-				pstmt.setString(1, branch);
-				pstmt.setString(2, newHeadRef);
-			}
+		for (Map.Entry<String, Commit> entry : commits.entrySet()) {
+			String id = entry.getKey();
+			Commit commit = entry.getValue();
 
-			int eu;
-			if ((eu = pstmt.executeUpdate()) != 1) {
-				throw new SQLException(
-						"insert statement return unexpected result " + eu);
+			if (!commit.getId().equals(id)) {
+				throw new SQLException("confusing because of inconsistent object");
 			}
 
-			conn.commit();
-		} catch (GitException e) {
-			if (conn != null) {
-				try {
-					conn.rollback();
-				} catch (Throwable t) {
-					// do nothing
+			if (indexLayout == IndexLayout.ROWS) {
+				if (withColumn.contains(id)) {
+					clear.add(id);
 				}
+			} else if (!withColumn.contains(id)) {
+				fill.add(commit);
 			}
 
-			throw e;
-		} catch (SQLException e) {
-			if (conn != null) {
-				try {
-					conn.rollback();
-				} catch (Throwable t) {
-					// do nothing
+			if (indexLayout == IndexLayout.COLUMN) {
+				if (withRows.contains(id)) {
+					deleteRows.add(id);
 				}
+			} else if (!withRows.contains(id) && !commit.index().isEmpty()) {
+				insertRows.add(commit);
 			}
+		}
 
-			throw (IOException) new IOException().initCause(e);
-		} finally {
-			if (rs != null) {
-				try {
-					rs.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
-			}
+		if (!fill.isEmpty()) {
+			pstmt = session
+					.prepare("UPDATE git_commits SET cindex = ? WHERE id = ?");
 
-			if (pstmt != null) {
-				try {
-					pstmt.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
+			for (Commit commit : fill) {
+				pstmt.setBytes(1,
+						IndexCodec.encode(commit.index(), indexCompression));
+				pstmt.setString(2, commit.getId());
+				pstmt.addBatch();
 			}
 
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
+			executeBatch(pstmt, false);
+		}
+
+		if (!clear.isEmpty()) {
+			pstmt = session
+					.prepare("UPDATE git_commits SET cindex = NULL WHERE id = ?");
+
+			for (String id : clear) {
+				pstmt.setString(1, id);
+				pstmt.addBatch();
 			}
+
+			executeBatch(pstmt, false);
+		}
+
+		if (!deleteRows.isEmpty()) {
+			prepareIn(session, "DELETE FROM git_index WHERE commit_id",
+					deleteRows).executeUpdate();
+		}
+
+		if (!insertRows.isEmpty()) {
+			storeIndexRows(session, insertRows);
+		}
+
+		Set<String> converted = new HashSet<String>(clear);
+		converted.addAll(deleteRows);
+
+		for (Commit commit : fill) {
+			converted.add(commit.getId());
+		}
+
+		for (Commit commit : insertRows) {
+			converted.add(commit.getId());
 		}
+
+		return converted.size();
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * create the tables and indexes this repository uses, with column types
+	 * of the dialect. Tables, columns and indexes which exist already are
+	 * left as they are, so it is safe to call on every start.
 	 * 
-	 * @see org.git4j.core.repo.Repository#getLocalBranches()
+	 * @throws IOException
+	 *             if an IO error occurred
 	 */
-	public Collection<BranchAndHead> getLocalBranches() throws IOException {
-		List<BranchAndHead> list = new ArrayList<BranchAndHead>();
-
+	public void createSchema() throws IOException {
 		Connection conn = null;
 
-		Statement stmt = null;
-		ResultSet rs = null;
-
 		try {
-			conn = ds.getConnection();
-			conn.setAutoCommit(false);
-
-			stmt = conn.createStatement();
-			rs = stmt.executeQuery("SELECT branch, head FROM git_refs_heads");
+			conn = connect(false);
 
-			while (rs.next()) {
-				list.add(new BranchAndHead(rs.getString(1), rs.getString(2)));
-			}
+			new Schema(dialect).create(conn);
 
 			conn.commit();
+
+			indexColumn = null;
 		} catch (SQLException e) {
 			if (conn != null) {
 				try {
@@ -790,22 +2451,43 @@ public class JDBCRepository implements Repository {
 
 			throw (IOException) new IOException().initCause(e);
 		} finally {
-			if (rs != null) {
+			if (conn != null) {
 				try {
-					rs.close();
+					conn.close();
 				} catch (Throwable t) {
 					// do nothing
 				}
 			}
+		}
+	}
 
-			if (stmt != null) {
-				try {
-					stmt.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
-			}
+	/**
+	 * check that the tables, columns, primary keys and indexes needed by the
+	 * current settings exist. <code>git_blob_chunks</code> is only needed
+	 * with a {@link #setBlobChunkSize(int) BLOB chunk size}, the
+	 * <code>cindex</code> column only with an {@link #setIndexLayout(IndexLayout)
+	 * index layout} other than {@link IndexLayout#ROWS}.
+	 * 
+	 * @throws GitException
+	 *             if something is missing, the message lists every problem
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	public void validateSchema() throws GitException, IOException {
+		Connection conn = null;
+
+		List<String> problems;
+
+		try {
+			conn = connect(true);
 
+			problems = new Schema(dialect).validate(conn, blobChunkSize > 0,
+					indexLayout != IndexLayout.ROWS);
+
+			conn.commit();
+		} catch (SQLException e) {
+			throw (IOException) new IOException().initCause(e);
+		} finally {
 			if (conn != null) {
 				try {
 					conn.close();
@@ -815,33 +2497,39 @@ public class JDBCRepository implements Repository {
 			}
 		}
 
-		return list;
+		if (!problems.isEmpty()) {
+			throw new GitException("invalid schema: " + problems);
+		}
 	}
 
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see org.git4j.core.repo.Repository#getRemoteBranches()
+	 * @see org.git4j.core.repo.Repository#wipe()
 	 */
-	public Collection<BranchAndHead> getRemoteBranches() throws IOException {
-		List<BranchAndHead> list = new ArrayList<BranchAndHead>();
-
+	public void wipe() throws IOException {
 		Connection conn = null;
 
 		Statement stmt = null;
-		ResultSet rs = null;
 
 		try {
 			conn = ds.getConnection();
 			conn.setAutoCommit(false);
 
 			stmt = conn.createStatement();
-			rs = stmt.executeQuery("SELECT branch, head FROM git_refs_remotes");
 
-			while (rs.next()) {
-				list.add(new BranchAndHead(rs.getString(1), rs.getString(2)));
+			stmt.executeUpdate("TRUNCATE TABLE git_refs_remotes");
+			stmt.executeUpdate("TRUNCATE TABLE git_refs_heads");
+			stmt.executeUpdate("TRUNCATE TABLE git_ref_log");
+			stmt.executeUpdate("TRUNCATE TABLE git_commits");
+			stmt.executeUpdate("TRUNCATE TABLE git_blobs");
+			stmt.executeUpdate("TRUNCATE TABLE git_index");
+
+			if (blobChunkSize > 0) {
+				stmt.executeUpdate("TRUNCATE TABLE git_blob_chunks");
 			}
 
+			stmt.close();
 			conn.commit();
 		} catch (SQLException e) {
 			if (conn != null) {
@@ -854,14 +2542,6 @@ public class JDBCRepository implements Repository {
 
 			throw (IOException) new IOException().initCause(e);
 		} finally {
-			if (rs != null) {
-				try {
-					rs.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
-			}
-
 			if (stmt != null) {
 				try {
 					stmt.close();
@@ -878,53 +2558,172 @@ public class JDBCRepository implements Repository {
 				}
 			}
 		}
+	}
+
+	/**
+	 * BLOB content read from one or more streams into an array sized by the
+	 * length the database reported. The array only grows or is trimmed if
+	 * the streams do not match that length.
+	 */
+	private static class ContentBuffer {
+		private byte[] bytes;
+
+		private int size;
+
+		private ContentBuffer(long length, String id) throws SQLException {
+			if (length > Integer.MAX_VALUE) {
+				throw new SQLException("blob " + id + " is too large ("
+						+ length + " bytes)");
+			}
+
+			bytes = new byte[(int) length];
+		}
+
+		private void readFrom(InputStream in) throws IOException {
+			try {
+				while (true) {
+					if (size == bytes.length) {
+						// full, only grow if the stream goes on
+						int b = in.read();
+						if (b == -1) {
+							break;
+						}
+
+						byte[] grown = new byte[Math.max(size * 2, 8192)];
+						System.arraycopy(bytes, 0, grown, 0, size);
+
+						bytes = grown;
+						bytes[size++] = (byte) b;
+					}
+
+					int nbread = in.read(bytes, size, bytes.length - size);
+					if (nbread == -1) {
+						break;
+					}
+
+					size += nbread;
+				}
+			} finally {
+				in.close();
+			}
+		}
 
-		return list;
+		private byte[] toByteArray() {
+			if (size == bytes.length) {
+				return bytes;
+			}
+
+			byte[] trimmed = new byte[size];
+			System.arraycopy(bytes, 0, trimmed, 0, size);
+
+			return trimmed;
+		}
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.git4j.core.repo.Repository#removeLocalBranch(java.lang.String)
+	/**
+	 * A connection together with the statements prepared on it. A session
+	 * bound to the current thread by {@link JDBCRepository#begin()} spans every
+	 * call made until its unit of work is closed, otherwise a session lasts
+	 * for a single call.
 	 */
-	public void removeLocalBranch(String branch) throws IOException {
-		Connection conn = null;
+	private class Session {
 
-		PreparedStatement pstmt = null;
-		ResultSet rs = null;
+		private Connection conn;
 
-		try {
-			conn = ds.getConnection();
-			conn.setAutoCommit(false);
+		private boolean bound;
 
-			pstmt = conn
-					.prepareStatement("DELETE FROM git_refs_heads WHERE branch = ?");
+		private Map<String, PreparedStatement> statements;
 
-			pstmt.setString(1, branch);
+		private List<RefUpdate> published;
+
+		private boolean rollbackOnly;
 
-			pstmt.executeUpdate();
+		private Session(Connection conn, boolean bound) {
+			this.conn = conn;
+			this.bound = bound;
 
+			statements = new HashMap<String, PreparedStatement>();
+			published = new ArrayList<RefUpdate>();
+		}
+
+		/**
+		 * get a prepared statement, preparing it on first use.
+		 */
+		private PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement pstmt = statements.get(sql);
+
+			if (pstmt == null) {
+				pstmt = conn.prepareStatement(sql);
+				statements.put(sql, pstmt);
+			} else {
+				pstmt.clearParameters();
+				pstmt.clearBatch();
+			}
+
+			return pstmt;
+		}
+
+		/**
+		 * queue a ref event, delivered once the transaction commits.
+		 */
+		private void publish(boolean remote, String branch, String headRef,
+				String newHeadRef) {
+			published.add(new RefUpdate(remote, branch, headRef, newHeadRef));
+		}
+
+		/**
+		 * end a call successfully, single call sessions commit right away.
+		 */
+		private void done() throws SQLException {
+			if (!bound) {
+				commit();
+			}
+		}
+
+		/**
+		 * end a call with an error, the whole unit of work of a bound session
+		 * is rolled back when it is closed.
+		 */
+		private void fail() {
+			if (bound) {
+				rollbackOnly = true;
+			} else {
+				rollback();
+			}
+		}
+
+		/**
+		 * release resources held for a call.
+		 */
+		private void release() {
+			if (!bound) {
+				close();
+			}
+		}
+
+		private void commit() throws SQLException {
 			conn.commit();
-		} catch (SQLException e) {
-			if (conn != null) {
-				try {
-					conn.rollback();
-				} catch (Throwable t) {
-					// do nothing
-				}
+
+			for (RefUpdate update : published) {
+				events.publish(update.isRemote(), update.getBranch(),
+						update.getHeadRef(), update.getNewHeadRef());
 			}
 
-			throw (IOException) new IOException().initCause(e);
-		} finally {
-			if (rs != null) {
-				try {
-					rs.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
+			published.clear();
+		}
+
+		private void rollback() {
+			published.clear();
+
+			try {
+				conn.rollback();
+			} catch (Throwable t) {
+				// do nothing
 			}
+		}
 
-			if (pstmt != null) {
+		private void close() {
+			for (PreparedStatement pstmt : statements.values()) {
 				try {
 					pstmt.close();
 				} catch (Throwable t) {
@@ -932,125 +2731,302 @@ public class JDBCRepository implements Repository {
 				}
 			}
 
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (Throwable t) {
-					// do nothing
-				}
+			statements.clear();
+
+			try {
+				conn.close();
+			} catch (Throwable t) {
+				// do nothing
 			}
 		}
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.git4j.core.repo.Repository#removeRemoteBranch(java.lang.String)
-	 */
-	public void removeRemoteBranch(String branch) throws IOException {
-		Connection conn = null;
+	private class Work implements UnitOfWork {
 
-		PreparedStatement pstmt = null;
-		ResultSet rs = null;
+		private Session session;
 
-		try {
-			conn = ds.getConnection();
-			conn.setAutoCommit(false);
+		private boolean outermost;
 
-			pstmt = conn
-					.prepareStatement("DELETE FROM git_refs_remotes WHERE branch = ?");
+		private boolean committed;
 
-			pstmt.setString(1, branch);
+		private boolean closed;
 
-			pstmt.executeUpdate();
+		private Work(Session session, boolean outermost) {
+			this.session = session;
+			this.outermost = outermost;
+		}
 
-			conn.commit();
-		} catch (SQLException e) {
-			if (conn != null) {
-				try {
-					conn.rollback();
-				} catch (Throwable t) {
-					// do nothing
-				}
+		public void commit() throws IOException {
+			if (closed || committed) {
+				throw new IllegalStateException("unit of work has ended");
 			}
 
-			throw (IOException) new IOException().initCause(e);
-		} finally {
-			if (rs != null) {
+			if (session.rollbackOnly) {
+				throw new GitException(
+						"unit of work has been marked for rollback");
+			}
+
+			if (outermost) {
 				try {
-					rs.close();
-				} catch (Throwable t) {
-					// do nothing
+					session.commit();
+				} catch (SQLException e) {
+					throw (IOException) new IOException().initCause(e);
 				}
 			}
 
-			if (pstmt != null) {
-				try {
-					pstmt.close();
-				} catch (Throwable t) {
-					// do nothing
+			committed = true;
+		}
+
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+
+			closed = true;
+
+			if (!outermost) {
+				if (!committed) {
+					session.rollbackOnly = true;
 				}
+
+				return;
 			}
 
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (Throwable t) {
-					// do nothing
+			try {
+				if (!committed) {
+					session.rollback();
 				}
+			} finally {
+				current.remove();
+				session.close();
 			}
 		}
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.git4j.core.repo.Repository#wipe()
+	/**
+	 * Detects refs updated by other processes (or other repository instances)
+	 * sharing the same database. A poll reads the ref log entries after the
+	 * last one applied, however many listeners are registered, and only the
+	 * first poll reads both ref tables.
+	 * <p>
+	 * Entries are numbered when inserted but committed in any order, so a
+	 * number may be missing while a later one is visible. Entries after the
+	 * first missing one are read again by every poll until it shows up or
+	 * {@link JDBCRepository#REF_LOG_GAP_TIMEOUT} passed, which is harmless as
+	 * only the latest head of each branch is reported.
 	 */
-	public void wipe() throws IOException {
-		Connection conn = null;
+	private class RefPoller implements RefEventDispatcher.Poller {
 
-		Statement stmt = null;
+		// entries up to this one have been applied, -1 before the first poll
+		private long applied = -1;
 
-		try {
-			conn = ds.getConnection();
-			conn.setAutoCommit(false);
+		// first missing entry, and since when
+		private long gap = -1;
 
-			stmt = conn.createStatement();
+		private long gapSince;
 
-			stmt.executeUpdate("TRUNCATE TABLE git_refs_remotes");
-			stmt.executeUpdate("TRUNCATE TABLE git_refs_heads");
-			stmt.executeUpdate("TRUNCATE TABLE git_commits");
-			stmt.executeUpdate("TRUNCATE TABLE git_blobs");
-			stmt.executeUpdate("TRUNCATE TABLE git_index");
+		public void poll(RefEventDispatcher dispatcher) throws IOException {
+			long since = dispatcher.sequence();
 
-			stmt.close();
-			conn.commit();
-		} catch (SQLException e) {
-			if (conn != null) {
+			Session session = null;
+			ResultSet rs = null;
+
+			try {
+				session = session(true);
+
+				long newest = newestRefLogEntry(session);
+
+				if ((applied < 0) || (newest < applied)
+						|| (newest - applied > REF_LOG_SIZE)) {
+					// first poll, log wiped, or entries pruned before they
+					// were applied
+					session.done();
+
+					dispatcher.observed(toHeads(getLocalBranches()),
+							toHeads(getRemoteBranches()), since);
+
+					applied = newest;
+					gap = -1;
+					return;
+				}
+
+				if (newest == applied) {
+					session.done();
+					return;
+				}
+
+				PreparedStatement pstmt = session
+						.prepare("SELECT seq, remote, branch, head FROM git_ref_log WHERE seq > ? ORDER BY seq");
+				pstmt.setLong(1, applied);
+
+				Map<String, String> heads = new HashMap<String, String>();
+				Map<String, String> remotes = new HashMap<String, String>();
+
+				long contiguous = applied;
+				boolean missing = false;
+
+				rs = pstmt.executeQuery();
+
+				while (rs.next()) {
+					long seq = rs.getLong(1);
+
+					(rs.getInt(2) != 0 ? remotes : heads).put(rs.getString(3),
+							rs.getString(4));
+
+					if (missing) {
+						continue;
+					}
+
+					if ((seq > contiguous + 1)
+							&& ((gap != contiguous + 1) || (System
+									.currentTimeMillis() - gapSince < REF_LOG_GAP_TIMEOUT))) {
+						missing = true;
+					} else {
+						// next entry, or a gap given up
+						contiguous = seq;
+					}
+				}
+
+				rs.close();
+				rs = null;
+
+				session.done();
+
+				if (missing && (gap != contiguous + 1)) {
+					gap = contiguous + 1;
+					gapSince = System.currentTimeMillis();
+				}
+
+				applied = contiguous;
+
+				dispatcher.changed(heads, remotes, since);
+			} catch (SQLException e) {
+				if (session != null) {
+					session.fail();
+				}
+
+				throw (IOException) new IOException().initCause(e);
+			} finally {
+				if (rs != null) {
+					try {
+						rs.close();
+					} catch (Throwable t) {
+						// do nothing
+					}
+				}
+
+				if (session != null) {
+					session.release();
+				}
+			}
+		}
+
+		private Map<String, String> toHeads(Collection<BranchAndHead> bnhs) {
+			Map<String, String> map = new HashMap<String, String>();
+
+			for (BranchAndHead bnh : bnhs) {
+				map.put(bnh.getBranch(), bnh.getHeadRef());
+			}
+
+			return map;
+		}
+	}
+
+	private class JDBCObjectCursor implements ObjectCursor {
+
+		private Connection conn;
+
+		private List<String> queries;
+
+		private List<Types> types;
+
+		private Statement stmt;
+
+		private ResultSet rs;
+
+		private Types rsType;
+
+		private JDBCObjectCursor(Connection conn, List<String> queries,
+				List<Types> types) {
+			this.conn = conn;
+			this.queries = queries;
+			this.types = types;
+		}
+
+		public ObjectInfo next() throws IOException {
+			if (conn == null) {
+				return null;
+			}
+
+			try {
+				for (;;) {
+					if (rs == null) {
+						if (queries.isEmpty()) {
+							close();
+							return null;
+						}
+
+						if (stmt == null) {
+							stmt = conn.createStatement(
+									ResultSet.TYPE_FORWARD_ONLY,
+									ResultSet.CONCUR_READ_ONLY);
+							stmt.setFetchSize(fetchSize);
+						}
+
+						rs = stmt.executeQuery(queries.remove(0));
+						rsType = types.remove(0);
+					}
+
+					if (rs.next()) {
+						return new ObjectInfo(rs.getString(1), rsType,
+								rs.getLong(2));
+					}
+
+					rs.close();
+					rs = null;
+				}
+			} catch (SQLException e) {
+				close();
+
+				throw (IOException) new IOException().initCause(e);
+			}
+		}
+
+		public void close() throws IOException {
+			if (rs != null) {
 				try {
-					conn.rollback();
+					rs.close();
 				} catch (Throwable t) {
 					// do nothing
 				}
+
+				rs = null;
 			}
 
-			throw (IOException) new IOException().initCause(e);
-		} finally {
 			if (stmt != null) {
 				try {
 					stmt.close();
 				} catch (Throwable t) {
 					// do nothing
 				}
+
+				stmt = null;
 			}
 
 			if (conn != null) {
+				try {
+					conn.commit();
+				} catch (Throwable t) {
+					// do nothing
+				}
+
 				try {
 					conn.close();
 				} catch (Throwable t) {
 					// do nothing
 				}
+
+				conn = null;
 			}
 		}
 	}
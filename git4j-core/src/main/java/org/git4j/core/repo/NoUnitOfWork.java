@@ -0,0 +1,23 @@
+package org.git4j.core.repo;
+
+import java.io.IOException;
+
+/**
+ * Unit of work of repositories applying each call on its own.
+ */
+final class NoUnitOfWork implements UnitOfWork {
+
+	static final UnitOfWork INSTANCE = new NoUnitOfWork();
+
+	private NoUnitOfWork() {
+		// singleton
+	}
+
+	public void commit() throws IOException {
+		// each call has already been applied
+	}
+
+	public void close() throws IOException {
+		// nothing to release
+	}
+}
@@ -0,0 +1,64 @@
+package org.git4j.core.repo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads serialized objects for parsing. Objects up to the map threshold are
+ * read into a direct buffer reused by the calling thread, larger objects are
+ * mapped, so neither is copied before it reaches the parser.
+ */
+class ObjectBuffers {
+
+	private static final ThreadLocal<ByteBuffer> buffers;
+
+	static {
+		buffers = new ThreadLocal<ByteBuffer>();
+	}
+
+	private ObjectBuffers() {
+		// static only
+	}
+
+	/**
+	 * read bytes of a file.
+	 * 
+	 * @return buffer holding the bytes, valid until the calling thread reads
+	 *         again
+	 */
+	static ByteBuffer read(FileChannel channel, long position, long length,
+			int mapThreshold) throws IOException {
+
+		if (length > mapThreshold) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+		}
+
+		ByteBuffer bb = buffers.get();
+
+		if ((bb == null) || (bb.capacity() < length)) {
+			// grown in steps, at most to the map threshold
+			int capacity = 8192;
+
+			while (capacity < length) {
+				capacity <<= 1;
+			}
+
+			bb = ByteBuffer.allocateDirect(Math.min(capacity, mapThreshold));
+			buffers.set(bb);
+		}
+
+		bb.clear();
+		bb.limit((int) length);
+
+		while (bb.hasRemaining()) {
+			if (channel.read(bb, position + bb.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+
+		bb.flip();
+		return bb;
+	}
+}
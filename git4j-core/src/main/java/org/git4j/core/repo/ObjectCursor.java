@@ -0,0 +1,31 @@
+package org.git4j.core.repo;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.git4j.core.objs.ObjectInfo;
+
+/**
+ * Forward only cursor over objects stored in a repository. Objects are read
+ * from the underlying storage as the cursor advances, the complete list is
+ * never held in memory. A cursor MUST be closed after use.
+ */
+public interface ObjectCursor extends Closeable {
+
+	/**
+	 * advance the cursor.
+	 * 
+	 * @return next object, <code>null</code> if there are no more objects
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	ObjectInfo next() throws IOException;
+
+	/**
+	 * release resources held by this cursor.
+	 * 
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,621 @@
+package org.git4j.core.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.ObjectInfo;
+import org.git4j.core.objs.Types;
+import org.git4j.core.util.ByteBufferInputStream;
+import org.git4j.core.util.IdSet;
+
+/**
+ * Encoded objects appended to direct buffers ("slabs") and decoded on every
+ * read, unless they are in a small LRU cache. Records are found through an
+ * open addressing table of id fingerprints, record locations and store
+ * times, three arrays whatever the number of objects, and the id stored in
+ * the record resolves
+ * fingerprint collisions. Once removed objects take half of the slabs, the
+ * live records are copied to new slabs, unless a cursor is open.
+ */
+class OffHeapObjects implements EncodedObjects {
+
+	// record: length (int), type (byte), id length (short), id, object
+	private static final int HEADER = 7;
+
+	private static final byte COMMIT = 1;
+
+	private static final byte BLOB = 2;
+
+	private static final String UTF8 = "UTF-8";
+
+	private final int slabSize;
+
+	private final ReadWriteLock lock;
+
+	// LRU of decoded objects, null if disabled
+	private final Map<String, Object> cache;
+
+	// write position of each slab is its buffer position
+	private List<ByteBuffer> slabs;
+
+	// fingerprint 0 marks an empty slot
+	private long[] fingerprints;
+
+	// slab index << 32 | offset, -1 once the object is removed
+	private long[] locations;
+
+	// when each object was last stored
+	private long[] stored;
+
+	// slots taken, including removed objects
+	private int used;
+
+	// bytes of records appended to the slabs, of removed ones among them
+	private long appendedBytes;
+
+	private long deadBytes;
+
+	// cursors not closed, their positions would not survive a compaction
+	private final AtomicInteger openCursors;
+
+	OffHeapObjects(int slabSize, final int cacheSize) {
+		if (slabSize <= 0) {
+			throw new IllegalArgumentException("slab size MUST be positive");
+		}
+
+		if (cacheSize < 0) {
+			throw new IllegalArgumentException(
+					"cache size MUST NOT be negative");
+		}
+
+		this.slabSize = slabSize;
+
+		lock = new ReentrantReadWriteLock();
+
+		openCursors = new AtomicInteger();
+
+		if (cacheSize > 0) {
+			cache = Collections.synchronizedMap(new LinkedHashMap<String, Object>(
+					16, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, Object> eldest) {
+					return size() > cacheSize;
+				}
+			});
+		} else {
+			cache = null;
+		}
+
+		reset();
+	}
+
+	private void reset() {
+		slabs = new ArrayList<ByteBuffer>();
+
+		fingerprints = new long[1024];
+		locations = new long[1024];
+		stored = new long[1024];
+		used = 0;
+
+		appendedBytes = 0;
+		deadBytes = 0;
+	}
+
+	/**
+	 * @return bytes allocated to slabs
+	 */
+	long getAllocatedBytes() {
+		lock.readLock().lock();
+
+		try {
+			long allocated = 0;
+
+			for (ByteBuffer slab : slabs) {
+				allocated += slab.capacity();
+			}
+
+			return allocated;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.EncodedObjects#put(java.lang.String,
+	 * java.lang.Object)
+	 */
+	public void put(String id, Object obj) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		byte type;
+
+		if (obj instanceof Commit) {
+			((Commit) obj).writeObject(out);
+			type = COMMIT;
+		} else {
+			((Blob) obj).writeObject(out);
+			type = BLOB;
+		}
+
+		byte[] idBytes = id.getBytes(UTF8);
+		long fp = IdSet.fingerprint(id);
+
+		lock.writeLock().lock();
+
+		try {
+			int slot = slotOf(fp, idBytes);
+
+			if (slot >= 0) {
+				// stored again
+				stored[slot] = System.currentTimeMillis();
+				return;
+			}
+
+			int length = HEADER + idBytes.length + out.size();
+
+			ByteBuffer slab = slabs.isEmpty() ? null : slabs
+					.get(slabs.size() - 1);
+
+			if ((slab == null) || (slab.remaining() < length)) {
+				// a record larger than a slab gets a buffer of its own
+				slab = ByteBuffer.allocateDirect(Math.max(slabSize, length));
+				slabs.add(slab);
+			}
+
+			long location = ((long) (slabs.size() - 1) << 32)
+					| slab.position();
+
+			slab.putInt(length);
+			slab.put(type);
+			slab.putShort((short) idBytes.length);
+			slab.put(idBytes);
+			slab.put(out.toByteArray());
+
+			insert(fp, location);
+
+			appendedBytes += length;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.EncodedObjects#contains(java.lang.String)
+	 */
+	public boolean contains(String id) throws IOException {
+		byte[] idBytes = id.getBytes(UTF8);
+		long fp = IdSet.fingerprint(id);
+
+		lock.readLock().lock();
+
+		try {
+			return slotOf(fp, idBytes) >= 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.EncodedObjects#get(java.lang.String)
+	 */
+	public Object get(String id) throws IOException {
+		if (cache != null) {
+			Object obj = cache.get(id);
+
+			if (obj != null) {
+				return obj;
+			}
+		}
+
+		byte[] idBytes = id.getBytes(UTF8);
+		long fp = IdSet.fingerprint(id);
+
+		ByteBuffer record;
+		byte type;
+
+		lock.readLock().lock();
+
+		try {
+			int slot = slotOf(fp, idBytes);
+			if (slot < 0) {
+				return null;
+			}
+
+			long location = locations[slot];
+
+			ByteBuffer slab = slabs.get((int) (location >>> 32));
+			int offset = (int) location;
+
+			type = slab.get(offset + 4);
+
+			// a view of the object, slabs are only appended to and a
+			// compaction copies records to new slabs
+			record = slab.duplicate();
+			record.limit(offset + slab.getInt(offset));
+			record.position(offset + HEADER + idBytes.length);
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		InputStream in = new ByteBufferInputStream(record);
+
+		Object obj;
+
+		try {
+			if (type == COMMIT) {
+				obj = new Commit().readObject(in);
+			} else {
+				obj = new Blob().readObject(in);
+			}
+		} catch (ClassNotFoundException e) {
+			throw (IOException) new IOException("unable to read object "
+					+ id).initCause(e);
+		}
+
+		if (cache != null) {
+			lock.readLock().lock();
+
+			try {
+				// removed meanwhile, remove() has already dropped it
+				if (slotOf(fp, idBytes) >= 0) {
+					cache.put(id, obj);
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		return obj;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.EncodedObjects#remove(java.lang.String, long)
+	 */
+	public long remove(String id, long storedBefore) throws IOException {
+		byte[] idBytes = id.getBytes(UTF8);
+		long fp = IdSet.fingerprint(id);
+
+		long size;
+
+		lock.writeLock().lock();
+
+		try {
+			int slot = slotOf(fp, idBytes);
+			if ((slot < 0) || (stored[slot] >= storedBefore)) {
+				return -1;
+			}
+
+			long location = locations[slot];
+			ByteBuffer slab = slabs.get((int) (location >>> 32));
+
+			int length = slab.getInt((int) location);
+			size = length - HEADER - idBytes.length;
+
+			// probing goes on past a removed object
+			locations[slot] = -1;
+
+			// under the lock, so a concurrent get() does not cache it again
+			if (cache != null) {
+				cache.remove(id);
+			}
+
+			deadBytes += length;
+
+			compactIfWasteful();
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		return size;
+	}
+
+	/**
+	 * @return cursor over records in the order they were appended, skipping
+	 *         removed objects
+	 */
+	public ObjectCursor cursor(final Types type) {
+		openCursors.incrementAndGet();
+
+		return new ObjectCursor() {
+
+			private int slabIndex;
+
+			private int offset;
+
+			private boolean closed;
+
+			public ObjectInfo next() throws IOException {
+				if (closed) {
+					return null;
+				}
+
+				lock.readLock().lock();
+
+				try {
+					while (slabIndex < slabs.size()) {
+						ByteBuffer slab = slabs.get(slabIndex);
+
+						if (offset >= slab.position()) {
+							++slabIndex;
+							offset = 0;
+							continue;
+						}
+
+						long location = ((long) slabIndex << 32) | offset;
+
+						int length = slab.getInt(offset);
+						Types otype = slab.get(offset + 4) == COMMIT ? Types.COMMIT
+								: Types.BLOB;
+
+						byte[] idBytes = new byte[slab.getShort(offset + 5)];
+
+						for (int i = 0; i < idBytes.length; ++i) {
+							idBytes[i] = slab.get(offset + HEADER + i);
+						}
+
+						offset += length;
+
+						if ((type != null) && !type.equals(otype)) {
+							continue;
+						}
+
+						String id = new String(idBytes, UTF8);
+
+						int slot = slotOf(IdSet.fingerprint(id), idBytes);
+
+						if ((slot >= 0) && (locations[slot] == location)) {
+							return new ObjectInfo(id, otype, length - HEADER
+									- idBytes.length);
+						}
+					}
+				} finally {
+					lock.readLock().unlock();
+				}
+
+				// exhausted, as good as closed
+				close();
+
+				return null;
+			}
+
+			public void close() throws IOException {
+				if (closed) {
+					return;
+				}
+
+				closed = true;
+
+				if (openCursors.decrementAndGet() == 0) {
+					lock.writeLock().lock();
+
+					try {
+						compactIfWasteful();
+					} finally {
+						lock.writeLock().unlock();
+					}
+				}
+			}
+		};
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.EncodedObjects#clear()
+	 */
+	public void clear() {
+		lock.writeLock().lock();
+
+		try {
+			reset();
+
+			if (cache != null) {
+				cache.clear();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.EncodedObjects#close()
+	 */
+	public void close() {
+		// slabs are freed once collected
+		clear();
+	}
+
+	/**
+	 * copy the live records to new slabs once removed ones take half of the
+	 * slabs, at least a slab. MUST hold the write lock.
+	 */
+	private void compactIfWasteful() throws IOException {
+		if ((deadBytes < slabSize) || ((deadBytes << 1) < appendedBytes)
+				|| (openCursors.get() > 0)) {
+			return;
+		}
+
+		List<ByteBuffer> compacted = new ArrayList<ByteBuffer>();
+		ByteBuffer target = null;
+
+		// slots still resolve through the old slabs while copying
+		long[] newLocations = locations.clone();
+
+		long appended = 0;
+
+		for (int slabIndex = 0, n = slabs.size(); slabIndex < n; ++slabIndex) {
+			ByteBuffer slab = slabs.get(slabIndex);
+
+			for (int offset = 0, end = slab.position(); offset < end;) {
+				int length = slab.getInt(offset);
+
+				byte[] idBytes = new byte[slab.getShort(offset + 5)];
+
+				for (int i = 0; i < idBytes.length; ++i) {
+					idBytes[i] = slab.get(offset + HEADER + i);
+				}
+
+				long location = ((long) slabIndex << 32) | offset;
+
+				int slot = slotOf(IdSet.fingerprint(new String(idBytes, UTF8)),
+						idBytes);
+
+				if ((slot >= 0) && (locations[slot] == location)) {
+					if ((target == null) || (target.remaining() < length)) {
+						target = ByteBuffer.allocateDirect(Math.max(slabSize,
+								length));
+						compacted.add(target);
+					}
+
+					newLocations[slot] = ((long) (compacted.size() - 1) << 32)
+							| target.position();
+
+					ByteBuffer record = slab.duplicate();
+					record.limit(offset + length);
+					record.position(offset);
+
+					target.put(record);
+
+					appended += length;
+				}
+
+				offset += length;
+			}
+		}
+
+		// records keep their order, cursors opened later see them once
+		slabs = compacted;
+		locations = newLocations;
+
+		appendedBytes = appended;
+		deadBytes = 0;
+	}
+
+	/**
+	 * @return slot of a stored object, <code>-1</code> if not found
+	 */
+	private int slotOf(long fp, byte[] idBytes) {
+		int mask = fingerprints.length - 1;
+
+		for (int i = (int) fp & mask; fingerprints[i] != 0; i = (i + 1) & mask) {
+			if ((fingerprints[i] == fp) && (locations[i] >= 0)
+					&& matches(locations[i], idBytes)) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private boolean matches(long location, byte[] idBytes) {
+		ByteBuffer slab = slabs.get((int) (location >>> 32));
+		int offset = (int) location;
+
+		if (slab.getShort(offset + 5) != idBytes.length) {
+			return false;
+		}
+
+		for (int i = 0; i < idBytes.length; ++i) {
+			if (slab.get(offset + HEADER + i) != idBytes[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * add a location, the object MUST NOT be stored.
+	 */
+	private void insert(long fp, long location) {
+		if (((used + 1) << 1) > fingerprints.length) {
+			rehash();
+		}
+
+		int mask = fingerprints.length - 1;
+		int i = (int) fp & mask;
+
+		// first free slot, a removed object's or an empty one
+		while ((fingerprints[i] != 0) && (locations[i] >= 0)) {
+			i = (i + 1) & mask;
+		}
+
+		if (fingerprints[i] == 0) {
+			++used;
+		}
+
+		fingerprints[i] = fp;
+		locations[i] = location;
+		stored[i] = System.currentTimeMillis();
+	}
+
+	/**
+	 * drop removed objects, growing the table if it is still half full.
+	 */
+	private void rehash() {
+		int live = 0;
+
+		for (int i = 0, len = locations.length; i < len; ++i) {
+			if ((fingerprints[i] != 0) && (locations[i] >= 0)) {
+				++live;
+			}
+		}
+
+		int capacity = fingerprints.length;
+
+		while (((live + 1) << 2) > capacity) {
+			capacity <<= 1;
+		}
+
+		long[] newFingerprints = new long[capacity];
+		long[] newLocations = new long[capacity];
+		long[] newStored = new long[capacity];
+
+		int mask = capacity - 1;
+
+		for (int i = 0, len = fingerprints.length; i < len; ++i) {
+			if ((fingerprints[i] != 0) && (locations[i] >= 0)) {
+				int j = (int) fingerprints[i] & mask;
+
+				while (newFingerprints[j] != 0) {
+					j = (j + 1) & mask;
+				}
+
+				newFingerprints[j] = fingerprints[i];
+				newLocations[j] = locations[i];
+				newStored[j] = stored[i];
+			}
+		}
+
+		fingerprints = newFingerprints;
+		locations = newLocations;
+		stored = newStored;
+		used = live;
+	}
+}
@@ -0,0 +1,760 @@
+package org.git4j.core.repo;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.Types;
+import org.git4j.core.util.ByteBufferInputStream;
+
+/**
+ * Read only pack of objects used by {@link FileRepository}.
+ * <p>
+ * A pack is a pair of files, and a deletion file once an object has been
+ * removed:
+ * <ul>
+ * <li><code>pack-&lt;name&gt;.pack</code>: magic, version and the serialized
+ * objects one after another, exactly as they are stored in loose files</li>
+ * <li><code>pack-&lt;name&gt;.idx</code>: magic, version, number of objects,
+ * id width and one fixed size record per object (id padded with zeros, type,
+ * offset and length), sorted by id</li>
+ * <li><code>pack-&lt;name&gt;.del</code>: ids of removed objects, one per
+ * line</li>
+ * </ul>
+ * The index is memory mapped and binary searched, objects are read with a
+ * positional read on the pack file channel. The index file is written last, a
+ * pack without index is incomplete and ignored. Removing an object appends its
+ * id to the deletion file, the pack itself is only rewritten by
+ * {@link FileRepository} once enough of it is dead.
+ */
+class PackFile {
+
+	static final String PACK_SUFFIX = ".pack";
+
+	static final String IDX_SUFFIX = ".idx";
+
+	static final String DEL_SUFFIX = ".del";
+
+	private static final int PACK_MAGIC = 0x5041434b; // PACK
+
+	private static final int IDX_MAGIC = 0x50494458; // PIDX
+
+	private static final int VERSION = 1;
+
+	private static final int PACK_HEADER = 8;
+
+	private static final int IDX_HEADER = 16;
+
+	private static final byte TYPE_COMMIT = 1;
+
+	private static final byte TYPE_BLOB = 2;
+
+	private File packFile;
+
+	private File idxFile;
+
+	private File delFile;
+
+	private RandomAccessFile raf;
+
+	private FileChannel channel;
+
+	private MappedByteBuffer idx;
+
+	private int count;
+
+	private int idWidth;
+
+	private int recordSize;
+
+	// one bit per index, set once the object is removed
+	private AtomicLongArray deleted;
+
+	private AtomicInteger deletedCount;
+
+	// bytes of the deletion file read so far
+	private long delLength;
+
+	private PackFile(File idxFile) {
+		String name = idxFile.getName();
+		String base = name.substring(0, name.length() - IDX_SUFFIX.length());
+
+		this.idxFile = idxFile;
+		this.packFile = new File(idxFile.getParentFile(), base + PACK_SUFFIX);
+		this.delFile = new File(idxFile.getParentFile(), base + DEL_SUFFIX);
+	}
+
+	/**
+	 * open a pack by its index file.
+	 */
+	static PackFile open(File idxFile) throws IOException {
+		PackFile pf = new PackFile(idxFile);
+
+		RandomAccessFile in = new RandomAccessFile(idxFile, "r");
+
+		try {
+			pf.idx = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					in.length());
+		} finally {
+			try {
+				in.close();
+			} catch (Throwable t) {
+				// do nothing
+			}
+		}
+
+		if ((pf.idx.capacity() < IDX_HEADER)
+				|| (pf.idx.getInt(0) != IDX_MAGIC)
+				|| (pf.idx.getInt(4) != VERSION)) {
+			throw new IOException("invalid pack index " + idxFile);
+		}
+
+		pf.count = pf.idx.getInt(8);
+		pf.idWidth = pf.idx.getInt(12);
+		pf.recordSize = pf.idWidth + 1 + 8 + 4;
+
+		long expected = IDX_HEADER + ((long) pf.count * pf.recordSize);
+
+		if (pf.idx.capacity() != expected) {
+			throw new IOException("truncated pack index " + idxFile);
+		}
+
+		pf.raf = new RandomAccessFile(pf.packFile, "r");
+		pf.channel = pf.raf.getChannel();
+
+		pf.deleted = new AtomicLongArray((pf.count + 63) >>> 6);
+		pf.deletedCount = new AtomicInteger();
+
+		pf.refreshDeleted();
+
+		return pf;
+	}
+
+	private static class Entry {
+
+		private byte[] id;
+
+		private byte type;
+
+		private long offset;
+
+		private int length;
+	}
+
+	private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+
+		public int compare(Entry a, Entry b) {
+			return compareIds(a.id, b.id);
+		}
+	};
+
+	private static int compareIds(byte[] a, byte[] b) {
+		int len = Math.min(a.length, b.length);
+
+		for (int i = 0; i < len; ++i) {
+			int c = (a[i] & 0xff) - (b[i] & 0xff);
+
+			if (c != 0) {
+				return c;
+			}
+		}
+
+		return a.length - b.length;
+	}
+
+	/**
+	 * write objects (COMMITs and/or BLOBs) as a new pack into a directory.
+	 *
+	 * @param sync
+	 *            <code>true</code> to sync the pack before it becomes visible
+	 * @return the new pack, opened
+	 */
+	static PackFile write(File dir, Collection<?> objects, boolean sync)
+			throws IOException {
+		Writer writer = new Writer(dir, sync);
+
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+			for (Object o : objects) {
+				buf.reset();
+
+				if (o instanceof Commit) {
+					((Commit) o).writeObject(buf);
+					writer.add(((Commit) o).getId(), Types.COMMIT, buf);
+				} else if (o instanceof Blob) {
+					((Blob) o).writeObject(buf);
+					writer.add(((Blob) o).getId(), Types.BLOB, buf);
+				} else {
+					throw new IllegalArgumentException(
+							"object MUST be a COMMIT or BLOB");
+				}
+			}
+
+			return writer.finish();
+		} finally {
+			writer.abort();
+		}
+	}
+
+	/**
+	 * Writes a new pack. Objects are appended to the pack file as they are
+	 * added, the index is written by {@link #finish()}.
+	 */
+	static class Writer {
+
+		private File packFile;
+
+		private File idxFile;
+
+		private DataOutputStream out;
+
+		private FileOutputStream fos;
+
+		private boolean sync;
+
+		private List<Entry> entries;
+
+		private Set<String> ids;
+
+		private long offset;
+
+		private int idWidth;
+
+		private boolean finished;
+
+		Writer(File dir) throws IOException {
+			this(dir, false);
+		}
+
+		/**
+		 * @param sync
+		 *            <code>true</code> to sync the pack and its index before
+		 *            the pack becomes visible
+		 */
+		Writer(File dir, boolean sync) throws IOException {
+			if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+				throw new IOException("unable to create directory "
+						+ dir.getAbsolutePath());
+			}
+
+			String name = "pack-" + UUID.randomUUID();
+
+			packFile = new File(dir, name + PACK_SUFFIX);
+			idxFile = new File(dir, name + IDX_SUFFIX);
+
+			this.sync = sync;
+
+			entries = new ArrayList<Entry>();
+			ids = new HashSet<String>();
+
+			fos = new FileOutputStream(packFile);
+			out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+
+			out.writeInt(PACK_MAGIC);
+			out.writeInt(VERSION);
+
+			offset = PACK_HEADER;
+		}
+
+		/**
+		 * @return <code>false</code> if the object has already been added
+		 */
+		boolean add(String id, Types type, ByteArrayOutputStream encoded)
+				throws IOException {
+			if (!ids.add(id)) {
+				return false;
+			}
+
+			Entry e = entry(id, type, encoded.size());
+			encoded.writeTo(out);
+
+			offset += e.length;
+			return true;
+		}
+
+		/**
+		 * @return <code>false</code> if the object has already been added
+		 */
+		boolean add(String id, Types type, byte[] encoded) throws IOException {
+			if (!ids.add(id)) {
+				return false;
+			}
+
+			Entry e = entry(id, type, encoded.length);
+			out.write(encoded);
+
+			offset += e.length;
+			return true;
+		}
+
+		private Entry entry(String id, Types type, int length)
+				throws IOException {
+			Entry e = new Entry();
+
+			e.id = id.getBytes("UTF-8");
+			e.type = Types.COMMIT.equals(type) ? TYPE_COMMIT : TYPE_BLOB;
+			e.offset = offset;
+			e.length = length;
+
+			idWidth = Math.max(idWidth, e.id.length);
+			entries.add(e);
+
+			return e;
+		}
+
+		/**
+		 * @return number of objects added
+		 */
+		int size() {
+			return entries.size();
+		}
+
+		/**
+		 * write index and open the new pack.
+		 */
+		PackFile finish() throws IOException {
+			close();
+
+			Entry[] sorted = entries.toArray(new Entry[entries.size()]);
+			Arrays.sort(sorted, ENTRY_ORDER);
+
+			File idxTemp = new File(idxFile.getPath() + ".tmp");
+
+			fos = new FileOutputStream(idxTemp);
+			out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+
+			try {
+				out.writeInt(IDX_MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(sorted.length);
+				out.writeInt(idWidth);
+
+				for (int i = 0; i < sorted.length; ++i) {
+					Entry e = sorted[i];
+
+					out.write(e.id);
+
+					for (int j = e.id.length; j < idWidth; ++j) {
+						out.write(0);
+					}
+
+					out.writeByte(e.type);
+					out.writeLong(e.offset);
+					out.writeInt(e.length);
+				}
+
+				close();
+
+				// the pack becomes visible once its index exists
+				if (!idxTemp.renameTo(idxFile)) {
+					throw new IOException("unable to rename " + idxTemp
+							+ " to " + idxFile);
+				}
+			} finally {
+				if (idxTemp.exists() && !idxTemp.delete()) {
+					idxTemp.deleteOnExit();
+				}
+			}
+
+			PackFile pf = open(idxFile);
+			finished = true;
+
+			return pf;
+		}
+
+		private void close() throws IOException {
+			out.flush();
+
+			if (sync) {
+				fos.getFD().sync();
+			}
+
+			out.close();
+		}
+
+		/**
+		 * discard the pack if it is not finished.
+		 */
+		void abort() {
+			if (finished) {
+				return;
+			}
+
+			try {
+				out.close();
+			} catch (Throwable t) {
+				// do nothing
+			}
+
+			idxFile.delete();
+
+			if (packFile.exists() && !packFile.delete()) {
+				packFile.deleteOnExit();
+			}
+		}
+	}
+
+	File getPackFile() {
+		return packFile;
+	}
+
+	File getIdxFile() {
+		return idxFile;
+	}
+
+	/**
+	 * @return number of objects in this pack
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @return size of pack file in bytes
+	 */
+	long length() {
+		return packFile.length();
+	}
+
+	private int compareAt(int index, byte[] id) {
+		int base = IDX_HEADER + (index * recordSize);
+		int len = Math.min(id.length, idWidth);
+
+		for (int i = 0; i < len; ++i) {
+			int c = (idx.get(base + i) & 0xff) - (id[i] & 0xff);
+
+			if (c != 0) {
+				return c;
+			}
+		}
+
+		if (id.length > idWidth) {
+			return -1;
+		}
+
+		// padding, a shorter id sorts first
+		return (id.length < idWidth) && (idx.get(base + id.length) != 0) ? 1
+				: 0;
+	}
+
+	/**
+	 * @return index of object, <code>-1</code> if not found or removed
+	 */
+	int indexOf(String id) throws IOException {
+		int index = search(id);
+
+		return (index >= 0) && !isDeleted(index) ? index : -1;
+	}
+
+	/**
+	 * @return index of object, removed or not, <code>-1</code> if not found
+	 */
+	private int search(String id) throws IOException {
+		byte[] bid = id.getBytes("UTF-8");
+
+		int low = 0;
+		int high = count - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int c = compareAt(mid, bid);
+
+			if (c < 0) {
+				low = mid + 1;
+			} else if (c > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+
+		return -1;
+	}
+
+	boolean contains(String id) throws IOException {
+		return indexOf(id) >= 0;
+	}
+
+	boolean isDeleted(int index) {
+		return (deleted.get(index >>> 6) & (1L << index)) != 0;
+	}
+
+	/**
+	 * @return number of removed objects
+	 */
+	int deletedCount() {
+		return deletedCount.get();
+	}
+
+	private void setDeleted(int index) {
+		long bit = 1L << index;
+
+		while (true) {
+			long bits = deleted.get(index >>> 6);
+
+			if ((bits & bit) != 0) {
+				return;
+			}
+
+			if (deleted.compareAndSet(index >>> 6, bits, bits | bit)) {
+				deletedCount.incrementAndGet();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * remove an object by appending its id to the deletion file.
+	 * 
+	 * @param sync
+	 *            <code>true</code> to sync the deletion file
+	 */
+	synchronized void markDeleted(int index, boolean sync) throws IOException {
+		if (isDeleted(index)) {
+			return;
+		}
+
+		FileOutputStream out = new FileOutputStream(delFile, true);
+
+		try {
+			out.write((idAt(index) + "\n").getBytes("UTF-8"));
+
+			if (sync) {
+				out.getFD().sync();
+			}
+		} finally {
+			try {
+				out.close();
+			} catch (Throwable t) {
+				// do nothing
+			}
+		}
+
+		// the line is read again by the next refresh, which is harmless
+		setDeleted(index);
+	}
+
+	/**
+	 * pick up objects removed by other processes.
+	 */
+	synchronized void refreshDeleted() throws IOException {
+		long length = delFile.length();
+
+		if (length <= delLength) {
+			return;
+		}
+
+		RandomAccessFile in;
+
+		try {
+			in = new RandomAccessFile(delFile, "r");
+		} catch (FileNotFoundException e) {
+			return;
+		}
+
+		byte[] bytes = new byte[(int) (length - delLength)];
+
+		try {
+			in.seek(delLength);
+			in.readFully(bytes);
+		} finally {
+			try {
+				in.close();
+			} catch (Throwable t) {
+				// do nothing
+			}
+		}
+
+		// complete lines only, another process may be appending
+		int end = bytes.length;
+		while ((end > 0) && (bytes[end - 1] != '\n')) {
+			--end;
+		}
+
+		String[] ids = new String(bytes, 0, end, "UTF-8").split("\n");
+
+		for (int i = 0; i < ids.length; ++i) {
+			int index = ids[i].length() == 0 ? -1 : search(ids[i]);
+
+			if (index >= 0) {
+				setDeleted(index);
+			}
+		}
+
+		delLength += end;
+	}
+
+	/**
+	 * copy the objects not removed into a new pack.
+	 */
+	void copyTo(Writer writer) throws IOException {
+		for (int i = 0; i < count; ++i) {
+			if (!isDeleted(i)) {
+				writer.add(idAt(i), typeAt(i), readAt(i));
+			}
+		}
+	}
+
+	String idAt(int index) throws IOException {
+		int base = IDX_HEADER + (index * recordSize);
+		int len = 0;
+
+		while ((len < idWidth) && (idx.get(base + len) != 0)) {
+			++len;
+		}
+
+		byte[] bid = new byte[len];
+
+		for (int i = 0; i < len; ++i) {
+			bid[i] = idx.get(base + i);
+		}
+
+		return new String(bid, "UTF-8");
+	}
+
+	Types typeAt(int index) {
+		byte type = idx.get(IDX_HEADER + (index * recordSize) + idWidth);
+
+		return type == TYPE_COMMIT ? Types.COMMIT : Types.BLOB;
+	}
+
+	private long offsetAt(int index) {
+		return idx.getLong(IDX_HEADER + (index * recordSize) + idWidth + 1);
+	}
+
+	int lengthAt(int index) {
+		return idx.getInt(IDX_HEADER + (index * recordSize) + idWidth + 9);
+	}
+
+	/**
+	 * read serialized object at index.
+	 */
+	byte[] readAt(int index) throws IOException {
+		long offset = offsetAt(index);
+		int length = lengthAt(index);
+
+		ByteBuffer bb = ByteBuffer.allocate(length);
+
+		while (bb.hasRemaining()) {
+			int n = channel.read(bb, offset + bb.position());
+
+			if (n < 0) {
+				throw new IOException("truncated pack " + packFile);
+			}
+		}
+
+		return bb.array();
+	}
+
+	/**
+	 * load an object.
+	 *
+	 * @param mapThreshold
+	 *            size above which the object is mapped instead of read
+	 * @return the object, <code>null</code> if not found in this pack
+	 */
+	<T> T load(Class<T> type, String id, int mapThreshold) throws IOException {
+		int index = indexOf(id);
+		if (index < 0) {
+			return null;
+		}
+
+		return load(type, index, mapThreshold);
+	}
+
+	<T> T load(Class<T> type, int index, int mapThreshold) throws IOException {
+		Types otype = typeAt(index);
+
+		boolean commit = Commit.class.isAssignableFrom(type)
+				&& Types.COMMIT.equals(otype);
+		boolean blob = Blob.class.isAssignableFrom(type)
+				&& Types.BLOB.equals(otype);
+
+		if (!commit && !blob) {
+			return null;
+		}
+
+		InputStream in;
+
+		try {
+			in = new ByteBufferInputStream(ObjectBuffers.read(channel,
+					offsetAt(index), lengthAt(index), mapThreshold));
+		} catch (EOFException e) {
+			throw (IOException) new IOException("truncated pack " + packFile)
+					.initCause(e);
+		}
+
+		Object o;
+
+		try {
+			if (commit) {
+				o = new Commit().readObject(in);
+			} else {
+				o = new Blob().readObject(in);
+			}
+		} catch (ClassNotFoundException e) {
+			throw (IOException) new IOException("unable to read object "
+					+ idAt(index) + " from " + packFile).initCause(e);
+		}
+
+		return type.cast(o);
+	}
+
+	void close() {
+		try {
+			raf.close();
+		} catch (Throwable t) {
+			// do nothing
+		}
+	}
+
+	/**
+	 * close and delete this pack. The mapped index is released by the garbage
+	 * collector, until then the index file may not be deletable on some
+	 * platforms.
+	 */
+	void delete() {
+		close();
+
+		// index first, the pack is no longer visible
+		if (!idxFile.delete()) {
+			idxFile.deleteOnExit();
+		}
+
+		if (!packFile.delete()) {
+			packFile.deleteOnExit();
+		}
+
+		if (delFile.exists() && !delFile.delete()) {
+			delFile.deleteOnExit();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return packFile.getName() + " (" + count + " objects)";
+	}
+}
@@ -0,0 +1,52 @@
+package org.git4j.core.repo;
+
+/**
+ * Movement of a local or remote branch head.
+ */
+public class RefEvent {
+
+	private boolean remote;
+
+	private String branch;
+
+	private String oldHeadRef;
+
+	private String newHeadRef;
+
+	public RefEvent(boolean remote, String branch, String oldHeadRef,
+			String newHeadRef) {
+		this.remote = remote;
+		this.branch = branch;
+		this.oldHeadRef = oldHeadRef;
+		this.newHeadRef = newHeadRef;
+	}
+
+	public boolean isRemote() {
+		return remote;
+	}
+
+	public String getBranch() {
+		return branch;
+	}
+
+	/**
+	 * @return previous head, <code>null</code> if the branch has been created
+	 *         or the previous head is unknown
+	 */
+	public String getOldHeadRef() {
+		return oldHeadRef;
+	}
+
+	/**
+	 * @return new head, <code>null</code> if the branch has been removed
+	 */
+	public String getNewHeadRef() {
+		return newHeadRef;
+	}
+
+	@Override
+	public String toString() {
+		return (remote ? "remote " : "local ") + branch + " " + oldHeadRef
+				+ " -> " + newHeadRef;
+	}
+}
@@ -0,0 +1,428 @@
+package org.git4j.core.repo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.git4j.core.logging.Logger;
+import org.git4j.core.logging.LoggerFactory;
+import org.git4j.core.util.ObjectUtils;
+
+/**
+ * Delivers ref changes of a repository to its {@link RefListener}s.
+ * <p>
+ * Changes made through the repository are published right after a successful
+ * update. Changes made by other processes are detected by an optional
+ * {@link Poller}, which is run every poll interval by the delivery thread. The
+ * delivery thread only runs while there are listeners.
+ * <p>
+ * Pending events are kept per branch: a branch moved several times before its
+ * event is delivered produces a single event from the first old head to the
+ * last new head. The number of pending branches is bounded, events above the
+ * limit are dropped and counted.
+ */
+public class RefEventDispatcher {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(RefEventDispatcher.class);
+
+	/**
+	 * Reads current refs of a repository for
+	 * {@link RefEventDispatcher#observed(Map, Map, long)}.
+	 */
+	public static interface Poller {
+
+		void poll(RefEventDispatcher dispatcher) throws IOException;
+	}
+
+	private static class Known {
+
+		private String headRef;
+
+		private long sequence;
+
+		private Known(String headRef, long sequence) {
+			this.headRef = headRef;
+			this.sequence = sequence;
+		}
+	}
+
+	private String name;
+
+	private List<RefListener> listeners;
+
+	private Object lock;
+
+	private LinkedHashMap<String, RefEvent> pending;
+
+	private Map<String, Known> known;
+
+	private boolean seeded;
+
+	private long sequence;
+
+	private int capacity;
+
+	private long dropped;
+
+	private Poller poller;
+
+	private long pollInterval;
+
+	private Thread thread;
+
+	public RefEventDispatcher(String name) {
+		this.name = name;
+
+		listeners = new CopyOnWriteArrayList<RefListener>();
+		lock = new Object();
+
+		pending = new LinkedHashMap<String, RefEvent>();
+		known = new HashMap<String, Known>();
+
+		capacity = 10000;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * set maximum number of branches with pending events.
+	 * 
+	 * @param capacity
+	 *            maximum number of pending events
+	 */
+	public void setCapacity(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity MUST be positive");
+		}
+
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return number of events dropped because too many events were pending
+	 */
+	public long getDroppedEvents() {
+		synchronized (lock) {
+			return dropped;
+		}
+	}
+
+	/**
+	 * set poller used to detect changes made by other processes.
+	 * 
+	 * @param poller
+	 *            the poller, <code>null</code> to disable polling
+	 * @param pollInterval
+	 *            poll interval in milliseconds
+	 */
+	public void setPoller(Poller poller, long pollInterval) {
+		if (pollInterval <= 0) {
+			throw new IllegalArgumentException("pollInterval MUST be positive");
+		}
+
+		synchronized (lock) {
+			this.poller = poller;
+			this.pollInterval = pollInterval;
+
+			lock.notifyAll();
+		}
+	}
+
+	public long getPollInterval() {
+		return pollInterval;
+	}
+
+	public void addListener(RefListener listener) {
+		if (listener == null) {
+			throw new NullPointerException("listener");
+		}
+
+		synchronized (lock) {
+			listeners.add(listener);
+
+			if (thread == null) {
+				thread = new Thread(new Runnable() {
+
+					public void run() {
+						dispatch();
+					}
+				}, name + "-ref-events");
+
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+	}
+
+	public void removeListener(RefListener listener) {
+		synchronized (lock) {
+			listeners.remove(listener);
+
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if there is at least one listener
+	 */
+	public boolean isActive() {
+		return !listeners.isEmpty();
+	}
+
+	/**
+	 * publish a ref change made through the repository.
+	 * 
+	 * @param remote
+	 *            <code>true</code> for a remote branch
+	 * @param branch
+	 *            the branch
+	 * @param oldHeadRef
+	 *            previous head if known, may be <code>null</code>
+	 * @param newHeadRef
+	 *            new head, <code>null</code> if the branch has been removed
+	 */
+	public void publish(boolean remote, String branch, String oldHeadRef,
+			String newHeadRef) {
+
+		if (listeners.isEmpty()) {
+			return;
+		}
+
+		synchronized (lock) {
+			enqueue(remote, branch, oldHeadRef, newHeadRef);
+		}
+	}
+
+	/**
+	 * @return sequence number to be passed to
+	 *         {@link #observed(Map, Map, long)}, MUST be taken before reading
+	 *         refs
+	 */
+	public long sequence() {
+		synchronized (lock) {
+			return sequence;
+		}
+	}
+
+	/**
+	 * report refs read by a {@link Poller}. Branches published after
+	 * <code>since</code> are ignored, their observed head may be stale.
+	 * 
+	 * @param heads
+	 *            all local branches and their heads
+	 * @param remotes
+	 *            all remote branches and their heads
+	 * @param since
+	 *            value of {@link #sequence()} before refs were read
+	 */
+	public void observed(Map<String, String> heads,
+			Map<String, String> remotes, long since) {
+
+		synchronized (lock) {
+			observed(false, heads, since);
+			observed(true, remotes, since);
+
+			seeded = true;
+		}
+	}
+
+	/**
+	 * report refs a {@link Poller} found changed since its last poll, e.g. in
+	 * a log of ref changes, instead of all refs. Branches published after
+	 * <code>since</code> are ignored, their observed head may be stale.
+	 * 
+	 * @param heads
+	 *            changed local branches and their latest heads,
+	 *            <code>null</code> if removed
+	 * @param remotes
+	 *            changed remote branches and their latest heads,
+	 *            <code>null</code> if removed
+	 * @param since
+	 *            value of {@link #sequence()} before changes were read
+	 */
+	public void changed(Map<String, String> heads,
+			Map<String, String> remotes, long since) {
+
+		synchronized (lock) {
+			changed(false, heads, since);
+			changed(true, remotes, since);
+		}
+	}
+
+	private void changed(boolean remote, Map<String, String> refs, long since) {
+		String prefix = remote ? "R" : "L";
+
+		for (Map.Entry<String, String> e : refs.entrySet()) {
+			Known k = known.get(prefix + e.getKey());
+
+			if (k == null) {
+				enqueue(remote, e.getKey(), null, e.getValue());
+			} else if (k.sequence <= since) {
+				enqueue(remote, e.getKey(), k.headRef, e.getValue());
+			}
+		}
+	}
+
+	private void observed(boolean remote, Map<String, String> refs, long since) {
+		String prefix = remote ? "R" : "L";
+
+		for (Map.Entry<String, String> e : refs.entrySet()) {
+			Known k = known.get(prefix + e.getKey());
+
+			if (k == null) {
+				if (seeded) {
+					enqueue(remote, e.getKey(), null, e.getValue());
+				} else {
+					// first poll only records current heads
+					known.put(prefix + e.getKey(), new Known(e.getValue(), 0));
+				}
+			} else if (k.sequence <= since) {
+				enqueue(remote, e.getKey(), k.headRef, e.getValue());
+			}
+		}
+
+		// removed branches
+		List<String> removed = new ArrayList<String>();
+
+		for (Map.Entry<String, Known> e : known.entrySet()) {
+			String key = e.getKey();
+
+			if (key.startsWith(prefix) && (e.getValue().headRef != null)
+					&& (e.getValue().sequence <= since)
+					&& !refs.containsKey(key.substring(1))) {
+				removed.add(key.substring(1));
+			}
+		}
+
+		for (String branch : removed) {
+			enqueue(remote, branch, null, null);
+		}
+	}
+
+	private void enqueue(boolean remote, String branch, String oldHeadRef,
+			String newHeadRef) {
+
+		String key = (remote ? "R" : "L") + branch;
+
+		Known k = known.get(key);
+		if (k != null) {
+			if (ObjectUtils.equals(k.headRef, newHeadRef)) {
+				return;
+			}
+
+			oldHeadRef = k.headRef;
+		}
+
+		known.put(key, new Known(newHeadRef, ++sequence));
+
+		RefEvent event = pending.get(key);
+
+		if ((event == null) && ObjectUtils.equals(oldHeadRef, newHeadRef)) {
+			// e.g. removal of an unknown branch
+			return;
+		}
+
+		if (event != null) {
+			oldHeadRef = event.getOldHeadRef();
+
+			if (ObjectUtils.equals(oldHeadRef, newHeadRef)) {
+				// moved back
+				pending.remove(key);
+			} else {
+				pending.put(key, new RefEvent(remote, branch, oldHeadRef,
+						newHeadRef));
+			}
+		} else if (pending.size() < capacity) {
+			pending.put(key, new RefEvent(remote, branch, oldHeadRef,
+					newHeadRef));
+		} else {
+			++dropped;
+
+			log.warning("ref event queue of " + name
+					+ " is full, event for " + branch + " dropped");
+		}
+
+		lock.notifyAll();
+	}
+
+	private void dispatch() {
+		long nextPoll = 0;
+
+		while (true) {
+			List<RefEvent> events;
+			Poller p;
+
+			synchronized (lock) {
+				try {
+					while (pending.isEmpty()) {
+						if (listeners.isEmpty()) {
+							break;
+						}
+
+						if (poller == null) {
+							lock.wait();
+							continue;
+						}
+
+						long wait = nextPoll - System.currentTimeMillis();
+						if (wait <= 0) {
+							break;
+						}
+
+						lock.wait(wait);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				if (listeners.isEmpty() || Thread.interrupted()) {
+					// known heads go stale without listeners
+					thread = null;
+
+					pending.clear();
+					known.clear();
+					seeded = false;
+
+					return;
+				}
+
+				events = new ArrayList<RefEvent>(pending.values());
+				pending.clear();
+
+				p = poller;
+			}
+
+			deliver(events);
+
+			if ((p != null) && (System.currentTimeMillis() >= nextPoll)) {
+				try {
+					p.poll(this);
+				} catch (Throwable t) {
+					log.warning("unable to poll refs of " + name, t);
+				}
+
+				nextPoll = System.currentTimeMillis() + pollInterval;
+			}
+		}
+	}
+
+	private void deliver(List<RefEvent> events) {
+		for (RefEvent event : events) {
+			for (RefListener listener : listeners) {
+				try {
+					listener.refChanged(event);
+				} catch (Throwable t) {
+					log.warning("ref listener " + listener + " failed on "
+							+ event, t);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package org.git4j.core.repo;
+
+/**
+ * Receives ref changes of a repository. Events are delivered asynchronously
+ * by a single thread per repository, so implementations SHOULD return quickly.
+ * Consecutive changes of the same branch which are not delivered yet are
+ * coalesced into one event.
+ */
+public interface RefListener {
+
+	/**
+	 * called after a branch head has been moved, created or removed.
+	 * 
+	 * @param event
+	 *            the ref change
+	 */
+	void refChanged(RefEvent event);
+}
@@ -2,11 +2,14 @@ package org.git4j.core.repo;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Set;
 
 import org.git4j.core.GitException;
 import org.git4j.core.objs.Blob;
 import org.git4j.core.objs.BranchAndHead;
 import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.RefUpdate;
+import org.git4j.core.objs.Types;
 import org.git4j.core.objs.UploadPack;
 
 public interface Repository {
@@ -56,6 +59,17 @@ public interface Repository {
 	 */
 	<T> T find(Class<T> type, String id) throws IOException;
 
+	/**
+	 * Look up which of several objects are stored, without loading them.
+	 * 
+	 * @param ids
+	 *            git object ids
+	 * @return the ids of <code>ids</code> which are stored
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	Set<String> findExisting(Collection<String> ids) throws IOException;
+
 	/**
 	 * Get head for a local branch.
 	 * 
@@ -125,6 +139,21 @@ public interface Repository {
 	void setRemoteHeadRef(String branch, String headRef, String newHeadRef)
 			throws GitException, IOException;
 
+	/**
+	 * update several local and/or remote branch heads at once. Either all
+	 * updates are applied or none of them.
+	 * 
+	 * @param updates
+	 *            ref updates, each branch MUST appear only once
+	 * @throws GitException
+	 *             if a current branch head is not equals to its expected
+	 *             headRef
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	void updateRefs(Collection<RefUpdate> updates) throws GitException,
+			IOException;
+
 	/**
 	 * retrieve local branches.
 	 * 
@@ -163,6 +192,81 @@ public interface Repository {
 	 */
 	void removeRemoteBranch(String branch) throws IOException;
 
+	/**
+	 * iterate over objects stored in this repository. The cursor is weakly
+	 * consistent: objects stored or removed while iterating may or may not be
+	 * returned.
+	 * 
+	 * @param type
+	 *            only return objects of this type (COMMIT or BLOB),
+	 *            <code>null</code> to return all objects
+	 * @return object cursor, MUST be closed after use
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	ObjectCursor objects(Types type) throws IOException;
+
+	/**
+	 * remove an object from this repository. This method does not check
+	 * whether the object is still referenced, it is meant to be used by
+	 * {@link GarbageCollector}.
+	 * 
+	 * @param id
+	 *            object id
+	 * @return number of bytes reclaimed, <code>-1</code> if not found
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	long remove(String id) throws IOException;
+
+	/**
+	 * remove an object unless it has been stored since a point in time.
+	 * Storing an object which exists already counts as storing it, so a
+	 * writer reusing the object keeps it. The check and the removal are one
+	 * atomic step with respect to stores of this repository.
+	 * 
+	 * @param id
+	 *            object id
+	 * @param storedBefore
+	 *            only remove the object if it was last stored before this
+	 *            time, in milliseconds since the epoch
+	 * @return number of bytes reclaimed, <code>-1</code> if not found or
+	 *         stored since
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	long remove(String id, long storedBefore) throws IOException;
+
+	/**
+	 * register a listener notified after branch heads of this repository are
+	 * moved, created or removed, including changes made by other processes
+	 * when the implementation is able to detect them.
+	 * 
+	 * @param listener
+	 *            the listener
+	 */
+	void addRefListener(RefListener listener);
+
+	/**
+	 * unregister a ref listener.
+	 * 
+	 * @param listener
+	 *            the listener
+	 */
+	void removeRefListener(RefListener listener);
+
+	/**
+	 * start a unit of work bound to the current thread. Calls made by this
+	 * thread until the unit of work is closed share its connection and
+	 * transaction, if the implementation has any. Ref listeners are notified
+	 * once the unit of work commits.
+	 * 
+	 * @return the unit of work, MUST be closed after use
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	UnitOfWork begin() throws IOException;
+
 	/**
 	 * wipe repository
 	 * 
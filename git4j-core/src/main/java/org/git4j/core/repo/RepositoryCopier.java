@@ -0,0 +1,522 @@
+package org.git4j.core.repo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.git4j.core.GitException;
+import org.git4j.core.logging.Logger;
+import org.git4j.core.logging.LoggerFactory;
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.BranchAndHead;
+import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.ObjectInfo;
+import org.git4j.core.objs.RefUpdate;
+import org.git4j.core.objs.Types;
+import org.git4j.core.objs.UploadPack;
+
+/**
+ * Copies objects and refs from one repository to another, possibly of a
+ * different kind (e.g. from {@link FileRepository} to {@link JDBCRepository}).
+ * <p>
+ * Objects are streamed from the source, loaded on a pool of reader threads and
+ * stored into the target in batches of {@link UploadPack}. Objects already
+ * stored in the target are skipped, looked up in the target a batch at a
+ * time, so running {@link #copyObjects()} again only copies the delta. BLOBs
+ * are copied before COMMITs.
+ * <p>
+ * Online migration: run {@link #copyObjects()} while the source is still being
+ * written to, as many times as needed, then stop writes to the source and call
+ * {@link #syncRefs()}, which copies the remaining delta and updates the target
+ * branches at once.
+ */
+public class RepositoryCopier {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(RepositoryCopier.class);
+
+	private Repository source;
+
+	private Repository target;
+
+	private int threads;
+
+	private int batchSize;
+
+	private boolean verify;
+
+	private boolean pruneRefs;
+
+	public RepositoryCopier(Repository source, Repository target) {
+		this.source = source;
+		this.target = target;
+
+		threads = Runtime.getRuntime().availableProcessors();
+		batchSize = 500;
+		verify = false;
+		pruneRefs = true;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * set number of threads used to load objects from source and store them
+	 * into target.
+	 * 
+	 * @param threads
+	 *            number of threads
+	 */
+	public void setThreads(int threads) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("threads MUST be positive");
+		}
+
+		this.threads = threads;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * set number of objects stored into target at once.
+	 * 
+	 * @param batchSize
+	 *            batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("batchSize MUST be positive");
+		}
+
+		this.batchSize = batchSize;
+	}
+
+	public boolean isVerify() {
+		return verify;
+	}
+
+	/**
+	 * set whether each object is rehashed before it is stored into target. A
+	 * corrupt object aborts the copy.
+	 * 
+	 * @param verify
+	 *            verify objects
+	 */
+	public void setVerify(boolean verify) {
+		this.verify = verify;
+	}
+
+	public boolean isPruneRefs() {
+		return pruneRefs;
+	}
+
+	/**
+	 * set whether target branches which do not exist in source are removed by
+	 * {@link #syncRefs()}.
+	 * 
+	 * @param pruneRefs
+	 *            remove extra branches
+	 */
+	public void setPruneRefs(boolean pruneRefs) {
+		this.pruneRefs = pruneRefs;
+	}
+
+	/**
+	 * copy objects and refs.
+	 * 
+	 * @return copy result
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	public Result copy() throws IOException {
+		return syncRefs();
+	}
+
+	/**
+	 * copy objects not yet stored in target. Refs are not touched.
+	 * 
+	 * @return copy result
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	public synchronized Result copyObjects() throws IOException {
+		long started = System.currentTimeMillis();
+
+		Counters counters = new Counters();
+		copyObjects(counters);
+
+		Result result = new Result(counters.copied.get(),
+				counters.skipped.get(), 0, System.currentTimeMillis()
+						- started);
+
+		if (log.isTraceEnabled()) {
+			log.trace("copy objects: " + result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * copy the remaining objects and update target branches to source branch
+	 * heads. Writes to source SHOULD be stopped before calling this method.
+	 * 
+	 * @return copy result
+	 * @throws IOException
+	 *             if an IO error occurred
+	 * @throws GitException
+	 *             if a target branch was concurrently modified
+	 */
+	public synchronized Result syncRefs() throws IOException, GitException {
+		long started = System.currentTimeMillis();
+
+		Counters counters = new Counters();
+		copyObjects(counters);
+
+		List<RefUpdate> updates = new ArrayList<RefUpdate>();
+
+		addUpdates(updates, false, heads(source.getLocalBranches()),
+				heads(target.getLocalBranches()), counters);
+		addUpdates(updates, true, heads(source.getRemoteBranches()),
+				heads(target.getRemoteBranches()), counters);
+
+		// one cutover, target branches never mix old and new heads
+		if (!updates.isEmpty()) {
+			target.updateRefs(updates);
+		}
+
+		long refs = updates.size();
+
+		Result result = new Result(counters.copied.get(),
+				counters.skipped.get(), refs, System.currentTimeMillis()
+						- started);
+
+		if (log.isTraceEnabled()) {
+			log.trace("sync refs: " + result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * copy the history of source heads and add the updates moving target
+	 * branches onto them.
+	 */
+	private void addUpdates(List<RefUpdate> updates, boolean remote,
+			Map<String, String> heads, Map<String, String> current,
+			Counters counters) throws IOException {
+		for (Map.Entry<String, String> e : heads.entrySet()) {
+			String headRef = current.get(e.getKey());
+
+			if (!e.getValue().equals(headRef)) {
+				copyHistory(e.getValue(), counters);
+
+				updates.add(new RefUpdate(remote, e.getKey(), headRef, e
+						.getValue()));
+			}
+		}
+
+		if (pruneRefs) {
+			for (Map.Entry<String, String> e : current.entrySet()) {
+				if (!heads.containsKey(e.getKey())) {
+					updates.add(new RefUpdate(remote, e.getKey(),
+							e.getValue(), null));
+				}
+			}
+		}
+	}
+
+	private static Map<String, String> heads(Collection<BranchAndHead> bnhs) {
+		Map<String, String> heads = new HashMap<String, String>();
+
+		for (BranchAndHead bnh : bnhs) {
+			if (bnh.getHeadRef() != null) {
+				heads.put(bnh.getBranch(), bnh.getHeadRef());
+			}
+		}
+
+		return heads;
+	}
+
+	private void copyObjects(Counters counters) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		try {
+			// BLOBs first, a stored COMMIT never refers to missing BLOBs
+			copyObjects(executor, Types.BLOB, counters);
+			copyObjects(executor, Types.COMMIT, counters);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void copyObjects(ExecutorService executor, final Types type,
+			final Counters counters) throws IOException {
+
+		// bounds the number of batches in memory
+		int permits = threads * 2;
+		final Semaphore inflight = new Semaphore(permits);
+
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+		ObjectCursor cursor = source.objects(type);
+
+		try {
+			List<String> batch = new ArrayList<String>(batchSize);
+			ObjectInfo info;
+
+			while ((error.get() == null) && ((info = cursor.next()) != null)) {
+				batch.add(info.getId());
+
+				if (batch.size() < batchSize) {
+					continue;
+				}
+
+				submit(executor, inflight, type, batch, counters, error);
+				batch = new ArrayList<String>(batchSize);
+			}
+
+			if (!batch.isEmpty() && (error.get() == null)) {
+				submit(executor, inflight, type, batch, counters, error);
+			}
+		} finally {
+			cursor.close();
+		}
+
+		// wait for queued batches
+		acquire(inflight, permits);
+		inflight.release(permits);
+
+		Throwable t = error.get();
+
+		if (t instanceof IOException) {
+			throw (IOException) t;
+		}
+
+		if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		}
+
+		if (t != null) {
+			throw (IOException) new IOException().initCause(t);
+		}
+	}
+
+	private void submit(ExecutorService executor, final Semaphore inflight,
+			final Types type, final List<String> batch,
+			final Counters counters, final AtomicReference<Throwable> error)
+			throws IOException {
+
+		acquire(inflight, 1);
+
+		executor.execute(new Runnable() {
+
+			public void run() {
+				try {
+					copyBatch(type, batch, counters);
+				} catch (Throwable t) {
+					error.compareAndSet(null, t);
+				} finally {
+					inflight.release();
+				}
+			}
+		});
+	}
+
+	private static void acquire(Semaphore semaphore, int permits)
+			throws IOException {
+		try {
+			semaphore.acquire(permits);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw (IOException) new IOException("interrupted").initCause(e);
+		}
+	}
+
+	private void copyBatch(Types type, List<String> ids, Counters counters)
+			throws IOException {
+
+		// looked up per batch, the target may hold more ids than fit in
+		// memory
+		Set<String> found = target.findExisting(ids);
+
+		counters.skipped.addAndGet(found.size());
+
+		UploadPack pack = new UploadPack();
+		pack.setCommits(new HashMap<String, Commit>());
+		pack.setBlobs(new HashMap<String, Blob>());
+
+		for (String id : ids) {
+			if (found.contains(id)) {
+				continue;
+			}
+
+			if (Types.COMMIT.equals(type)) {
+				Commit commit = source.find(Commit.class, id);
+
+				if (commit != null) {
+					verify(id, commit.getId());
+					pack.getCommits().put(id, commit);
+				}
+			} else {
+				Blob blob = source.find(Blob.class, id);
+
+				if (blob != null) {
+					verify(id, blob.getId());
+					pack.getBlobs().put(id, blob);
+				}
+			}
+		}
+
+		target.store(pack);
+
+		counters.copied.addAndGet(pack.getCommits().size()
+				+ pack.getBlobs().size());
+	}
+
+	private void verify(String id, String actualId) throws IOException {
+		if (verify && !id.equals(actualId)) {
+			throw new IOException("object " + id + " is corrupt (hashes to "
+					+ actualId + ")");
+		}
+	}
+
+	/**
+	 * copy history of a commit stored into source after objects were copied.
+	 */
+	private void copyHistory(String id, Counters counters) throws IOException {
+		List<String> pending = new ArrayList<String>();
+		pending.add(id);
+
+		while (!pending.isEmpty()) {
+			String commitId = pending.remove(pending.size() - 1);
+
+			if (!target.findExisting(singleton(commitId)).isEmpty()) {
+				continue;
+			}
+
+			Commit commit = source.find(Commit.class, commitId);
+
+			if (commit == null) {
+				throw new IOException("commit " + commitId
+						+ " does not exist in source repository");
+			}
+
+			if (!commit.index().isEmpty()) {
+				List<String> blobIds = new ArrayList<String>(
+						new HashSet<String>(commit.index().values()));
+
+				copyBatch(Types.BLOB, blobIds, counters);
+			}
+
+			// parents first
+			String[] parents = { commit.getParent(), commit.getParent2() };
+			boolean ready = true;
+
+			List<String> ids = new ArrayList<String>(2);
+
+			for (int i = 0; i < parents.length; ++i) {
+				if (parents[i] != null) {
+					ids.add(parents[i]);
+				}
+			}
+
+			Set<String> found = target.findExisting(ids);
+
+			for (int i = 0; i < parents.length; ++i) {
+				if ((parents[i] != null) && !found.contains(parents[i])) {
+					if (ready) {
+						pending.add(commitId);
+						ready = false;
+					}
+
+					pending.add(parents[i]);
+				}
+			}
+
+			if (ready) {
+				copyBatch(Types.COMMIT, singleton(commitId), counters);
+			}
+		}
+	}
+
+	private static List<String> singleton(String id) {
+		List<String> list = new ArrayList<String>(1);
+		list.add(id);
+
+		return list;
+	}
+
+	private static class Counters {
+
+		private AtomicLong copied = new AtomicLong(0);
+
+		private AtomicLong skipped = new AtomicLong(0);
+	}
+
+	public static class Result {
+
+		private long copiedObjects;
+
+		private long skippedObjects;
+
+		private long updatedRefs;
+
+		private long elapsed;
+
+		private Result(long copiedObjects, long skippedObjects,
+				long updatedRefs, long elapsed) {
+			this.copiedObjects = copiedObjects;
+			this.skippedObjects = skippedObjects;
+			this.updatedRefs = updatedRefs;
+			this.elapsed = elapsed;
+		}
+
+		/**
+		 * @return number of objects stored into target
+		 */
+		public long getCopiedObjects() {
+			return copiedObjects;
+		}
+
+		/**
+		 * @return number of objects already stored in target
+		 */
+		public long getSkippedObjects() {
+			return skippedObjects;
+		}
+
+		/**
+		 * @return number of target branches created, updated or removed
+		 */
+		public long getUpdatedRefs() {
+			return updatedRefs;
+		}
+
+		/**
+		 * @return elapsed time in milliseconds
+		 */
+		public long getElapsed() {
+			return elapsed;
+		}
+
+		@Override
+		public String toString() {
+			return copiedObjects + " objects copied, " + skippedObjects
+					+ " objects skipped, " + updatedRefs + " refs updated in "
+					+ elapsed + " ms";
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package org.git4j.core.repo;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Groups repository calls made by the current thread into one operation. A
+ * repository backed by a transactional storage runs them in a single
+ * transaction, other repositories may apply each call on its own.
+ * <p>
+ * A unit of work MUST be closed after use. Closing it without a successful
+ * {@link #commit()} discards the changes, when the repository is able to.
+ * Units of work may be nested, only the outermost one commits.
+ */
+public interface UnitOfWork extends Closeable {
+
+	/**
+	 * make changes done in this unit of work permanent. Ref listeners are
+	 * notified afterwards.
+	 * 
+	 * @throws org.git4j.core.GitException
+	 *             if a nested unit of work or a failed call has marked the
+	 *             operation for rollback
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	void commit() throws IOException;
+
+	/**
+	 * end this unit of work, discarding changes not yet committed.
+	 * 
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	void close() throws IOException;
+}
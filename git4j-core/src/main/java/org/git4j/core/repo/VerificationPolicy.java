@@ -0,0 +1,149 @@
+package org.git4j.core.repo;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.Commit;
+import org.git4j.core.util.IdSet;
+
+/**
+ * Decides which objects loaded by a repository are checked against the id
+ * they were loaded by. A check re-encodes and hashes the object, which is
+ * the largest cost of a load from a fast store. The policy counts checked
+ * objects and mismatches, an instance MUST NOT be shared between
+ * repositories.
+ */
+public class VerificationPolicy {
+
+	private static enum Mode {
+		ALWAYS, SAMPLED, FIRST_LOAD, NEVER
+	}
+
+	private Mode mode;
+
+	private int sampleRate;
+
+	private AtomicLong loads;
+
+	// ids verified once, FIRST_LOAD only
+	private IdSet verified;
+
+	private AtomicLong verifiedObjects;
+
+	private AtomicLong mismatches;
+
+	private VerificationPolicy(Mode mode, int sampleRate) {
+		this.mode = mode;
+		this.sampleRate = sampleRate;
+
+		loads = new AtomicLong();
+
+		if (mode == Mode.FIRST_LOAD) {
+			verified = new IdSet();
+		}
+
+		verifiedObjects = new AtomicLong();
+		mismatches = new AtomicLong();
+	}
+
+	/**
+	 * @return a policy checking every loaded object
+	 */
+	public static VerificationPolicy always() {
+		return new VerificationPolicy(Mode.ALWAYS, 1);
+	}
+
+	/**
+	 * @param sampleRate
+	 *            one in how many loads is checked
+	 * @return a policy checking one in <code>sampleRate</code> loads
+	 */
+	public static VerificationPolicy sampled(int sampleRate) {
+		if (sampleRate <= 0) {
+			throw new IllegalArgumentException("sample rate MUST be positive");
+		}
+
+		return new VerificationPolicy(Mode.SAMPLED, sampleRate);
+	}
+
+	/**
+	 * @return a policy checking an object the first time it is loaded only.
+	 *         Verified ids are remembered as 64-bit fingerprints, see
+	 *         {@link IdSet}
+	 */
+	public static VerificationPolicy firstLoad() {
+		return new VerificationPolicy(Mode.FIRST_LOAD, 1);
+	}
+
+	/**
+	 * @return a policy checking nothing
+	 */
+	public static VerificationPolicy never() {
+		return new VerificationPolicy(Mode.NEVER, 1);
+	}
+
+	/**
+	 * check a loaded object if the policy says so.
+	 * 
+	 * @param id
+	 *            id the object was loaded by
+	 * @param obj
+	 *            the BLOB or COMMIT
+	 * @return <code>false</code> if the object was checked and does not hash
+	 *         to <code>id</code>
+	 */
+	public boolean verify(String id, Object obj) {
+		switch (mode) {
+		case NEVER:
+			return true;
+		case SAMPLED:
+			if ((loads.incrementAndGet() % sampleRate) != 0) {
+				return true;
+			}
+			break;
+		case FIRST_LOAD:
+			if (verified.contains(id)) {
+				return true;
+			}
+			break;
+		default:
+			break;
+		}
+
+		String actualId = obj instanceof Blob ? ((Blob) obj).getId()
+				: ((Commit) obj).getId();
+
+		verifiedObjects.incrementAndGet();
+
+		if (!id.equals(actualId)) {
+			mismatches.incrementAndGet();
+			return false;
+		}
+
+		if (mode == Mode.FIRST_LOAD) {
+			verified.add(id);
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return number of objects checked
+	 */
+	public long getVerifiedObjects() {
+		return verifiedObjects.get();
+	}
+
+	/**
+	 * @return number of checked objects not hashing to their id
+	 */
+	public long getMismatches() {
+		return mismatches.get();
+	}
+
+	@Override
+	public String toString() {
+		return mode == Mode.SAMPLED ? mode + "(1/" + sampleRate + ")" : mode
+				.toString();
+	}
+}
@@ -0,0 +1,47 @@
+package org.git4j.core.repo.jdbc;
+
+/**
+ * Dialect of Apache Derby 10.11 or later, inserts with a <code>MERGE</code>
+ * statement having a <code>WHEN NOT MATCHED</code> clause only. Derby only
+ * merges from a base table, so the key is compared to a parameter of its own.
+ */
+public class DerbyDialect extends Dialect {
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#insertIfAbsent(java.lang.String,
+	 * java.lang.String[])
+	 */
+	@Override
+	public String insertIfAbsent(String table, String... columns) {
+		StringBuilder sql = new StringBuilder("MERGE INTO ").append(table)
+				.append(" USING SYSIBM.SYSDUMMY1 ON ").append(table)
+				.append('.').append(columns[0])
+				.append(" = ? WHEN NOT MATCHED THEN INSERT (");
+
+		appendColumns(sql, "", columns).append(") VALUES (");
+
+		return appendParameters(sql, columns.length).append(')').toString();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#getInsertIfAbsentKeyParameters()
+	 */
+	@Override
+	public int getInsertIfAbsentKeyParameters() {
+		return 1;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#textType()
+	 */
+	@Override
+	public String textType() {
+		return "VARCHAR(32672)";
+	}
+}
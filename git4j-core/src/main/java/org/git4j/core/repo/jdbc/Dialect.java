@@ -0,0 +1,170 @@
+package org.git4j.core.repo.jdbc;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.Locale;
+
+/**
+ * SQL statements which differ between databases, used by
+ * {@link org.git4j.core.repo.JDBCRepository}. A statement a dialect does not
+ * support is <code>null</code>, the repository then falls back to portable
+ * but slower SQL.
+ */
+public abstract class Dialect {
+
+	/**
+	 * pick a dialect from the product name reported by the JDBC driver.
+	 * 
+	 * @param metaData
+	 *            database meta data
+	 * @return the dialect, {@link GenericDialect} for unknown databases
+	 * @throws SQLException
+	 *             if the product name cannot be read
+	 */
+	public static Dialect forDatabase(DatabaseMetaData metaData)
+			throws SQLException {
+		String product = metaData.getDatabaseProductName();
+
+		if (product != null) {
+			product = product.toLowerCase(Locale.ENGLISH);
+
+			if (product.startsWith("mysql") || product.startsWith("mariadb")) {
+				return new MySQLDialect(supportsRecursiveQueries(product,
+						metaData));
+			}
+
+			if (product.startsWith("postgresql")) {
+				return new PostgreSQLDialect();
+			}
+
+			if (product.startsWith("h2")) {
+				return new H2Dialect(metaData.getDatabaseMajorVersion());
+			}
+
+			if (product.startsWith("apache derby")) {
+				return new DerbyDialect();
+			}
+		}
+
+		return new GenericDialect();
+	}
+
+	/**
+	 * recursive common table expressions came with MySQL 8.0 and MariaDB
+	 * 10.2.
+	 */
+	private static boolean supportsRecursiveQueries(String product,
+			DatabaseMetaData metaData) throws SQLException {
+		int major = metaData.getDatabaseMajorVersion();
+		int minor = metaData.getDatabaseMinorVersion();
+
+		if (product.startsWith("mariadb")) {
+			return (major > 10) || ((major == 10) && (minor >= 2));
+		}
+
+		return major >= 8;
+	}
+
+	/**
+	 * build a statement inserting one row, which does nothing if a row with
+	 * the same key exists already. Its update count is <code>1</code> if the
+	 * row has been inserted, <code>0</code> otherwise.
+	 * <p>
+	 * Parameters are the key value repeated
+	 * {@link #getInsertIfAbsentKeyParameters()} times, followed by the value
+	 * of each column.
+	 * 
+	 * @param table
+	 *            table name
+	 * @param columns
+	 *            column names, the first one is the primary key
+	 * @return the statement, <code>null</code> if not supported
+	 */
+	public String insertIfAbsent(String table, String... columns) {
+		return null;
+	}
+
+	/**
+	 * @return number of key parameters preceding the column values of
+	 *         {@link #insertIfAbsent(String, String...)} statements
+	 */
+	public int getInsertIfAbsentKeyParameters() {
+		return 0;
+	}
+
+	/**
+	 * @return column type of object ids and heads
+	 */
+	public String idType() {
+		return "VARCHAR(64)";
+	}
+
+	/**
+	 * @return column type of commit messages
+	 */
+	public String textType() {
+		return "VARCHAR(4000)";
+	}
+
+	/**
+	 * @return column type of BLOB contents and encoded indexes
+	 */
+	public String binaryType() {
+		return "BLOB";
+	}
+
+	/**
+	 * @return column type of a key generated in insertion order, the
+	 *         sequence number of the ref log
+	 */
+	public String sequenceType() {
+		return "BIGINT GENERATED BY DEFAULT AS IDENTITY";
+	}
+
+	/**
+	 * build an expression of the length in bytes of a binary column.
+	 * 
+	 * @param column
+	 *            column name
+	 * @return <code>LENGTH(column)</code> by default
+	 */
+	public String length(String column) {
+		return "LENGTH(" + column + ")";
+	}
+
+	/**
+	 * @return <code>true</code> if the database runs <code>WITH RECURSIVE</code>
+	 *         queries, history is walked one commit at a time otherwise
+	 */
+	public boolean supportsRecursiveQueries() {
+		return false;
+	}
+
+	/**
+	 * append column names separated by comma.
+	 */
+	protected static StringBuilder appendColumns(StringBuilder sql,
+			String prefix, String... columns) {
+		for (int i = 0; i < columns.length; ++i) {
+			if (i > 0) {
+				sql.append(", ");
+			}
+
+			sql.append(prefix).append(columns[i]);
+		}
+
+		return sql;
+	}
+
+	/**
+	 * append one parameter marker for each column.
+	 */
+	protected static StringBuilder appendParameters(StringBuilder sql,
+			int count) {
+		for (int i = 0; i < count; ++i) {
+			sql.append(i > 0 ? ", ?" : "?");
+		}
+
+		return sql;
+	}
+}
@@ -0,0 +1,8 @@
+package org.git4j.core.repo.jdbc;
+
+/**
+ * Dialect of databases without a known idempotent insert. Objects are looked
+ * up before they are inserted.
+ */
+public class GenericDialect extends Dialect {
+}
@@ -0,0 +1,92 @@
+package org.git4j.core.repo.jdbc;
+
+/**
+ * Dialect of H2, inserts with a <code>MERGE</code> statement having a
+ * <code>WHEN NOT MATCHED</code> clause only. Values are bound in the
+ * <code>INSERT</code> clause, where parameters take the column types, so the
+ * key is compared to a parameter of its own.
+ */
+public class H2Dialect extends Dialect {
+
+	private int majorVersion;
+
+	/**
+	 * dialect of H2 2.x.
+	 */
+	public H2Dialect() {
+		this(2);
+	}
+
+	/**
+	 * @param majorVersion
+	 *            major version of H2, the length of a BLOB is computed
+	 *            differently since 2.0
+	 */
+	public H2Dialect(int majorVersion) {
+		this.majorVersion = majorVersion;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#insertIfAbsent(java.lang.String,
+	 * java.lang.String[])
+	 */
+	@Override
+	public String insertIfAbsent(String table, String... columns) {
+		StringBuilder sql = new StringBuilder("MERGE INTO ").append(table)
+				.append(" USING DUAL ON ").append(table).append('.')
+				.append(columns[0])
+				.append(" = ? WHEN NOT MATCHED THEN INSERT (");
+
+		appendColumns(sql, "", columns).append(") VALUES (");
+
+		return appendParameters(sql, columns.length).append(')').toString();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#getInsertIfAbsentKeyParameters()
+	 */
+	@Override
+	public int getInsertIfAbsentKeyParameters() {
+		return 1;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#length(java.lang.String)
+	 */
+	@Override
+	public String length(String column) {
+		if (majorVersion < 2) {
+			// OCTET_LENGTH counts two bytes per byte in 1.x
+			return super.length(column);
+		}
+
+		// LENGTH counts characters, even of a BLOB
+		return "OCTET_LENGTH(" + column + ")";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#supportsRecursiveQueries()
+	 */
+	@Override
+	public boolean supportsRecursiveQueries() {
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#textType()
+	 */
+	@Override
+	public String textType() {
+		return "VARCHAR";
+	}
+}
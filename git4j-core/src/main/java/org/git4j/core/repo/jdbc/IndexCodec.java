@@ -0,0 +1,95 @@
+package org.git4j.core.repo.jdbc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.git4j.core.util.IOUtils;
+
+/**
+ * Encoding of a commit index stored in a single column. The first byte tells
+ * whether the rest is deflated, entries follow as NUL terminated UTF-8 name
+ * and object id, in iteration order of the index, like
+ * {@link org.git4j.core.objs.Commit#writeObject(OutputStream)} writes them.
+ */
+public abstract class IndexCodec {
+
+	private static final int PLAIN = 0;
+
+	private static final int DEFLATED = 1;
+
+	/**
+	 * encode an index.
+	 * 
+	 * @param index
+	 *            object name to object id
+	 * @param compress
+	 *            <code>true</code> to deflate the entries
+	 * @return encoded index
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	public static byte[] encode(Map<String, String> index, boolean compress)
+			throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		buf.write(compress ? DEFLATED : PLAIN);
+
+		OutputStream out = compress ? new DeflaterOutputStream(buf) : buf;
+
+		for (Map.Entry<String, String> e : index.entrySet()) {
+			out.write(e.getKey().getBytes("UTF-8"));
+			out.write(0);
+
+			out.write(e.getValue().getBytes("UTF-8"));
+			out.write(0);
+		}
+
+		out.close();
+
+		return buf.toByteArray();
+	}
+
+	/**
+	 * decode an index, entries are put in the order they were encoded.
+	 * 
+	 * @param bytes
+	 *            encoded index
+	 * @param index
+	 *            where entries should be put
+	 * @throws IOException
+	 *             if the encoded index is corrupted
+	 */
+	public static void decode(byte[] bytes, Map<String, String> index)
+			throws IOException {
+		if (bytes.length == 0) {
+			throw new IOException("encoded index is empty");
+		}
+
+		InputStream in = new ByteArrayInputStream(bytes, 1, bytes.length - 1);
+
+		if (bytes[0] == DEFLATED) {
+			in = new InflaterInputStream(in);
+		} else if (bytes[0] != PLAIN) {
+			throw new IOException("unknown index encoding " + bytes[0]);
+		}
+
+		try {
+			for (;;) {
+				String key = new String(IOUtils.nextToken(in, 0), "UTF-8");
+				if (key.length() == 0) {
+					break;
+				}
+
+				String value = new String(IOUtils.nextToken(in, 0), "UTF-8");
+				index.put(key, value);
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package org.git4j.core.repo.jdbc;
+
+/**
+ * Where {@link org.git4j.core.repo.JDBCRepository} keeps the index of a
+ * commit.
+ */
+public enum IndexLayout {
+
+	/**
+	 * one <code>git_index</code> row per index entry, loading a commit takes
+	 * a query per table and storing it one insert per entry. Commits without
+	 * rows, i.e. stored with another layout and not migrated, are read from
+	 * the <code>cindex</code> column if it exists.
+	 */
+	ROWS,
+
+	/**
+	 * the index encoded by {@link IndexCodec} into the <code>cindex</code>
+	 * column of <code>git_commits</code>, a commit is loaded and stored with
+	 * one statement.
+	 */
+	COLUMN,
+
+	/**
+	 * commits are read from the <code>cindex</code> column, index entries are
+	 * also written as <code>git_index</code> rows to stay queryable in SQL.
+	 */
+	BOTH
+}
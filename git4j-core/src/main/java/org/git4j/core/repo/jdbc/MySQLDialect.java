@@ -0,0 +1,91 @@
+package org.git4j.core.repo.jdbc;
+
+/**
+ * Dialect of MySQL and MariaDB, inserts with <code>INSERT IGNORE</code>.
+ */
+public class MySQLDialect extends Dialect {
+
+	private boolean recursiveQueries;
+
+	/**
+	 * dialect of a server without recursive queries.
+	 */
+	public MySQLDialect() {
+		this(false);
+	}
+
+	/**
+	 * @param recursiveQueries
+	 *            <code>true</code> for MySQL 8.0 or MariaDB 10.2 and newer
+	 */
+	public MySQLDialect(boolean recursiveQueries) {
+		this.recursiveQueries = recursiveQueries;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#insertIfAbsent(java.lang.String,
+	 * java.lang.String[])
+	 */
+	@Override
+	public String insertIfAbsent(String table, String... columns) {
+		StringBuilder sql = new StringBuilder("INSERT IGNORE INTO ").append(
+				table).append(" (");
+
+		appendColumns(sql, "", columns).append(") VALUES (");
+
+		return appendParameters(sql, columns.length).append(')').toString();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#supportsRecursiveQueries()
+	 */
+	@Override
+	public boolean supportsRecursiveQueries() {
+		return recursiveQueries;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#idType()
+	 */
+	@Override
+	public String idType() {
+		// one byte per character, compared case sensitively
+		return "VARCHAR(64) CHARACTER SET ascii COLLATE ascii_bin";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#textType()
+	 */
+	@Override
+	public String textType() {
+		return "TEXT";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#binaryType()
+	 */
+	@Override
+	public String binaryType() {
+		return "LONGBLOB";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#sequenceType()
+	 */
+	@Override
+	public String sequenceType() {
+		return "BIGINT AUTO_INCREMENT";
+	}
+}
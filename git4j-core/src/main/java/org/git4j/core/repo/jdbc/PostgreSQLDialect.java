@@ -0,0 +1,65 @@
+package org.git4j.core.repo.jdbc;
+
+/**
+ * Dialect of PostgreSQL 9.5 or later, inserts with
+ * <code>ON CONFLICT DO NOTHING</code>.
+ */
+public class PostgreSQLDialect extends Dialect {
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#insertIfAbsent(java.lang.String,
+	 * java.lang.String[])
+	 */
+	@Override
+	public String insertIfAbsent(String table, String... columns) {
+		StringBuilder sql = new StringBuilder("INSERT INTO ").append(table)
+				.append(" (");
+
+		appendColumns(sql, "", columns).append(") VALUES (");
+
+		return appendParameters(sql, columns.length).append(
+				") ON CONFLICT DO NOTHING").toString();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#supportsRecursiveQueries()
+	 */
+	@Override
+	public boolean supportsRecursiveQueries() {
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#textType()
+	 */
+	@Override
+	public String textType() {
+		return "TEXT";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#binaryType()
+	 */
+	@Override
+	public String binaryType() {
+		return "BYTEA";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.git4j.core.repo.jdbc.Dialect#sequenceType()
+	 */
+	@Override
+	public String sequenceType() {
+		return "BIGSERIAL";
+	}
+}
@@ -0,0 +1,423 @@
+package org.git4j.core.repo.jdbc;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Tables used by {@link org.git4j.core.repo.JDBCRepository}, created and
+ * validated through JDBC meta data with column types of a {@link Dialect}.
+ * <p>
+ * <code>git_index</code> has no primary key: its rows are read back in the
+ * order they were inserted, which a clustered key could change. It is looked
+ * up through the <code>git_index_commit</code> index instead.
+ * <p>
+ * <code>stored_at</code> is the last time an object was stored, in
+ * milliseconds since the epoch, garbage collection never removes objects
+ * stored after its listing. It is <code>NULL</code> for rows stored before
+ * the column was added.
+ * <p>
+ * <code>git_ref_log</code> holds the latest ref changes in the order of their
+ * generated <code>seq</code>, written in the transaction of each change, so
+ * other processes poll changes instead of all refs. A removed ref is logged
+ * with a <code>NULL</code> head.
+ */
+public class Schema {
+
+	private List<Table> tables;
+
+	public Schema(Dialect dialect) {
+		String id = dialect.idType();
+		String binary = dialect.binaryType();
+
+		tables = new ArrayList<Table>();
+
+		tables.add(new Table("git_blobs", false).column("id", id, true)
+				.column("content_type", "VARCHAR(255)", true)
+				.binaryColumn("content", binary, false)
+				.column("stored_at", "BIGINT", false).primaryKey("id"));
+
+		tables.add(new Table("git_blob_chunks", true)
+				.column("blob_id", id, true)
+				.column("seq", "INTEGER", true)
+				.binaryColumn("data", binary, true)
+				.primaryKey("blob_id", "seq"));
+
+		tables.add(new Table("git_commits", false).column("id", id, true)
+				.column("cauthor", "VARCHAR(255)", false)
+				.column("cdate", "VARCHAR(64)", true)
+				.column("cparent2", id, false)
+				.column("cmessage", dialect.textType(), false)
+				.column("cparent", id, false)
+				.binaryColumn("cindex", binary, false)
+				.column("stored_at", "BIGINT", false).primaryKey("id"));
+
+		tables.add(new Table("git_index", false)
+				.column("commit_id", id, true)
+				.column("obj_name", "VARCHAR(1024)", true)
+				.column("blob_id", id, true)
+				.index("git_index_commit", "commit_id"));
+
+		tables.add(new Table("git_refs_heads", false)
+				.column("branch", "VARCHAR(255)", true)
+				.column("head", id, true).primaryKey("branch"));
+
+		tables.add(new Table("git_refs_remotes", false)
+				.column("branch", "VARCHAR(255)", true)
+				.column("head", id, true).primaryKey("branch"));
+
+		tables.add(new Table("git_ref_log", false)
+				.column("seq", dialect.sequenceType(), true)
+				.column("remote", "SMALLINT", true)
+				.column("branch", "VARCHAR(255)", true)
+				.column("head", id, false).primaryKey("seq"));
+	}
+
+	/**
+	 * create missing tables, columns and indexes. Existing ones are left as
+	 * they are, columns are added without their NOT NULL constraint.
+	 * 
+	 * @param conn
+	 *            the connection
+	 * @throws SQLException
+	 *             if a statement failed
+	 */
+	public void create(Connection conn) throws SQLException {
+		DatabaseMetaData metaData = conn.getMetaData();
+
+		Statement stmt = conn.createStatement();
+
+		try {
+			for (Table table : tables) {
+				Set<String> columns = getColumns(metaData, table.name);
+
+				if (columns.isEmpty()) {
+					stmt.executeUpdate(table.createStatement());
+				} else {
+					for (Column column : table.columns) {
+						if (!columns.contains(column.name)) {
+							stmt.executeUpdate("ALTER TABLE " + table.name
+									+ " ADD COLUMN " + column.name + " "
+									+ column.type);
+						}
+					}
+				}
+
+				Set<String> indexed = getIndexedColumns(metaData, table.name);
+
+				for (String[] index : table.indexes) {
+					if (!indexed.contains(index[1])) {
+						stmt.executeUpdate("CREATE INDEX " + index[0] + " ON "
+								+ table.name + " (" + index[1] + ")");
+					}
+				}
+			}
+		} finally {
+			try {
+				stmt.close();
+			} catch (Throwable t) {
+				// do nothing
+			}
+		}
+	}
+
+	/**
+	 * check tables, columns, primary keys and indexes.
+	 * 
+	 * @param conn
+	 *            the connection
+	 * @param blobChunks
+	 *            <code>true</code> if <code>git_blob_chunks</code> is needed
+	 * @param indexColumn
+	 *            <code>true</code> if <code>git_commits.cindex</code> is
+	 *            needed
+	 * @return problems found, empty if the schema is usable
+	 * @throws SQLException
+	 *             if meta data cannot be read
+	 */
+	public List<String> validate(Connection conn, boolean blobChunks,
+			boolean indexColumn) throws SQLException {
+		DatabaseMetaData metaData = conn.getMetaData();
+
+		List<String> problems = new ArrayList<String>();
+
+		for (Table table : tables) {
+			if (table.optional && !blobChunks) {
+				continue;
+			}
+
+			Set<String> columns = getColumns(metaData, table.name);
+
+			if (columns.isEmpty()) {
+				problems.add("missing table " + table.name);
+				continue;
+			}
+
+			for (Column column : table.columns) {
+				if ("cindex".equals(column.name) && !indexColumn) {
+					continue;
+				}
+
+				if (!columns.contains(column.name)) {
+					problems.add("missing column " + table.name + "."
+							+ column.name);
+				} else if (column.binary
+						&& !isBinary(metaData, table.name, column.name)) {
+					problems.add("column " + table.name + "." + column.name
+							+ " is not binary");
+				}
+			}
+
+			if (table.primaryKey != null) {
+				Set<String> expected = new HashSet<String>();
+
+				for (String column : table.primaryKey) {
+					expected.add(column);
+				}
+
+				if (!expected.equals(getPrimaryKey(metaData, table.name))) {
+					problems.add("missing primary key on " + table.name
+							+ " " + expected);
+				}
+			}
+
+			Set<String> indexed = getIndexedColumns(metaData, table.name);
+
+			for (String[] index : table.indexes) {
+				if (!indexed.contains(index[1])) {
+					problems.add("missing index on " + table.name + " ("
+							+ index[1] + ")");
+				}
+			}
+		}
+
+		return problems;
+	}
+
+	/**
+	 * check whether a column exists.
+	 * 
+	 * @param conn
+	 *            the connection
+	 * @param table
+	 *            table name
+	 * @param column
+	 *            column name
+	 * @return <code>true</code> if the table has the column
+	 * @throws SQLException
+	 *             if meta data cannot be read
+	 */
+	public static boolean hasColumn(Connection conn, String table,
+			String column) throws SQLException {
+		return getColumns(conn.getMetaData(), table).contains(
+				column.toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * @return name as the database stores unquoted identifiers
+	 */
+	private static String identifier(DatabaseMetaData metaData, String name)
+			throws SQLException {
+		if (metaData.storesUpperCaseIdentifiers()) {
+			return name.toUpperCase(Locale.ENGLISH);
+		}
+
+		if (metaData.storesLowerCaseIdentifiers()) {
+			return name.toLowerCase(Locale.ENGLISH);
+		}
+
+		return name;
+	}
+
+	/**
+	 * @return lower case column names, empty if the table does not exist
+	 */
+	private static Set<String> getColumns(DatabaseMetaData metaData,
+			String table) throws SQLException {
+		Set<String> columns = new HashSet<String>();
+
+		ResultSet rs = metaData.getColumns(null, null,
+				identifier(metaData, table), null);
+
+		try {
+			while (rs.next()) {
+				columns.add(rs.getString("COLUMN_NAME").toLowerCase(
+						Locale.ENGLISH));
+			}
+		} finally {
+			rs.close();
+		}
+
+		return columns;
+	}
+
+	private static boolean isBinary(DatabaseMetaData metaData, String table,
+			String column) throws SQLException {
+		ResultSet rs = metaData.getColumns(null, null,
+				identifier(metaData, table), identifier(metaData, column));
+
+		try {
+			if (!rs.next()) {
+				return false;
+			}
+
+			switch (rs.getInt("DATA_TYPE")) {
+			case Types.BLOB:
+			case Types.BINARY:
+			case Types.VARBINARY:
+			case Types.LONGVARBINARY:
+				return true;
+			default:
+				return false;
+			}
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * @return lower case primary key column names
+	 */
+	private static Set<String> getPrimaryKey(DatabaseMetaData metaData,
+			String table) throws SQLException {
+		Set<String> columns = new HashSet<String>();
+
+		ResultSet rs = metaData.getPrimaryKeys(null, null,
+				identifier(metaData, table));
+
+		try {
+			while (rs.next()) {
+				columns.add(rs.getString("COLUMN_NAME").toLowerCase(
+						Locale.ENGLISH));
+			}
+		} finally {
+			rs.close();
+		}
+
+		return columns;
+	}
+
+	/**
+	 * @return lower case names of columns leading an index
+	 */
+	private static Set<String> getIndexedColumns(DatabaseMetaData metaData,
+			String table) throws SQLException {
+		Set<String> columns = new HashSet<String>();
+
+		ResultSet rs = metaData.getIndexInfo(null, null,
+				identifier(metaData, table), false, false);
+
+		try {
+			while (rs.next()) {
+				String column = rs.getString("COLUMN_NAME");
+
+				if ((column != null) && (rs.getInt("ORDINAL_POSITION") == 1)) {
+					columns.add(column.toLowerCase(Locale.ENGLISH));
+				}
+			}
+		} finally {
+			rs.close();
+		}
+
+		return columns;
+	}
+
+	private static class Column {
+		private String name;
+
+		private String type;
+
+		private boolean binary;
+
+		private Column(String name, String type, boolean binary) {
+			this.name = name;
+			this.type = type;
+			this.binary = binary;
+		}
+	}
+
+	private static class Table {
+		private String name;
+
+		private boolean optional;
+
+		private List<Column> columns;
+
+		private List<String> notNull;
+
+		private String[] primaryKey;
+
+		// <index name, column>
+		private List<String[]> indexes;
+
+		private Table(String name, boolean optional) {
+			this.name = name;
+			this.optional = optional;
+
+			columns = new ArrayList<Column>();
+			notNull = new ArrayList<String>();
+			indexes = new ArrayList<String[]>();
+		}
+
+		private Table column(String name, String type, boolean notNull) {
+			columns.add(new Column(name, type, false));
+
+			if (notNull) {
+				this.notNull.add(name);
+			}
+
+			return this;
+		}
+
+		private Table binaryColumn(String name, String type, boolean notNull) {
+			column(name, type, notNull);
+			columns.get(columns.size() - 1).binary = true;
+
+			return this;
+		}
+
+		private Table primaryKey(String... columns) {
+			primaryKey = columns;
+			return this;
+		}
+
+		private Table index(String name, String column) {
+			indexes.add(new String[] { name, column });
+			return this;
+		}
+
+		private String createStatement() {
+			StringBuilder sql = new StringBuilder("CREATE TABLE ").append(
+					name).append(" (");
+
+			for (int i = 0, len = columns.size(); i < len; ++i) {
+				Column column = columns.get(i);
+
+				if (i > 0) {
+					sql.append(", ");
+				}
+
+				sql.append(column.name).append(' ').append(column.type);
+
+				if (notNull.contains(column.name)) {
+					sql.append(" NOT NULL");
+				}
+			}
+
+			if (primaryKey != null) {
+				sql.append(", PRIMARY KEY (");
+				Dialect.appendColumns(sql, "", primaryKey).append(')');
+			}
+
+			return sql.append(')').toString();
+		}
+	}
+}
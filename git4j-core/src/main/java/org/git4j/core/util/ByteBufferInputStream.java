@@ -0,0 +1,70 @@
+package org.git4j.core.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the remaining bytes of a {@link ByteBuffer}. Unlike
+ * <code>BufferedInputStream</code>, single byte reads are not synchronized and
+ * direct or mapped buffers are read without copying them first.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+	private ByteBuffer bb;
+
+	public ByteBufferInputStream(ByteBuffer bb) {
+		if (bb == null) {
+			throw new NullPointerException("bb");
+		}
+
+		this.bb = bb;
+	}
+
+	@Override
+	public int read() {
+		return bb.hasRemaining() ? bb.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+
+		int n = Math.min(len, bb.remaining());
+		if (n == 0) {
+			return -1;
+		}
+
+		bb.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		int skipped = (int) Math.max(0, Math.min(n, bb.remaining()));
+		bb.position(bb.position() + skipped);
+
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return bb.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		bb.mark();
+	}
+
+	@Override
+	public synchronized void reset() {
+		bb.reset();
+	}
+}
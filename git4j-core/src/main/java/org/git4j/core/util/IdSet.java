@@ -0,0 +1,111 @@
+package org.git4j.core.util;
+
+/**
+ * Memory efficient set of object ids. Only a 64-bit fingerprint of each id is
+ * kept in an open addressing table (8 to 16 bytes per id instead of a
+ * <code>String</code> and a hash entry), so {@link #contains(String)} may
+ * return a false positive with a probability of about <code>n / 2^64</code>.
+ * Callers MUST only use it where a false positive is harmless. It MUST NOT
+ * decide which objects are deleted, e.g. a mark set stopping a traversal at
+ * an id it wrongly contains.
+ */
+public class IdSet {
+
+	private long[] table;
+
+	private int size;
+
+	public IdSet(int expectedSize) {
+		int capacity = 16;
+
+		while (capacity < (expectedSize << 1)) {
+			capacity <<= 1;
+		}
+
+		table = new long[capacity];
+		size = 0;
+	}
+
+	public IdSet() {
+		this(1024);
+	}
+
+	/**
+	 * @return 64-bit fingerprint of an id, never <code>0</code>
+	 */
+	public static long fingerprint(String id) {
+		// FNV-1a
+		long h = 0xcbf29ce484222325L;
+
+		for (int i = 0, len = id.length(); i < len; ++i) {
+			h ^= id.charAt(i);
+			h *= 0x100000001b3L;
+		}
+
+		// final avalanche, zero marks an empty slot
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+
+		return h == 0 ? 1 : h;
+	}
+
+	private static int indexOf(long[] table, long fp) {
+		int mask = table.length - 1;
+		int i = (int) fp & mask;
+
+		while ((table[i] != 0) && (table[i] != fp)) {
+			i = (i + 1) & mask;
+		}
+
+		return i;
+	}
+
+	private void grow() {
+		long[] grown = new long[table.length << 1];
+
+		for (int i = 0, len = table.length; i < len; ++i) {
+			long fp = table[i];
+
+			if (fp != 0) {
+				grown[indexOf(grown, fp)] = fp;
+			}
+		}
+
+		table = grown;
+	}
+
+	/**
+	 * add an id into this set.
+	 * 
+	 * @param id
+	 *            object id
+	 * @return <code>true</code> if the id was not in this set
+	 */
+	public synchronized boolean add(String id) {
+		long fp = fingerprint(id);
+		int i = indexOf(table, fp);
+
+		if (table[i] == fp) {
+			return false;
+		}
+
+		table[i] = fp;
+
+		if (++size > (table.length >> 1)) {
+			grow();
+		}
+
+		return true;
+	}
+
+	public synchronized boolean contains(String id) {
+		long fp = fingerprint(id);
+
+		return table[indexOf(table, fp)] == fp;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+}
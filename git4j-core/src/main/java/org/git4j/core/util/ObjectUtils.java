@@ -1,9 +1,13 @@
 package org.git4j.core.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -11,7 +15,9 @@ import org.git4j.core.ConflictResolution;
 import org.git4j.core.GitException;
 import org.git4j.core.objs.Blob;
 import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.RefUpdate;
 import org.git4j.core.objs.UploadPack;
+import org.git4j.core.repo.CommitGraph;
 import org.git4j.core.repo.Repository;
 
 public abstract class ObjectUtils {
@@ -41,6 +47,58 @@ public abstract class ObjectUtils {
 		}
 	}
 
+	/**
+	 * validate a batch of ref updates: branches MUST be unique per kind (local
+	 * or remote).
+	 * 
+	 * @param updates
+	 *            ref updates
+	 */
+	public static void validateRefUpdates(Collection<RefUpdate> updates) {
+		if (updates == null) {
+			throw new NullPointerException("updates");
+		}
+
+		Set<String> locals = new HashSet<String>();
+		Set<String> remotes = new HashSet<String>();
+
+		for (RefUpdate update : updates) {
+			if (update.getBranch() == null) {
+				throw new NullPointerException("branch");
+			}
+
+			if (!(update.isRemote() ? remotes : locals).add(update
+					.getBranch())) {
+				throw new IllegalArgumentException("branch "
+						+ update.getBranch() + " updated more than once");
+			}
+		}
+	}
+
+	/**
+	 * calculate size of an object (COMMIT or BLOB) in its serialized form
+	 * 
+	 * @param o
+	 *            the object
+	 * @return size in bytes, <code>-1</code> if the object is not a COMMIT
+	 *         nor BLOB
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	public static long sizeOf(Object o) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		if (o instanceof Commit) {
+			((Commit) o).writeObject(out);
+		} else if (o instanceof Blob) {
+			((Blob) o).writeObject(out);
+		} else {
+			return -1;
+		}
+
+		return out.size();
+	}
+
 	/**
 	 * do reverse walk for fast-forward checking
 	 * 
@@ -58,17 +116,14 @@ public abstract class ObjectUtils {
 	 */
 	public static boolean canFastForward(Repository repo, String fromId,
 			String toId) throws GitException, IOException {
+		FirstParents parents = new FirstParents(repo, toId);
+
 		boolean fastForward = false;
 		String currentId = fromId;
 
 		while ((currentId != null) && !(fastForward = currentId.equals(toId))) {
-			Commit current = repo.find(Commit.class, currentId);
-			if (current == null) {
-				throw new GitException("unable to find commit " + currentId);
-			}
-
 			// walk
-			currentId = current.getParent();
+			currentId = parents.of(currentId);
 		}
 
 		return (toId == null) || fastForward;
@@ -102,18 +157,35 @@ public abstract class ObjectUtils {
 		boolean collectCOMMITs = commits != null;
 		boolean collectBLOBs = blobs != null;
 
+		FirstParents parents = new FirstParents(repo, toId);
+
 		boolean fastForward = false;
 		String currentId = fromId;
 
+		List<String> walked = new ArrayList<String>();
+
 		while ((currentId != null) && !(fastForward = currentId.equals(toId))) {
-			Commit current = repo.find(Commit.class, currentId);
+			walked.add(currentId);
+
+			// walk
+			currentId = parents.of(currentId);
+		}
+
+		if (!collectCOMMITs && !collectBLOBs) {
+			return (toId == null) || fastForward;
+		}
+
+		Map<String, Commit> loaded = parents.commits(walked);
+
+		for (String id : walked) {
+			Commit current = loaded.get(id);
 			if (current == null) {
-				throw new GitException("unable to find commit " + currentId);
+				throw new GitException("unable to find commit " + id);
 			}
 
 			// collect COMMIT
 			if (collectCOMMITs) {
-				commits.put(currentId, current);
+				commits.put(id, current);
 			}
 
 			// collect BLOBs
@@ -130,9 +202,6 @@ public abstract class ObjectUtils {
 					}
 				}
 			}
-
-			// walk
-			currentId = current.getParent();
 		}
 
 		return (toId == null) || fastForward;
@@ -298,6 +367,8 @@ public abstract class ObjectUtils {
 		// <id [can be null], previous id>
 		Map<String, String> prevA = new HashMap<String, String>();
 
+		FirstParents parents = new FirstParents(repo, null);
+
 		while ((idA != null) || (idB != null)) {
 			if ((idA != null) && (idB != null) && idA.equals(idB)) {
 				break;
@@ -308,15 +379,12 @@ public abstract class ObjectUtils {
 					break;
 				}
 
-				Commit pointA = repo.find(Commit.class, idA);
-				if (pointA == null) {
-					throw new GitException("unable to find commit " + idA);
-				}
+				String parentA = parents.of(idA);
 
 				revpathA.add(idA);
 
-				prevA.put(pointA.getParent(), idA);
-				idA = pointA.getParent();
+				prevA.put(parentA, idA);
+				idA = parentA;
 			}
 
 			if (idB != null) {
@@ -324,13 +392,10 @@ public abstract class ObjectUtils {
 					break;
 				}
 
-				Commit pointB = repo.find(Commit.class, idB);
-				if (pointB == null) {
-					throw new GitException("unable to find commit " + idB);
-				}
+				String parentB = parents.of(idB);
 
 				revpathB.add(idB);
-				idB = pointB.getParent();
+				idB = parentB;
 			}
 		}
 
@@ -358,6 +423,104 @@ public abstract class ObjectUtils {
 		return null;
 	}
 
+	/**
+	 * first parent lookup for the walks above. Repositories implementing
+	 * {@link CommitGraph} are asked for a whole chain of commits at once,
+	 * other repositories load one commit per step.
+	 */
+	private static class FirstParents {
+		private Repository repo;
+
+		private CommitGraph graph;
+
+		private String stopId;
+
+		private Map<String, String> parents;
+
+		private Map<String, Commit> loaded;
+
+		private FirstParents(Repository repo, String stopId) {
+			this.repo = repo;
+			this.stopId = stopId;
+
+			if (repo instanceof CommitGraph) {
+				graph = (CommitGraph) repo;
+			}
+
+			parents = new HashMap<String, String>();
+			loaded = new HashMap<String, Commit>();
+		}
+
+		/**
+		 * @return first parent id of a commit, <code>null</code> for a root
+		 *         commit
+		 */
+		private String of(String id) throws GitException, IOException {
+			if (parents.containsKey(id)) {
+				return parents.get(id);
+			}
+
+			if (graph != null) {
+				Map<String, String> chain = graph.firstParents(id, stopId);
+
+				if (chain == null) {
+					// repository cannot walk history itself
+					graph = null;
+				} else {
+					parents.putAll(chain);
+
+					if (parents.containsKey(id)) {
+						return parents.get(id);
+					}
+				}
+			}
+
+			Commit commit = repo.find(Commit.class, id);
+			if (commit == null) {
+				throw new GitException("unable to find commit " + id);
+			}
+
+			loaded.put(id, commit);
+			parents.put(id, commit.getParent());
+
+			return commit.getParent();
+		}
+
+		/**
+		 * @return walked commits, loaded at once when possible
+		 */
+		private Map<String, Commit> commits(List<String> ids)
+				throws IOException {
+			Map<String, Commit> commits = new HashMap<String, Commit>(loaded);
+
+			List<String> missing = new ArrayList<String>();
+
+			for (String id : ids) {
+				if (!commits.containsKey(id)) {
+					missing.add(id);
+				}
+			}
+
+			if (missing.isEmpty()) {
+				return commits;
+			}
+
+			if (graph != null) {
+				commits.putAll(graph.findCommits(missing));
+			} else {
+				for (String id : missing) {
+					Commit commit = repo.find(Commit.class, id);
+
+					if (commit != null) {
+						commits.put(id, commit);
+					}
+				}
+			}
+
+			return commits;
+		}
+	}
+
 	public static class AutoMergeResult {
 		private Map<String, String> index;
 
@@ -0,0 +1,137 @@
+package org.git4j.core.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.runners.Parameterized;
+
+/**
+ * Repository implementation a backend independent test runs against, as a
+ * {@link Parameterized} parameter. A backend opens one repository at a time.
+ */
+abstract class Backend {
+
+	private String name;
+
+	private Backend(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * open a new, empty repository.
+	 * 
+	 * @param prefix
+	 *            prefix of the directory or database name
+	 */
+	abstract Repository open(String prefix) throws Exception;
+
+	/**
+	 * wipe the repository opened last and release what it holds.
+	 */
+	abstract void close(Repository repo) throws Exception;
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * @return every backend, one parameter array each
+	 */
+	static Collection<Object[]> all() {
+		List<Object[]> backends = new ArrayList<Object[]>();
+
+		backends.add(new Object[] { new Backend("inMemory") {
+
+			Repository open(String prefix) {
+				return new InMemoryRepository();
+			}
+
+			void close(Repository repo) throws IOException {
+				((InMemoryRepository) repo).close();
+			}
+		} });
+
+		backends.add(new Object[] { new Backend("offHeap") {
+
+			Repository open(String prefix) {
+				return new InMemoryRepository(64, 2);
+			}
+
+			void close(Repository repo) throws IOException {
+				((InMemoryRepository) repo).close();
+			}
+		} });
+
+		backends.add(new Object[] { new Backend("bounded") {
+
+			Repository open(String prefix) {
+				return new InMemoryRepository(64, new File("target"));
+			}
+
+			void close(Repository repo) throws IOException {
+				((InMemoryRepository) repo).close();
+			}
+		} });
+
+		backends.add(new Object[] { new Backend("file") {
+
+			Repository open(String prefix) {
+				return new FileRepository(new File("target" + File.separator
+						+ prefix + "-repo-" + UUID.randomUUID()));
+			}
+
+			void close(Repository repo) throws IOException {
+				try {
+					repo.wipe();
+				} finally {
+					((FileRepository) repo).close();
+				}
+			}
+		} });
+
+		backends.add(new Object[] { new Backend("h2") {
+
+			private String database;
+
+			Repository open(String prefix) throws IOException {
+				database = prefix + "-" + UUID.randomUUID();
+
+				return EmbeddedDatabases.h2(database);
+			}
+
+			void close(Repository repo) throws Exception {
+				try {
+					repo.wipe();
+				} finally {
+					EmbeddedDatabases.dropH2(database);
+				}
+			}
+		} });
+
+		backends.add(new Object[] { new Backend("derby") {
+
+			private String database;
+
+			Repository open(String prefix) throws IOException {
+				database = prefix + "-" + UUID.randomUUID();
+
+				return EmbeddedDatabases.derby(database);
+			}
+
+			void close(Repository repo) throws Exception {
+				try {
+					repo.wipe();
+				} finally {
+					EmbeddedDatabases.dropDerby(database);
+				}
+			}
+		} });
+
+		return backends;
+	}
+}
@@ -0,0 +1,211 @@
+package org.git4j.core.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.ObjectInfo;
+import org.git4j.core.util.ObjectUtils;
+import org.junit.Test;
+
+public class BoundedObjectsTest {
+
+	@Test
+	public void spillAndReload() throws Exception {
+		InMemoryRepository repo = new InMemoryRepository(1000, new File(
+				"target"));
+
+		try {
+			List<String> ids = new ArrayList<String>();
+			long total = 0;
+
+			for (int i = 0; i < 100; ++i) {
+				Blob blob = new Blob("content " + i);
+
+				ids.add(repo.store(blob));
+				total += ObjectUtils.sizeOf(blob);
+			}
+
+			// accounted from encoded sizes
+			assertEquals(total, repo.getResidentBytes()
+					+ repo.getSpilledBytes());
+			assertTrue(repo.getResidentBytes() <= 1000);
+			assertTrue(repo.getSpilledBytes() > 0);
+
+			// reloaded, in any order and more than once
+			for (int round = 0; round < 2; ++round) {
+				for (int i = ids.size() - 1; i >= 0; --i) {
+					Blob blob = repo.find(Blob.class, ids.get(i));
+
+					assertEquals("content " + i, new String(blob
+							.getContentAsBytes(), "UTF-8"));
+				}
+			}
+
+			assertEquals(total, repo.getResidentBytes()
+					+ repo.getSpilledBytes());
+			assertTrue(repo.getResidentBytes() <= 1000);
+
+			// the most recently found object is resident
+			long spilled = repo.getSpilledBytes();
+			repo.find(Blob.class, ids.get(0));
+			assertEquals(spilled, repo.getSpilledBytes());
+
+			long size = repo.remove(ids.get(99));
+			assertTrue(size > 0);
+			assertNull(repo.find(Blob.class, ids.get(99)));
+			assertEquals(total - size, repo.getResidentBytes()
+					+ repo.getSpilledBytes());
+		} finally {
+			repo.close();
+		}
+
+		assertEquals(0, repo.getResidentBytes() + repo.getSpilledBytes());
+	}
+
+	@Test
+	public void largerThanBudget() throws Exception {
+		InMemoryRepository repo = new InMemoryRepository(10, new File(
+				"target"));
+
+		try {
+			byte[] content = new byte[10000];
+			content[5000] = 1;
+
+			String id = repo.store(new Blob(content));
+
+			assertEquals(0, repo.getResidentBytes());
+
+			for (int i = 0; i < 3; ++i) {
+				assertEquals(1, repo.find(Blob.class, id).getContentAsBytes()[5000]);
+			}
+
+			assertEquals(0, repo.getResidentBytes());
+		} finally {
+			repo.close();
+		}
+	}
+
+	private static int segments(File dir) {
+		String[] names = dir.list();
+
+		return names == null ? 0 : names.length;
+	}
+
+	@Test
+	public void closeDeletesSegment() throws Exception {
+		File dir = new File("target" + File.separator + "bounded-"
+				+ UUID.randomUUID());
+		dir.mkdirs();
+
+		InMemoryRepository repo = new InMemoryRepository(10, dir);
+
+		for (int i = 0; i < 10; ++i) {
+			repo.store(new Blob("content " + i));
+		}
+
+		assertEquals(1, segments(dir));
+
+		repo.close();
+
+		assertEquals(0, segments(dir));
+		assertEquals(0, repo.getResidentBytes() + repo.getSpilledBytes());
+
+		dir.delete();
+	}
+
+	@Test
+	public void segmentCompaction() throws Exception {
+		File dir = new File("target" + File.separator + "bounded-"
+				+ UUID.randomUUID());
+		dir.mkdirs();
+
+		BoundedObjects objects = new BoundedObjects(1000, dir);
+
+		try {
+			List<String> ids = new ArrayList<String>();
+
+			for (int i = 0; i < 400; ++i) {
+				Blob blob = new Blob("content " + i);
+
+				objects.put(blob.getId(), blob);
+				ids.add(blob.getId());
+			}
+
+			long length = objects.getSegmentLength();
+			assertTrue(length > 0);
+
+			for (int i = 0; i < ids.size(); ++i) {
+				if ((i % 4) != 0) {
+					objects.remove(ids.get(i), Long.MAX_VALUE);
+				}
+			}
+
+			// copied to a new segment file, the old one is deleted
+			assertTrue(objects.getSegmentLength() < length / 2);
+			assertEquals(1, segments(dir));
+
+			for (int i = 0; i < ids.size(); i += 4) {
+				Blob blob = (Blob) objects.get(ids.get(i));
+
+				assertEquals("content " + i, new String(blob
+						.getContentAsBytes(), "UTF-8"));
+			}
+
+			for (int i = 1; i < ids.size(); i += 4) {
+				assertNull(objects.get(ids.get(i)));
+			}
+		} finally {
+			objects.close();
+		}
+
+		assertEquals(0, segments(dir));
+
+		dir.delete();
+	}
+
+	@Test
+	public void cursorWhileWriting() throws Exception {
+		InMemoryRepository repo = new InMemoryRepository(1000, new File(
+				"target"));
+
+		try {
+			List<String> ids = new ArrayList<String>();
+
+			for (int i = 0; i < 100; ++i) {
+				ids.add(repo.store(new Blob("content " + i)));
+			}
+
+			Set<String> listed = new HashSet<String>();
+
+			ObjectCursor cursor = repo.objects(null);
+
+			try {
+				ObjectInfo info;
+
+				// objects are stored and reloaded, spilling others, as the
+				// entries are iterated
+				for (int i = 0; (info = cursor.next()) != null; ++i) {
+					listed.add(info.getId());
+
+					repo.store(new Blob("more " + i));
+					repo.find(Blob.class, ids.get(i % ids.size()));
+				}
+			} finally {
+				cursor.close();
+			}
+
+			assertTrue(listed.containsAll(ids));
+		} finally {
+			repo.close();
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package org.git4j.core.repo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.UploadPack;
+
+/**
+ * Measures commit throughput and latency of {@link FileRepository} for each
+ * {@link Durability}. A commit stores a BLOB and a COMMIT, either one at a
+ * time or as one {@link UploadPack}, then moves the branch of its thread.
+ * <p>
+ * Every combination runs once as a warm-up, then <code>rounds</code> times
+ * in an order rotated each round, so no policy always runs first or last.
+ * The median of each combination is reported at the end.
+ * <p>
+ * Usage:
+ * <code>DurabilityBenchmark [threads] [commits] [directory] [rounds]</code>
+ */
+public class DurabilityBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int commits = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		String dir = args.length > 2 ? args[2] : "target";
+		int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+		List<String> names = new ArrayList<String>();
+		List<Durability> durabilities = new ArrayList<Durability>();
+		List<Boolean> packs = new ArrayList<Boolean>();
+
+		for (Durability durability : Durability.values()) {
+			for (int pack = 0; pack < 2; ++pack) {
+				names.add(durability + (pack == 0 ? " single" : " pack"));
+				durabilities.add(durability);
+				packs.add(pack == 1);
+			}
+		}
+
+		// not reported, compiles the code paths of every combination
+		for (int i = 0; i < names.size(); ++i) {
+			run(new File(dir, "bench-repo-" + UUID.randomUUID()),
+					durabilities.get(i), packs.get(i), threads, commits);
+		}
+
+		Map<String, List<Long>> results = new LinkedHashMap<String, List<Long>>();
+
+		for (String name : names) {
+			results.put(name, new ArrayList<Long>());
+		}
+
+		for (int round = 0; round < rounds; ++round) {
+			for (int n = 0; n < names.size(); ++n) {
+				int i = (n + round) % names.size();
+
+				long[] measured = run(new File(dir, "bench-repo-"
+						+ UUID.randomUUID()), durabilities.get(i), packs
+						.get(i), threads, commits);
+
+				System.out.println("round " + (round + 1) + ", "
+						+ names.get(i) + ": " + measured[0] + " commits/s, "
+						+ measured[1] + " us/commit");
+
+				results.get(names.get(i)).add(measured[0]);
+			}
+		}
+
+		for (Map.Entry<String, List<Long>> e : results.entrySet()) {
+			List<Long> sorted = new ArrayList<Long>(e.getValue());
+			Collections.sort(sorted);
+
+			System.out.println(e.getKey() + ": median "
+					+ sorted.get(sorted.size() / 2) + " commits/s of "
+					+ sorted.size() + " rounds");
+		}
+	}
+
+	/**
+	 * @return commits per second and mean latency in microseconds
+	 */
+	private static long[] run(File base, Durability durability,
+			final boolean pack, int threads, final int commits)
+			throws Exception {
+
+		final FileRepository repo = new FileRepository(base);
+		repo.setDurability(durability);
+
+		final AtomicLong latency = new AtomicLong();
+
+		try {
+			Thread[] workers = new Thread[threads];
+
+			for (int i = 0; i < threads; ++i) {
+				final String branch = "branch" + i;
+
+				workers[i] = new Thread() {
+
+					@Override
+					public void run() {
+						try {
+							String head = null;
+
+							for (int n = 0; n < commits; ++n) {
+								long start = System.nanoTime();
+
+								Blob blob = new Blob(branch + " " + n);
+
+								Commit commit = new Commit();
+								commit.setParent(head);
+								commit.index().put("file", blob.getId());
+
+								if (pack) {
+									// the group commit path of one writer
+									Map<String, Blob> blobs = new HashMap<String, Blob>();
+									blobs.put(blob.getId(), blob);
+
+									Map<String, Commit> cs = new HashMap<String, Commit>();
+									cs.put(commit.getId(), commit);
+
+									UploadPack up = new UploadPack();
+									up.setBlobs(blobs);
+									up.setCommits(cs);
+
+									repo.store(up);
+								} else {
+									repo.store(blob);
+									repo.store(commit);
+								}
+
+								repo.setLocalHeadRef(branch, head,
+										commit.getId());
+
+								head = commit.getId();
+								latency.addAndGet(System.nanoTime() - start);
+							}
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					}
+				};
+			}
+
+			long start = System.nanoTime();
+
+			for (Thread t : workers) {
+				t.start();
+			}
+
+			for (Thread t : workers) {
+				t.join();
+			}
+
+			long elapsed = System.nanoTime() - start;
+			long total = (long) threads * commits;
+
+			return new long[] { total * 1000000000L / elapsed,
+					latency.get() / total / 1000 };
+		} finally {
+			try {
+				repo.wipe();
+			} finally {
+				repo.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package org.git4j.core.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.UploadPack;
+import org.junit.Test;
+
+public class DurabilityTest {
+
+	private static void commits(Durability durability) throws Exception {
+		File base = new File("target" + File.separator + "durable-repo-"
+				+ UUID.randomUUID());
+
+		final FileRepository repo = new FileRepository(base);
+		repo.setDurability(durability);
+		repo.setGroupCommitWindow(5);
+		repo.setPackThreshold(2);
+
+		final AtomicReference<Throwable> failure;
+		failure = new AtomicReference<Throwable>();
+
+		try {
+			List<Thread> threads = new ArrayList<Thread>();
+
+			for (int i = 0; i < 4; ++i) {
+				final String branch = "branch" + i;
+
+				threads.add(new Thread() {
+
+					@Override
+					public void run() {
+						try {
+							String head = null;
+
+							for (int n = 0; n < 10; ++n) {
+								String blobId = repo.store(new Blob(branch
+										+ " " + n));
+
+								Commit commit = new Commit();
+								commit.setParent(head);
+								commit.index().put("file", blobId);
+
+								repo.store(commit);
+								repo.setLocalHeadRef(branch, head,
+										commit.getId());
+
+								head = commit.getId();
+							}
+						} catch (Throwable t) {
+							failure.set(t);
+						}
+					}
+				});
+			}
+
+			for (Thread t : threads) {
+				t.start();
+			}
+
+			for (Thread t : threads) {
+				t.join();
+			}
+
+			if (failure.get() != null) {
+				throw new AssertionError(failure.get());
+			}
+
+			// packed objects are synced as well
+			UploadPack pack = new UploadPack();
+			pack.setBlobs(new HashMap<String, Blob>());
+			pack.setCommits(new HashMap<String, Commit>());
+
+			for (int i = 0; i < 10; ++i) {
+				Blob blob = new Blob("packed " + i);
+				pack.getBlobs().put(blob.getId(), blob);
+			}
+
+			repo.store(pack);
+
+			FileRepository other = new FileRepository(base);
+			assertEquals(4, other.getLocalBranches().size());
+
+			for (int i = 0; i < 4; ++i) {
+				Commit head = other.getLocalHead("branch" + i);
+				assertEquals("branch" + i + " 9", other.find(Blob.class,
+						head.index().get("file")).getContent());
+			}
+
+			for (String id : pack.getBlobs().keySet()) {
+				assertEquals(id, other.find(Blob.class, id).getId());
+			}
+		} finally {
+			repo.wipe();
+		}
+	}
+
+	@Test
+	public void sync() throws Exception {
+		commits(Durability.SYNC);
+	}
+
+	@Test
+	public void groupCommit() throws Exception {
+		commits(Durability.GROUP_COMMIT);
+	}
+
+	@Test
+	public void groupCommitPacksRound() throws Exception {
+		File base = new File("target" + File.separator + "durable-repo-"
+				+ UUID.randomUUID());
+		File packDir = new File(new File(base, "objects"), "pack");
+
+		final FileRepository repo = new FileRepository(base);
+		repo.setDurability(Durability.GROUP_COMMIT);
+
+		// long enough for every writer to join the first round
+		repo.setGroupCommitWindow(500);
+
+		final CountDownLatch start = new CountDownLatch(1);
+
+		final AtomicReference<Throwable> failure;
+		failure = new AtomicReference<Throwable>();
+
+		try {
+			List<Thread> threads = new ArrayList<Thread>();
+
+			for (int i = 0; i < 4; ++i) {
+				final Blob blob = new Blob("round " + i);
+
+				threads.add(new Thread() {
+
+					@Override
+					public void run() {
+						try {
+							start.await();
+							repo.store(blob);
+						} catch (Throwable t) {
+							failure.set(t);
+						}
+					}
+				});
+			}
+
+			for (Thread t : threads) {
+				t.start();
+			}
+
+			start.countDown();
+
+			for (Thread t : threads) {
+				t.join();
+			}
+
+			if (failure.get() != null) {
+				throw new AssertionError(failure.get());
+			}
+
+			// fewer packs than writers
+			File[] packs = packDir.listFiles();
+			int rounds = 0;
+
+			for (int i = 0; i < packs.length; ++i) {
+				if (packs[i].getName().endsWith(PackFile.IDX_SUFFIX)) {
+					++rounds;
+				}
+			}
+
+			assertTrue((rounds > 0) && (rounds < 4));
+
+			for (int i = 0; i < 4; ++i) {
+				assertEquals("round " + i, repo.find(Blob.class,
+						Blob.getId("round " + i)).getContent());
+			}
+		} finally {
+			repo.wipe();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeWindow() {
+		new GroupCommit(-1, null);
+	}
+}
@@ -0,0 +1,98 @@
+package org.git4j.core.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.h2.jdbcx.JdbcDataSource;
+
+/**
+ * JDBC repositories on in-memory embedded databases, with the schema
+ * created. Each name is a database of its own, kept until dropped.
+ */
+class EmbeddedDatabases {
+
+	static {
+		System.setProperty("derby.stream.error.file", "target"
+				+ File.separator + "derby.log");
+	}
+
+	private EmbeddedDatabases() {
+		// do nothing
+	}
+
+	static DataSource h2DataSource(String name) {
+		JdbcDataSource ds = new JdbcDataSource();
+		ds.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+
+		return ds;
+	}
+
+	static JDBCRepository h2(String name) throws IOException {
+		JDBCRepository repo = new JDBCRepository(h2DataSource(name));
+		repo.createSchema();
+
+		return repo;
+	}
+
+	static DataSource derbyDataSource(String name) {
+		EmbeddedDataSource ds = new EmbeddedDataSource();
+		ds.setDatabaseName("memory:" + name);
+		ds.setCreateDatabase("create");
+
+		return ds;
+	}
+
+	static JDBCRepository derby(String name) throws IOException {
+		JDBCRepository repo = new JDBCRepository(derbyDataSource(name));
+		repo.createSchema();
+
+		return repo;
+	}
+
+	/**
+	 * drop an H2 database, releasing its memory.
+	 */
+	static void dropH2(String name) throws SQLException {
+		Connection conn = h2DataSource(name).getConnection();
+
+		try {
+			Statement stmt = conn.createStatement();
+			stmt.execute("SHUTDOWN");
+			stmt.close();
+		} finally {
+			try {
+				conn.close();
+			} catch (Throwable t) {
+				// do nothing
+			}
+		}
+	}
+
+	/**
+	 * drop a Derby database, releasing its memory.
+	 */
+	static void dropDerby(String name) throws SQLException {
+		EmbeddedDataSource ds = new EmbeddedDataSource();
+		ds.setDatabaseName("memory:" + name);
+		ds.setConnectionAttributes("drop=true");
+
+		try {
+			ds.getConnection().close();
+		} catch (SQLException e) {
+			// reported as an exception once dropped
+			if (!"08006".equals(e.getSQLState())) {
+				throw e;
+			}
+
+			return;
+		}
+
+		throw new SQLException("database " + name + " not dropped");
+	}
+}
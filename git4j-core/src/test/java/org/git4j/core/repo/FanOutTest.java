@@ -0,0 +1,187 @@
+package org.git4j.core.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.ObjectInfo;
+import org.junit.Test;
+
+public class FanOutTest {
+
+	private static Set<String> list(Repository repo) throws Exception {
+		Set<String> ids = new HashSet<String>();
+		ObjectCursor cursor = repo.objects(null);
+
+		try {
+			ObjectInfo info;
+
+			while ((info = cursor.next()) != null) {
+				ids.add(info.getId());
+			}
+		} finally {
+			cursor.close();
+		}
+
+		return ids;
+	}
+
+	@Test
+	public void migrate() throws Exception {
+		File base = new File("target" + File.separator + "fanout-repo-"
+				+ UUID.randomUUID());
+
+		File objects = new File(base, "objects");
+
+		FileRepository repo = new FileRepository(base, 0);
+
+		try {
+			List<String> ids = new ArrayList<String>();
+
+			for (int i = 0; i < 50; ++i) {
+				ids.add(repo.store(new Blob("content " + i)));
+			}
+
+			assertEquals(0, repo.getFanOut());
+			assertTrue(new File(objects, ids.get(0)).isFile());
+
+			repo.migrate(2);
+
+			assertEquals(2, repo.getFanOut());
+			assertFalse(new File(objects, ids.get(0)).exists());
+			assertEquals(new HashSet<String>(ids), list(repo));
+
+			for (String id : ids) {
+				assertEquals(id, repo.find(Blob.class, id).getId());
+			}
+
+			String name = ids.get(0).replace('+', '-');
+			assertTrue(new File(objects, name.substring(0, 2) + File.separator
+					+ name.substring(2, 4) + File.separator + name).isFile());
+
+			// another instance reads the layout
+			FileRepository other = new FileRepository(base, 0);
+			assertEquals(2, other.getFanOut());
+
+			String added = other.store(new Blob("added"));
+			assertEquals("added", repo.find(Blob.class, added).getContent());
+
+			repo.migrate(1);
+
+			assertEquals(51, list(repo).size());
+			assertEquals("added", other.find(Blob.class, added).getContent());
+
+			// no fan-out directories left behind
+			String[] names = objects.list();
+			for (int i = 0; i < names.length; ++i) {
+				if (names[i].length() == 2) {
+					String[] sub = new File(objects, names[i]).list();
+
+					for (int j = 0; j < sub.length; ++j) {
+						assertTrue(sub[j].length() > 2);
+					}
+				}
+			}
+		} finally {
+			repo.wipe();
+		}
+	}
+
+	@Test
+	public void commits() throws Exception {
+		File base = new File("target" + File.separator + "fanout-repo-"
+				+ UUID.randomUUID());
+
+		FileRepository repo = new FileRepository(base);
+
+		try {
+			assertEquals(1, repo.getFanOut());
+
+			String blobId = repo.store(new Blob("A"));
+
+			Commit commit = new Commit();
+			commit.index().put("a.txt", blobId);
+
+			String commitId = repo.store(commit);
+			repo.setLocalHeadRef("master", null, commitId);
+
+			assertEquals(commitId, repo.find(Commit.class, commitId).getId());
+			assertEquals(2, list(repo).size());
+
+			assertTrue(repo.remove(blobId) > 0);
+			assertFalse(list(repo).contains(blobId));
+
+			repo.wipe();
+
+			// wiped repository keeps its layout
+			assertEquals(1, new FileRepository(base, 0).getFanOut());
+		} finally {
+			repo.wipe();
+		}
+	}
+
+	@Test
+	public void dotDirectories() throws Exception {
+		File base = new File("target" + File.separator + "fanout-repo-"
+				+ UUID.randomUUID());
+
+		File objects = new File(base, "objects");
+
+		FileRepository repo = new FileRepository(base, 2);
+
+		try {
+			// ids starting with "..", and with ".." as second directory
+			String first = repo.store(new Blob("dot 1440"));
+			String second = repo.store(new Blob("dot 7002"));
+
+			assertTrue(first.startsWith(".."));
+			assertTrue(second.startsWith("..", 2));
+
+			String[] names = { first.replace('+', '-'),
+					second.replace('+', '-') };
+
+			assertTrue(new File(objects, "__" + File.separator
+					+ names[0].substring(2, 4) + File.separator + names[0])
+					.isFile());
+			assertTrue(new File(objects, names[1].substring(0, 2)
+					+ File.separator + "__" + File.separator + names[1])
+					.isFile());
+
+			Set<String> expected = new HashSet<String>();
+			expected.add(first);
+			expected.add(second);
+
+			assertEquals(expected, list(repo));
+
+			repo.migrate(1);
+
+			assertTrue(new File(objects, "__" + File.separator + names[0])
+					.isFile());
+			assertEquals(expected, list(repo));
+			assertEquals("dot 1440", repo.find(Blob.class, first).getContent());
+
+			// nothing written next to the objects directory
+			assertFalse(new File(base, names[0]).exists());
+
+			assertTrue(repo.remove(first) > 0);
+			assertEquals(1, list(repo).size());
+		} finally {
+			repo.wipe();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidFanOut() {
+		new FileRepository(new File("target" + File.separator
+				+ "fanout-repo-" + UUID.randomUUID()), 5);
+	}
+}
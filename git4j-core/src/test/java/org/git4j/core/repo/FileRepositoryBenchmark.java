@@ -0,0 +1,75 @@
+package org.git4j.core.repo;
+
+import java.io.File;
+import java.util.Random;
+import java.util.UUID;
+
+import org.git4j.core.objs.Blob;
+
+/**
+ * Measures loose object store and find latency of {@link FileRepository} for
+ * a given number of objects and fan-out.
+ * <p>
+ * Usage: <code>FileRepositoryBenchmark [count] [fanOut] [directory]</code>
+ */
+public class FileRepositoryBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int fanOut = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+		File base = new File(args.length > 2 ? args[2] : "target",
+				"bench-repo-" + UUID.randomUUID());
+
+		FileRepository repo = new FileRepository(base, fanOut);
+
+		try {
+			String[] ids = new String[count];
+
+			long start = System.nanoTime();
+
+			for (int i = 0; i < count; ++i) {
+				ids[i] = repo.store(new Blob("content " + i));
+
+				if ((i + 1) % 100000 == 0) {
+					report("store", i + 1, start);
+				}
+			}
+
+			report("store", count, start);
+
+			Random random = new Random(0);
+			int finds = Math.min(count, 100000);
+
+			start = System.nanoTime();
+
+			for (int i = 0; i < finds; ++i) {
+				String id = ids[random.nextInt(count)];
+
+				if (repo.find(Blob.class, id) == null) {
+					throw new IllegalStateException("missing object " + id);
+				}
+			}
+
+			report("find", finds, start);
+
+			start = System.nanoTime();
+
+			for (int i = 0; i < finds; ++i) {
+				repo.find(Blob.class, "missing" + i);
+			}
+
+			report("miss", finds, start);
+		} finally {
+			repo.wipe();
+			base.delete();
+		}
+	}
+
+	private static void report(String op, int n, long start) {
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(op + ": " + n + " objects, " + (elapsed / 1000000)
+				+ " ms, " + (elapsed / 1000 / n) + " us/op");
+	}
+}
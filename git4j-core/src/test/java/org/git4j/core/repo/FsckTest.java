@@ -0,0 +1,169 @@
+package org.git4j.core.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.UUID;
+
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.Commit;
+import org.git4j.core.repo.Fsck.Problem;
+import org.git4j.core.repo.Fsck.ProblemType;
+import org.junit.Test;
+
+public class FsckTest {
+
+	private static void copy(File source, File target) throws Exception {
+		FileInputStream in = new FileInputStream(source);
+		FileOutputStream out = new FileOutputStream(target);
+
+		try {
+			byte[] buf = new byte[1024];
+			int n;
+
+			while ((n = in.read(buf)) > 0) {
+				out.write(buf, 0, n);
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	private static String commit(Repository repo, String parent,
+			String... blobIds) throws Exception {
+		Commit commit = new Commit();
+		commit.setParent(parent);
+
+		for (int i = 0; i < blobIds.length; ++i) {
+			commit.index().put("file" + i, blobIds[i]);
+		}
+
+		return repo.store(commit);
+	}
+
+	@Test
+	public void clean() throws Exception {
+		InMemoryRepository repo = new InMemoryRepository();
+
+		String blob1 = repo.store(new Blob("A1"));
+		String blob2 = repo.store(new Blob("A2"));
+
+		String c1 = commit(repo, null, blob1);
+		String c2 = commit(repo, c1, blob1, blob2);
+
+		repo.setLocalHeadRef("master", null, c2);
+
+		Fsck fsck = new Fsck(repo);
+		fsck.setThreads(2);
+
+		Fsck.Result result = fsck.check();
+
+		assertTrue(result.toString(), result.isClean());
+		assertEquals(4, result.getCheckedObjects());
+		assertEquals(2, result.getReachableCommits());
+	}
+
+	@Test
+	public void corruptAndMissing() throws Exception {
+		File base = new File("target" + File.separator + "fsck-repo-"
+				+ UUID.randomUUID());
+
+		// flat layout, objects are corrupted below
+		FileRepository repo = new FileRepository(base, 0);
+
+		try {
+			String blob1 = repo.store(new Blob("A1"));
+			String blob2 = repo.store(new Blob("A2"));
+			String blob3 = repo.store(new Blob("A3"));
+
+			String c1 = commit(repo, null, blob1);
+			String c2 = commit(repo, c1, blob2, blob3);
+
+			repo.setLocalHeadRef("master", null, c2);
+
+			File objects = new File(base, "objects");
+
+			// blob1 now holds blob2 content
+			copy(new File(objects, blob2), new File(objects, blob1));
+
+			// blob3 is gone
+			assertTrue(new File(objects, blob3).delete());
+
+			Fsck fsck = new Fsck(repo);
+			fsck.setThreads(2);
+
+			Fsck.Result result = fsck.check();
+
+			assertFalse(result.isClean());
+			assertEquals(4, result.getCheckedObjects());
+			assertEquals(2, result.getReachableCommits());
+			assertEquals(2, result.getProblemCount());
+
+			for (Problem problem : result.getProblems()) {
+				if (blob1.equals(problem.getId())) {
+					assertEquals(ProblemType.CORRUPT, problem.getType());
+				} else {
+					assertEquals(blob3, problem.getId());
+					assertEquals(ProblemType.MISSING, problem.getType());
+				}
+			}
+		} finally {
+			repo.wipe();
+		}
+	}
+
+	@Test
+	public void corruptJDBC() throws Exception {
+		String name = "fsck-" + UUID.randomUUID();
+
+		JDBCRepository repo = EmbeddedDatabases.h2(name);
+
+		try {
+			String blob1 = repo.store(new Blob("A1"));
+			String blob2 = repo.store(new Blob("A2"));
+
+			String c1 = commit(repo, null, blob1, blob2);
+
+			repo.setLocalHeadRef("master", null, c1);
+
+			// blob1 now holds blob2 content
+			Connection conn = EmbeddedDatabases.h2DataSource(name)
+					.getConnection();
+
+			try {
+				PreparedStatement pstmt = conn
+						.prepareStatement("UPDATE git_blobs SET content = (SELECT content FROM git_blobs WHERE id = ?) WHERE id = ?");
+				pstmt.setString(1, blob2);
+				pstmt.setString(2, blob1);
+				assertEquals(1, pstmt.executeUpdate());
+				pstmt.close();
+			} finally {
+				conn.close();
+			}
+
+			Fsck fsck = new Fsck(repo);
+			fsck.setThreads(2);
+
+			Fsck.Result result = fsck.check();
+
+			assertEquals(3, result.getCheckedObjects());
+			assertEquals(1, result.getProblemCount());
+
+			Problem problem = result.getProblems().get(0);
+			assertEquals(blob1, problem.getId());
+			assertEquals(ProblemType.CORRUPT, problem.getType());
+
+			// hashed by the check only
+			assertEquals(0, repo.getVerificationPolicy().getVerifiedObjects());
+		} finally {
+			EmbeddedDatabases.dropH2(name);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package org.git4j.core.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+
+import org.git4j.core.Workspace;
+import org.git4j.core.impl.DefaultGit;
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.Commit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@RunWith(Parameterized.class)
+public class GarbageCollectorTest {
+
+	@Parameters
+	public static Collection<Object[]> backends() {
+		return Backend.all();
+	}
+
+	private Backend backend;
+
+	private Repository repo;
+
+	public GarbageCollectorTest(Backend backend) {
+		this.backend = backend;
+	}
+
+	@Before
+	public void open() throws Exception {
+		repo = backend.open("gc");
+	}
+
+	@After
+	public void close() throws Exception {
+		backend.close(repo);
+	}
+
+	@Test
+	public void removedBranch() throws Exception {
+		DefaultGit git = new DefaultGit(repo);
+		Workspace workspace = new Workspace();
+
+		String kept = git.commit(workspace.add("a", "A1"), "kept", "AUTHOR",
+				"KEPT");
+
+		workspace = new Workspace();
+
+		String dropped = git.commit(workspace.add("b", "B1"), "dropped",
+				"AUTHOR", "DROPPED");
+
+		git.removeLocalBranch("dropped");
+
+		GarbageCollector gc = new GarbageCollector(repo);
+		gc.setGracePeriod(0);
+		gc.setBatchSize(1);
+
+		GarbageCollector.Result result = gc.collect();
+
+		assertEquals(4, result.getScannedObjects());
+		assertEquals(2, result.getReclaimedObjects());
+		assertTrue(result.getReclaimedBytes() > 0);
+
+		assertNotNull(repo.find(Commit.class, kept));
+		assertNotNull(repo.find(Blob.class, Blob.getId("A1")));
+
+		assertNull(repo.find(Commit.class, dropped));
+		assertNull(repo.find(Blob.class, Blob.getId("B1")));
+
+		// nothing left to collect
+		assertEquals(0, gc.collect().getReclaimedObjects());
+	}
+
+	@Test
+	public void keepRemoteHistory() throws Exception {
+		Commit first = new Commit();
+		first.index().put("a", repo.store(new Blob("A1")));
+		repo.store(first);
+
+		Commit second = new Commit();
+		second.setParent(first.getId());
+		second.index().put("a", repo.store(new Blob("A2")));
+		repo.store(second);
+
+		repo.setRemoteHeadRef("origin", null, second.getId());
+
+		GarbageCollector gc = new GarbageCollector(repo);
+		gc.setGracePeriod(0);
+
+		GarbageCollector.Result result = gc.collect();
+
+		assertEquals(4, result.getScannedObjects());
+		assertEquals(0, result.getReclaimedObjects());
+	}
+
+	@Test
+	public void keepObjectsReferencedWhileSweeping() throws Exception {
+		final Blob a = new Blob("A1");
+		final Blob b = new Blob("B1");
+
+		// a writer reuses the candidate not removed yet
+		Repository writing = (Repository) Proxy.newProxyInstance(
+				Repository.class.getClassLoader(),
+				new Class<?>[] { Repository.class }, new InvocationHandler() {
+
+					private boolean moved;
+
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						if (method.getName().equals("remove") && !moved) {
+							moved = true;
+
+							Blob reused = args[0].equals(a.getId()) ? b : a;
+							repo.store(reused);
+
+							Commit commit = new Commit();
+							commit.index().put("a", reused.getId());
+
+							repo.setLocalHeadRef("master", null, repo
+									.store(commit));
+						}
+
+						try {
+							return method.invoke(repo, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+
+		repo.store(a);
+		repo.store(b);
+
+		GarbageCollector gc = new GarbageCollector(writing);
+		gc.setGracePeriod(0);
+
+		assertEquals(1, gc.collect().getReclaimedObjects());
+
+		String kept = repo.find(Commit.class, repo.getLocalHeadRef("master"))
+				.index().get("a");
+
+		assertNotNull(repo.find(Blob.class, kept));
+	}
+}
@@ -0,0 +1,113 @@
+package org.git4j.core.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.git4j.core.GitException;
+import org.git4j.core.objs.Blob;
+
+/**
+ * Measures object find and ref update throughput of
+ * {@link InMemoryRepository} for 1 up to a given number of threads.
+ * <p>
+ * Usage: <code>InMemoryRepositoryBenchmark [maxThreads] [objects] [millis]</code>
+ */
+public class InMemoryRepositoryBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		long millis = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+
+		final InMemoryRepository repo = new InMemoryRepository();
+
+		final String[] ids = new String[count];
+
+		for (int i = 0; i < count; ++i) {
+			ids[i] = repo.store(new Blob("content " + i));
+		}
+
+		for (int threads = 1; threads <= maxThreads; threads <<= 1) {
+			run("find", threads, millis, new Op() {
+
+				public void run(Random random, int thread) throws Exception {
+					String id = ids[random.nextInt(ids.length)];
+
+					if (repo.find(Blob.class, id) == null) {
+						throw new IllegalStateException("missing object "
+								+ id);
+					}
+				}
+			});
+
+			run("ref", threads, millis, new Op() {
+
+				public void run(Random random, int thread) throws Exception {
+					// a branch per thread, no lost races
+					String branch = "branch" + thread;
+					String head = repo.getLocalHeadRef(branch);
+
+					try {
+						repo.setLocalHeadRef(branch, head,
+								ids[random.nextInt(ids.length)]);
+					} catch (GitException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			});
+		}
+	}
+
+	private static void run(String op, int threads, final long millis,
+			final Op task) throws Exception {
+		final AtomicLong ops = new AtomicLong();
+
+		List<Thread> workers = new ArrayList<Thread>();
+
+		for (int i = 0; i < threads; ++i) {
+			final int thread = i;
+
+			workers.add(new Thread() {
+
+				@Override
+				public void run() {
+					Random random = new Random(thread);
+
+					long n = 0;
+					long end = System.currentTimeMillis() + millis;
+
+					try {
+						while (System.currentTimeMillis() < end) {
+							for (int i = 0; i < 1000; ++i) {
+								task.run(random, thread);
+							}
+
+							n += 1000;
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+
+					ops.addAndGet(n);
+				}
+			});
+		}
+
+		for (Thread t : workers) {
+			t.start();
+		}
+
+		for (Thread t : workers) {
+			t.join();
+		}
+
+		System.out.println(op + ": " + threads + " threads, "
+				+ (ops.get() * 1000 / millis) + " ops/s");
+	}
+
+	private static interface Op {
+		void run(Random random, int thread) throws Exception;
+	}
+}
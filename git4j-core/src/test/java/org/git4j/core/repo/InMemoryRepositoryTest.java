@@ -0,0 +1,176 @@
+package org.git4j.core.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.git4j.core.GitException;
+import org.git4j.core.objs.BranchAndHead;
+import org.git4j.core.objs.RefUpdate;
+import org.junit.Test;
+
+public class InMemoryRepositoryTest {
+
+	@Test
+	public void concurrentWriters() throws Exception {
+		final InMemoryRepository repo = new InMemoryRepository();
+		repo.setLocalHeadRef("master", null, "0");
+
+		final AtomicReference<Throwable> failure;
+		failure = new AtomicReference<Throwable>();
+		final int increments = 1000;
+
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int i = 0; i < 8; ++i) {
+			// half of the writers move a remote branch along
+			final boolean both = (i % 2) == 0;
+
+			threads.add(new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						for (int n = 0; n < increments;) {
+							String head = repo.getLocalHeadRef("master");
+							String next = String.valueOf(Integer
+									.parseInt(head) + 1);
+
+							try {
+								if (both) {
+									repo.updateRefs(Arrays.asList(RefUpdate
+											.local("master", head, next),
+											RefUpdate.remote("master", repo
+													.getRemoteHeadRef("master"),
+													next)));
+								} else {
+									repo.setLocalHeadRef("master", head, next);
+								}
+
+								++n;
+							} catch (GitException e) {
+								// lost the race, retry
+							}
+						}
+					} catch (Throwable t) {
+						failure.set(t);
+					}
+				}
+			});
+		}
+
+		for (Thread t : threads) {
+			t.start();
+		}
+
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		assertEquals(String.valueOf(8 * increments),
+				repo.getLocalHeadRef("master"));
+		assertEquals(1, repo.getLocalBranches().size());
+
+		repo.removeLocalBranch("master");
+		assertNull(repo.getLocalHeadRef("master"));
+		assertEquals(0, repo.getLocalBranches().size());
+	}
+
+	@Test
+	public void atomicListings() throws Exception {
+		final InMemoryRepository repo = new InMemoryRepository();
+		repo.updateRefs(Arrays.asList(RefUpdate.local("a", null, "0"),
+				RefUpdate.local("b", null, "0")));
+
+		final AtomicReference<Throwable> failure;
+		failure = new AtomicReference<Throwable>();
+
+		Thread writer = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					for (int n = 0; n < 2000; ++n) {
+						String head = String.valueOf(n);
+						String next = String.valueOf(n + 1);
+
+						repo.updateRefs(Arrays.asList(RefUpdate.local("a",
+								head, next), RefUpdate.local("b", head, next)));
+					}
+				} catch (Throwable t) {
+					failure.set(t);
+				}
+			}
+		};
+
+		writer.start();
+
+		// both branches move together, a listing never sees one moved alone
+		while (writer.isAlive()) {
+			String head = null;
+
+			Collection<BranchAndHead> branches = repo.getLocalBranches();
+			assertEquals(2, branches.size());
+
+			for (BranchAndHead bnh : branches) {
+				if (head == null) {
+					head = bnh.getHeadRef();
+				} else {
+					assertEquals(head, bnh.getHeadRef());
+				}
+			}
+		}
+
+		writer.join();
+
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		assertEquals("2000", repo.getLocalHeadRef("a"));
+		assertEquals("2000", repo.getLocalHeadRef("b"));
+	}
+
+	@Test
+	public void compareAndSet() throws Exception {
+		InMemoryRepository repo = new InMemoryRepository();
+
+		// a new branch MUST NOT exist
+		repo.setLocalHeadRef("master", null, "c1");
+
+		try {
+			repo.setLocalHeadRef("master", null, "c2");
+			fail("conflict expected");
+		} catch (GitException e) {
+			// expected
+		}
+
+		try {
+			repo.setLocalHeadRef("master", "c2", null);
+			fail("conflict expected");
+		} catch (GitException e) {
+			// expected
+		}
+
+		// a missing branch stays missing
+		repo.setLocalHeadRef("topic", null, null);
+		assertNull(repo.getLocalHeadRef("topic"));
+
+		repo.setLocalHeadRef("master", "c1", "c2");
+		assertEquals("c2", repo.getLocalHeadRef("master"));
+
+		repo.setLocalHeadRef("master", "c2", null);
+		assertNull(repo.getLocalHeadRef("master"));
+		assertEquals(0, repo.getLocalBranches().size());
+	}
+}
@@ -0,0 +1,95 @@
+package org.git4j.core.repo;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.git4j.core.Git;
+import org.git4j.core.Workspace;
+import org.git4j.core.impl.DefaultGit;
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.Commit;
+import org.git4j.core.repo.jdbc.IndexLayout;
+import org.git4j.core.util.ObjectUtils;
+
+/**
+ * Measures commit, checkout and history walk latency of
+ * {@link JDBCRepository} on an embedded database, for each index layout.
+ * <p>
+ * Usage: <code>JDBCRepositoryBenchmark [h2|derby] [commits] [files]</code>
+ */
+public class JDBCRepositoryBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		String database = args.length > 0 ? args[0] : "h2";
+		int commits = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int files = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+		IndexLayout[] layouts = { IndexLayout.ROWS, IndexLayout.COLUMN };
+
+		for (IndexLayout layout : layouts) {
+			String name = "bench-" + UUID.randomUUID();
+
+			JDBCRepository repo = "derby".equals(database) ? EmbeddedDatabases
+					.derby(name) : EmbeddedDatabases.h2(name);
+
+			repo.setIndexLayout(layout);
+
+			try {
+				run(layout, repo, commits, files);
+			} finally {
+				repo.wipe();
+			}
+		}
+	}
+
+	private static void run(IndexLayout layout, JDBCRepository repo,
+			int commits, int files) throws Exception {
+		Git git = new DefaultGit(repo);
+
+		Workspace ws = new Workspace();
+
+		for (int i = 0; i < files; ++i) {
+			ws.add("file" + i, "content " + i);
+		}
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < commits; ++i) {
+			// one changed file per commit
+			ws.add("file" + (i % files), "content " + i);
+
+			git.commit(ws, "master", "author", "commit " + i);
+		}
+
+		report(layout, "commit", commits, start);
+
+		int checkouts = Math.min(commits, 100);
+
+		start = System.nanoTime();
+
+		for (int i = 0; i < checkouts; ++i) {
+			git.checkoutLocalBranchHead(new Workspace(), "master");
+		}
+
+		report(layout, "checkout", checkouts, start);
+
+		Map<String, Commit> history = new HashMap<String, Commit>();
+
+		start = System.nanoTime();
+
+		ObjectUtils.collectObjects(repo, repo.getLocalHeadRef("master"), null,
+				history, new HashMap<String, Blob>());
+
+		report(layout, "walk", history.size(), start);
+	}
+
+	private static void report(IndexLayout layout, String op, int n,
+			long start) {
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(layout + " " + op + ": " + n + " commits, "
+				+ (elapsed / 1000000) + " ms, " + (elapsed / 1000 / n)
+				+ " us/op");
+	}
+}
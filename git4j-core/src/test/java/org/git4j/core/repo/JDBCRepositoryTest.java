@@ -0,0 +1,469 @@
+package org.git4j.core.repo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.git4j.core.GitException;
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.UploadPack;
+import org.git4j.core.repo.jdbc.IndexLayout;
+import org.git4j.core.util.ObjectUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@RunWith(Parameterized.class)
+public class JDBCRepositoryTest {
+
+	/**
+	 * embedded database the tests run against, as a {@link Parameterized}
+	 * parameter.
+	 */
+	abstract static class Database {
+
+		private String name;
+
+		private Database(String name) {
+			this.name = name;
+		}
+
+		abstract DataSource dataSource(String database);
+
+		abstract void drop(String database) throws Exception;
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	@Parameters
+	public static Collection<Object[]> databases() {
+		List<Object[]> databases = new ArrayList<Object[]>();
+
+		databases.add(new Object[] { new Database("h2") {
+
+			DataSource dataSource(String database) {
+				return EmbeddedDatabases.h2DataSource(database);
+			}
+
+			void drop(String database) throws Exception {
+				EmbeddedDatabases.dropH2(database);
+			}
+		} });
+
+		databases.add(new Object[] { new Database("derby") {
+
+			DataSource dataSource(String database) {
+				return EmbeddedDatabases.derbyDataSource(database);
+			}
+
+			void drop(String database) throws Exception {
+				EmbeddedDatabases.dropDerby(database);
+			}
+		} });
+
+		return databases;
+	}
+
+	private Database database;
+
+	private String name;
+
+	private DataSource ds;
+
+	private JDBCRepository repo;
+
+	public JDBCRepositoryTest(Database database) {
+		this.database = database;
+	}
+
+	@Before
+	public void open() throws Exception {
+		name = "jdbc-" + UUID.randomUUID();
+		ds = database.dataSource(name);
+
+		repo = new JDBCRepository(ds);
+		repo.createSchema();
+	}
+
+	@After
+	public void close() throws Exception {
+		try {
+			repo.wipe();
+		} finally {
+			database.drop(name);
+		}
+	}
+
+	@Test
+	public void chunkedBlobs() throws Exception {
+		repo.setBlobChunkSize(16);
+
+		byte[] content = new byte[100];
+		for (int i = 0; i < content.length; ++i) {
+			content[i] = (byte) i;
+		}
+
+		Blob large = new Blob(content);
+		Blob small = new Blob("small");
+
+		repo.store(large);
+		repo.store(small);
+
+		// stored twice, nothing happens
+		repo.store(large);
+
+		assertArrayEquals(content, repo.find(Blob.class, large.getId())
+				.getContentAsBytes());
+		assertEquals("small", new String(repo.find(Blob.class, small.getId())
+				.getContentAsBytes(), "UTF-8"));
+
+		// still read back with chunking disabled
+		repo.setBlobChunkSize(0);
+
+		assertArrayEquals(content, repo.find(Blob.class, large.getId())
+				.getContentAsBytes());
+
+		repo.setBlobChunkSize(16);
+
+		assertEquals(content.length, repo.remove(large.getId()));
+		assertNull(repo.find(Blob.class, large.getId()));
+	}
+
+	private static List<String> history(JDBCRepository repo, int size)
+			throws Exception {
+		List<String> ids = new ArrayList<String>();
+
+		String parent = null;
+
+		for (int i = 0; i < size; ++i) {
+			Blob blob = new Blob("content " + i);
+			repo.store(blob);
+
+			Commit commit = new Commit();
+			commit.setAuthor("author");
+			commit.setMessage("message " + i);
+			commit.setParent(parent);
+			commit.index().put("file" + (i % 5), blob.getId());
+			commit.index().put("fixed", blob.getId());
+
+			parent = repo.store(commit);
+			ids.add(parent);
+		}
+
+		return ids;
+	}
+
+	@Test
+	public void indexLayouts() throws Exception {
+		List<String> ids = history(repo, 10);
+
+		Map<String, Map<String, String>> expected = new HashMap<String, Map<String, String>>();
+
+		for (String id : ids) {
+			expected.put(id, repo.find(Commit.class, id).index());
+		}
+
+		IndexLayout[] layouts = { IndexLayout.COLUMN, IndexLayout.BOTH,
+				IndexLayout.ROWS };
+
+		for (IndexLayout layout : layouts) {
+			repo.setIndexLayout(layout);
+			repo.setIndexCompression(layout == IndexLayout.BOTH);
+
+			assertEquals(ids.size(), repo.migrateIndex());
+
+			// nothing left to convert
+			assertEquals(0, repo.migrateIndex());
+
+			for (String id : ids) {
+				assertEquals(expected.get(id), repo.find(Commit.class, id)
+						.index());
+			}
+		}
+	}
+
+	@Test
+	public void readColumnAsRows() throws Exception {
+		repo.setIndexLayout(IndexLayout.COLUMN);
+
+		List<String> ids = history(repo, 10);
+
+		Map<String, Map<String, String>> expected = new HashMap<String, Map<String, String>>();
+
+		for (String id : ids) {
+			expected.put(id, repo.find(Commit.class, id).index());
+		}
+
+		// not migrated, the index is only found in the column
+		repo.setIndexLayout(IndexLayout.ROWS);
+
+		Map<String, Commit> commits = repo.findCommits(ids);
+
+		for (String id : ids) {
+			assertEquals(2, expected.get(id).size());
+			assertEquals(expected.get(id), repo.find(Commit.class, id).index());
+			assertEquals(expected.get(id), commits.get(id).index());
+		}
+	}
+
+	private static int indexRows(DataSource ds, String commitId)
+			throws Exception {
+		Connection conn = ds.getConnection();
+
+		try {
+			PreparedStatement pstmt = conn
+					.prepareStatement("SELECT COUNT(*) FROM git_index WHERE commit_id = ?");
+			pstmt.setString(1, commitId);
+
+			ResultSet rs = pstmt.executeQuery();
+			rs.next();
+
+			return rs.getInt(1);
+		} finally {
+			conn.close();
+		}
+	}
+
+	@Test
+	public void storeCommitsTwice() throws Exception {
+		repo.setIndexLayout(IndexLayout.ROWS);
+		repo.setObjectBatchSize(2);
+
+		List<String> ids = history(repo, 3);
+
+		Commit commit = new Commit();
+		commit.setAuthor("author");
+		commit.setMessage("new");
+		commit.setParent(ids.get(2));
+		commit.index().put("other", repo.find(Commit.class, ids.get(2))
+				.index().get("fixed"));
+
+		UploadPack pack = new UploadPack();
+		pack.setBlobs(new HashMap<String, Blob>());
+		pack.setCommits(new HashMap<String, Commit>());
+
+		for (String id : ids) {
+			pack.getCommits().put(id, repo.find(Commit.class, id));
+		}
+
+		pack.getCommits().put(commit.getId(), commit);
+
+		// stored COMMITs keep their index rows, the new one gets its own
+		repo.store(pack);
+		repo.store(pack);
+
+		for (String id : ids) {
+			assertEquals(2, indexRows(ds, id));
+		}
+
+		assertEquals(1, indexRows(ds, commit.getId()));
+		assertEquals(commit.index(), repo.find(Commit.class, commit.getId())
+				.index());
+	}
+
+	@Test
+	public void ancestry() throws Exception {
+		InMemoryRepository mem = new InMemoryRepository();
+
+		// longer than one ancestry query
+		List<String> main = history(repo, 600);
+
+		for (String id : main) {
+			Commit commit = repo.find(Commit.class, id);
+
+			mem.store(commit);
+
+			for (String blobId : commit.index().values()) {
+				mem.store(repo.find(Blob.class, blobId));
+			}
+		}
+
+		String parent = main.get(400);
+
+		for (int i = 0; i < 5; ++i) {
+			Commit commit = new Commit();
+			commit.setAuthor("other");
+			commit.setMessage("side " + i);
+			commit.setParent(parent);
+
+			parent = repo.store(commit);
+			mem.store(commit);
+		}
+
+		String[][] pairs = { { main.get(599), main.get(3) },
+				{ main.get(599), parent }, { parent, main.get(599) },
+				{ main.get(3), main.get(599) }, { main.get(599), null } };
+
+		for (String[] pair : pairs) {
+			assertEquals(ObjectUtils.canFastForward(mem, pair[0], pair[1]),
+					ObjectUtils.canFastForward(repo, pair[0], pair[1]));
+
+			assertEquals(ObjectUtils.findPreIntersection(mem, pair[0], pair[1]),
+					ObjectUtils.findPreIntersection(repo, pair[0], pair[1]));
+
+			Map<String, Commit> commits = new HashMap<String, Commit>();
+			Map<String, Blob> blobs = new HashMap<String, Blob>();
+
+			Map<String, Commit> memCommits = new HashMap<String, Commit>();
+			Map<String, Blob> memBlobs = new HashMap<String, Blob>();
+
+			assertEquals(ObjectUtils.collectObjects(mem, pair[0], pair[1],
+					memCommits, memBlobs), ObjectUtils.collectObjects(repo,
+					pair[0], pair[1], commits, blobs));
+
+			assertEquals(memCommits.keySet(), commits.keySet());
+			assertEquals(memBlobs.keySet(), blobs.keySet());
+		}
+	}
+
+	@Test
+	public void schema() throws Exception {
+		String name = "schema-" + UUID.randomUUID();
+		DataSource ds = database.dataSource(name);
+
+		JDBCRepository repo = new JDBCRepository(ds);
+
+		try {
+			try {
+				repo.validateSchema();
+				fail("missing tables expected");
+			} catch (GitException e) {
+				// expected
+			}
+
+			repo.createSchema();
+			repo.validateSchema();
+
+			// every optional table and column is created
+			repo.setBlobChunkSize(1024);
+			repo.setIndexLayout(IndexLayout.COLUMN);
+			repo.validateSchema();
+
+			Connection conn = ds.getConnection();
+
+			try {
+				Statement stmt = conn.createStatement();
+				stmt.executeUpdate("DROP INDEX git_index_commit");
+				stmt.executeUpdate("ALTER TABLE git_commits DROP COLUMN cindex");
+				stmt.close();
+			} finally {
+				conn.close();
+			}
+
+			try {
+				repo.validateSchema();
+				fail("missing index and column expected");
+			} catch (GitException e) {
+				assertTrue(e.getMessage().contains("git_index"));
+				assertTrue(e.getMessage().contains("cindex"));
+			}
+
+			// the index column is not needed by rows
+			repo.setIndexLayout(IndexLayout.ROWS);
+
+			try {
+				repo.validateSchema();
+				fail("missing index expected");
+			} catch (GitException e) {
+				assertFalse(e.getMessage().contains("cindex"));
+			}
+
+			// created twice, only the missing ones are added
+			repo.createSchema();
+			repo.createSchema();
+
+			repo.setIndexLayout(IndexLayout.COLUMN);
+			repo.validateSchema();
+		} finally {
+			database.drop(name);
+		}
+	}
+
+	@Test
+	public void replicas() throws Exception {
+		String replicaName = "replica-" + UUID.randomUUID();
+
+		// an empty database stands for a replica lagging behind
+		JDBCRepository replica = new JDBCRepository(database
+				.dataSource(replicaName));
+		replica.createSchema();
+
+		repo.setReplicas(database.dataSource(replicaName));
+
+		try {
+			List<String> ids = history(repo, 3);
+
+			repo.setLocalHeadRef("master", null, ids.get(2));
+
+			// not replicated yet, found through the primary
+			assertNotNull(repo.find(Commit.class, ids.get(2)));
+			assertTrue(ObjectUtils.canFastForward(repo, ids.get(2),
+					ids.get(0)));
+			assertEquals(ids.get(2), repo.getLocalHeadRef("master"));
+
+			// only the replica has it, so the replica is read
+			Blob blob = new Blob("replicated");
+			replica.store(blob);
+
+			assertNotNull(repo.find(Blob.class, blob.getId()));
+
+			// a unit of work only reads the primary
+			UnitOfWork uow = repo.begin();
+
+			try {
+				assertNull(repo.find(Blob.class, blob.getId()));
+			} finally {
+				uow.close();
+			}
+		} finally {
+			try {
+				replica.wipe();
+			} finally {
+				database.drop(replicaName);
+			}
+		}
+	}
+
+	@Test
+	public void rollback() throws Exception {
+		Blob blob = new Blob("uncommitted");
+
+		UnitOfWork uow = repo.begin();
+
+		try {
+			repo.store(blob);
+			repo.setLocalHeadRef("master", null, "c1");
+
+			assertNotNull(repo.find(Blob.class, blob.getId()));
+		} finally {
+			uow.close();
+		}
+
+		assertNull(repo.find(Blob.class, blob.getId()));
+		assertNull(repo.getLocalHeadRef("master"));
+	}
+}
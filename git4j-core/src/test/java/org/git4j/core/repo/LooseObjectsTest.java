@@ -0,0 +1,219 @@
+package org.git4j.core.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.UploadPack;
+import org.junit.Test;
+
+public class LooseObjectsTest {
+
+	private static int count(File dir, String suffix) {
+		int count = 0;
+
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; ++i) {
+				if (files[i].isDirectory()) {
+					count += count(files[i], suffix);
+				} else if (files[i].getName().endsWith(suffix)) {
+					++count;
+				}
+			}
+		}
+
+		return count;
+	}
+
+	@Test
+	public void parallelIngest() throws Exception {
+		File base = new File("target" + File.separator + "loose-repo-"
+				+ UUID.randomUUID());
+
+		FileRepository repo = new FileRepository(base);
+
+		// loose objects only
+		repo.setPackThreshold(Integer.MAX_VALUE);
+		repo.setIoThreads(4);
+
+		try {
+			Map<String, Blob> blobs = new HashMap<String, Blob>();
+			Commit commit = new Commit();
+
+			for (int i = 0; i < 200; ++i) {
+				Blob blob = new Blob("content " + i);
+
+				blobs.put(blob.getId(), blob);
+				commit.index().put("file" + i, blob.getId());
+			}
+
+			UploadPack pack = new UploadPack();
+			pack.setBlobs(blobs);
+			pack.setCommits(new HashMap<String, Commit>());
+			pack.getCommits().put(commit.getId(), commit);
+
+			repo.store(pack);
+
+			File objects = new File(base, "objects");
+
+			assertEquals(0, count(new File(objects, "pack"), ".idx"));
+			assertEquals(0, count(objects, ".tmp"));
+
+			for (Blob blob : blobs.values()) {
+				assertEquals(blob.getContent(), repo.find(Blob.class,
+						blob.getId()).getContent());
+			}
+
+			assertEquals(commit.getId(), repo.find(Commit.class,
+					commit.getId()).getId());
+
+			// stored again, nothing written
+			repo.store(pack);
+			assertEquals(0, count(objects, ".tmp"));
+		} finally {
+			repo.wipe();
+		}
+	}
+
+	private static int ioThreads(File base) {
+		int count = 0;
+
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.isAlive() && t.getName().startsWith(base.getName() + "-io-")) {
+				++count;
+			}
+		}
+
+		return count;
+	}
+
+	@Test
+	public void sharedIoThreads() throws Exception {
+		File base = new File("target" + File.separator + "loose-repo-"
+				+ UUID.randomUUID());
+
+		FileRepository repo = new FileRepository(base);
+
+		repo.setPackThreshold(Integer.MAX_VALUE);
+		repo.setIoThreads(3);
+
+		try {
+			for (int n = 0; n < 5; ++n) {
+				Map<String, Blob> blobs = new HashMap<String, Blob>();
+
+				for (int i = 0; i < 20; ++i) {
+					Blob blob = new Blob("store " + n + " content " + i);
+					blobs.put(blob.getId(), blob);
+				}
+
+				UploadPack pack = new UploadPack();
+				pack.setBlobs(blobs);
+				pack.setCommits(new HashMap<String, Commit>());
+
+				repo.store(pack);
+			}
+
+			// one pool for every store
+			assertTrue(ioThreads(base) <= 3);
+
+			repo.close();
+
+			for (int i = 0; (i < 100) && (ioThreads(base) > 0); ++i) {
+				Thread.sleep(10);
+			}
+
+			assertEquals(0, ioThreads(base));
+		} finally {
+			repo.wipe();
+		}
+	}
+
+	@Test
+	public void leftoverTemp() throws Exception {
+		File base = new File("target" + File.separator + "loose-repo-"
+				+ UUID.randomUUID());
+
+		FileRepository repo = new FileRepository(base);
+
+		try {
+			String id = repo.store(new Blob("A"));
+
+			// partial write of a crashed process
+			File.createTempFile("obj", ".tmp", new File(base, "objects"));
+
+			ObjectCursor cursor = repo.objects(null);
+
+			try {
+				assertEquals(id, cursor.next().getId());
+				assertNull(cursor.next());
+			} finally {
+				cursor.close();
+			}
+		} finally {
+			repo.wipe();
+		}
+	}
+
+	@Test
+	public void mappedReads() throws Exception {
+		File base = new File("target" + File.separator + "loose-repo-"
+				+ UUID.randomUUID());
+
+		FileRepository repo = new FileRepository(base);
+		repo.setMapThreshold(1024);
+		repo.setPackThreshold(2);
+
+		try {
+			StringBuilder large = new StringBuilder();
+
+			for (int i = 0; i < 1000; ++i) {
+				large.append("line ").append(i).append('\n');
+			}
+
+			// loose, read into the thread buffer and mapped
+			String small = repo.store(new Blob("small"));
+			String mapped = repo.store(new Blob(large.toString()));
+
+			assertEquals("small", repo.find(Blob.class, small).getContent());
+			assertEquals(large.toString(), repo.find(Blob.class, mapped)
+					.getContent());
+
+			// packed
+			Map<String, Blob> blobs = new HashMap<String, Blob>();
+
+			for (int i = 0; i < 2; ++i) {
+				Blob blob = new Blob(i + large.toString());
+				blobs.put(blob.getId(), blob);
+			}
+
+			Blob packedSmall = new Blob("packed small");
+			blobs.put(packedSmall.getId(), packedSmall);
+
+			UploadPack pack = new UploadPack();
+			pack.setBlobs(blobs);
+			pack.setCommits(new HashMap<String, Commit>());
+
+			repo.store(pack);
+
+			for (Blob blob : blobs.values()) {
+				assertEquals(blob.getContent(), repo.find(Blob.class,
+						blob.getId()).getContent());
+			}
+
+			// the thread buffer is reused, earlier results stay intact
+			assertEquals("small", repo.find(Blob.class, small).getContent());
+			assertEquals("packed small", repo.find(Blob.class,
+					packedSmall.getId()).getContent());
+		} finally {
+			repo.wipe();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package org.git4j.core.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.ObjectInfo;
+import org.git4j.core.objs.Types;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@RunWith(Parameterized.class)
+public class ObjectCursorTest {
+
+	@Parameters
+	public static Collection<Object[]> backends() {
+		return Backend.all();
+	}
+
+	private Backend backend;
+
+	private Repository repo;
+
+	public ObjectCursorTest(Backend backend) {
+		this.backend = backend;
+	}
+
+	@Before
+	public void open() throws Exception {
+		repo = backend.open("cursor");
+	}
+
+	@After
+	public void close() throws Exception {
+		backend.close(repo);
+	}
+
+	private Set<String> list(Types type) throws Exception {
+		Set<String> ids = new HashSet<String>();
+
+		ObjectCursor cursor = repo.objects(type);
+
+		try {
+			ObjectInfo info;
+
+			while ((info = cursor.next()) != null) {
+				if (type != null) {
+					assertEquals(type, info.getType());
+				}
+
+				assertTrue(ids.add(info.getId()));
+			}
+		} finally {
+			cursor.close();
+		}
+
+		return ids;
+	}
+
+	@Test
+	public void listByType() throws Exception {
+		String blob1 = repo.store(new Blob("A1"));
+		String blob2 = repo.store(new Blob("A2"));
+
+		Commit commit = new Commit();
+		commit.index().put("a", blob1);
+		commit.index().put("b", blob2);
+
+		String commitId = repo.store(commit);
+
+		assertEquals(3, list(null).size());
+
+		Set<String> blobs = list(Types.BLOB);
+		assertEquals(2, blobs.size());
+		assertTrue(blobs.contains(blob1));
+		assertTrue(blobs.contains(blob2));
+
+		Set<String> commits = list(Types.COMMIT);
+		assertEquals(1, commits.size());
+		assertTrue(commits.contains(commitId));
+	}
+}
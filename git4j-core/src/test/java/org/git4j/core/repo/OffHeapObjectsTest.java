@@ -0,0 +1,233 @@
+package org.git4j.core.repo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.ObjectInfo;
+import org.git4j.core.objs.Types;
+import org.junit.Test;
+
+public class OffHeapObjectsTest {
+
+	private static int count(OffHeapObjects objects, Types type)
+			throws Exception {
+		ObjectCursor cursor = objects.cursor(type);
+
+		try {
+			int count = 0;
+
+			while (cursor.next() != null) {
+				++count;
+			}
+
+			return count;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Test
+	public void storeAndRemove() throws Exception {
+		// small slabs, many of them
+		OffHeapObjects objects = new OffHeapObjects(256, 0);
+
+		List<String> ids = new ArrayList<String>();
+
+		// past the initial table size
+		for (int i = 0; i < 5000; ++i) {
+			Blob blob = new Blob("content " + i);
+
+			objects.put(blob.getId(), blob);
+			ids.add(blob.getId());
+		}
+
+		Commit commit = new Commit();
+		commit.setAuthor("author");
+		commit.index().put("a", ids.get(0));
+		objects.put(commit.getId(), commit);
+
+		// stored once
+		objects.put(commit.getId(), commit);
+
+		for (int i = 0; i < ids.size(); ++i) {
+			Blob blob = (Blob) objects.get(ids.get(i));
+
+			assertEquals("content " + i, new String(blob.getContentAsBytes(),
+					"UTF-8"));
+		}
+
+		Commit found = (Commit) objects.get(commit.getId());
+		assertEquals(commit.getId(), found.getId());
+		assertEquals(ids.get(0), found.index().get("a"));
+
+		assertEquals(5000, count(objects, Types.BLOB));
+		assertEquals(1, count(objects, Types.COMMIT));
+
+		for (int i = 0; i < ids.size(); i += 2) {
+			assertTrue(objects.remove(ids.get(i), Long.MAX_VALUE) > 0);
+			assertEquals(-1, objects.remove(ids.get(i), Long.MAX_VALUE));
+			assertNull(objects.get(ids.get(i)));
+		}
+
+		assertEquals(2500, count(objects, Types.BLOB));
+
+		// stored again after removal
+		for (int i = 0; i < 1000; i += 2) {
+			objects.put(ids.get(i), new Blob("content " + i));
+		}
+
+		assertEquals(3000, count(objects, Types.BLOB));
+		assertEquals("content 2", new String(((Blob) objects.get(ids.get(2)))
+				.getContentAsBytes(), "UTF-8"));
+
+		objects.clear();
+
+		assertNull(objects.get(commit.getId()));
+		assertEquals(0, count(objects, null));
+	}
+
+	@Test
+	public void largerThanSlab() throws Exception {
+		OffHeapObjects objects = new OffHeapObjects(64, 0);
+
+		byte[] content = new byte[1000];
+		for (int i = 0; i < content.length; ++i) {
+			content[i] = (byte) i;
+		}
+
+		Blob small = new Blob("small");
+		Blob large = new Blob(content);
+
+		objects.put(small.getId(), small);
+		objects.put(large.getId(), large);
+		objects.put(new Blob("after").getId(), new Blob("after"));
+
+		assertArrayEquals(content, ((Blob) objects.get(large.getId()))
+				.getContentAsBytes());
+		assertEquals(3, count(objects, null));
+
+		ObjectCursor cursor = objects.cursor(null);
+
+		try {
+			ObjectInfo info;
+
+			while ((info = cursor.next()) != null) {
+				if (info.getId().equals(large.getId())) {
+					assertTrue(info.getSize() > content.length);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Test
+	public void cache() throws Exception {
+		OffHeapObjects objects = new OffHeapObjects(1024, 1);
+
+		Blob a = new Blob("a");
+		Blob b = new Blob("b");
+
+		objects.put(a.getId(), a);
+		objects.put(b.getId(), b);
+
+		Object found = objects.get(a.getId());
+		assertSame(found, objects.get(a.getId()));
+
+		// evicted by b
+		objects.get(b.getId());
+		assertEquals(a.getId(), ((Blob) objects.get(a.getId())).getId());
+
+		objects.remove(a.getId(), Long.MAX_VALUE);
+		assertNull(objects.get(a.getId()));
+	}
+
+	@Test
+	public void compaction() throws Exception {
+		OffHeapObjects objects = new OffHeapObjects(256, 0);
+
+		List<String> ids = new ArrayList<String>();
+
+		for (int i = 0; i < 2000; ++i) {
+			Blob blob = new Blob("content " + i);
+
+			objects.put(blob.getId(), blob);
+			ids.add(blob.getId());
+		}
+
+		long allocated = objects.getAllocatedBytes();
+
+		ObjectCursor cursor = objects.cursor(null);
+
+		try {
+			assertEquals(ids.get(0), cursor.next().getId());
+
+			for (int i = 0; i < ids.size(); ++i) {
+				if ((i % 4) != 0) {
+					objects.remove(ids.get(i), Long.MAX_VALUE);
+				}
+			}
+
+			// not while a cursor is open
+			assertEquals(allocated, objects.getAllocatedBytes());
+			assertEquals(ids.get(4), cursor.next().getId());
+		} finally {
+			cursor.close();
+		}
+
+		assertTrue(objects.getAllocatedBytes() < allocated / 2);
+		assertEquals(500, count(objects, Types.BLOB));
+
+		for (int i = 0; i < ids.size(); ++i) {
+			Blob blob = (Blob) objects.get(ids.get(i));
+
+			if ((i % 4) != 0) {
+				assertNull(blob);
+			} else {
+				assertEquals("content " + i, new String(blob
+						.getContentAsBytes(), "UTF-8"));
+			}
+		}
+
+		// compacted while the table still holds removed objects
+		objects.put(ids.get(1), new Blob("content 1"));
+		assertEquals(501, count(objects, Types.BLOB));
+	}
+
+	@Test
+	public void cacheRacingRemove() throws Exception {
+		final OffHeapObjects objects = new OffHeapObjects(1024, 16);
+
+		for (int i = 0; i < 500; ++i) {
+			final Blob blob = new Blob("content " + i);
+			objects.put(blob.getId(), blob);
+
+			Thread reader = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						objects.get(blob.getId());
+					} catch (Exception e) {
+						// checked below
+					}
+				}
+			};
+
+			reader.start();
+			objects.remove(blob.getId(), Long.MAX_VALUE);
+			reader.join();
+
+			// never cached again once removed
+			assertNull(objects.get(blob.getId()));
+		}
+	}
+}
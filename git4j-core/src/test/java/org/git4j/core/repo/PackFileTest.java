@@ -0,0 +1,275 @@
+package org.git4j.core.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.Commit;
+import org.git4j.core.objs.ObjectInfo;
+import org.git4j.core.objs.Types;
+import org.git4j.core.objs.UploadPack;
+import org.junit.Test;
+
+public class PackFileTest {
+
+	private static int count(Repository repo, Types type) throws Exception {
+		int count = 0;
+
+		ObjectCursor cursor = repo.objects(type);
+
+		try {
+			ObjectInfo info;
+
+			while ((info = cursor.next()) != null) {
+				if (type != null) {
+					assertEquals(type, info.getType());
+				}
+
+				++count;
+			}
+		} finally {
+			cursor.close();
+		}
+
+		return count;
+	}
+
+	private static int list(File dir, String suffix) {
+		int count = 0;
+
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; ++i) {
+				if (files[i].getName().endsWith(suffix)) {
+					++count;
+				}
+			}
+		}
+
+		return count;
+	}
+
+	private static UploadPack blobs(String prefix, int size) {
+		UploadPack pack = new UploadPack();
+		pack.setBlobs(new HashMap<String, Blob>());
+		pack.setCommits(new HashMap<String, Commit>());
+
+		for (int i = 0; i < size; ++i) {
+			Blob blob = new Blob(prefix + i);
+			pack.getBlobs().put(blob.getId(), blob);
+		}
+
+		return pack;
+	}
+
+	private static Set<String> names(File dir, String suffix) {
+		Set<String> names = new HashSet<String>();
+
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; ++i) {
+				if (files[i].getName().endsWith(suffix)) {
+					names.add(files[i].getName());
+				}
+			}
+		}
+
+		return names;
+	}
+
+	@Test
+	public void packAndLoose() throws Exception {
+		File base = new File("target" + File.separator + "pack-repo-"
+				+ UUID.randomUUID());
+
+		File objects = new File(base, "objects");
+		File packDir = new File(objects, "pack");
+
+		// flat layout, loose objects are counted in the objects directory
+		FileRepository repo = new FileRepository(base, 0);
+
+		try {
+			Map<String, Blob> blobs = new HashMap<String, Blob>();
+			Commit commit = new Commit();
+
+			for (int i = 0; i < 100; ++i) {
+				Blob blob = new Blob("content " + i);
+
+				blobs.put(blob.getId(), blob);
+				commit.index().put("file" + i, blob.getId());
+			}
+
+			UploadPack pack = new UploadPack();
+			pack.setBlobs(blobs);
+			pack.setCommits(new HashMap<String, Commit>());
+			pack.getCommits().put(commit.getId(), commit);
+
+			repo.store(pack);
+
+			// besides the pack directory and the layout file
+			assertEquals(1, list(packDir, ".idx"));
+			assertEquals(0, list(objects, "") - 2);
+
+			for (Blob blob : blobs.values()) {
+				assertEquals(blob.getContent(), repo.find(Blob.class,
+						blob.getId()).getContent());
+			}
+
+			assertEquals(commit.getId(), repo.find(Commit.class,
+					commit.getId()).getId());
+			assertNull(repo.find(Blob.class, "unknown"));
+
+			// already packed, nothing written
+			String loose = repo.store(new Blob("loose"));
+			repo.store(blobs.values().iterator().next());
+
+			assertEquals(1, list(objects, "") - 2);
+			assertEquals(101, count(repo, Types.BLOB));
+			assertEquals(1, count(repo, Types.COMMIT));
+
+			// another instance on the same directory
+			FileRepository other = new FileRepository(base);
+			assertNotNull(other.find(Commit.class, commit.getId()));
+
+			String removed = commit.index().get("file0");
+			assertTrue(repo.remove(removed) > 0);
+			assertNull(repo.find(Blob.class, removed));
+			assertEquals(-1, repo.remove(removed));
+			assertEquals(101, count(repo, null));
+
+			repo.repack();
+
+			assertEquals(1, list(packDir, ".idx"));
+			assertEquals(0, list(objects, "") - 2);
+			assertFalse(new File(objects, loose).exists());
+			assertEquals("loose", repo.find(Blob.class, loose).getContent());
+			assertEquals(101, count(repo, null));
+
+			// other instance picks up the new pack on a miss
+			assertNotNull(other.find(Blob.class, loose));
+		} finally {
+			repo.wipe();
+		}
+	}
+
+	@Test
+	public void mergePacks() throws Exception {
+		FileRepository repo = new FileRepository(new File("target"
+				+ File.separator + "pack-repo-" + UUID.randomUUID()));
+
+		try {
+			repo.setPackThreshold(2);
+			repo.setMaxPacks(3);
+
+			for (int i = 0; i < 4; ++i) {
+				UploadPack pack = new UploadPack();
+				pack.setBlobs(new HashMap<String, Blob>());
+				pack.setCommits(new HashMap<String, Commit>());
+
+				Blob a = new Blob("a" + i);
+				Blob b = new Blob("b" + i);
+
+				pack.getBlobs().put(a.getId(), a);
+				pack.getBlobs().put(b.getId(), b);
+
+				repo.store(pack);
+			}
+
+			assertEquals(8, count(repo, Types.BLOB));
+			assertEquals("b2", repo.find(Blob.class, Blob.getId("b2"))
+					.getContent());
+		} finally {
+			repo.wipe();
+		}
+	}
+
+	@Test
+	public void tieredMerge() throws Exception {
+		File base = new File("target" + File.separator + "pack-repo-"
+				+ UUID.randomUUID());
+		File packDir = new File(new File(base, "objects"), "pack");
+
+		FileRepository repo = new FileRepository(base);
+
+		try {
+			// below the default threshold, written loose
+			repo.store(blobs("loose", 3));
+			assertEquals(0, list(packDir, ".idx"));
+
+			repo.setPackThreshold(2);
+			repo.setMaxPacks(3);
+
+			repo.store(blobs("large", 50));
+			Set<String> large = names(packDir, ".idx");
+
+			for (int i = 0; i < 6; ++i) {
+				repo.store(blobs("small" + i + "-", 2));
+			}
+
+			// only the small packs are merged
+			assertTrue(list(packDir, ".idx") <= 3);
+			assertTrue(names(packDir, ".idx").containsAll(large));
+
+			assertEquals(65, count(repo, Types.BLOB));
+			assertEquals("small5-0", repo.find(Blob.class,
+					Blob.getId("small5-0")).getContent());
+		} finally {
+			repo.wipe();
+		}
+	}
+
+	@Test
+	public void removeFromPack() throws Exception {
+		File base = new File("target" + File.separator + "pack-repo-"
+				+ UUID.randomUUID());
+		File packDir = new File(new File(base, "objects"), "pack");
+
+		FileRepository repo = new FileRepository(base);
+
+		try {
+			repo.setPackThreshold(2);
+			repo.store(blobs("content", 10));
+
+			Set<String> packed = names(packDir, ".idx");
+
+			assertTrue(repo.remove(Blob.getId("content0")) > 0);
+			assertTrue(repo.remove(Blob.getId("content1")) > 0);
+			assertEquals(-1, repo.remove(Blob.getId("content1")));
+
+			// recorded as deleted, the pack is not rewritten
+			assertEquals(packed, names(packDir, ".idx"));
+			assertEquals(1, list(packDir, ".del"));
+			assertEquals(8, count(repo, Types.BLOB));
+			assertNull(repo.find(Blob.class, Blob.getId("content0")));
+
+			// another instance stores it again
+			FileRepository other = new FileRepository(base);
+			other.store(new Blob("content0"));
+
+			assertNotNull(repo.find(Blob.class, Blob.getId("content0")));
+
+			for (int i = 2; i < 5; ++i) {
+				assertTrue(repo.remove(Blob.getId("content" + i)) > 0);
+			}
+
+			// half dead, rewritten without the removed objects
+			assertFalse(names(packDir, ".idx").containsAll(packed));
+			assertEquals(0, list(packDir, ".del"));
+			assertEquals(6, count(repo, Types.BLOB));
+			assertNull(repo.find(Blob.class, Blob.getId("content4")));
+			assertNotNull(repo.find(Blob.class, Blob.getId("content5")));
+		} finally {
+			repo.wipe();
+		}
+	}
+}
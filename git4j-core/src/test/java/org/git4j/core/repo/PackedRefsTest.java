@@ -0,0 +1,207 @@
+package org.git4j.core.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.git4j.core.GitException;
+import org.git4j.core.objs.BranchAndHead;
+import org.git4j.core.objs.RefUpdate;
+import org.junit.Test;
+
+public class PackedRefsTest {
+
+	private static Map<String, String> toMap(Iterable<BranchAndHead> bnhs) {
+		Map<String, String> map = new HashMap<String, String>();
+
+		for (BranchAndHead bnh : bnhs) {
+			map.put(bnh.getBranch(), bnh.getHeadRef());
+		}
+
+		return map;
+	}
+
+	@Test
+	public void packRefs() throws Exception {
+		File base = new File("target" + File.separator + "packed-repo-"
+				+ UUID.randomUUID());
+
+		File heads = new File(base, "refs" + File.separator + "heads");
+
+		FileRepository repo = new FileRepository(base);
+
+		try {
+			for (int i = 0; i < 100; ++i) {
+				repo.setLocalHeadRef("tenant" + i, null, "c" + i);
+			}
+
+			repo.setRemoteHeadRef("master", null, "r1");
+
+			assertEquals(101, repo.packRefs());
+			assertEquals(0, heads.list().length);
+			assertEquals(0, repo.packRefs());
+
+			Map<String, String> refs = toMap(repo.getLocalBranches());
+			assertEquals(100, refs.size());
+			assertEquals("c42", refs.get("tenant42"));
+			assertEquals("r1", repo.getRemoteHeadRef("master"));
+
+			// a packed branch exists
+			try {
+				repo.setLocalHeadRef("tenant1", null, "x");
+				fail("conflict expected");
+			} catch (GitException e) {
+				// expected
+			}
+
+			// loose refs override packed ones
+			repo.setLocalHeadRef("tenant1", "c1", "c1b");
+			assertEquals("c1b", repo.getLocalHeadRef("tenant1"));
+			assertEquals("c1b", toMap(repo.getLocalBranches()).get("tenant1"));
+
+			repo.removeLocalBranch("tenant2");
+			repo.removeRemoteBranch("master");
+
+			assertNull(repo.getLocalHeadRef("tenant2"));
+			assertNull(repo.getRemoteHeadRef("master"));
+			assertEquals(99, repo.getLocalBranches().size());
+
+			// another instance reads the packed-refs file
+			FileRepository other = new FileRepository(base);
+			assertEquals(toMap(repo.getLocalBranches()), toMap(other
+					.getLocalBranches()));
+			assertEquals(0, other.getRemoteBranches().size());
+
+			assertEquals(1, other.packRefs());
+			assertEquals("c1b", repo.getLocalHeadRef("tenant1"));
+			assertEquals(0, heads.list().length);
+		} finally {
+			repo.wipe();
+		}
+	}
+
+	@Test
+	public void updateRefsAtOnce() throws Exception {
+		File base = new File("target" + File.separator + "packed-repo-"
+				+ UUID.randomUUID());
+
+		File heads = new File(base, "refs" + File.separator + "heads");
+
+		FileRepository repo = new FileRepository(base);
+
+		try {
+			repo.setLocalHeadRef("loose", null, "l1");
+			repo.setLocalHeadRef("packed", null, "p1");
+			repo.setLocalHeadRef("dropped", null, "d1");
+			repo.packRefs();
+			repo.setLocalHeadRef("loose", "l1", "l2");
+
+			repo.updateRefs(Arrays.asList(
+					RefUpdate.local("loose", "l2", "l3"),
+					RefUpdate.local("packed", "p1", "p2"),
+					RefUpdate.local("dropped", "d1", null),
+					RefUpdate.remote("master", null, "r1")));
+
+			// switched by one rename of the packed-refs file
+			assertEquals(0, heads.list().length);
+
+			FileRepository other = new FileRepository(base);
+			Map<String, String> refs = toMap(other.getLocalBranches());
+			assertEquals(2, refs.size());
+			assertEquals("l3", refs.get("loose"));
+			assertEquals("p2", refs.get("packed"));
+			assertEquals("r1", other.getRemoteHeadRef("master"));
+
+			// single refs stay loose
+			repo.setLocalHeadRef("packed", "p2", "p3");
+			assertEquals(1, heads.list().length);
+			assertEquals("p3", other.getLocalHeadRef("packed"));
+		} finally {
+			repo.wipe();
+		}
+	}
+
+	@Test
+	public void removeWhilePacking() throws Exception {
+		File base = new File("target" + File.separator + "packed-repo-"
+				+ UUID.randomUUID());
+
+		final FileRepository repo = new FileRepository(base);
+
+		// another instance behaves like another process
+		final FileRepository packer = new FileRepository(base);
+
+		final AtomicReference<Throwable> failure;
+		failure = new AtomicReference<Throwable>();
+		final int branches = 200;
+
+		try {
+			// a remover in another process has dropped the packed ref and
+			// is about to delete the loose one, which must not be packed
+			File heads = new File(base, "refs" + File.separator + "heads");
+			repo.setLocalHeadRef("removing", null, "r1");
+
+			File lock = new File(heads, "removing.lock");
+			assertTrue(lock.createNewFile());
+
+			assertEquals(0, packer.packRefs());
+			assertTrue(new File(heads, "removing").delete());
+			assertTrue(lock.delete());
+			assertNull(packer.getLocalHeadRef("removing"));
+
+			// packed and overridden by a loose ref, both go on removal
+			for (int i = 0; i < branches; ++i) {
+				repo.setLocalHeadRef("tenant" + i, null, "c" + i);
+			}
+
+			repo.packRefs();
+
+			for (int i = 0; i < branches; ++i) {
+				repo.setLocalHeadRef("tenant" + i, "c" + i, "d" + i);
+			}
+
+			Thread remover = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < branches; ++i) {
+							repo.removeLocalBranch("tenant" + i);
+						}
+					} catch (Throwable t) {
+						failure.set(t);
+					}
+				}
+			};
+
+			remover.start();
+
+			try {
+				while (remover.isAlive()) {
+					packer.packRefs();
+				}
+			} finally {
+				remover.join();
+			}
+
+			if (failure.get() != null) {
+				throw new AssertionError(failure.get());
+			}
+
+			packer.packRefs();
+
+			assertTrue(repo.getLocalBranches().isEmpty());
+			assertTrue(new FileRepository(base).getLocalBranches().isEmpty());
+		} finally {
+			repo.wipe();
+		}
+	}
+}
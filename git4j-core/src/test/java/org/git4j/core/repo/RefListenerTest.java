@@ -0,0 +1,217 @@
+package org.git4j.core.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.git4j.core.objs.RefUpdate;
+import org.junit.Test;
+
+public class RefListenerTest {
+
+	private static class QueueListener implements RefListener {
+
+		private BlockingQueue<RefEvent> events = new LinkedBlockingQueue<RefEvent>();
+
+		public void refChanged(RefEvent event) {
+			events.add(event);
+		}
+
+		private RefEvent take() throws InterruptedException {
+			RefEvent event = events.poll(5, TimeUnit.SECONDS);
+			assertNotNull("no event", event);
+
+			return event;
+		}
+	}
+
+	private static void assertEvent(RefEvent event, boolean remote,
+			String branch, String oldHeadRef, String newHeadRef) {
+		assertEquals(remote, event.isRemote());
+		assertEquals(branch, event.getBranch());
+		assertEquals(oldHeadRef, event.getOldHeadRef());
+		assertEquals(newHeadRef, event.getNewHeadRef());
+	}
+
+	@Test
+	public void inMemory() throws Exception {
+		InMemoryRepository repo = new InMemoryRepository();
+
+		QueueListener listener = new QueueListener();
+		repo.addRefListener(listener);
+
+		try {
+			repo.setLocalHeadRef("master", null, "c1");
+			assertEvent(listener.take(), false, "master", null, "c1");
+
+			repo.updateRefs(Arrays.asList(RefUpdate
+					.remote("master", null, "c1")));
+			assertEvent(listener.take(), true, "master", null, "c1");
+
+			repo.removeLocalBranch("master");
+			assertEvent(listener.take(), false, "master", "c1", null);
+		} finally {
+			repo.removeRefListener(listener);
+		}
+	}
+
+	@Test
+	public void coalesce() throws Exception {
+		InMemoryRepository repo = new InMemoryRepository();
+
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		repo.addRefListener(new RefListener() {
+
+			public void refChanged(RefEvent event) {
+				if ("c1".equals(event.getNewHeadRef())
+						&& "block".equals(event.getBranch())) {
+					blocked.countDown();
+
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						// do nothing
+					}
+				}
+			}
+		});
+
+		QueueListener listener = new QueueListener();
+		repo.addRefListener(listener);
+
+		repo.setLocalHeadRef("block", null, "c0");
+		assertEvent(listener.take(), false, "block", null, "c0");
+
+		repo.setLocalHeadRef("block", "c0", "c1");
+		blocked.await();
+
+		// delivery thread is blocked, these are coalesced
+		repo.setLocalHeadRef("topic", null, "c1");
+		repo.setLocalHeadRef("topic", "c1", "c2");
+		repo.setLocalHeadRef("topic", "c2", "c3");
+
+		release.countDown();
+
+		assertEvent(listener.take(), false, "block", "c0", "c1");
+		assertEvent(listener.take(), false, "topic", null, "c3");
+		assertNull(listener.events.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void fileExternalWriter() throws Exception {
+		File base = new File("target" + File.separator + "listen-repo-"
+				+ UUID.randomUUID());
+
+		FileRepository repo = new FileRepository(base);
+		repo.setRefPollInterval(20);
+
+		// another process writing the same repository
+		FileRepository other = new FileRepository(base);
+
+		QueueListener listener = new QueueListener();
+
+		try {
+			other.setLocalHeadRef("master", null, "c1");
+
+			repo.addRefListener(listener);
+
+			// first poll only records current heads
+			Thread.sleep(100);
+			assertFalse(listener.events.size() > 0);
+
+			other.setLocalHeadRef("master", "c1", "c2");
+			assertEvent(listener.take(), false, "master", "c1", "c2");
+
+			other.setRemoteHeadRef("master", null, "c2");
+			assertEvent(listener.take(), true, "master", null, "c2");
+
+			other.removeLocalBranch("master");
+			assertEvent(listener.take(), false, "master", "c2", null);
+
+			// own changes are published once
+			repo.setLocalHeadRef("topic", null, "c3");
+			assertEvent(listener.take(), false, "topic", null, "c3");
+
+			Thread.sleep(100);
+			assertNull(listener.events.poll());
+		} finally {
+			repo.removeRefListener(listener);
+			repo.wipe();
+		}
+	}
+
+	@Test
+	public void jdbcExternalWriter() throws Exception {
+		String name = "listen-" + UUID.randomUUID();
+
+		JDBCRepository repo = EmbeddedDatabases.h2(name);
+		repo.setRefPollInterval(20);
+
+		// another process sharing the database
+		JDBCRepository other = EmbeddedDatabases.h2(name);
+
+		QueueListener listener = new QueueListener();
+
+		try {
+			other.setLocalHeadRef("master", null, "c1");
+
+			repo.addRefListener(listener);
+
+			// first poll only records current heads
+			Thread.sleep(100);
+			assertFalse(listener.events.size() > 0);
+
+			other.setLocalHeadRef("master", "c1", "c2");
+			assertEvent(listener.take(), false, "master", "c1", "c2");
+
+			// a rolled back change leaves a gap in the ref log
+			UnitOfWork uow = other.begin();
+
+			try {
+				other.setLocalHeadRef("rolledBack", null, "c0");
+			} finally {
+				uow.close();
+			}
+
+			other.updateRefs(Arrays.asList(
+					RefUpdate.remote("master", null, "c2"),
+					RefUpdate.local("master", "c2", "c3")));
+
+			RefEvent first = listener.take();
+			RefEvent second = listener.take();
+
+			if (first.isRemote()) {
+				assertEvent(first, true, "master", null, "c2");
+				assertEvent(second, false, "master", "c2", "c3");
+			} else {
+				assertEvent(first, false, "master", "c2", "c3");
+				assertEvent(second, true, "master", null, "c2");
+			}
+
+			other.removeLocalBranch("master");
+			assertEvent(listener.take(), false, "master", "c3", null);
+
+			// own changes are published once, entries after the gap are
+			// read again without repeating events
+			repo.setLocalHeadRef("topic", null, "c4");
+			assertEvent(listener.take(), false, "topic", null, "c4");
+
+			Thread.sleep(100);
+			assertNull(listener.events.poll());
+		} finally {
+			repo.removeRefListener(listener);
+			EmbeddedDatabases.dropH2(name);
+		}
+	}
+}
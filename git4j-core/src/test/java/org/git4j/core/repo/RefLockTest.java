@@ -0,0 +1,136 @@
+package org.git4j.core.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.git4j.core.GitException;
+import org.junit.Test;
+
+public class RefLockTest {
+
+	@Test
+	public void compareAndSet() throws Exception {
+		File base = new File("target" + File.separator + "lock-repo-"
+				+ UUID.randomUUID());
+
+		FileRepository repo = new FileRepository(base);
+
+		try {
+			// a new branch MUST NOT exist
+			repo.setLocalHeadRef("master", null, "c1");
+
+			try {
+				repo.setLocalHeadRef("master", null, "c2");
+				fail("conflict expected");
+			} catch (GitException e) {
+				// expected
+			}
+
+			try {
+				repo.setRemoteHeadRef("master", "c1", "c2");
+				fail("conflict expected");
+			} catch (GitException e) {
+				// expected
+			}
+
+			assertEquals("c1", repo.getLocalHeadRef("master"));
+			assertNull(repo.getRemoteHeadRef("master"));
+
+			// left behind by another writer
+			File lock = new File(base, "refs" + File.separator + "heads"
+					+ File.separator + "master.lock");
+			assertTrue(lock.createNewFile());
+
+			repo.setLockTimeout(0);
+
+			try {
+				repo.setLocalHeadRef("master", "c1", "c2");
+				fail("locked branch expected");
+			} catch (GitException e) {
+				// expected
+			}
+
+			assertEquals(1, repo.getLocalBranches().size());
+			assertTrue(lock.delete());
+
+			repo.setLocalHeadRef("master", "c1", "c2");
+			assertEquals("c2", repo.getLocalHeadRef("master"));
+
+			repo.removeLocalBranch("master");
+			assertNull(repo.getLocalHeadRef("master"));
+		} finally {
+			repo.wipe();
+		}
+	}
+
+	@Test
+	public void concurrentWriters() throws Exception {
+		File base = new File("target" + File.separator + "lock-repo-"
+				+ UUID.randomUUID());
+
+		final FileRepository repo = new FileRepository(base);
+		repo.setLocalHeadRef("master", null, "0");
+
+		final AtomicReference<Throwable> failure;
+		failure = new AtomicReference<Throwable>();
+		final int increments = 50;
+
+		try {
+			List<Thread> threads = new ArrayList<Thread>();
+
+			for (int i = 0; i < 4; ++i) {
+				// a second instance behaves like another process
+				final FileRepository writer = (i % 2) == 0 ? repo
+						: new FileRepository(base);
+
+				threads.add(new Thread() {
+
+					@Override
+					public void run() {
+						try {
+							for (int n = 0; n < increments;) {
+								String head = writer.getLocalHeadRef("master");
+								String next = String.valueOf(Integer
+										.parseInt(head) + 1);
+
+								try {
+									writer.setLocalHeadRef("master", head, next);
+									++n;
+								} catch (GitException e) {
+									// lost the race, retry
+								}
+							}
+						} catch (Throwable t) {
+							failure.set(t);
+						}
+					}
+				});
+			}
+
+			for (Thread t : threads) {
+				t.start();
+			}
+
+			for (Thread t : threads) {
+				t.join();
+			}
+
+			if (failure.get() != null) {
+				throw new AssertionError(failure.get());
+			}
+
+			assertEquals(String.valueOf(4 * increments),
+					repo.getLocalHeadRef("master"));
+		} finally {
+			repo.wipe();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package org.git4j.core.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.git4j.core.objs.Blob;
+import org.git4j.core.objs.Commit;
+import org.junit.Test;
+
+public class RepositoryCopierTest {
+
+	private static String commit(Repository repo, String parent,
+			String... blobIds) throws Exception {
+		Commit commit = new Commit();
+		commit.setParent(parent);
+
+		for (int i = 0; i < blobIds.length; ++i) {
+			commit.index().put("file" + i, blobIds[i]);
+		}
+
+		return repo.store(commit);
+	}
+
+	@Test
+	public void incremental() throws Exception {
+		InMemoryRepository source = new InMemoryRepository();
+
+		FileRepository target = new FileRepository(new File("target"
+				+ File.separator + "copy-repo-" + UUID.randomUUID()));
+
+		try {
+			String blob1 = source.store(new Blob("A1"));
+			String c1 = commit(source, null, blob1);
+
+			source.setLocalHeadRef("master", null, c1);
+			source.setRemoteHeadRef("master", null, c1);
+
+			RepositoryCopier copier = new RepositoryCopier(source, target);
+			copier.setThreads(2);
+			copier.setBatchSize(1);
+			copier.setVerify(true);
+
+			RepositoryCopier.Result result = copier.copyObjects();
+			assertEquals(2, result.getCopiedObjects());
+			assertNull(target.getLocalHeadRef("master"));
+
+			// source is still being written to
+			String blob2 = source.store(new Blob("A2"));
+			String c2 = commit(source, c1, blob1, blob2);
+
+			source.setLocalHeadRef("master", c1, c2);
+			source.setLocalHeadRef("topic", null, c1);
+
+			// an unknown branch in target
+			target.setLocalHeadRef("stale", null, c1);
+
+			result = copier.syncRefs();
+			assertEquals(2, result.getCopiedObjects());
+			assertEquals(2, result.getSkippedObjects());
+			assertEquals(4, result.getUpdatedRefs());
+
+			assertEquals(c2, target.getLocalHeadRef("master"));
+			assertEquals(c1, target.getLocalHeadRef("topic"));
+			assertNull(target.getLocalHeadRef("stale"));
+			assertEquals(c1, target.getRemoteHeadRef("master"));
+			assertNotNull(target.find(Blob.class, blob2));
+
+			// nothing left to copy
+			result = new RepositoryCopier(source, target).copy();
+			assertEquals(0, result.getCopiedObjects());
+			assertEquals(4, result.getSkippedObjects());
+			assertEquals(0, result.getUpdatedRefs());
+		} finally {
+			target.wipe();
+		}
+	}
+
+	@Test
+	public void oneCutover() throws Exception {
+		InMemoryRepository source = new InMemoryRepository();
+		final InMemoryRepository target = new InMemoryRepository();
+
+		String c1 = commit(source, null, source.store(new Blob("A1")));
+		String c2 = commit(source, c1, source.store(new Blob("A2")));
+
+		source.setLocalHeadRef("master", null, c2);
+		source.setLocalHeadRef("topic", null, c1);
+		source.setRemoteHeadRef("master", null, c1);
+
+		target.store(new Blob("A1"));
+		target.setLocalHeadRef("stale", null, target.store(new Commit()));
+
+		final List<String> calls = new ArrayList<String>();
+
+		Repository recording = (Repository) Proxy.newProxyInstance(
+				Repository.class.getClassLoader(),
+				new Class<?>[] { Repository.class }, new InvocationHandler() {
+
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						synchronized (calls) {
+							calls.add(method.getName());
+						}
+
+						try {
+							return method.invoke(target, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+
+		RepositoryCopier.Result result = new RepositoryCopier(source,
+				recording).syncRefs();
+
+		assertEquals(3, result.getCopiedObjects());
+		assertEquals(1, result.getSkippedObjects());
+		assertEquals(4, result.getUpdatedRefs());
+
+		assertEquals(c2, target.getLocalHeadRef("master"));
+		assertEquals(c1, target.getLocalHeadRef("topic"));
+		assertNull(target.getLocalHeadRef("stale"));
+		assertEquals(c1, target.getRemoteHeadRef("master"));
+
+		// target ids are looked up per batch, never listed, and every
+		// branch moves in one update
+		assertFalse(calls.contains("objects"));
+		assertEquals(1, Collections.frequency(calls, "updateRefs"));
+		assertFalse(calls.contains("setLocalHeadRef"));
+		assertFalse(calls.contains("removeLocalBranch"));
+	}
+}
@@ -0,0 +1,103 @@
+package org.git4j.core.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.git4j.core.GitException;
+import org.git4j.core.objs.RefUpdate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@RunWith(Parameterized.class)
+public class UpdateRefsTest {
+
+	@Parameters
+	public static Collection<Object[]> backends() {
+		return Backend.all();
+	}
+
+	private Backend backend;
+
+	private Repository repo;
+
+	public UpdateRefsTest(Backend backend) {
+		this.backend = backend;
+	}
+
+	@Before
+	public void open() throws Exception {
+		repo = backend.open("refs");
+	}
+
+	@After
+	public void close() throws Exception {
+		backend.close(repo);
+	}
+
+	@Test
+	public void updateRefs() throws Exception {
+		repo.updateRefs(Arrays.asList(RefUpdate.local("master", null, "c1"),
+				RefUpdate.local("topic", null, "c1"),
+				RefUpdate.remote("master", null, "c1")));
+
+		assertEquals("c1", repo.getLocalHeadRef("master"));
+		assertEquals("c1", repo.getLocalHeadRef("topic"));
+		assertEquals("c1", repo.getRemoteHeadRef("master"));
+
+		// topic is not at c2, nothing is applied
+		try {
+			repo.updateRefs(Arrays.asList(
+					RefUpdate.local("master", "c1", "c2"),
+					RefUpdate.remote("master", "c1", "c2"),
+					RefUpdate.local("topic", "c2", "c3")));
+
+			fail("conflict expected");
+		} catch (GitException e) {
+			// expected
+		}
+
+		assertEquals("c1", repo.getLocalHeadRef("master"));
+		assertEquals("c1", repo.getLocalHeadRef("topic"));
+		assertEquals("c1", repo.getRemoteHeadRef("master"));
+
+		// a new branch MUST NOT exist
+		try {
+			repo.updateRefs(Arrays.asList(
+					RefUpdate.local("master", "c1", "c2"),
+					RefUpdate.local("topic", null, "c2")));
+
+			fail("conflict expected");
+		} catch (GitException e) {
+			// expected
+		}
+
+		assertEquals("c1", repo.getLocalHeadRef("master"));
+
+		repo.updateRefs(Arrays.asList(RefUpdate.local("master", "c1", "c2"),
+				RefUpdate.local("topic", "c1", null),
+				RefUpdate.remote("master", "c1", "c2")));
+
+		assertEquals("c2", repo.getLocalHeadRef("master"));
+		assertNull(repo.getLocalHeadRef("topic"));
+		assertEquals("c2", repo.getRemoteHeadRef("master"));
+		assertEquals(1, repo.getLocalBranches().size());
+
+		try {
+			repo.updateRefs(Arrays.asList(
+					RefUpdate.local("master", "c2", "c3"),
+					RefUpdate.local("master", "c3", "c4")));
+
+			fail("duplicate branch expected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package org.git4j.core.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.git4j.core.objs.Blob;
+import org.junit.Test;
+
+public class VerificationPolicyTest {
+
+	@Test
+	public void always() {
+		VerificationPolicy policy = VerificationPolicy.always();
+
+		Blob blob = new Blob("content");
+
+		assertTrue(policy.verify(blob.getId(), blob));
+		assertTrue(policy.verify(blob.getId(), blob));
+		assertFalse(policy.verify("other", blob));
+
+		assertEquals(3, policy.getVerifiedObjects());
+		assertEquals(1, policy.getMismatches());
+	}
+
+	@Test
+	public void sampled() {
+		VerificationPolicy policy = VerificationPolicy.sampled(3);
+
+		Blob blob = new Blob("content");
+
+		for (int i = 0; i < 9; ++i) {
+			policy.verify(blob.getId(), blob);
+		}
+
+		assertEquals(3, policy.getVerifiedObjects());
+		assertEquals(0, policy.getMismatches());
+	}
+
+	@Test
+	public void firstLoad() {
+		VerificationPolicy policy = VerificationPolicy.firstLoad();
+
+		Blob blob = new Blob("content");
+
+		// a mismatch is not remembered as verified
+		assertFalse(policy.verify("other", blob));
+		assertFalse(policy.verify("other", blob));
+
+		assertTrue(policy.verify(blob.getId(), blob));
+		assertTrue(policy.verify(blob.getId(), blob));
+
+		assertEquals(3, policy.getVerifiedObjects());
+		assertEquals(2, policy.getMismatches());
+	}
+
+	@Test
+	public void never() {
+		VerificationPolicy policy = VerificationPolicy.never();
+
+		assertTrue(policy.verify("other", new Blob("content")));
+		assertEquals(0, policy.getVerifiedObjects());
+	}
+
+	@Test
+	public void jdbc() throws Exception {
+		String name = "verify-" + UUID.randomUUID();
+		JDBCRepository repo = EmbeddedDatabases.h2(name);
+
+		try {
+			Blob blob = new Blob("content");
+			repo.store(blob);
+
+			repo.find(Blob.class, blob.getId());
+			repo.find(Blob.class, blob.getId());
+
+			assertEquals(2, repo.getVerificationPolicy().getVerifiedObjects());
+
+			repo.setVerificationPolicy(VerificationPolicy.firstLoad());
+
+			repo.find(Blob.class, blob.getId());
+			repo.find(Blob.class, blob.getId());
+
+			assertEquals(1, repo.getVerificationPolicy().getVerifiedObjects());
+		} finally {
+			repo.wipe();
+			EmbeddedDatabases.dropH2(name);
+		}
+	}
+}